@@ -55,10 +55,164 @@ struct DfsHandle {
   1: i64 id
 }
 
+/**
+ * A line found by grep().
+ */
+struct GrepMatch {
+  1: i64 offset,            // File offset of the first byte of the line
+  2: string line            // The line, without its line terminator
+}
+
+/**
+ * One page of lines found by grep().
+ */
+struct GrepResult {
+  1: list<GrepMatch> matches, // Matching lines in file order
+  2: i64 nextOffset,        // Offset to continue from, -1 when done
+  3: i64 bytesScanned       // Bytes of the file scanned for this page
+}
+
+/**
+ * One page of the records of a split read by readSplit().
+ */
+struct SplitResult {
+  1: list<binary> records,  // Complete records in file order, no delimiters
+  2: i64 nextOffset         // Offset to continue from, -1 when done
+}
+
+/**
+ * Bytes appended to a file, returned by follow().
+ */
+struct FollowResult {
+  1: binary data,           // Bytes from the offset asked for, maybe none
+  2: i64 length             // Length of the file the server last saw
+}
+
+/**
+ * A change to an entry of a watched directory, see pollEvents().
+ */
+struct NamespaceEvent {
+  1: i16 type,              // EVENT_CREATED, _DELETED, _RENAMED or _MODIFIED
+  2: string path,           // Full path of the entry, the old one if renamed
+  3: string newPath,        // New full path if renamed, otherwise empty
+  4: FileStatus status      // The entry after the change, before if deleted
+}
+
+/**
+ * Events returned by pollEvents().
+ */
+struct WatchResult {
+  1: list<NamespaceEvent> events, // Events in the order they were seen
+  2: i64 cursor,            // Cursor to pass to the next pollEvents()
+  3: bool reset             // Events were lost; list the directory again
+}
+
+/**
+ * Where a block of a file is stored, returned by getBlockLocations().
+ */
+struct BlockLocation {
+  1: i64 offset,            // File offset of the first byte of the block
+  2: i64 length,            // Length of the block
+  3: list<string> hosts     // Hosts holding a replica, as the DFS names them
+}
+
+/**
+ * A file the server maps into memory for readShared(), returned by
+ * openSharedRing().
+ */
+struct SharedRing {
+  1: string path,           // The file on the server's host
+  2: i64 size,              // Bytes of data after the 8 byte header
+  3: i64 token              // Value in the header, to check the mapping
+}
+
+/**
+ * Totals under a path, returned by contentSummary().
+ */
+struct ContentSummary {
+  1: i64 length,            // Bytes in all files
+  2: i64 fileCount,         // Number of files
+  3: i64 directoryCount,    // Number of directories, the path's own included
+  4: i64 spaceConsumed      // Bytes of all replicas of all files
+}
+
+/**
+ * Entries returned by listModifiedSince().
+ */
+struct ModifiedListing {
+  1: list<FileStatus> entries, // Entries modified after mtime, full paths
+  2: i64 highWaterMark      // The mtime to pass to the next call
+}
+
 const i16 READ = 1
 const i16 WRITE = 2
 const i16 READ_WRITE = 3
 
+/**
+ * Added to READ, opens a file compressed with a codec the server
+ * recognises by its suffix (.gz, .deflate, .bz2 on Hadoop) so that reads
+ * return the uncompressed content, with offsets into that content.  Files
+ * without a recognised codec are read unchanged.  The Sector server does
+ * not support it.
+ */
+const i16 DECOMPRESS = 4
+
+/**
+ * Bits of the fields mask of listFilesProjected() and statProjected(), one
+ * per FileStatus field.  The server only fills in the fields asked for;
+ * the others are left unset and a Java server does not send the strings
+ * among them.  A Sector server fills in every field.
+ */
+const i32 FIELD_LENGTH = 1
+const i32 FIELD_ISDIR = 2
+const i32 FIELD_BLOCK_REPLICATION = 4
+const i32 FIELD_BLOCKSIZE = 8
+const i32 FIELD_MODIFICATION_TIME = 16
+const i32 FIELD_PERMISSION = 32
+const i32 FIELD_OWNER = 64
+const i32 FIELD_GROUP = 128
+const i32 FIELD_PATH = 256
+const i32 FIELD_ALL = 511
+
+/**
+ * Types of NamespaceEvent.  A rename shows up in the watched directories at
+ * both ends.  MODIFIED is reported for files whose length or modification
+ * time changed.
+ */
+const i16 EVENT_CREATED = 1
+const i16 EVENT_DELETED = 2
+const i16 EVENT_RENAMED = 3
+const i16 EVENT_MODIFIED = 4
+
+/**
+ * Start of the DfsServiceIOException message of a call the server refused
+ * because it is overloaded.  Such a call never reached the DFS, so it is
+ * safe to retry later, preferably on another server.
+ */
+const string OVERLOADED = "OVERLOADED: "
+
+/**
+ * Start of the DfsServiceIOException message of a call that ran out of
+ * time, either the client's (see setCallTimeout) or the server's default.
+ * The call may or may not have taken effect.
+ */
+const string TIMED_OUT = "TIMED OUT: "
+
+/**
+ * Start of the DfsServiceIOException message of a call the server failed
+ * at once because the DFS behind it is not answering.  Such a call never
+ * reached the DFS, so it is safe to retry later.
+ */
+const string UNAVAILABLE = "UNAVAILABLE: "
+
+/**
+ * Start of the DfsServiceIOException message of a call the server refused
+ * because the client or its user went over a rate limit.  The server is
+ * fine, so the call should be retried later on the same server rather than
+ * elsewhere.
+ */
+const string THROTTLED = "THROTTLED: "
+
 exception DfsServiceIOException {
   1: string message
 }
@@ -103,11 +257,59 @@ bool closeDfs(),
  */
 list<FileStatus> listFiles( 1:ClientHandle clientHandle, 2:string path ) throws ( 1:DfsServiceIOException ex ),
 
+/**
+ * List the entries of directory path, and of its subdirectories if
+ * recursive is set, whose modification time is after mtime.
+ *
+ * Pass the highWaterMark returned as mtime to the next call to get what
+ * changed since.  The path of each entry is its full path.  The server may
+ * hold the high-water mark back, so an entry can be returned by more than
+ * one call; removed entries are not reported, see watch() for that.  If
+ * path is a file it is returned alone when it is newer than mtime.
+ */
+ModifiedListing listModifiedSince( 1:ClientHandle clientHandle, 2:string path, 3:i64 mtime, 4:bool recursive ) throws ( 1:DfsServiceIOException ex ),
+
+/**
+ * List files in directory path like listFiles(), filling in only the
+ * FileStatus fields whose FIELD_ bits are set in fields.  A listing of
+ * names and sizes, say, then costs the server no permission, owner and
+ * group strings and is smaller on the wire.
+ */
+list<FileStatus> listFilesProjected( 1:ClientHandle clientHandle, 2:string path, 3:i32 fields ) throws ( 1:DfsServiceIOException ex ),
+
 /**
  * Get info on a single file/dir.
  */
 FileStatus stat( 1:ClientHandle clientHandle, 2:string path ) throws ( 1:DfsServiceIOException ex ),
 
+/**
+ * Get info on a single file/dir like stat(), filling in only the fields
+ * whose FIELD_ bits are set in fields.
+ */
+FileStatus statProjected( 1:ClientHandle clientHandle, 2:string path, 3:i32 fields ) throws ( 1:DfsServiceIOException ex ),
+
+/**
+ * Total up the files and directories under path, as du does, without
+ * listing the tree from the client.
+ *
+ * The server lists the directories of a large tree in parallel and keeps
+ * the totals of each directory for a while.  Changes made through the
+ * same server drop the totals they affect at once; changes made elsewhere
+ * show once the kept totals expire.  For a file, the totals are those of
+ * the file.
+ */
+ContentSummary contentSummary( 1:ClientHandle clientHandle, 2:string path ) throws ( 1:DfsServiceIOException ex ),
+
+/**
+ * Find where the blocks of file path holding the length bytes at offset
+ * are stored, in file order, so work on the file can be run next to its
+ * data.  Pass 0 and the file's length for the whole file.  A file system
+ * without hosts of its own, such as the local one, reports the server's
+ * host.  The Sector server reports the whole file as one block on the
+ * slaves holding a copy.
+ */
+list<BlockLocation> getBlockLocations( 1:ClientHandle clientHandle, 2:string path, 3:i64 offset, 4:i64 length ) throws ( 1:DfsServiceIOException ex ),
+
 /**
  * Create a directory.
  */
@@ -130,7 +332,7 @@ bool remove( 1:ClientHandle clientHandle, 2:string path, 3:bool recursive  ) thr
 // File functions:
 
 /**
- * Open a file. Mode is either READ or WRITE.
+ * Open a file. Mode is either READ or WRITE, or READ + DECOMPRESS.
  */
 DfsHandle open( 1:ClientHandle clientHandle, 2:string filename, 3:i16 mode ) throws ( 1:DfsServiceIOException ex ),
 
@@ -147,6 +349,43 @@ bool close( 1:ClientHandle clientHandle, 2:DfsHandle dfsHandle ) throws ( 1:DfsS
  */
 string read( 1:ClientHandle clientHandle, 2:DfsHandle dfsHandle, 3:i64 offset, 4:i64 len ) throws ( 1:DfsServiceIOException ex ),
 
+/**
+ * Read data from file as raw bytes.
+ *
+ * Same as read, except that the data is returned unchanged as binary, so it
+ * is safe for files that are not text.  Fewer than len bytes are returned
+ * only at the end of the file.
+ *
+ * offset is file offset to start reading from.
+ * len is length of data to read.
+ */
+binary readBytes( 1:ClientHandle clientHandle, 2:DfsHandle dfsHandle, 3:i64 offset, 4:i64 len ) throws ( 1:DfsServiceIOException ex ),
+
+/**
+ * Create a file of size bytes for the client to map into memory, so reads
+ * by a client on the same host as the server skip encoding and sending the
+ * data.  The file starts with an 8 byte header holding token, which the
+ * client checks to be sure it mapped the server's file and not a file of
+ * the same name on another host; the data area follows it.  The file is
+ * readable only by the user the server runs as and is removed when the
+ * client closes.  A client has one ring; calling again returns it.
+ */
+SharedRing openSharedRing( 1:ClientHandle clientHandle, 2:i64 size ) throws ( 1:DfsServiceIOException ex ),
+
+/**
+ * Read data from file into the client's shared ring instead of returning
+ * it.
+ *
+ * Reads up to len bytes at offset, as readBytes does, and places them at
+ * ringOffset in the data area of the ring from openSharedRing().  The
+ * client chooses ringOffset and must not let two outstanding calls use the
+ * same bytes of the ring.
+ *
+ * returns the number of bytes placed, fewer than len only at the end of
+ * the file.
+ */
+i32 readShared( 1:ClientHandle clientHandle, 2:DfsHandle dfsHandle, 3:i64 offset, 4:i32 len, 5:i64 ringOffset ) throws ( 1:DfsServiceIOException ex ),
+
 /**
  * Write data to a file.
  *
@@ -164,5 +403,117 @@ bool copyToLocalFile( 1:string src, 2:string dest ) throws ( 1:DfsServiceIOExcep
 /**
  * Copy a file from the local file system to the DFS.
  */
-bool copyFromLocalFile( 1:string src, 2:string dest ) throws ( 1:DfsServiceIOException ex )
+bool copyFromLocalFile( 1:string src, 2:string dest ) throws ( 1:DfsServiceIOException ex ),
+
+// Query functions:
+
+/**
+ * Find the lines of path that match pattern, a page at a time.
+ *
+ * pattern is a regular expression, or a plain substring if literal is true,
+ * which is much faster to match.  The Hadoop server uses Java regular
+ * expressions and the Sector server POSIX extended ones.  Only lines that
+ * start at or after offset and before end are scanned; an end <= 0 scans
+ * to the end of the file.  A line that starts before offset is left to the
+ * range before it, so ranges that tile a file see each line once.  A page
+ * holds at most maxMatches lines, and the server may end a page early
+ * after scanning a bounded number of bytes; call again with offset set to
+ * nextOffset and the same end until nextOffset is -1.  Lines longer than
+ * the server's limit are matched and returned truncated.
+ */
+GrepResult grep( 1:ClientHandle clientHandle, 2:string path, 3:string pattern, 4:bool literal, 5:i64 offset, 6:i64 end, 7:i32 maxMatches ) throws ( 1:DfsServiceIOException ex ),
+
+/**
+ * Read the records owned by the split of path that starts at offset and
+ * is length bytes long, a page at a time.
+ *
+ * Records end with delimiter, or with a newline if delimiter is empty, in
+ * which case a carriage return before the newline is dropped as well.  A
+ * split owns the complete records that start inside it, wherever they
+ * end, and a record that starts before offset belongs to the split before
+ * it, so splits that tile a file return each record exactly once, the
+ * same way as Hadoop's TextInputFormat.  A page ends after the server has
+ * returned a bounded number of bytes; call again with offset set to
+ * nextOffset and length shortened to end where the split ends, until
+ * nextOffset is -1.  A record longer than the server's limit fails the
+ * call.
+ */
+SplitResult readSplit( 1:ClientHandle clientHandle, 2:string path, 3:i64 offset, 4:i64 length, 5:string delimiter ) throws ( 1:DfsServiceIOException ex ),
+
+/**
+ * Wait for path to grow past offset and return the new bytes, like
+ * tail -f.
+ *
+ * The call returns as soon as the file is longer than offset, with at most
+ * maxBytes bytes starting at offset, or after waitMillis with no data if it
+ * did not grow.  It also returns at once, with no data, if the file is
+ * shorter than offset, so a follower can tell from length that the file was
+ * truncated or replaced and start again.  Call again with offset advanced
+ * by the bytes returned.  Bytes become visible when the DFS makes them
+ * visible to readers, e.g. as blocks are completed in HDFS.  The server may
+ * wait less than waitMillis or return fewer than maxBytes bytes.
+ */
+FollowResult follow( 1:ClientHandle clientHandle, 2:string path, 3:i64 offset, 4:i64 maxBytes, 5:i64 waitMillis ) throws ( 1:DfsServiceIOException ex ),
+
+// Watch functions:
+
+/**
+ * Start watching the directory path for entries being created, deleted,
+ * renamed and modified, instead of listing it over and over.
+ *
+ * Returns the cursor to pass to the first pollEvents(), which sees every
+ * change made after the call.  Changes are found by listing the directory
+ * at an interval, once for all of its watchers, and promptly for changes
+ * made through the same server; an entry created and deleted between two
+ * listings is not seen.  The directory stays watched until unwatch() or
+ * closeClient().  The Sector server does not support watches.
+ */
+i64 watch( 1:ClientHandle clientHandle, 2:string path ) throws ( 1:DfsServiceIOException ex ),
+
+/**
+ * Wait for changes to the watched directory path after cursor and return
+ * them.
+ *
+ * The call returns as soon as there are events after cursor, at most
+ * maxEvents of them, or after waitMillis with none.  Call again with the
+ * cursor returned.  If reset is set, events after cursor are not known,
+ * e.g. because the server dropped them, restarted or is not the one the
+ * cursor came from: list the directory again and carry on with the new
+ * cursor.  Polling a directory that is not watched watches it and returns
+ * a reset.  The server may wait less than waitMillis.
+ */
+WatchResult pollEvents( 1:ClientHandle clientHandle, 2:string path, 3:i64 cursor, 4:i32 maxEvents, 5:i64 waitMillis ) throws ( 1:DfsServiceIOException ex ),
+
+/**
+ * Stop watching the directory path.  Returns false if it was not watched
+ * by this client.
+ */
+bool unwatch( 1:ClientHandle clientHandle, 2:string path ),
+
+// Diagnostic functions:
+
+/**
+ * Tag the next call made on this connection with traceId.
+ *
+ * The id appears with that call in the server's slow-request log, so a
+ * client can match its own logs to the server's.  It applies to one call
+ * only and is dropped if the connection is closed first.  Servers that do
+ * not trace ignore it.  It is sent without waiting for a reply, so a
+ * traced call costs no extra round trip.
+ */
+async void setTraceId( 1:ClientHandle clientHandle, 2:string traceId ),
+
+// Call options:
+
+/**
+ * Give the next call made on this connection timeoutMillis to complete.
+ *
+ * The time counts from when the server reads the call.  A call that runs
+ * out of it fails with a message starting with TIMED_OUT, and whatever it
+ * was waiting for in the DFS is abandoned.  Without it, the server applies
+ * its own default, if any.  It applies to one call only and is dropped if
+ * the connection is closed first.  Servers without deadlines ignore it.
+ * Like setTraceId, it is sent without waiting for a reply.
+ */
+async void setCallTimeout( 1:ClientHandle clientHandle, 2:i64 timeoutMillis )
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.bench;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+import java.io.IOException;
+
+/**
+ * Local file system stand-in used by the benchmarks.  It is the raw local
+ * file system, so no checksum files are written or verified, with one
+ * change: the statuses it returns carry fixed permissions and owner.  The
+ * local statuses look their permissions up by running <code>ls</code> in a
+ * child process the first time they are asked, which would swamp the cost of
+ * the handler code that <code>stat</code> and <code>listFiles</code> are
+ * meant to measure.
+ */
+public class BenchFileSystem extends RawLocalFileSystem
+{
+    /** {@inheritDoc} */
+    public FileStatus getFileStatus( final Path f )
+        throws IOException
+    {
+        return plain( super.getFileStatus( f ) );
+    }
+
+    /** {@inheritDoc} */
+    public FileStatus[] listStatus( final Path f )
+        throws IOException
+    {
+        FileStatus[] local = super.listStatus( f );
+        if ( local == null ) {
+            return null;
+        }
+        FileStatus[] result = new FileStatus[local.length];
+        for ( int i = 0; i < local.length; i++ ) {
+            result[i] = plain( local[i] );
+        }
+        return result;
+    }
+
+    /**
+     * Copies the fields that are cheap to read into a plain status.
+     */
+    private static FileStatus plain( final FileStatus st )
+    {
+        return new FileStatus( st.getLen(), st.isDir(), st.getReplication(),
+            st.getBlockSize(), st.getModificationTime(), st.getPath() );
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.bench;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding an open handle when many are open: one-byte
+ * <code>readBytes</code> calls spread over all handles, so the time is the
+ * client and handle lookups plus a trivial read.  Each handle holds a file
+ * descriptor, so the larger counts need <code>ulimit -n</code> raised.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class HandleBenchmark
+{
+    /** Number of handles open at once. */
+    @Param( { "16", "1024", "8192" } )
+    public int openHandles;
+
+    /** The handler. */
+    private LocalDfs dfs;
+
+    /** The open handles. */
+    private DfsHandle[] handles;
+
+    /** Index of the next handle used. */
+    private int next;
+
+    /**
+     * Opens the same small file {@link #openHandles} times.
+     */
+    @Setup
+    public void setUp()
+        throws IOException, DfsServiceIOException
+    {
+        dfs = new LocalDfs();
+        String path = dfs.createFile( "small.bin", 4096 );
+        handles = new DfsHandle[openHandles];
+        for ( int i = 0; i < openHandles; i++ ) {
+            handles[i] = dfs.handler.open( dfs.chandle, path, Constants.READ );
+        }
+    }
+
+    /**
+     * Closes all handles.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        dfs.close();
+    }
+
+    /**
+     * @return one byte read through the next handle.
+     */
+    @Benchmark
+    public byte[] lookupAndRead()
+        throws DfsServiceIOException
+    {
+        // an odd stride visits every handle of a power-of-two count
+        next = ( next + 7919 ) % handles.length;
+        return dfs.handler.readBytes( dfs.chandle, handles[next], 0L, 1L );
+    }
+}
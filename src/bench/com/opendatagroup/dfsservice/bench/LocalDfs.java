@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.bench;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.ClientHandle;
+// end thrift-generated files
+
+import com.opendatagroup.dfsservice.server.DfsServer.DfsHandler;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A {@link DfsHandler} running in process over {@link BenchFileSystem} in a
+ * scratch directory, logged in and ready for calls.  Benchmarks create one
+ * in their setup and {@link #close} it in their tear down.
+ */
+final class LocalDfs
+{
+    // ** Package Data **
+
+    /** The handler under test. */
+    final DfsHandler handler;
+
+    /** Client handle returned by <code>init</code>. */
+    final ClientHandle chandle;
+
+    /** Scratch directory holding the benchmark files. */
+    final File dir;
+
+
+    // ** Constructors **
+
+    /**
+     * Creates a scratch directory and a handler on the local file system.
+     *
+     * @throws IOException if the directory cannot be created.
+     */
+    LocalDfs()
+        throws IOException
+    {
+        dir = File.createTempFile( "dfsbench", "" );
+        if ( !dir.delete() || !dir.mkdir() ) {
+            throw new IOException( "cannot create " + dir );
+        }
+
+        Configuration conf = new Configuration();
+        conf.set( "fs.default.name", "file:///" );
+        conf.set( "fs.file.impl", BenchFileSystem.class.getName() );
+        handler = new DfsHandler( conf );
+        chandle = handler.init( null );
+        if ( chandle.id < 0 ) {
+            throw new IOException( "init failed" );
+        }
+        handler.login( chandle, "bench", "bench" );
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * @param name a file name relative to the scratch directory.
+     *
+     * @return the absolute path of the file, as passed to the handler.
+     */
+    String path( final String name )
+    {
+        return new File( dir, name ).getAbsolutePath();
+    }
+
+    /**
+     * Creates a file of random bytes directly on the local disk.
+     *
+     * @param name a file name relative to the scratch directory.
+     * @param size the length of the file.
+     *
+     * @return the absolute path of the file.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    String createFile( final String name, final long size )
+        throws IOException
+    {
+        File f = new File( dir, name );
+        File parent = f.getParentFile();
+        if ( !parent.isDirectory() && !parent.mkdirs() ) {
+            throw new IOException( "cannot create " + parent );
+        }
+        byte[] buf = new byte[64 * 1024];
+        new Random( 42L ).nextBytes( buf );
+        FileOutputStream out = new FileOutputStream( f );
+        try {
+            long left = size;
+            while ( left > 0 ) {
+                int n = ( int )Math.min( buf.length, left );
+                out.write( buf, 0, n );
+                left -= n;
+            }
+        } finally {
+            out.close();
+        }
+        return f.getAbsolutePath();
+    }
+
+    /**
+     * Closes the client and the file system and removes the scratch
+     * directory.
+     */
+    void close()
+    {
+        handler.closeClient( chandle );
+        handler.closeDfs();
+        delete( dir );
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Deletes a file or a directory tree.
+     */
+    private static void delete( final File f )
+    {
+        File[] children = f.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) {
+                delete( child );
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.bench;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.ClientHandle;
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsService;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import com.opendatagroup.dfsservice.client.DfsConnectionPool;
+import com.opendatagroup.dfsservice.client.DfsSession;
+import com.opendatagroup.dfsservice.client.DfsSharedRing;
+import com.opendatagroup.dfsservice.uds.UnixServerTransport;
+import com.opendatagroup.dfsservice.uds.UnixTransport;
+
+import com.facebook.thrift.TException;
+import com.facebook.thrift.protocol.TBinaryProtocol;
+import com.facebook.thrift.server.TServer;
+import com.facebook.thrift.server.TThreadPoolServer;
+import com.facebook.thrift.transport.TServerSocket;
+import com.facebook.thrift.transport.TTransportFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads by a client on the same host as the server, over a real Thrift
+ * server: <code>readBytes</code> over the loopback interface and over a
+ * Unix domain socket, which both send the data through the socket, against
+ * <code>readShared</code> through a {@link DfsSharedRing}, which sends only
+ * the call.  The file is small enough to stay in the page cache, so the
+ * numbers are dominated by the transport.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class LoopbackBenchmark
+{
+    /** Length of the file read. */
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+
+    /** Bytes asked for per call. */
+    @Param( { "4096", "65536", "1048576" } )
+    public int chunkSize;
+
+    /** The handler. */
+    private LocalDfs dfs;
+
+    /** Thrift server in front of the handler. */
+    private TServer server;
+
+    /** Thrift server on a Unix domain socket in front of the handler. */
+    private TServer udsServer;
+
+    /** Connection to {@link #udsServer}. */
+    private UnixTransport udsTransport;
+
+    /** Client over {@link #udsTransport}. */
+    private DfsService.Client udsClient;
+
+    /** Client handle of {@link #udsClient}. */
+    private ClientHandle udsChandle;
+
+    /** Handle of the file opened through {@link #udsClient}. */
+    private DfsHandle udsHandle;
+
+    /** Client session over the loopback interface. */
+    private DfsSession session;
+
+    /** The session's shared ring. */
+    private DfsSharedRing ring;
+
+    /** Handle of the file, open for reading. */
+    private DfsHandle handle;
+
+    /** Buffer the shared reads copy into. */
+    private byte[] buf;
+
+    /** Offset of the next read. */
+    private long offset;
+
+    /**
+     * Creates the file, starts the server and opens the file and a ring
+     * through a client session.
+     */
+    @Setup
+    public void setUp()
+        throws IOException, DfsServiceIOException, TException
+    {
+        dfs = new LocalDfs();
+        String path = dfs.createFile( "loopback.bin", FILE_SIZE );
+
+        ServerSocket socket = new ServerSocket( 0, 50,
+            InetAddress.getByName( "127.0.0.1" ) );
+        server = new TThreadPoolServer(
+            new DfsService.Processor( dfs.handler ),
+            new TServerSocket( socket ), new TTransportFactory(),
+            new TBinaryProtocol.Factory() );
+        serve( server, "loopback-server" );
+
+        // listening before serve() so the client can connect at once
+        String udsPath = File.createTempFile( "loopback", ".sock" ).getPath();
+        UnixServerTransport listening = new UnixServerTransport( udsPath );
+        listening.listen();
+        udsServer = new TThreadPoolServer(
+            new DfsService.Processor( dfs.handler ), listening,
+            new TTransportFactory(), new TBinaryProtocol.Factory() );
+        serve( udsServer, "uds-server" );
+        udsTransport = new UnixTransport( udsPath );
+        udsTransport.open();
+        udsClient = new DfsService.Client(
+            new TBinaryProtocol( udsTransport ) );
+        udsChandle = udsClient.init( null );
+        udsClient.login( udsChandle, "bench", "bench" );
+        udsHandle = udsClient.open( udsChandle, path, Constants.READ );
+
+        DfsConnectionPool.Options options = new DfsConnectionPool.Options();
+        options.host = "127.0.0.1";
+        options.port = socket.getLocalPort();
+        session = DfsSession.open( options, null, "bench", "bench" );
+        handle = session.open( path, Constants.READ );
+        ring = DfsSharedRing.open( session, 4L * 1024 * 1024,
+            DfsSharedRing.DEFAULT_SLOT_SIZE );
+        if ( ring == null ) {
+            throw new IOException( "no shared ring" );
+        }
+        buf = new byte[chunkSize];
+    }
+
+    /**
+     * Closes the session, stops the server and removes the file.
+     */
+    @TearDown
+    public void tearDown()
+        throws DfsServiceIOException, TException
+    {
+        session.close( handle );
+        session.close();
+        udsClient.close( udsChandle, udsHandle );
+        udsClient.closeClient( udsChandle );
+        udsTransport.close();
+        server.stop();
+        udsServer.stop();
+        dfs.close();
+    }
+
+    /**
+     * @return one chunk read with <code>readBytes</code> over the socket.
+     */
+    @Benchmark
+    public byte[] tcpReadBytes()
+        throws DfsServiceIOException, TException
+    {
+        return session.readBytes( handle, next(), chunkSize );
+    }
+
+    /**
+     * @return one chunk read with <code>readBytes</code> over the Unix
+     * domain socket.
+     */
+    @Benchmark
+    public byte[] udsReadBytes()
+        throws DfsServiceIOException, TException
+    {
+        return udsClient.readBytes( udsChandle, udsHandle, next(),
+            chunkSize );
+    }
+
+    /**
+     * @return the bytes of one chunk read through the shared ring.
+     */
+    @Benchmark
+    public int sharedRead()
+        throws DfsServiceIOException, TException
+    {
+        return ring.read( handle, next(), buf, 0, chunkSize );
+    }
+
+    /**
+     * Runs a server in a daemon thread.
+     *
+     * @param serving the server.
+     * @param name the thread name.
+     */
+    private static void serve( final TServer serving, final String name )
+    {
+        Thread thread = new Thread( new Runnable() {
+            public void run()
+            {
+                serving.serve();
+            }
+        }, name );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * @return the offset of the next chunk, wrapping at the end of the file.
+     */
+    private long next()
+    {
+        long result = offset;
+        offset += chunkSize;
+        if ( offset + chunkSize > FILE_SIZE ) {
+            offset = 0L;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.bench;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.FileStatus;
+// end thrift-generated files
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>listFiles</code> of a directory with many entries and
+ * <code>stat</code> of one file in it.  Both go through
+ * <code>convertToThriftFileStatus</code> once per entry.  The projected
+ * variants ask only for the names and lengths, which spares the
+ * permission, owner and group.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class MetadataBenchmark
+{
+    /** Fields asked for by the projected benchmarks. */
+    private static final int NAME_AND_LENGTH =
+        Constants.FIELD_PATH | Constants.FIELD_LENGTH;
+
+    /** Number of files in the directory. */
+    @Param( { "100", "10000", "100000" } )
+    public int entries;
+
+    /** The handler. */
+    private LocalDfs dfs;
+
+    /** The directory listed. */
+    private String dirPath;
+
+    /** A file in it. */
+    private String filePath;
+
+    /**
+     * Creates the directory and its empty files.
+     */
+    @Setup
+    public void setUp()
+        throws IOException
+    {
+        dfs = new LocalDfs();
+        File dir = new File( dfs.dir, "list" );
+        if ( !dir.mkdir() ) {
+            throw new IOException( "cannot create " + dir );
+        }
+        for ( int i = 0; i < entries; i++ ) {
+            if ( !new File( dir, "part-" + i ).createNewFile() ) {
+                throw new IOException( "cannot create entry " + i );
+            }
+        }
+        dirPath = dir.getAbsolutePath();
+        filePath = new File( dir, "part-0" ).getAbsolutePath();
+    }
+
+    /**
+     * Removes the directory.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        dfs.close();
+    }
+
+    /**
+     * @return the listing of the directory.
+     */
+    @Benchmark
+    public List<FileStatus> listFiles()
+        throws DfsServiceIOException
+    {
+        return dfs.handler.listFiles( dfs.chandle, dirPath );
+    }
+
+    /**
+     * @return the names and lengths of the entries of the directory.
+     */
+    @Benchmark
+    public List<FileStatus> listFilesProjected()
+        throws DfsServiceIOException
+    {
+        return dfs.handler.listFilesProjected( dfs.chandle, dirPath,
+            NAME_AND_LENGTH );
+    }
+
+    /**
+     * @return the status of one file in the directory.
+     */
+    @Benchmark
+    public FileStatus stat()
+        throws DfsServiceIOException
+    {
+        return dfs.handler.stat( dfs.chandle, filePath );
+    }
+
+    /**
+     * @return the name and length of one file in the directory.
+     */
+    @Benchmark
+    public FileStatus statProjected()
+        throws DfsServiceIOException
+    {
+        return dfs.handler.statProjected( dfs.chandle, filePath,
+            NAME_AND_LENGTH );
+    }
+}
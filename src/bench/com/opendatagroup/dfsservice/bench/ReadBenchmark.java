@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.bench;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequential reads through an open handle with <code>read</code>, which
+ * returns a string, and <code>readBytes</code>, which returns binary, at
+ * several chunk sizes.  The file is small enough to stay in the page cache,
+ * so the numbers are dominated by the handler rather than the disk.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ReadBenchmark
+{
+    /** Length of the file read. */
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+
+    /** Bytes asked for per call. */
+    @Param( { "4096", "65536", "1048576" } )
+    public int chunkSize;
+
+    /** The handler. */
+    private LocalDfs dfs;
+
+    /** Handle of the file, open for reading. */
+    private DfsHandle handle;
+
+    /** Offset of the next read. */
+    private long offset;
+
+    /**
+     * Creates the file and opens it.
+     */
+    @Setup
+    public void setUp()
+        throws IOException, DfsServiceIOException
+    {
+        dfs = new LocalDfs();
+        String path = dfs.createFile( "read.bin", FILE_SIZE );
+        handle = dfs.handler.open( dfs.chandle, path, Constants.READ );
+    }
+
+    /**
+     * Closes the file and removes it.
+     */
+    @TearDown
+    public void tearDown()
+        throws DfsServiceIOException
+    {
+        dfs.handler.close( dfs.chandle, handle );
+        dfs.close();
+    }
+
+    /**
+     * @return one chunk read with <code>readBytes</code>.
+     */
+    @Benchmark
+    public byte[] readBytes()
+        throws DfsServiceIOException
+    {
+        return dfs.handler.readBytes( dfs.chandle, handle, next(), chunkSize );
+    }
+
+    /**
+     * @return one chunk read with <code>read</code>.
+     */
+    @Benchmark
+    public String read()
+        throws DfsServiceIOException
+    {
+        return dfs.handler.read( dfs.chandle, handle, next(), chunkSize );
+    }
+
+    /**
+     * @return the offset of the next chunk, wrapping at the end of the file.
+     */
+    private long next()
+    {
+        long result = offset;
+        offset += chunkSize;
+        if ( offset + chunkSize > FILE_SIZE ) {
+            offset = 0L;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.bench;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.FileStatus;
+// end thrift-generated files
+
+import com.facebook.thrift.TException;
+import com.facebook.thrift.protocol.TBinaryProtocol;
+import com.facebook.thrift.protocol.TList;
+import com.facebook.thrift.protocol.TProtocol;
+import com.facebook.thrift.protocol.TType;
+import com.facebook.thrift.transport.TIOStreamTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a <code>listFiles</code> reply body, a list of
+ * <code>FileStatus</code> structs, with the binary protocol the server uses.
+ * The list is written the way the generated code writes the
+ * <code>success</code> field of the result, into a reused buffer, so only
+ * the protocol work is measured.  The projected list holds only the names
+ * and lengths, as <code>listFilesProjected</code> returns them; the bytes
+ * returned give the reply sizes.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class SerializationBenchmark
+{
+    /** Number of statuses in the list. */
+    @Param( { "100", "10000", "100000" } )
+    public int entries;
+
+    /** The list written. */
+    private List<FileStatus> statuses;
+
+    /** The list with only the names and lengths set. */
+    private List<FileStatus> projected;
+
+    /** Receives the bytes; reset before each write. */
+    private ByteArrayOutputStream bytes;
+
+    /** Binary protocol over {@link #bytes}. */
+    private TProtocol protocol;
+
+    /**
+     * Builds a list of realistic statuses.
+     */
+    @Setup
+    public void setUp()
+    {
+        statuses = new ArrayList<FileStatus>( entries );
+        for ( int i = 0; i < entries; i++ ) {
+            statuses.add( new FileStatus( 64L * 1024 * 1024, false,
+                ( short )3, 64L * 1024 * 1024, 1234567890000L + i,
+                "rw-r--r--", "hadoop", "supergroup", "part-" + i ) );
+        }
+        projected = new ArrayList<FileStatus>( entries );
+        for ( int i = 0; i < entries; i++ ) {
+            FileStatus status = new FileStatus();
+            status.length = 64L * 1024 * 1024;
+            status.__isset.length = true;
+            status.path = "part-" + i;
+            status.__isset.path = true;
+            projected.add( status );
+        }
+        bytes = new ByteArrayOutputStream( entries * 128 );
+        protocol = new TBinaryProtocol( new TIOStreamTransport( bytes ) );
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    @Benchmark
+    public int writeList()
+        throws TException
+    {
+        return write( statuses );
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    @Benchmark
+    public int writeProjectedList()
+        throws TException
+    {
+        return write( projected );
+    }
+
+    /**
+     * Writes a list into the reset buffer.
+     *
+     * @return the number of bytes written.
+     */
+    private int write( final List<FileStatus> list )
+        throws TException
+    {
+        bytes.reset();
+        protocol.writeListBegin( new TList( TType.STRUCT, list.size() ) );
+        for ( FileStatus status : list ) {
+            status.write( protocol );
+        }
+        protocol.writeListEnd();
+        return bytes.size();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.bench;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends to a new file with <code>write</code> at several chunk sizes.
+ * Each measurement iteration writes a file of its own, which is deleted
+ * afterwards so the disk does not fill up.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class WriteBenchmark
+{
+    /** Bytes sent per call. */
+    @Param( { "4096", "65536", "1048576" } )
+    public int chunkSize;
+
+    /** The handler. */
+    private LocalDfs dfs;
+
+    /** Data written by every call. */
+    private byte[] chunk;
+
+    /** Path of the file of the current iteration. */
+    private String path;
+
+    /** Handle of that file, open for writing. */
+    private DfsHandle handle;
+
+    /** Offset of the next write. */
+    private long offset;
+
+    /** Numbers the files. */
+    private int iteration;
+
+    /**
+     * Starts the handler and fills the chunk.
+     */
+    @Setup
+    public void setUp()
+        throws IOException
+    {
+        dfs = new LocalDfs();
+        chunk = new byte[chunkSize];
+        new Random( 42L ).nextBytes( chunk );
+    }
+
+    /**
+     * Creates the file for one iteration.
+     */
+    @Setup( Level.Iteration )
+    public void openFile()
+        throws DfsServiceIOException
+    {
+        path = dfs.path( "write-" + iteration++ + ".bin" );
+        handle = dfs.handler.open( dfs.chandle, path, Constants.WRITE );
+        offset = 0L;
+    }
+
+    /**
+     * Closes and removes the file of one iteration.
+     */
+    @TearDown( Level.Iteration )
+    public void closeFile()
+        throws DfsServiceIOException
+    {
+        dfs.handler.close( dfs.chandle, handle );
+        new File( path ).delete();
+    }
+
+    /**
+     * Stops the handler.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        dfs.close();
+    }
+
+    /**
+     * @return the result of one <code>write</code>.
+     */
+    @Benchmark
+    public boolean write()
+        throws DfsServiceIOException
+    {
+        boolean result = dfs.handler.write( dfs.chandle, handle, chunk, offset,
+            chunkSize );
+        offset += chunkSize;
+        return result;
+    }
+}
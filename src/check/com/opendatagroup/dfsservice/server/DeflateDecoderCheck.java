@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checks {@link DeflateDecoder} against <code>java.util.zip</code>: data
+ * compressed by the JDK into stored, fixed and dynamic blocks, in gzip and
+ * zlib framing and as concatenated gzip members, must decode to the bytes
+ * that went in, both from the start and from every seek point recorded on
+ * the way, and a damaged trailer must be reported.  Run by
+ * <code>ant check</code>; exits with status 1 on the first failure.
+ */
+public final class DeflateDecoderCheck
+{
+    // ** Private Static Final Data **
+
+    /** Block types, as in the BTYPE field. */
+    private static final int STORED = 0;
+    private static final int FIXED = 1;
+    private static final int DYNAMIC = 2;
+
+    /** Uncompressed bytes between seek points, small to get many. */
+    private static final long SPAN = 20000L;
+
+    /** Fixed seed, so a failure can be reproduced. */
+    private static final long SEED = 20091019L;
+
+
+    // ** Constructors **
+
+    /** Not instantiated. */
+    private DeflateDecoderCheck()
+    {
+    }
+
+
+    // ** Public Static Methods **
+
+    /**
+     * Runs the checks.
+     *
+     * @param args not used.
+     *
+     * @throws IOException if the JDK cannot compress the data.
+     */
+    public static void main( final String[] args )
+        throws IOException
+    {
+        Random random = new Random( SEED );
+        byte[] noise = new byte[300000];
+        random.nextBytes( noise );
+        byte[] text = text( random, 500000 );
+        byte[] small = "hello, hello, hello thriftstore".getBytes( "UTF-8" );
+
+        for ( DeflateDecoder.Format format : DeflateDecoder.Format.values() ) {
+            roundTrip( format, "stored", noise, Deflater.NO_COMPRESSION,
+                STORED );
+            roundTrip( format, "fixed", small, Deflater.DEFAULT_COMPRESSION,
+                FIXED );
+            roundTrip( format, "dynamic", text, Deflater.DEFAULT_COMPRESSION,
+                DYNAMIC );
+            roundTrip( format, "empty", new byte[0],
+                Deflater.DEFAULT_COMPRESSION, FIXED );
+        }
+
+        // a member of each kind of block, one after the other
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        members.write( compress( DeflateDecoder.Format.GZIP, text,
+            Deflater.DEFAULT_COMPRESSION ) );
+        members.write( compress( DeflateDecoder.Format.GZIP, noise,
+            Deflater.NO_COMPRESSION ) );
+        members.write( compress( DeflateDecoder.Format.GZIP, small,
+            Deflater.DEFAULT_COMPRESSION ) );
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        plain.write( text );
+        plain.write( noise );
+        plain.write( small );
+        verify( "concatenated gzip", DeflateDecoder.Format.GZIP,
+            members.toByteArray(), plain.toByteArray() );
+
+        for ( DeflateDecoder.Format format : DeflateDecoder.Format.values() ) {
+            damaged( format, text );
+        }
+        System.out.println( "DeflateDecoderCheck: all checks passed" );
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * Compresses <code>data</code> and checks that it decodes back, after
+     * making sure the JDK chose the block type the case is meant to cover.
+     */
+    private static void roundTrip( final DeflateDecoder.Format format,
+        final String name, final byte[] data, final int level,
+        final int blockType )
+        throws IOException
+    {
+        byte[] packed = compress( format, data, level );
+        if ( format == DeflateDecoder.Format.GZIP && !Arrays.equals( data,
+                drain( new GZIPInputStream(
+                    new ByteArrayInputStream( packed ) ) ) ) ) {
+            fail( format + " " + name + ": the JDK does not read it back" );
+        }
+        int header = format == DeflateDecoder.Format.GZIP ? 10 : 2;
+        int type = packed[header] >>> 1 & 3;
+        if ( type != blockType ) {
+            fail( format + " " + name + ": first block has type " + type
+                + ", not " + blockType );
+        }
+        verify( format + " " + name, format, packed, data );
+    }
+
+    /**
+     * Decodes <code>packed</code> from the start, recording seek points, and
+     * again from each point, comparing the output with <code>data</code>.
+     */
+    private static void verify( final String name,
+        final DeflateDecoder.Format format, final byte[] packed,
+        final byte[] data )
+        throws IOException
+    {
+        SeekIndex index = new SeekIndex( packed.length, 0L, SPAN,
+            Long.MAX_VALUE );
+        byte[] out = drain( new DeflateDecoder(
+            new ByteArrayInputStream( packed ), format, index ) );
+        if ( !Arrays.equals( out, data ) ) {
+            fail( name + ": output differs from the input" );
+        }
+
+        int restarts = 0;
+        SeekIndex.Point previous = null;
+        for ( long at = 0L; at <= data.length; at += SPAN / 4 ) {
+            SeekIndex.Point point = index.floor( at );
+            if ( point == null || point == previous ) {
+                continue;
+            }
+            previous = point;
+            InputStream in = new ByteArrayInputStream( packed );
+            skipFully( in, point.bitOffset >>> 3 );
+            byte[] tail = drain( new DeflateDecoder( in, format, null,
+                point ) );
+            byte[] want = Arrays.copyOfRange( data, ( int )point.offset,
+                data.length );
+            if ( !Arrays.equals( tail, want ) ) {
+                fail( name + ": output differs when started at "
+                    + point.offset );
+            }
+            restarts++;
+        }
+        if ( data.length > 2 * SPAN && restarts == 0 ) {
+            fail( name + ": no seek points were recorded" );
+        }
+        System.out.println( "DeflateDecoderCheck: " + name + " ok, "
+            + restarts + " restarts" );
+    }
+
+    /**
+     * Checks that a damaged checksum, and for gzip a damaged length, are
+     * reported, and that a decoder started from a seek point, which cannot
+     * check its member, still decodes it.
+     */
+    private static void damaged( final DeflateDecoder.Format format,
+        final byte[] data )
+        throws IOException
+    {
+        byte[] packed = compress( format, data,
+            Deflater.DEFAULT_COMPRESSION );
+        int[] fields = format == DeflateDecoder.Format.GZIP
+            ? new int[] { packed.length - 8, packed.length - 4 }
+            : new int[] { packed.length - 4 };
+        for ( int field : fields ) {
+            byte[] bad = packed.clone();
+            bad[field] ^= 1;
+            try {
+                drain( new DeflateDecoder( new ByteArrayInputStream( bad ),
+                    format, null ) );
+                fail( format + ": damaged trailer at " + field
+                    + " not detected" );
+            } catch ( IOException ioe ) {
+                System.out.println( "DeflateDecoderCheck: " + format
+                    + " damaged trailer at " + field + " reported: "
+                    + ioe.getMessage() );
+            }
+
+            SeekIndex index = new SeekIndex( packed.length, 0L, SPAN,
+                Long.MAX_VALUE );
+            drain( new DeflateDecoder( new ByteArrayInputStream( packed ),
+                format, index ) );
+            SeekIndex.Point point = index.floor( data.length );
+            InputStream in = new ByteArrayInputStream( bad );
+            skipFully( in, point.bitOffset >>> 3 );
+            drain( new DeflateDecoder( in, format, null, point ) );
+        }
+    }
+
+    /**
+     * @return <code>data</code> compressed by the JDK at
+     * <code>level</code>, with a minimal gzip header or a zlib header.
+     */
+    private static byte[] compress( final DeflateDecoder.Format format,
+        final byte[] data, final int level )
+        throws IOException
+    {
+        boolean gzip = format == DeflateDecoder.Format.GZIP;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if ( gzip ) {
+            bytes.write( new byte[] { 0x1f, ( byte )0x8b, 8, 0, 0, 0, 0, 0,
+                0, ( byte )0xff } );
+        }
+        Deflater deflater = new Deflater( level, gzip );
+        DeflaterOutputStream out = new DeflaterOutputStream( bytes,
+            deflater );
+        out.write( data );
+        out.finish();
+        deflater.end();
+        if ( gzip ) {
+            CRC32 crc = new CRC32();
+            crc.update( data, 0, data.length );
+            writeIntLE( bytes, ( int )crc.getValue() );
+            writeIntLE( bytes, data.length );
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Writes a little-endian 32-bit value, as the gzip trailer has. */
+    private static void writeIntLE( final ByteArrayOutputStream out,
+        final int v )
+    {
+        for ( int i = 0; i < 32; i += 8 ) {
+            out.write( v >>> i );
+        }
+    }
+
+    /**
+     * @return text-like bytes: words from a small vocabulary, so back
+     * references of all lengths and distances occur.
+     */
+    private static byte[] text( final Random random, final int length )
+    {
+        String[] words = { "the", "quick", "brown", "fox", "jumps", "over",
+            "lazy", "dog", "thrift", "store", "hadoop", "sector", "block",
+            "\n" };
+        StringBuilder sb = new StringBuilder( length + 16 );
+        while ( sb.length() < length ) {
+            sb.append( words[random.nextInt( words.length )] ).append( ' ' );
+            if ( random.nextInt( 50 ) == 0 ) {
+                sb.append( random.nextLong() );
+            }
+        }
+        sb.setLength( length );
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * @return everything <code>in</code> returns, read in odd-sized pieces.
+     */
+    private static byte[] drain( final InputStream in )
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7919];
+        int n;
+        while ( ( n = in.read( buf, 0, buf.length ) ) >= 0 ) {
+            out.write( buf, 0, n );
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /** Skips exactly <code>n</code> bytes. */
+    private static void skipFully( final InputStream in, final long n )
+        throws IOException
+    {
+        long left = n;
+        while ( left > 0 ) {
+            long skipped = in.skip( left );
+            if ( skipped <= 0 ) {
+                throw new IOException( "cannot skip to " + n );
+            }
+            left -= skipped;
+        }
+    }
+
+    /** Reports a failure and exits. */
+    private static void fail( final String message )
+    {
+        System.err.println( "DeflateDecoderCheck: FAILED " + message );
+        System.exit( 1 );
+    }
+}
@@ -16,7 +16,11 @@
  * limitations under the License. 
  */
 #include <vector>
+#include <set>
+#include <algorithm>
+#include <regex.h>
 #include <pthread.h>
+#include <unistd.h>
 #include <iostream>
 #include <sstream>
 #include "DfsService.h"
@@ -55,6 +59,31 @@ using namespace dfsservice;
  */
 const int DEFAULT_PORT = 9090;
 
+/*
+ * Limits on one grep() call: the most matches returned, the bytes scanned
+ * before the page ends at the next line, the longest line kept (the rest is
+ * neither matched nor returned) and the size of each read from Sector.
+ */
+const int32_t GREP_MAX_MATCHES = 10000;
+const int64_t GREP_PAGE_BYTES = 64LL << 20;
+const size_t GREP_MAX_LINE = 1 << 20;
+const int64_t GREP_CHUNK = 1 << 20;
+
+/*
+ * Limits on one readSplit() call: the bytes after which a page ends with
+ * the record that crosses them, and the longest record returned.
+ */
+const int64_t SPLIT_PAGE_BYTES = 16LL << 20;
+const size_t SPLIT_MAX_RECORD = 64 << 20;
+
+/*
+ * Limits on one follow() call: the time between two checks of the file's
+ * size, the longest wait and the most bytes returned.
+ */
+const int64_t FOLLOW_POLL_MS = 1000;
+const int64_t FOLLOW_MAX_WAIT_MS = 30000;
+const int64_t FOLLOW_MAX_BYTES = 16LL << 20;
+
 // Lock for client map.
 static pthread_mutex_t lock = PTHREAD_MUTEX_INITIALIZER;
 
@@ -314,6 +343,101 @@ public:
         }
     }
 
+    /*
+     * List files in a directory, filling in only the fields in the fields
+     * mask.  A Sector status is cheap to build and every field of it is
+     * sent anyway, so the mask is ignored and all fields are filled in.
+     */
+    void listFilesProjected( vector<FileStatus> & _return,
+                             const ClientHandle& clientHandle,
+                             const std::string& path,
+                             const int32_t fields )
+    {
+        listFiles( _return, clientHandle, path );
+    }
+
+    /*
+     * List the entries under path modified after mtime.
+     *
+     * clientHandle is the handle to the Sector client returned by init().
+     * path is the directory to list, or a file.
+     * mtime is the watermark; entries modified at or before it are left out.
+     * recursive is whether to list the subdirectories too.
+     *
+     * returns the entries with their full paths and the newest modification
+     * time seen.  No listings are kept, so every directory is listed again
+     * on each call.
+     */
+    void listModifiedSince( ModifiedListing& _return,
+                            const ClientHandle& clientHandle,
+                            const std::string& path,
+                            const int64_t mtime,
+                            const bool recursive )
+    {
+        _return.entries.clear();
+        _return.highWaterMark = mtime;
+
+        map<int64_t, clientStruct>::iterator iter =
+            clientHandleMap.find( clientHandle.id );
+        if( iter == clientHandleMap.end() ) {
+            cerr << "SectorServer.listModifiedSince() - failed to find "
+                "client reference" << endl;
+            DfsServiceIOException ex;
+            ex.message = "Failed to find client reference";
+            throw ex;
+        }
+        Sector* client = iter->second.client;
+
+        SNode attr;
+        int status = client->stat( path, attr );
+        if( status < 0 ) {
+            cerr << "SectorServer.listModifiedSince() - failed to stat " <<
+                path << ", return code is " << status << endl;
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Failed to stat " << path << ", return code=" << status;
+            ex.message = s.str();
+            throw ex;
+        }
+        if( !attr.m_bIsDir ) {
+            addModified( _return, attr, path, mtime );
+            return;
+        }
+
+        vector<string> dirs;
+        dirs.push_back( path );
+        while( !dirs.empty() ) {
+            string dir = dirs.back();
+            dirs.pop_back();
+            vector<SNode> filelist;
+            status = client->list( dir, filelist );
+            if( status < 0 ) {
+                if( dir != path ) {
+                    // removed since its parent was listed
+                    continue;
+                }
+                cerr << "SectorServer.listModifiedSince() - listing of " <<
+                    dir << " failed, return code is " << status << endl;
+                DfsServiceIOException ex;
+                stringstream s;
+                s << "list for " << dir << " failed, return code=" << status;
+                ex.message = s.str();
+                throw ex;
+            }
+            string prefix = dir;
+            if( prefix.empty() || prefix[prefix.size() - 1] != '/' ) {
+                prefix += "/";
+            }
+            for( vector<SNode>::size_type i = 0; i < filelist.size(); i++ ) {
+                string child = prefix + filelist[i].m_strName;
+                if( recursive && filelist[i].m_bIsDir ) {
+                    dirs.push_back( child );
+                }
+                addModified( _return, filelist[i], child, mtime );
+            }
+        }
+    }
+
     /*
      * Retrieve info on a file/dir in Sector.
      *
@@ -353,6 +477,173 @@ public:
         populateFileStatus( _return, attr );
     }
 
+    /*
+     * Retrieve info on a file/dir in Sector, filling in only the fields in
+     * the fields mask.  As with listFilesProjected(), all fields are filled
+     * in.
+     */
+    void statProjected( FileStatus& _return,
+                        const ClientHandle& clientHandle,
+                        const std::string& path,
+                        const int32_t fields )
+    {
+        stat( _return, clientHandle, path );
+    }
+
+    /*
+     * Total up the files and directories under path.
+     *
+     * clientHandle is the handle to the Sector client returned by init().
+     * path is a directory or a file.
+     *
+     * returns the totals.  The directories are listed one after the other
+     * and nothing is kept between calls.  Sector does not report how many
+     * replicas a file has, so spaceConsumed is the length.
+     */
+    void contentSummary( ContentSummary& _return,
+                         const ClientHandle& clientHandle,
+                         const std::string& path )
+    {
+        _return.length = 0;
+        _return.fileCount = 0;
+        _return.directoryCount = 0;
+        _return.spaceConsumed = 0;
+
+        map<int64_t, clientStruct>::iterator iter =
+            clientHandleMap.find( clientHandle.id );
+        if( iter == clientHandleMap.end() ) {
+            cerr << "SectorServer.contentSummary() - failed to find client "
+                "reference" << endl;
+            DfsServiceIOException ex;
+            ex.message = "Failed to find client reference";
+            throw ex;
+        }
+        Sector* client = iter->second.client;
+
+        SNode attr;
+        int status = client->stat( path, attr );
+        if( status < 0 ) {
+            cerr << "SectorServer.contentSummary() - failed to stat " <<
+                path << ", return code is " << status << endl;
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Failed to stat " << path << ", return code=" << status;
+            ex.message = s.str();
+            throw ex;
+        }
+        if( !attr.m_bIsDir ) {
+            _return.length = attr.m_llSize;
+            _return.fileCount = 1;
+            _return.spaceConsumed = attr.m_llSize;
+            return;
+        }
+
+        vector<string> dirs;
+        dirs.push_back( path );
+        while( !dirs.empty() ) {
+            string dir = dirs.back();
+            dirs.pop_back();
+            vector<SNode> filelist;
+            status = client->list( dir, filelist );
+            if( status < 0 ) {
+                if( dir != path ) {
+                    // removed since its parent was listed
+                    continue;
+                }
+                cerr << "SectorServer.contentSummary() - listing of " <<
+                    dir << " failed, return code is " << status << endl;
+                DfsServiceIOException ex;
+                stringstream s;
+                s << "list for " << dir << " failed, return code=" << status;
+                ex.message = s.str();
+                throw ex;
+            }
+            _return.directoryCount++;
+            string prefix = dir;
+            if( prefix.empty() || prefix[prefix.size() - 1] != '/' ) {
+                prefix += "/";
+            }
+            for( vector<SNode>::size_type i = 0; i < filelist.size(); i++ ) {
+                if( filelist[i].m_bIsDir ) {
+                    dirs.push_back( prefix + filelist[i].m_strName );
+                } else {
+                    _return.length += filelist[i].m_llSize;
+                    _return.fileCount++;
+                    _return.spaceConsumed += filelist[i].m_llSize;
+                }
+            }
+        }
+    }
+
+    /*
+     * Find where the bytes of a file are stored.
+     *
+     * clientHandle is the handle to the Sector client returned by init().
+     * path is the file.
+     * offset and length give the range of interest.
+     *
+     * returns the blocks holding the range.  Sector keeps each file whole
+     * on the slaves that replicate it, so this is one block covering the
+     * file with the addresses of those slaves, or nothing if the range
+     * starts past the end of the file.
+     */
+    void getBlockLocations( vector<BlockLocation>& _return,
+                            const ClientHandle& clientHandle,
+                            const std::string& path,
+                            const int64_t offset,
+                            const int64_t length )
+    {
+        map<int64_t, clientStruct>::iterator iter =
+            clientHandleMap.find( clientHandle.id );
+        if( iter == clientHandleMap.end() ) {
+            cerr << "SectorServer.getBlockLocations() - failed to find client "
+                "reference" << endl;
+            DfsServiceIOException ex;
+            ex.message = "Failed to find client reference";
+            throw ex;
+        }
+        Sector* client = iter->second.client;
+
+        if( offset < 0 || length < 0 ) {
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "invalid range at offset " << offset << " of length " <<
+                length;
+            ex.message = s.str();
+            throw ex;
+        }
+
+        SNode attr;
+        int status = client->stat( path, attr );
+        if( status < 0 ) {
+            cerr << "SectorServer.getBlockLocations() - failed to stat " <<
+                path << ", return code is " << status << endl;
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Failed to stat " << path << ", return code=" << status;
+            ex.message = s.str();
+            throw ex;
+        }
+        if( attr.m_bIsDir ) {
+            DfsServiceIOException ex;
+            ex.message = path + " is a directory";
+            throw ex;
+        }
+        if( offset >= attr.m_llSize ) {
+            return;
+        }
+
+        BlockLocation block;
+        block.offset = 0;
+        block.length = attr.m_llSize;
+        for( set<Address, AddrComp>::const_iterator i =
+                 attr.m_sLocation.begin();
+             i != attr.m_sLocation.end(); i++ ) {
+            block.hosts.push_back( i->m_strIP );
+        }
+        _return.push_back( block );
+    }
+
     /*
      * Convert a Sector SNode object into a FileStatus object.
      */
@@ -477,7 +768,8 @@ public:
      *
      * clientHandle is the handle to the Sector client returned by init().
      * dfsHandle is the file handle returned by open().
-     * Mode is READ, WRITE, or READ_WRITE.
+     * Mode is READ, WRITE, or READ_WRITE.  READ + DECOMPRESS is not
+     * supported and fails like any other open.
      *
      * If the open fails, the DfsHandle.id will be populated with the return
      * code from Sector. This value should be checked for a negative value
@@ -497,6 +789,13 @@ public:
             return;
         }
         
+        if( mode & DfsServiceConstants().DECOMPRESS ) {
+            cerr << "SectorServer.open() - DECOMPRESS is not supported, "
+                 << "file " << filename << endl;
+            dfsHandle.id = -1;
+            return;
+        }
+
         SectorFile* f = new SectorFile();
         int status = f->open( filename.c_str(), mode );
         
@@ -626,6 +925,105 @@ public:
         free( buf );
     }
 
+    /*
+     * Read raw bytes from a Sector file.
+     *
+     * Same as read(), except that _return holds exactly the bytes read,
+     * including any NUL bytes, so it can be used for binary files. Errors are
+     * reported with a DfsServiceIOException rather than an empty string.
+     */
+    void readBytes( std::string& _return,
+                    const ClientHandle& clientHandle,
+                    const DfsHandle& dfsHandle,
+                    const int64_t offset,
+                    const int64_t len )
+    {
+        map<int64_t, clientStruct>::iterator clientIter =
+            clientHandleMap.find( clientHandle.id );
+        if( clientIter == clientHandleMap.end() ) {
+            cerr << "SectorServer.readBytes(): failed to find client reference"
+                 << endl;
+            DfsServiceIOException ex;
+            ex.message = "Failed to find client reference";
+            throw ex;
+        }
+
+        map<int64_t, SectorFile*>::iterator dfsIter =
+            clientIter->second.dfsHandleMap.find( dfsHandle.id );
+        if( dfsIter == clientIter->second.dfsHandleMap.end() ) {
+            cerr << "SectorServer.readBytes(): failed to find filehandle"
+                 << " reference" << endl;
+            DfsServiceIOException ex;
+            ex.message = "Failed to find filehandle reference";
+            throw ex;
+        }
+        SectorFile* f = dfsIter->second;
+
+        _return = "";
+        if( f->eof() || len <= 0 ) {
+            return;
+        }
+
+        int status = 0;
+
+        if( offset >= 0 ) {
+            status = f->seekg( offset, SF_POS::BEG );
+            if( status < 0 ) {
+                cerr << "SectorServer.readBytes() - seekg to offset " <<
+                    offset << ", failed, return code is " << status << endl;
+                DfsServiceIOException ex;
+                stringstream s;
+                s << "Failed to seek to offset " << offset <<
+                    ", return code=" << status;
+                ex.message = s.str();
+                throw ex;
+            }
+        }
+
+        char* buf = new char[len];
+        status = f->read( buf, len );
+        if( status < 0 ) {
+            delete [] buf;
+            cerr << "SectorServer.readBytes() - read failed, return code is "
+                 << status << endl;
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Read failed, return code=" << status;
+            ex.message = s.str();
+            throw ex;
+        }
+
+        _return.assign( buf, status );
+        delete [] buf;
+    }
+
+    /*
+     * Shared rings are not supported by this server; clients fall back to
+     * readBytes().
+     */
+    void openSharedRing( SharedRing& _return,
+                         const ClientHandle& clientHandle,
+                         const int64_t size )
+    {
+        DfsServiceIOException ex;
+        ex.message = "openSharedRing is not supported by the Sector server";
+        throw ex;
+    }
+
+    /*
+     * See openSharedRing().
+     */
+    int32_t readShared( const ClientHandle& clientHandle,
+                        const DfsHandle& dfsHandle,
+                        const int64_t offset,
+                        const int32_t len,
+                        const int64_t ringOffset )
+    {
+        DfsServiceIOException ex;
+        ex.message = "readShared is not supported by the Sector server";
+        throw ex;
+    }
+
     /*
      * Write data in buf to a file in Sector.
      *
@@ -788,6 +1186,518 @@ public:
         
         return true;
     }
+
+    /*
+     * Tag the next call with a trace id.  This server keeps no trace of
+     * calls, so the id is ignored.
+     */
+    void setTraceId( const ClientHandle& clientHandle,
+                     const std::string& traceId )
+    {
+    }
+
+    /*
+     * Give the next call a deadline.  This server does not time calls out,
+     * so the deadline is ignored.
+     */
+    void setCallTimeout( const ClientHandle& clientHandle,
+                         const int64_t timeoutMillis )
+    {
+    }
+
+    /*
+     * Return the lines of a Sector file that match a pattern.
+     *
+     * clientHandle is the handle to the Sector client returned by init().
+     * path is the file to scan.
+     * pattern is a POSIX extended regular expression or, if literal is true,
+     * a plain string.
+     * offset and end bound where scanned lines start; end <= 0 means the end
+     * of the file.
+     * maxMatches is the most lines to return, <= 0 for the server's limit.
+     *
+     * Fills _return with one page of matches; when nextOffset is not -1 the
+     * client calls again from there.
+     */
+    void grep( GrepResult& _return,
+               const ClientHandle& clientHandle,
+               const std::string& path,
+               const std::string& pattern,
+               const bool literal,
+               const int64_t offset,
+               const int64_t end,
+               const int32_t maxMatches )
+    {
+        _return.matches.clear();
+        _return.nextOffset = -1;
+        _return.bytesScanned = 0;
+
+        if( clientHandleMap.find( clientHandle.id ) ==
+                clientHandleMap.end() ) {
+            cerr << "SectorServer.grep(): failed to find client reference"
+                 << endl;
+            DfsServiceIOException ex;
+            ex.message = "Failed to find client reference";
+            throw ex;
+        }
+        if( offset < 0 ) {
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Invalid grep of " << path << " from offset " << offset;
+            ex.message = s.str();
+            throw ex;
+        }
+
+        regex_t re;
+        if( !literal ) {
+            int rc = regcomp( &re, pattern.c_str(), REG_EXTENDED | REG_NOSUB );
+            if( rc != 0 ) {
+                char msg[256];
+                regerror( rc, &re, msg, sizeof( msg ) );
+                DfsServiceIOException ex;
+                ex.message = std::string( "invalid pattern: " ) + msg;
+                throw ex;
+            }
+        }
+
+        SectorFile* f = new SectorFile();
+        int status = f->open( path.c_str(), SF_MODE::READ );
+        if( status < 0 ) {
+            delete f;
+            if( !literal ) {
+                regfree( &re );
+            }
+            cerr << "SectorServer.grep() - failed to open " << path <<
+                ", return code=" << status << endl;
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Failed to open " << path << ", return code=" << status;
+            ex.message = s.str();
+            throw ex;
+        }
+
+        int32_t limit = maxMatches > 0 && maxMatches < GREP_MAX_MATCHES
+            ? maxMatches : GREP_MAX_MATCHES;
+        int64_t stop = end > 0 ? end : -1;
+        // start a byte early to know whether offset begins a line
+        int64_t pos = offset > 0 ? offset - 1 : 0;
+        bool skip = offset > 0;
+        std::string line;
+        int64_t lineOffset = pos;
+        bool truncated = false;
+        bool done = false;
+
+        if( pos > 0 ) {
+            status = f->seekg( pos, SF_POS::BEG );
+        }
+        char* buf = new char[GREP_CHUNK];
+        while( status >= 0 && !done ) {
+            status = f->read( buf, GREP_CHUNK );
+            if( status <= 0 ) {
+                break;
+            }
+            for( int i = 0; i < status && !done; i++ ) {
+                if( buf[i] != '\n' ) {
+                    if( line.size() < GREP_MAX_LINE ) {
+                        line += buf[i];
+                    } else {
+                        truncated = true;
+                    }
+                    continue;
+                }
+                int64_t next = pos + i + 1;
+                if( skip ) {
+                    skip = false;
+                } else if( stop >= 0 && lineOffset >= stop ) {
+                    done = true;
+                    break;
+                } else {
+                    grepLine( _return, re, pattern, literal, lineOffset,
+                              line );
+                }
+                line.clear();
+                truncated = false;
+                lineOffset = next;
+                _return.bytesScanned = next - offset;
+                if( ( stop >= 0 && next >= stop ) ) {
+                    done = true;
+                } else if( (int32_t)_return.matches.size() >= limit ||
+                           _return.bytesScanned >= GREP_PAGE_BYTES ) {
+                    _return.nextOffset = next;
+                    done = true;
+                }
+            }
+            pos += status;
+        }
+        delete [] buf;
+
+        if( status < 0 ) {
+            f->close();
+            delete f;
+            if( !literal ) {
+                regfree( &re );
+            }
+            cerr << "SectorServer.grep() - read failed, return code is "
+                 << status << endl;
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Read failed, return code=" << status;
+            ex.message = s.str();
+            throw ex;
+        }
+        // a last line without a terminator
+        if( !done && !skip && ( line.size() > 0 || truncated ) &&
+                ( stop < 0 || lineOffset < stop ) ) {
+            grepLine( _return, re, pattern, literal, lineOffset, line );
+            _return.bytesScanned = pos - offset;
+        }
+
+        f->close();
+        delete f;
+        if( !literal ) {
+            regfree( &re );
+        }
+    }
+
+    /*
+     * Return the records a split of a Sector file owns.
+     *
+     * clientHandle is the handle to the Sector client returned by init().
+     * path is the file to read.
+     * offset and length give the split; it owns the records that start in
+     * it.
+     * delimiter ends a record; if it is empty, a newline does, with a
+     * carriage return before it dropped.
+     *
+     * Fills _return with one page of records; when nextOffset is not -1 the
+     * client calls again from there with the rest of the split.
+     */
+    void readSplit( SplitResult& _return,
+                    const ClientHandle& clientHandle,
+                    const std::string& path,
+                    const int64_t offset,
+                    const int64_t length,
+                    const std::string& delimiter )
+    {
+        _return.records.clear();
+        _return.nextOffset = -1;
+
+        if( clientHandleMap.find( clientHandle.id ) ==
+                clientHandleMap.end() ) {
+            cerr << "SectorServer.readSplit(): failed to find client reference"
+                 << endl;
+            DfsServiceIOException ex;
+            ex.message = "Failed to find client reference";
+            throw ex;
+        }
+        if( offset < 0 || length < 0 ) {
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Invalid split of " << path << " at offset " << offset <<
+                " length " << length;
+            ex.message = s.str();
+            throw ex;
+        }
+
+        SectorFile* f = new SectorFile();
+        int status = f->open( path.c_str(), SF_MODE::READ );
+        if( status < 0 ) {
+            delete f;
+            cerr << "SectorServer.readSplit() - failed to open " << path <<
+                ", return code=" << status << endl;
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Failed to open " << path << ", return code=" << status;
+            ex.message = s.str();
+            throw ex;
+        }
+
+        bool stripReturn = delimiter.empty();
+        std::string delim = stripReturn ? std::string( "\n" ) : delimiter;
+        int64_t end = offset + length;
+        // start a delimiter early to know whether offset begins a record
+        int64_t pos = offset > (int64_t)delim.size()
+            ? offset - (int64_t)delim.size() : 0;
+        bool skip = offset > 0;
+        int64_t page = 0;
+        bool done = false;
+        std::string pending;
+        int64_t pendingOffset = pos;
+
+        if( pos > 0 ) {
+            status = f->seekg( pos, SF_POS::BEG );
+        }
+        char* buf = new char[GREP_CHUNK];
+        while( status >= 0 && !done ) {
+            status = f->read( buf, GREP_CHUNK );
+            if( status <= 0 ) {
+                break;
+            }
+            // search from where a delimiter may straddle the last read
+            size_t from = pending.size() >= delim.size()
+                ? pending.size() - delim.size() + 1 : 0;
+            pending.append( buf, status );
+            pos += status;
+            size_t head = 0;
+            size_t found;
+            while( !done &&
+                   ( found = pending.find( delim, std::max( head, from ) ) )
+                       != std::string::npos ) {
+                int64_t recordOffset = pendingOffset + head;
+                if( skip ) {
+                    skip = false;
+                } else if( recordOffset >= end ) {
+                    done = true;
+                    break;
+                } else {
+                    size_t len = found - head;
+                    if( stripReturn && len > 0 &&
+                            pending[head + len - 1] == '\r' ) {
+                        len--;
+                    }
+                    _return.records.push_back( pending.substr( head, len ) );
+                    page += len;
+                }
+                head = found + delim.size();
+                int64_t next = pendingOffset + head;
+                if( next >= end ) {
+                    done = true;
+                } else if( page >= SPLIT_PAGE_BYTES ) {
+                    _return.nextOffset = next;
+                    done = true;
+                }
+            }
+            pending.erase( 0, head );
+            pendingOffset += head;
+            if( !done && skip && pending.size() > SPLIT_MAX_RECORD ) {
+                // only looking for the end of the first record; keep what
+                // may be the start of a delimiter
+                size_t drop = pending.size() - ( delim.size() - 1 );
+                pending.erase( 0, drop );
+                pendingOffset += drop;
+            } else if( !done && pending.size() > SPLIT_MAX_RECORD ) {
+                delete [] buf;
+                f->close();
+                delete f;
+                DfsServiceIOException ex;
+                stringstream s;
+                s << "Record at offset " << pendingOffset <<
+                    " is longer than " << SPLIT_MAX_RECORD << " bytes";
+                ex.message = s.str();
+                throw ex;
+            }
+        }
+        delete [] buf;
+
+        if( status < 0 ) {
+            f->close();
+            delete f;
+            cerr << "SectorServer.readSplit() - read failed, return code is "
+                 << status << endl;
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Read failed, return code=" << status;
+            ex.message = s.str();
+            throw ex;
+        }
+        // a last record without a delimiter
+        if( !done && !skip && !pending.empty() && pendingOffset < end ) {
+            if( stripReturn && pending[pending.size() - 1] == '\r' ) {
+                pending.erase( pending.size() - 1 );
+            }
+            _return.records.push_back( pending );
+        }
+
+        f->close();
+        delete f;
+    }
+
+    /*
+     * Wait for path to grow past offset and return the bytes appended.
+     * Unlike the Hadoop server, which shares one watcher among all the
+     * followers of a file, each call polls the file's size itself.
+     *
+     * path is the file to follow.
+     * offset is the offset the caller has read up to.
+     * maxBytes is the most bytes to return.
+     * waitMillis is the longest time to wait for the file to grow.
+     *
+     * returns the bytes from offset, if any, and the length of the file.
+     */
+    void follow( FollowResult& _return,
+                 const ClientHandle& clientHandle,
+                 const std::string& path,
+                 const int64_t offset,
+                 const int64_t maxBytes,
+                 const int64_t waitMillis )
+    {
+        _return.data.clear();
+        _return.length = 0;
+
+        map<int64_t, clientStruct>::iterator iter =
+            clientHandleMap.find( clientHandle.id );
+        if( iter == clientHandleMap.end() ) {
+            cerr << "SectorServer.follow(): failed to find client reference"
+                 << endl;
+            DfsServiceIOException ex;
+            ex.message = "Failed to find client reference";
+            throw ex;
+        }
+        if( offset < 0 || maxBytes < 0 ) {
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Invalid follow of " << path << " at offset " << offset <<
+                " maxBytes " << maxBytes;
+            ex.message = s.str();
+            throw ex;
+        }
+        Sector* client = iter->second.client;
+
+        int64_t waited = 0;
+        int64_t maxWait = std::min( waitMillis, FOLLOW_MAX_WAIT_MS );
+        SNode attr;
+        while( true ) {
+            int status = client->stat( path, attr );
+            if( status < 0 ) {
+                cerr << "SectorServer.follow() - failed to stat " << path <<
+                    ", return code is " << status << endl;
+                DfsServiceIOException ex;
+                stringstream s;
+                s << "Failed to stat " << path << ", return code=" << status;
+                ex.message = s.str();
+                throw ex;
+            }
+            if( attr.m_llSize != offset || waited >= maxWait ) {
+                break;
+            }
+            int64_t nap = std::min( FOLLOW_POLL_MS, maxWait - waited );
+            usleep( nap * 1000 );
+            waited += nap;
+        }
+        _return.length = attr.m_llSize;
+        if( attr.m_llSize <= offset ) {
+            return;
+        }
+
+        int64_t count = std::min( std::min( maxBytes, FOLLOW_MAX_BYTES ),
+                                  attr.m_llSize - offset );
+        SectorFile* f = new SectorFile();
+        int status = f->open( path.c_str(), SF_MODE::READ );
+        if( status < 0 ) {
+            delete f;
+            cerr << "SectorServer.follow() - failed to open " << path <<
+                ", return code=" << status << endl;
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Failed to open " << path << ", return code=" << status;
+            ex.message = s.str();
+            throw ex;
+        }
+        if( offset > 0 ) {
+            status = f->seekg( offset, SF_POS::BEG );
+        }
+        char* buf = new char[count];
+        int64_t done = 0;
+        while( status >= 0 && done < count ) {
+            status = f->read( buf + done, count - done );
+            if( status <= 0 ) {
+                break;
+            }
+            done += status;
+        }
+        f->close();
+        delete f;
+        if( status < 0 ) {
+            delete [] buf;
+            cerr << "SectorServer.follow() - read failed, return code is "
+                 << status << endl;
+            DfsServiceIOException ex;
+            stringstream s;
+            s << "Read failed, return code=" << status;
+            ex.message = s.str();
+            throw ex;
+        }
+        _return.data.assign( buf, done );
+        delete [] buf;
+    }
+
+    /*
+     * Directory watches need a scanner shared by the server's clients, which
+     * this server does not have; list the directory instead.
+     */
+    int64_t watch( const ClientHandle& clientHandle,
+                   const std::string& path )
+    {
+        DfsServiceIOException ex;
+        ex.message = "watch is not supported by the Sector server";
+        throw ex;
+    }
+
+    /*
+     * See watch().
+     */
+    void pollEvents( WatchResult& _return,
+                     const ClientHandle& clientHandle,
+                     const std::string& path,
+                     const int64_t cursor,
+                     const int32_t maxEvents,
+                     const int64_t waitMillis )
+    {
+        DfsServiceIOException ex;
+        ex.message = "pollEvents is not supported by the Sector server";
+        throw ex;
+    }
+
+    /*
+     * See watch().  Nothing is ever watched, so returns false.
+     */
+    bool unwatch( const ClientHandle& clientHandle,
+                  const std::string& path )
+    {
+        return false;
+    }
+
+private:
+
+    /*
+     * Add an entry to the listModifiedSince() result if it is newer than
+     * mtime, and move the high-water mark up to it.
+     */
+    void addModified( ModifiedListing& result, const SNode& snode,
+                      const string& fullPath, const int64_t mtime )
+    {
+        if( snode.m_llTimeStamp > mtime ) {
+            FileStatus stat;
+            populateFileStatus( stat, snode );
+            stat.path = fullPath;
+            result.entries.push_back( stat );
+        }
+        if( snode.m_llTimeStamp > result.highWaterMark ) {
+            result.highWaterMark = snode.m_llTimeStamp;
+        }
+    }
+
+    /*
+     * Add line to the grep() result if it matches.  A trailing carriage
+     * return is dropped first.
+     */
+    void grepLine( GrepResult& result, regex_t& re,
+                   const std::string& pattern, const bool literal,
+                   const int64_t offset, std::string& line )
+    {
+        if( line.size() > 0 && line[line.size() - 1] == '\r' ) {
+            line.erase( line.size() - 1 );
+        }
+        bool found = literal
+            ? line.find( pattern ) != std::string::npos
+            : regexec( &re, line.c_str(), 0, NULL, 0 ) == 0;
+        if( found ) {
+            GrepMatch m;
+            m.offset = offset;
+            m.line = line;
+            result.matches.push_back( m );
+        }
+    }
 };
 
 int main(int argc, char **argv)
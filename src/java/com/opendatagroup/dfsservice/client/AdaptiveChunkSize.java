@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+/**
+ * Picks the size of the chunks moved by one <code>readBytes</code> or
+ * <code>write</code> call from the throughput measured so far.  Small
+ * chunks pay the round trip too often and large ones hold memory on both
+ * ends for little gain, and where the best size lies depends on the network
+ * and the DFS.
+ * <p>
+ * The size is moved in powers of two by hill climbing: after a few chunks
+ * at one size the average throughput is compared with the average at the
+ * previous size, and the size keeps moving in the same direction while
+ * throughput improves and turns around when it drops.  It never leaves the
+ * range passed to the constructor.
+ */
+public class AdaptiveChunkSize
+{
+    // ** Public Static Final Data **
+
+    /** Default starting chunk size. */
+    public static final int DEFAULT_INITIAL = 64 * 1024;
+
+    /** Default smallest chunk size. */
+    public static final int DEFAULT_MIN = 4 * 1024;
+
+    /** Default largest chunk size. */
+    public static final int DEFAULT_MAX = 4 * 1024 * 1024;
+
+    // ** Private Static Final Data **
+
+    /** Number of chunks measured at one size before it is changed. */
+    private static final int SAMPLES_PER_STEP = 4;
+
+    /**
+     * Throughput has to fall by more than this fraction before the
+     * direction is reversed, so that noise does not make it flip.
+     */
+    private static final double TOLERANCE = 0.05;
+
+    // ** Private Data **
+
+    /** Smallest size. */
+    private final int min;
+
+    /** Largest size. */
+    private final int max;
+
+    /** Current size. */
+    private int size;
+
+    /** +1 while growing, -1 while shrinking. */
+    private int direction = 1;
+
+    /** Bytes moved at the current size. */
+    private long bytes;
+
+    /** Nanoseconds spent moving {@link #bytes}. */
+    private long nanos;
+
+    /** Number of chunks measured at the current size. */
+    private int samples;
+
+    /** Bytes per second measured at the previous size. */
+    private double previous;
+
+
+    // ** Constructors **
+
+    /**
+     * Uses the default range and starting size.
+     */
+    public AdaptiveChunkSize()
+    {
+        this( DEFAULT_INITIAL, DEFAULT_MIN, DEFAULT_MAX );
+    }
+
+    /**
+     * @param initial the starting size.
+     * @param min the smallest size.
+     * @param max the largest size.  Pass the same value for all three to
+     * turn adaptation off.
+     */
+    public AdaptiveChunkSize( final int initial, final int min, final int max )
+    {
+        if ( min <= 0 || min > max ) {
+            throw new IllegalArgumentException( "invalid chunk size range "
+                + min + " - " + max );
+        }
+        this.min = min;
+        this.max = max;
+        this.size = Math.max( min, Math.min( max, initial ) );
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * @return the size to use for the next chunk.
+     */
+    public synchronized int get()
+    {
+        return size;
+    }
+
+    /**
+     * Records how long one chunk took.  Chunks measured at a size other than
+     * the current one, e.g. prefetches issued before the last change, are
+     * ignored.
+     *
+     * @param chunkSize the size the chunk was requested at.
+     * @param transferred the bytes actually moved.
+     * @param elapsedNanos the time the call took.
+     */
+    public synchronized void record( final int chunkSize,
+        final long transferred, final long elapsedNanos )
+    {
+        if ( chunkSize != size || transferred < chunkSize
+                || elapsedNanos <= 0L ) {
+            // short chunks at the end of a file say nothing about throughput
+            return;
+        }
+        bytes += transferred;
+        nanos += elapsedNanos;
+        if ( ++samples < SAMPLES_PER_STEP || min == max ) {
+            return;
+        }
+
+        double current = bytes * 1.0e9 / nanos;
+        if ( previous > 0.0 && current < previous * ( 1.0 - TOLERANCE ) ) {
+            direction = -direction;
+        }
+        previous = current;
+
+        int next = direction > 0 ? size << 1 : size >> 1;
+        if ( next > max || next < min ) {
+            direction = -direction;
+            next = direction > 0 ? size << 1 : size >> 1;
+        }
+        size = Math.max( min, Math.min( max, next ) );
+        bytes = 0L;
+        nanos = 0L;
+        samples = 0;
+    }
+}
@@ -0,0 +1,971 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.BlockLocation;
+import com.opendatagroup.dfsservice.ClientHandle;
+import com.opendatagroup.dfsservice.ContentSummary;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsService;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.FileStatus;
+import com.opendatagroup.dfsservice.ModifiedListing;
+import com.opendatagroup.dfsservice.SharedRing;
+import com.opendatagroup.dfsservice.SplitResult;
+// end thrift-generated files
+
+import com.facebook.thrift.TApplicationException;
+import com.facebook.thrift.TException;
+import com.facebook.thrift.protocol.TBinaryProtocol;
+import com.facebook.thrift.transport.TSocket;
+import com.facebook.thrift.transport.TTransportException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking client for one ThriftStore server.  Every operation of
+ * {@link DfsService.Iface} returns a {@link DfsFuture} straight away instead
+ * of waiting for the reply, so a caller can have many calls outstanding
+ * without a thread or a connection for each.
+ * <p>
+ * Calls are multiplexed over a few connections by pipelining: the request
+ * is written on the caller's thread and queued behind the other calls
+ * waiting on that connection, and one reader thread per connection takes
+ * the replies off the wire in order.  The Thrift servers handle the requests
+ * of a connection one after the other, so replies come back in the order
+ * the requests were sent and no change to the protocol is needed.  Each
+ * call goes to the connection with the fewest calls waiting.
+ * <p>
+ * A call fails without being sent if its connection already has
+ * {@link Options#maxPendingPerConnection} calls waiting.  When a connection
+ * breaks, every call waiting on it fails with the transport error and the
+ * connection is reopened by the next call.  A reply that is a
+ * <code>DfsServiceIOException</code> or <code>TApplicationException</code>
+ * only fails its own call.
+ * <p>
+ * For example:
+ * <pre>
+ *     DfsAsyncClient client = new DfsAsyncClient( new DfsAsyncClient.Options() );
+ *     ClientHandle h = client.init( null ).getResult();
+ *     client.login( h, "user", "pw" ).getResult();
+ *     client.stat( h, "input/data.txt" ).addCallback(
+ *         new DfsCallback&lt;FileStatus&gt;() {
+ *             public void onSuccess( FileStatus st ) { ... }
+ *             public void onFailure( Throwable error ) { ... }
+ *         } );
+ * </pre>
+ */
+public class DfsAsyncClient
+{
+    // ** Public Static Final Data **
+
+    /** Logger. */
+    public static final Log LOG =
+        LogFactory.getLog( DfsAsyncClient.class.getName() );
+
+    // ** Inner Classes **
+
+    /**
+     * Settings for an async client.  {@link #maxConnections} is the number
+     * of pipelined connections; the pool-only settings are ignored.
+     */
+    public static class Options extends DfsConnectionPool.Options
+    {
+        /**
+         * Most calls that may wait for a reply on one connection.  Further
+         * calls fail instead of queueing without bound.
+         */
+        public int maxPendingPerConnection = 256;
+
+        /**
+         * Runs the callbacks of the returned futures.  <code>null</code>
+         * runs them on the reader thread of the connection, in which case
+         * they must return quickly and must not wait for another call.
+         */
+        public Executor callbackExecutor;
+
+        /**
+         * Defaults to two connections, which is enough to keep a server busy
+         * from one process.
+         */
+        public Options()
+        {
+            maxConnections = 2;
+        }
+    }
+
+    /**
+     * One call: the request written on the caller's thread and the reply
+     * read on the connection's reader thread.
+     *
+     * @param <T> the result type of the call.
+     */
+    protected abstract static class AsyncCall<T>
+    {
+        /**
+         * Writes the request.
+         *
+         * @param client the generated client of the connection.
+         *
+         * @throws TException if the request cannot be written.
+         */
+        protected abstract void send( DfsService.Client client )
+            throws TException;
+
+        /**
+         * Reads the reply.
+         *
+         * @param client the generated client of the connection.
+         *
+         * @return the result of the call.
+         *
+         * @throws DfsServiceIOException if the server reports an error.
+         * @throws TException if the reply cannot be read.
+         */
+        protected abstract T receive( DfsService.Client client )
+            throws DfsServiceIOException, TException;
+    }
+
+    /**
+     * A call that has been sent and is waiting for its reply.
+     */
+    private static final class Pending<T>
+    {
+        /** Reads the reply. */
+        private final AsyncCall<T> call;
+
+        /** Completed with the reply. */
+        private final DfsFuture<T> future;
+
+        /**
+         * @param call the call that was sent.
+         * @param future the future to complete.
+         */
+        private Pending( final AsyncCall<T> call, final DfsFuture<T> future )
+        {
+            this.call = call;
+            this.future = future;
+        }
+
+        /**
+         * Reads the reply and completes the future with it.
+         *
+         * @param client the generated client of the connection.
+         *
+         * @throws TException if the connection broke, in which case the
+         * future is left for the caller to fail.
+         */
+        private void receive( final DfsService.Client client )
+            throws TException
+        {
+            try {
+                future.complete( call.receive( client ) );
+            } catch ( DfsServiceIOException dsioe ) {
+                future.fail( dsioe );
+            } catch ( TApplicationException tae ) {
+                // a well-formed reply, so the connection is still in step
+                future.fail( tae );
+            }
+        }
+    }
+
+    /**
+     * One connection with its queue of calls waiting for replies and the
+     * thread that reads them.
+     */
+    private final class Pipeline implements Runnable
+    {
+        /** The socket transport. */
+        private final TSocket transport;
+
+        /** Generated client bound to {@link #transport}. */
+        private final DfsService.Client client;
+
+        /** Calls sent and waiting for replies, in the order sent. */
+        private final BlockingQueue<Pending<?>> pending =
+            new LinkedBlockingQueue<Pending<?>>();
+
+        /** Serializes requests; also guards {@link #broken}. */
+        private final Object sendLock = new Object();
+
+        /** Reads the replies. */
+        private final Thread reader;
+
+        /** Set once the connection failed or was closed. */
+        private volatile boolean broken;
+
+        /**
+         * Opens the connection and starts its reader.
+         *
+         * @param index the slot of the connection, used in the thread name.
+         *
+         * @throws TTransportException if the server cannot be reached.
+         */
+        private Pipeline( final int index )
+            throws TTransportException
+        {
+            transport = DfsConnectionPool.openSocket( options );
+            client = new DfsService.Client( new TBinaryProtocol( transport ) );
+            reader = new Thread( this, "dfs-async-" + options.host + ":"
+                + options.port + "-" + index + "-" + THREADS.incrementAndGet() );
+            reader.setDaemon( true );
+            reader.start();
+        }
+
+        /**
+         * Sends a call and queues it for its reply.
+         *
+         * @return <code>false</code> if the connection is broken and the
+         * call was not sent.
+         */
+        private <T> boolean submit( final AsyncCall<T> call,
+            final DfsFuture<T> future )
+        {
+            synchronized ( sendLock ) {
+                if ( broken ) {
+                    return false;
+                }
+                if ( pending.size() >= options.maxPendingPerConnection ) {
+                    future.fail( new TTransportException( "too many calls "
+                        + "waiting on " + options.host + ":" + options.port ) );
+                    return true;
+                }
+                try {
+                    call.send( client );
+                } catch ( TException te ) {
+                    future.fail( te );
+                    breakConnection( te );
+                    return true;
+                } catch ( RuntimeException re ) {
+                    future.fail( re );
+                    breakConnection( re );
+                    return true;
+                }
+                pending.add( new Pending<T>( call, future ) );
+                return true;
+            }
+        }
+
+        /**
+         * Body of the reader thread: reads replies in order until the
+         * connection breaks or is closed.
+         */
+        public void run()
+        {
+            try {
+                while ( !broken ) {
+                    Pending<?> next = pending.take();
+                    try {
+                        next.receive( client );
+                    } catch ( TException te ) {
+                        next.future.fail( te );
+                        breakConnection( te );
+                    } catch ( RuntimeException re ) {
+                        next.future.fail( re );
+                        breakConnection( re );
+                    }
+                }
+            } catch ( InterruptedException ie ) {
+                breakConnection( new TTransportException( "client closed" ) );
+            }
+        }
+
+        /**
+         * Closes the connection and fails every call waiting on it.
+         *
+         * @param cause why the connection is being given up.
+         */
+        private void breakConnection( final Throwable cause )
+        {
+            if ( !broken ) {
+                LOG.debug( "DfsAsyncClient: connection to " + options.host
+                    + ":" + options.port + " closed: " + cause );
+            }
+            // closing first wakes a sender stuck on a full socket buffer
+            transport.close();
+            synchronized ( sendLock ) {
+                broken = true;
+            }
+            if ( Thread.currentThread() != reader ) {
+                // a failed send: the reader may be waiting for a call
+                reader.interrupt();
+            }
+            Pending<?> p;
+            while ( ( p = pending.poll() ) != null ) {
+                p.future.fail( cause );
+            }
+        }
+
+        /**
+         * @return the number of calls waiting for replies.
+         */
+        private int load()
+        {
+            return broken ? 0 : pending.size();
+        }
+    }
+
+    // ** Private Static Final Data **
+
+    /** Numbers the reader threads. */
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    // ** Private Data **
+
+    /** Client settings. */
+    private final Options options;
+
+    /** The connections; a slot is <code>null</code> until first used. */
+    private final Pipeline[] pipelines;
+
+    /** Set once {@link #close} is called. */
+    private volatile boolean closed;
+
+
+    // ** Constructors **
+
+    /**
+     * Creates a client.  Connections are opened by the first calls.
+     *
+     * @param options the client settings.
+     */
+    public DfsAsyncClient( final Options options )
+    {
+        this.options = options;
+        this.pipelines = new Pipeline[Math.max( 1, options.maxConnections )];
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * @see DfsService.Iface#init
+     */
+    public DfsFuture<ClientHandle> init( final String uri )
+    {
+        return submit( new AsyncCall<ClientHandle>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_init( uri );
+            }
+            protected ClientHandle receive( final DfsService.Client c )
+                throws TException
+            {
+                return c.recv_init();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#login
+     */
+    public DfsFuture<Boolean> login( final ClientHandle h, final String user,
+        final String password )
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_login( h, user, password );
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws TException
+            {
+                return Boolean.valueOf( c.recv_login() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#logout
+     */
+    public DfsFuture<Boolean> logout( final ClientHandle h )
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_logout( h );
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws TException
+            {
+                return Boolean.valueOf( c.recv_logout() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#closeClient
+     */
+    public DfsFuture<Boolean> closeClient( final ClientHandle h )
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_closeClient( h );
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws TException
+            {
+                return Boolean.valueOf( c.recv_closeClient() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#closeDfs
+     */
+    public DfsFuture<Boolean> closeDfs()
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_closeDfs();
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws TException
+            {
+                return Boolean.valueOf( c.recv_closeDfs() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#listFiles
+     */
+    public DfsFuture<List<FileStatus>> listFiles( final ClientHandle h,
+        final String path )
+    {
+        return submit( new AsyncCall<List<FileStatus>>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_listFiles( h, path );
+            }
+            protected List<FileStatus> receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_listFiles();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#listFilesProjected
+     */
+    public DfsFuture<List<FileStatus>> listFilesProjected(
+        final ClientHandle h, final String path, final int fields )
+    {
+        return submit( new AsyncCall<List<FileStatus>>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_listFilesProjected( h, path, fields );
+            }
+            protected List<FileStatus> receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_listFilesProjected();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#listModifiedSince
+     */
+    public DfsFuture<ModifiedListing> listModifiedSince( final ClientHandle h,
+        final String path, final long mtime, final boolean recursive )
+    {
+        return submit( new AsyncCall<ModifiedListing>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_listModifiedSince( h, path, mtime, recursive );
+            }
+            protected ModifiedListing receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_listModifiedSince();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#stat
+     */
+    public DfsFuture<FileStatus> stat( final ClientHandle h,
+        final String path )
+    {
+        return submit( new AsyncCall<FileStatus>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_stat( h, path );
+            }
+            protected FileStatus receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_stat();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#statProjected
+     */
+    public DfsFuture<FileStatus> statProjected( final ClientHandle h,
+        final String path, final int fields )
+    {
+        return submit( new AsyncCall<FileStatus>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_statProjected( h, path, fields );
+            }
+            protected FileStatus receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_statProjected();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#contentSummary
+     */
+    public DfsFuture<ContentSummary> contentSummary( final ClientHandle h,
+        final String path )
+    {
+        return submit( new AsyncCall<ContentSummary>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_contentSummary( h, path );
+            }
+            protected ContentSummary receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_contentSummary();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#getBlockLocations
+     */
+    public DfsFuture<List<BlockLocation>> getBlockLocations(
+        final ClientHandle h, final String path, final long offset,
+        final long length )
+    {
+        return submit( new AsyncCall<List<BlockLocation>>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_getBlockLocations( h, path, offset, length );
+            }
+            protected List<BlockLocation> receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_getBlockLocations();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#mkdir
+     */
+    public DfsFuture<Boolean> mkdir( final ClientHandle h, final String path )
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_mkdir( h, path );
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.recv_mkdir() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#move
+     */
+    public DfsFuture<Boolean> move( final ClientHandle h,
+        final String oldpath, final String newpath )
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_move( h, oldpath, newpath );
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.recv_move() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#remove
+     */
+    public DfsFuture<Boolean> remove( final ClientHandle h, final String path,
+        final boolean recursive )
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_remove( h, path, recursive );
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.recv_remove() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#open
+     */
+    public DfsFuture<DfsHandle> open( final ClientHandle h,
+        final String filename, final short mode )
+    {
+        return submit( new AsyncCall<DfsHandle>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_open( h, filename, mode );
+            }
+            protected DfsHandle receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_open();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#close
+     */
+    public DfsFuture<Boolean> close( final ClientHandle h,
+        final DfsHandle handle )
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_close( h, handle );
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.recv_close() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#read
+     */
+    public DfsFuture<String> read( final ClientHandle h,
+        final DfsHandle handle, final long offset, final long len )
+    {
+        return submit( new AsyncCall<String>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_read( h, handle, offset, len );
+            }
+            protected String receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_read();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#readBytes
+     */
+    public DfsFuture<byte[]> readBytes( final ClientHandle h,
+        final DfsHandle handle, final long offset, final long len )
+    {
+        return submit( new AsyncCall<byte[]>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_readBytes( h, handle, offset, len );
+            }
+            protected byte[] receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_readBytes();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#openSharedRing
+     */
+    public DfsFuture<SharedRing> openSharedRing( final ClientHandle h,
+        final long size )
+    {
+        return submit( new AsyncCall<SharedRing>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_openSharedRing( h, size );
+            }
+            protected SharedRing receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_openSharedRing();
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#readShared
+     */
+    public DfsFuture<Integer> readShared( final ClientHandle h,
+        final DfsHandle handle, final long offset, final int len,
+        final long ringOffset )
+    {
+        return submit( new AsyncCall<Integer>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_readShared( h, handle, offset, len, ringOffset );
+            }
+            protected Integer receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_readShared();
+            }
+        } );
+    }
+
+    /**
+     * The buffer is written out before this returns, so the caller may
+     * reuse it as soon as the future is handed back.
+     *
+     * @see DfsService.Iface#write
+     */
+    public DfsFuture<Boolean> write( final ClientHandle h,
+        final DfsHandle handle, final byte[] buf, final long offset,
+        final long len )
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_write( h, handle, buf, offset, len );
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.recv_write() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#copyToLocalFile
+     */
+    public DfsFuture<Boolean> copyToLocalFile( final String src,
+        final String dest )
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_copyToLocalFile( src, dest );
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.recv_copyToLocalFile() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#copyFromLocalFile
+     */
+    public DfsFuture<Boolean> copyFromLocalFile( final String src,
+        final String dest )
+    {
+        return submit( new AsyncCall<Boolean>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_copyFromLocalFile( src, dest );
+            }
+            protected Boolean receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.recv_copyFromLocalFile() );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#readSplit
+     */
+    public DfsFuture<SplitResult> readSplit( final ClientHandle h,
+        final String path, final long offset, final long length,
+        final String delimiter )
+    {
+        return submit( new AsyncCall<SplitResult>() {
+            protected void send( final DfsService.Client c )
+                throws TException
+            {
+                c.send_readSplit( h, path, offset, length, delimiter );
+            }
+            protected SplitResult receive( final DfsService.Client c )
+                throws DfsServiceIOException, TException
+            {
+                return c.recv_readSplit();
+            }
+        } );
+    }
+
+    /**
+     * @return the number of calls waiting for replies on all connections.
+     */
+    public int getPendingCount()
+    {
+        int total = 0;
+        synchronized ( pipelines ) {
+            for ( Pipeline p : pipelines ) {
+                if ( p != null ) {
+                    total += p.load();
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the client settings.
+     */
+    public Options getOptions()
+    {
+        return options;
+    }
+
+    /**
+     * Closes the connections.  Calls still waiting for replies fail with a
+     * transport exception.  Does not log out; do that first if a client
+     * handle is in use.
+     */
+    public void close()
+    {
+        closed = true;
+        synchronized ( pipelines ) {
+            for ( int i = 0; i < pipelines.length; i++ ) {
+                if ( pipelines[i] != null ) {
+                    pipelines[i].reader.interrupt();
+                    pipelines[i].breakConnection(
+                        new TTransportException( "client closed" ) );
+                    pipelines[i] = null;
+                }
+            }
+        }
+    }
+
+
+    // ** Protected Methods **
+
+    /**
+     * Sends a call on the least loaded connection, opening or reopening
+     * connections as needed.
+     *
+     * @param call the call to make.
+     *
+     * @return the future for the reply; failed already if the call could
+     * not be sent.
+     */
+    protected <T> DfsFuture<T> submit( final AsyncCall<T> call )
+    {
+        DfsFuture<T> future = new DfsFuture<T>( options.callbackExecutor );
+        while ( true ) {
+            Pipeline pipeline;
+            try {
+                pipeline = choose();
+            } catch ( TTransportException tte ) {
+                future.fail( tte );
+                return future;
+            }
+            if ( pipeline.submit( call, future ) ) {
+                return future;
+            }
+            // it broke since it was chosen; choose() will replace it
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Picks the connection with the fewest calls waiting, opening the first
+     * empty or broken slot in preference to sharing a busy connection.
+     */
+    private Pipeline choose()
+        throws TTransportException
+    {
+        synchronized ( pipelines ) {
+            if ( closed ) {
+                throw new TTransportException( "client is closed" );
+            }
+            Pipeline best = null;
+            for ( int i = 0; i < pipelines.length; i++ ) {
+                Pipeline p = pipelines[i];
+                if ( p == null || p.broken ) {
+                    if ( best == null || best.load() > 0 ) {
+                        pipelines[i] = new Pipeline( i );
+                        return pipelines[i];
+                    }
+                    continue;
+                }
+                if ( best == null || p.load() < best.load() ) {
+                    best = p;
+                }
+            }
+            return best;
+        }
+    }
+}
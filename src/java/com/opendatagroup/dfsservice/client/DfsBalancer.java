@@ -0,0 +1,902 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.BlockLocation;
+import com.opendatagroup.dfsservice.ContentSummary;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.FileStatus;
+import com.opendatagroup.dfsservice.FollowResult;
+import com.opendatagroup.dfsservice.GrepResult;
+import com.opendatagroup.dfsservice.ModifiedListing;
+import com.opendatagroup.dfsservice.SplitResult;
+// end thrift-generated files
+
+import com.facebook.thrift.TApplicationException;
+import com.facebook.thrift.TException;
+import com.facebook.thrift.transport.TTransportException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads the calls of one client over several ThriftStore servers that
+ * front the same DFS.  Each server gets its own {@link DfsSession}, opened
+ * the first time the server is used.
+ * <p>
+ * Every call goes to the cheaper of two servers picked at random ("power of
+ * two choices"), where the cost of a server is the number of calls it has
+ * in flight from this client times its recent latency, taken to be the
+ * average of the others until it first replies.  This keeps load off
+ * slow or busy servers without the herding that always picking the single
+ * best server causes.  A server that fails at the transport level, refuses
+ * a call as overloaded or unavailable, or times a call out, is left out for
+ * a back-off period that doubles with each consecutive failure.
+ * <p>
+ * File handles exist only on the server that opened them, so {@link #open}
+ * returns a {@link BalancedHandle} pinned to that server, and reads, writes
+ * and the close of the handle always go there.  <code>stat</code> and
+ * <code>listFiles</code> change nothing, so after a transport failure they
+ * are retried on another server.  A call refused as overloaded or
+ * unavailable never started, so any call that is not pinned to a handle is
+ * then tried on another server.  A call refused as throttled is not: the
+ * server is healthy and the client is over its own rate limit.  Other
+ * calls are made once.  The copy
+ * calls are not offered since they name files local to one server.
+ * <p>
+ * For example, with three servers started by <code>runServers.sh</code>:
+ * <pre>
+ *     DfsBalancer balancer = new DfsBalancer( new DfsBalancer.Options(),
+ *         DfsBalancer.parseServers( "localhost:9090,localhost:9091,localhost:9092" ),
+ *         null, "user", "pw" );
+ *     try {
+ *         FileStatus st = balancer.stat( "input/data.txt" );
+ *     } finally {
+ *         balancer.close();
+ *     }
+ * </pre>
+ */
+public class DfsBalancer
+{
+    // ** Inner Classes **
+
+    /**
+     * Balancer settings.  Public fields in the style of
+     * {@link DfsConnectionPool.Options}.
+     */
+    public static class Options
+    {
+        /**
+         * Most servers <code>stat</code> and <code>listFiles</code> are tried
+         * on.
+         */
+        public int maxAttempts = 3;
+
+        /** Back-off after the first failure of a server, in milliseconds. */
+        public long minDownMillis = 500L;
+
+        /** Longest back-off of a failing server, in milliseconds. */
+        public long maxDownMillis = 30000L;
+
+        /**
+         * Weight of the newest sample in the moving average of a server's
+         * latency, between 0 and 1.
+         */
+        public double latencyWeight = 0.2;
+    }
+
+    /**
+     * A file handle together with the server it is valid on.
+     */
+    public static final class BalancedHandle
+    {
+        /** Server that opened the file. */
+        private final Node node;
+
+        /** Handle on that server. */
+        private final DfsHandle handle;
+
+        /**
+         * @param node the server that opened the file.
+         * @param handle the handle it returned.
+         */
+        private BalancedHandle( final Node node, final DfsHandle handle )
+        {
+            this.node = node;
+            this.handle = handle;
+        }
+
+        /** @return the handle on the server. */
+        public DfsHandle getHandle()
+        {
+            return handle;
+        }
+
+        /** @return the server the handle is pinned to. */
+        public Node getNode()
+        {
+            return node;
+        }
+    }
+
+    /**
+     * One server and what the balancer knows about it.
+     */
+    public static final class Node
+    {
+        /** Connection settings of the server. */
+        private final DfsConnectionPool.Options options;
+
+        /** Calls in flight from this balancer. */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        /** Calls made. */
+        private final AtomicLong requests = new AtomicLong();
+
+        /** Calls that failed at the transport level. */
+        private final AtomicLong failures = new AtomicLong();
+
+        /** Session on the server, once opened; guarded by <code>this</code>. */
+        private DfsSession session;
+
+        /** Moving average of call latency in nanoseconds, 0 if unknown. */
+        private double latency;
+
+        /** Failures since the last success. */
+        private int consecutiveFailures;
+
+        /** Time before which the server is left out. */
+        private long downUntil;
+
+        /**
+         * @param options the connection settings of the server.
+         */
+        private Node( final DfsConnectionPool.Options options )
+        {
+            this.options = options;
+        }
+
+        /** @return the host of the server. */
+        public String getHost()
+        {
+            return options.host;
+        }
+
+        /** @return the port of the server. */
+        public int getPort()
+        {
+            return options.port;
+        }
+
+        /** @return the calls in flight to the server. */
+        public int getInFlight()
+        {
+            return inFlight.get();
+        }
+
+        /** @return the calls made to the server. */
+        public long getRequests()
+        {
+            return requests.get();
+        }
+
+        /** @return the calls to the server that failed in transport. */
+        public long getFailures()
+        {
+            return failures.get();
+        }
+
+        /** @return the moving average latency in milliseconds. */
+        public synchronized double getLatencyMillis()
+        {
+            return latency / 1.0e6;
+        }
+
+        /** @return whether the server is outside its back-off period. */
+        public synchronized boolean isAvailable()
+        {
+            return System.currentTimeMillis() >= downUntil;
+        }
+
+        /** {@inheritDoc} */
+        public String toString()
+        {
+            return options.host + ":" + options.port + " inFlight="
+                + getInFlight() + " latencyMs=" + getLatencyMillis()
+                + " requests=" + getRequests() + " failures="
+                + getFailures() + " available=" + isAvailable();
+        }
+
+        /**
+         * @return the end of the back-off period, in the past if none.
+         */
+        private synchronized long backoffEnd()
+        {
+            return downUntil;
+        }
+
+        /**
+         * @param unmeasured the latency to assume if the server has not
+         * replied yet.
+         *
+         * @return the cost of sending one more call to the server.
+         */
+        private synchronized double cost( final double unmeasured )
+        {
+            return ( inFlight.get() + 1 )
+                * ( latency == 0.0 ? unmeasured : latency );
+        }
+
+        /**
+         * @return the moving average latency in nanoseconds, 0 if the
+         * server has not replied yet.
+         */
+        private synchronized double measured()
+        {
+            return latency;
+        }
+
+        /**
+         * Records a call that got a reply.
+         */
+        private synchronized void succeeded( final long nanos,
+            final double weight )
+        {
+            latency = latency == 0.0 ? nanos
+                : latency + weight * ( nanos - latency );
+            consecutiveFailures = 0;
+            downUntil = 0L;
+        }
+
+        /**
+         * Records a transport failure and starts a back-off period.
+         */
+        private synchronized void failed( final Options balancer )
+        {
+            failures.incrementAndGet();
+            long backoff = balancer.minDownMillis
+                << Math.min( consecutiveFailures, 16 );
+            consecutiveFailures++;
+            downUntil = System.currentTimeMillis()
+                + Math.min( backoff, balancer.maxDownMillis );
+        }
+    }
+
+    /**
+     * A call made through the session of one server.
+     *
+     * @param <T> the result type of the call.
+     */
+    private abstract static class Op<T>
+    {
+        /**
+         * Makes the call.
+         *
+         * @param session the session of the chosen server.
+         *
+         * @return the result of the call.
+         *
+         * @throws DfsServiceIOException if the server reports an error.
+         * @throws TException if the call fails in Thrift.
+         */
+        protected abstract T run( DfsSession session )
+            throws DfsServiceIOException, TException;
+    }
+
+    // ** Private Data **
+
+    /** Balancer settings. */
+    private final Options options;
+
+    /** The servers. */
+    private final List<Node> nodes;
+
+    /** Passed to <code>init</code> on each server. */
+    private final String uri;
+
+    /** Passed to <code>login</code> on each server. */
+    private final String user;
+
+    /** Passed to <code>login</code> on each server. */
+    private final String password;
+
+    /** Picks the two candidates of each call. */
+    private final Random random = new Random();
+
+
+    // ** Constructors **
+
+    /**
+     * Creates a balancer.  No connection is made until the first call.
+     *
+     * @param options the balancer settings.
+     * @param servers connection settings, one per server.
+     * @param uri passed to <code>init</code> on each server.
+     * @param user passed to <code>login</code> on each server.
+     * @param password passed to <code>login</code> on each server.
+     */
+    public DfsBalancer( final Options options,
+        final List<DfsConnectionPool.Options> servers, final String uri,
+        final String user, final String password )
+    {
+        if ( servers.isEmpty() ) {
+            throw new IllegalArgumentException( "no servers given" );
+        }
+        this.options = options;
+        this.uri = uri;
+        this.user = user;
+        this.password = password;
+        List<Node> list = new ArrayList<Node>( servers.size() );
+        for ( DfsConnectionPool.Options server : servers ) {
+            list.add( new Node( server ) );
+        }
+        this.nodes = Collections.unmodifiableList( list );
+    }
+
+
+    // ** Public Static Methods **
+
+    /**
+     * Parses a list of servers such as
+     * <code>host1:9090,host2:9090</code>.  A missing port means
+     * {@link DfsClient#DEFAULT_PORT}.
+     *
+     * @param servers comma separated <code>host[:port]</code> entries.
+     *
+     * @return connection settings with default pool options, one per server.
+     */
+    public static List<DfsConnectionPool.Options> parseServers(
+        final String servers )
+    {
+        List<DfsConnectionPool.Options> list =
+            new ArrayList<DfsConnectionPool.Options>();
+        for ( String entry : servers.split( "," ) ) {
+            entry = entry.trim();
+            if ( entry.length() == 0 ) {
+                continue;
+            }
+            DfsConnectionPool.Options server = new DfsConnectionPool.Options();
+            int colon = entry.lastIndexOf( ':' );
+            if ( colon < 0 ) {
+                server.host = entry;
+            } else {
+                server.host = entry.substring( 0, colon );
+                server.port = Integer.parseInt( entry.substring( colon + 1 ) );
+            }
+            list.add( server );
+        }
+        return list;
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * @return the servers and their statistics.
+     */
+    public List<Node> getNodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * Retried on another server after a transport failure.
+     *
+     * @see DfsSession#listFiles
+     */
+    public List<FileStatus> listFiles( final String path )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Op<List<FileStatus>>() {
+            protected List<FileStatus> run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.listFiles( path );
+            }
+        } );
+    }
+
+    /**
+     * Retried on another server after a transport failure.
+     *
+     * @see DfsSession#listFilesProjected
+     */
+    public List<FileStatus> listFilesProjected( final String path,
+        final int fields )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Op<List<FileStatus>>() {
+            protected List<FileStatus> run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.listFilesProjected( path, fields );
+            }
+        } );
+    }
+
+    /**
+     * Retried on another server after a transport failure.  The
+     * high-water mark is made from DFS modification times, so it may be
+     * passed to any server.
+     *
+     * @see DfsSession#listModifiedSince
+     */
+    public ModifiedListing listModifiedSince( final String path,
+        final long mtime, final boolean recursive )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Op<ModifiedListing>() {
+            protected ModifiedListing run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.listModifiedSince( path, mtime, recursive );
+            }
+        } );
+    }
+
+    /**
+     * Retried on another server after a transport failure.
+     *
+     * @see DfsSession#stat
+     */
+    public FileStatus stat( final String path )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Op<FileStatus>() {
+            protected FileStatus run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.stat( path );
+            }
+        } );
+    }
+
+    /**
+     * Retried on another server after a transport failure.
+     *
+     * @see DfsSession#statProjected
+     */
+    public FileStatus statProjected( final String path, final int fields )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Op<FileStatus>() {
+            protected FileStatus run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.statProjected( path, fields );
+            }
+        } );
+    }
+
+    /**
+     * Retried on another server after a transport failure.
+     *
+     * @see DfsSession#contentSummary
+     */
+    public ContentSummary contentSummary( final String path )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Op<ContentSummary>() {
+            protected ContentSummary run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.contentSummary( path );
+            }
+        } );
+    }
+
+    /**
+     * Retried on another server after a transport failure.
+     *
+     * @see DfsSession#getBlockLocations
+     */
+    public List<BlockLocation> getBlockLocations( final String path,
+        final long offset, final long length )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Op<List<BlockLocation>>() {
+            protected List<BlockLocation> run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.getBlockLocations( path, offset, length );
+            }
+        } );
+    }
+
+    /**
+     * Retried on another server after a transport failure.
+     *
+     * @see DfsSession#grep
+     */
+    public GrepResult grep( final String path, final String pattern,
+        final boolean literal, final long offset, final long end,
+        final int maxMatches )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Op<GrepResult>() {
+            protected GrepResult run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.grep( path, pattern, literal, offset, end,
+                    maxMatches );
+            }
+        } );
+    }
+
+    /**
+     * Retried on another server after a transport failure.
+     *
+     * @see DfsSession#readSplit
+     */
+    public SplitResult readSplit( final String path, final long offset,
+        final long length, final String delimiter )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Op<SplitResult>() {
+            protected SplitResult run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.readSplit( path, offset, length, delimiter );
+            }
+        } );
+    }
+
+    /**
+     * Retried on another server after a transport failure.
+     *
+     * @see DfsSession#follow
+     */
+    public FollowResult follow( final String path, final long offset,
+        final long maxBytes, final long waitMillis )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Op<FollowResult>() {
+            protected FollowResult run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.follow( path, offset, maxBytes, waitMillis );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsSession#mkdir
+     */
+    public boolean mkdir( final String path )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Op<Boolean>() {
+            protected Boolean run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( s.mkdir( path ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * @see DfsSession#move
+     */
+    public boolean move( final String oldpath, final String newpath )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Op<Boolean>() {
+            protected Boolean run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( s.move( oldpath, newpath ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * @see DfsSession#remove
+     */
+    public boolean remove( final String path, final boolean recursive )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Op<Boolean>() {
+            protected Boolean run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( s.remove( path, recursive ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * Opens a file on the chosen server.  The returned handle must be used
+     * with the methods of this balancer, which send its calls to that
+     * server.
+     *
+     * @see DfsSession#open
+     */
+    public BalancedHandle open( final String filename, final short mode )
+        throws DfsServiceIOException, TException
+    {
+        Node node = choose( Collections.<Node>emptySet() );
+        DfsHandle handle = call( node, new Op<DfsHandle>() {
+            protected DfsHandle run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.open( filename, mode );
+            }
+        } );
+        return new BalancedHandle( node, handle );
+    }
+
+    /**
+     * @see DfsSession#close(DfsHandle)
+     */
+    public boolean close( final BalancedHandle handle )
+        throws DfsServiceIOException, TException
+    {
+        return call( handle.node, new Op<Boolean>() {
+            protected Boolean run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( s.close( handle.handle ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * @see DfsSession#read
+     */
+    public String read( final BalancedHandle handle, final long offset,
+        final long len )
+        throws DfsServiceIOException, TException
+    {
+        return call( handle.node, new Op<String>() {
+            protected String run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.read( handle.handle, offset, len );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsSession#readBytes
+     */
+    public byte[] readBytes( final BalancedHandle handle, final long offset,
+        final long len )
+        throws DfsServiceIOException, TException
+    {
+        return call( handle.node, new Op<byte[]>() {
+            protected byte[] run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return s.readBytes( handle.handle, offset, len );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsSession#write
+     */
+    public boolean write( final BalancedHandle handle, final byte[] buf,
+        final long offset, final long len )
+        throws DfsServiceIOException, TException
+    {
+        return call( handle.node, new Op<Boolean>() {
+            protected Boolean run( final DfsSession s )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( s.write( handle.handle, buf, offset,
+                    len ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * Closes the session on every server that was used.
+     */
+    public void close()
+    {
+        for ( Node node : nodes ) {
+            DfsSession session;
+            synchronized ( node ) {
+                session = node.session;
+                node.session = null;
+            }
+            if ( session != null ) {
+                session.close();
+            }
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Makes a call on the chosen server and, for calls that may be
+     * repeated, on up to {@link Options#maxAttempts} servers in all until
+     * one does not fail in transport.
+     */
+    private <T> T execute( final boolean retry, final Op<T> op )
+        throws DfsServiceIOException, TException
+    {
+        int attempts = Math.max( 1, options.maxAttempts );
+        Set<Node> tried = new HashSet<Node>();
+        TException last = null;
+        DfsServiceIOException refused = null;
+        for ( int i = 0; i < attempts; i++ ) {
+            Node node = choose( tried );
+            if ( node == null ) {
+                break;
+            }
+            tried.add( node );
+            try {
+                return call( node, op );
+            } catch ( DfsServiceIOException dsioe ) {
+                // a call refused as overloaded or unavailable never
+                // started, so any call can go to another server; a
+                // throttled one is not, as that would dodge the limit
+                if ( !DfsSession.isOverloaded( dsioe )
+                        && !DfsSession.isUnavailable( dsioe ) ) {
+                    throw dsioe;
+                }
+                refused = dsioe;
+            } catch ( TException te ) {
+                if ( !retry || te instanceof TApplicationException ) {
+                    throw te;
+                }
+                last = te;
+            }
+        }
+        if ( refused != null ) {
+            throw refused;
+        }
+        if ( last == null ) {
+            throw new TTransportException( "no server available" );
+        }
+        throw last;
+    }
+
+    /**
+     * Makes one call on one server, keeping its statistics.
+     */
+    private <T> T call( final Node node, final Op<T> op )
+        throws DfsServiceIOException, TException
+    {
+        DfsSession session = session( node );
+        node.requests.incrementAndGet();
+        node.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            T result = op.run( session );
+            node.succeeded( System.nanoTime() - start, options.latencyWeight );
+            return result;
+        } catch ( DfsServiceIOException dsioe ) {
+            if ( DfsSession.isOverloaded( dsioe )
+                    || DfsSession.isUnavailable( dsioe )
+                    || DfsSession.isTimedOut( dsioe ) ) {
+                // give the server time to drain before sending it more
+                node.failed( options );
+            } else {
+                // the server answered, it is the request that was refused,
+                // as when the client is throttled
+                node.succeeded( System.nanoTime() - start,
+                    options.latencyWeight );
+            }
+            throw dsioe;
+        } catch ( TApplicationException tae ) {
+            node.succeeded( System.nanoTime() - start, options.latencyWeight );
+            throw tae;
+        } catch ( TException te ) {
+            node.failed( options );
+            throw te;
+        } finally {
+            node.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the session of a server, opening it on first use.
+     */
+    private DfsSession session( final Node node )
+        throws DfsServiceIOException, TException
+    {
+        synchronized ( node ) {
+            if ( node.session != null ) {
+                return node.session;
+            }
+        }
+        // opened outside the lock so a dead server does not hold up stats
+        DfsSession opened;
+        try {
+            opened = DfsSession.open( node.options, uri, user, password );
+        } catch ( TException te ) {
+            node.failed( options );
+            throw te;
+        }
+        synchronized ( node ) {
+            if ( node.session == null ) {
+                node.session = opened;
+                return opened;
+            }
+        }
+        // another thread got there first
+        opened.close();
+        synchronized ( node ) {
+            return node.session;
+        }
+    }
+
+    /**
+     * Picks the cheaper of two random servers that are not in back-off and
+     * not excluded.  If every remaining server is in back-off, the one that
+     * comes out of it first is used rather than failing outright.
+     *
+     * @return a server, or <code>null</code> if all are excluded.
+     */
+    private Node choose( final Set<Node> exclude )
+    {
+        List<Node> up = new ArrayList<Node>( nodes.size() );
+        Node soonest = null;
+        double latencies = 0.0;
+        int measured = 0;
+        for ( Node node : nodes ) {
+            double latency = node.measured();
+            if ( latency > 0.0 ) {
+                latencies += latency;
+                measured++;
+            }
+            if ( exclude.contains( node ) ) {
+                continue;
+            }
+            if ( node.isAvailable() ) {
+                up.add( node );
+            } else if ( soonest == null
+                    || node.backoffEnd() < soonest.backoffEnd() ) {
+                soonest = node;
+            }
+        }
+        if ( up.isEmpty() ) {
+            return soonest;
+        }
+        if ( up.size() == 1 ) {
+            return up.get( 0 );
+        }
+        int a;
+        int b;
+        synchronized ( random ) {
+            a = random.nextInt( up.size() );
+            b = random.nextInt( up.size() - 1 );
+        }
+        if ( b >= a ) {
+            b++;
+        }
+        Node first = up.get( a );
+        Node second = up.get( b );
+        // a server not yet measured is taken to be average, so its calls in
+        // flight still count; with none measured only those are compared
+        double unmeasured = measured == 0 ? 1.0 : latencies / measured;
+        return first.cost( unmeasured ) <= second.cost( unmeasured ) ? first
+            : second;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.ClientHandle;
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.FileStatus;
+// end thrift-generated files
+
+import com.facebook.thrift.TException;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link DfsSession} that serves repeated reads, <code>stat</code>s and
+ * <code>listFiles</code> from a {@link DfsClientCache}.  Reads are cached
+ * for <code>readBytes</code>, and so for {@link DfsInputStream} on this
+ * session; the string <code>read</code> goes to the server every time.
+ * <p>
+ * A read is split into cache blocks.  Before any block is used the file is
+ * <code>stat</code>ed (itself cached for a short time) and blocks read from
+ * an older version of the file are ignored.  Changes made through this
+ * session (<code>mkdir</code>, <code>move</code>, <code>remove</code> and
+ * closing a file opened for writing) drop the affected entries at once.
+ * <p>
+ * Cached <code>FileStatus</code> objects and lists are shared between
+ * callers and must not be modified.
+ */
+public class DfsCachingSession extends DfsSession
+{
+    // ** Private Data **
+
+    /** The cache. */
+    private final DfsClientCache cache;
+
+    /** Path of each handle opened through this session, by handle id. */
+    private final ConcurrentHashMap<Long, String> paths =
+        new ConcurrentHashMap<Long, String>();
+
+    /** Ids of the handles in {@link #paths} that were opened for reading. */
+    private final ConcurrentHashMap<Long, Boolean> readers =
+        new ConcurrentHashMap<Long, Boolean>();
+
+
+    // ** Constructors **
+
+    /**
+     * Wraps an existing pool and client handle.  Use {@link #open} to create
+     * a session from scratch.
+     *
+     * @param pool the connections to use.
+     * @param chandle a client handle that is already logged in.
+     * @param cache the cache to use; may be shared between sessions on the
+     * same DFS.
+     */
+    protected DfsCachingSession( final DfsConnectionPool pool,
+        final ClientHandle chandle, final DfsClientCache cache )
+    {
+        super( pool, chandle );
+        this.cache = cache;
+    }
+
+
+    // ** Public Static Methods **
+
+    /**
+     * Creates a pool with the passed in options and opens a caching session
+     * on it.
+     *
+     * @param options the connection pool settings.
+     * @param uri passed to <code>init</code>.
+     * @param user passed to <code>login</code>.
+     * @param password passed to <code>login</code>.
+     * @param cache the cache to use.
+     *
+     * @return a logged-in session.
+     *
+     * @throws DfsServiceIOException if <code>init</code> or
+     * <code>login</code> is refused by the server.
+     * @throws TException if the server cannot be reached.
+     */
+    public static DfsCachingSession open(
+        final DfsConnectionPool.Options options, final String uri,
+        final String user, final String password, final DfsClientCache cache )
+        throws DfsServiceIOException, TException
+    {
+        DfsSession session = DfsSession.open( options, uri, user, password );
+        return new DfsCachingSession( session.getPool(),
+            session.getClientHandle(), cache );
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * @return the cache, for its statistics.
+     */
+    public DfsClientCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Served from the cache while the listing is fresh.
+     *
+     * @see DfsSession#listFiles
+     */
+    public List<FileStatus> listFiles( final String path )
+        throws DfsServiceIOException, TException
+    {
+        List<FileStatus> listing = cache.getListing( path );
+        if ( listing == null ) {
+            listing = cache.putListing( path, super.listFiles( path ) );
+        }
+        return listing;
+    }
+
+    /**
+     * Served from the cache while the status is fresh.
+     *
+     * @see DfsSession#stat
+     */
+    public FileStatus stat( final String path )
+        throws DfsServiceIOException, TException
+    {
+        FileStatus status = cache.getStat( path );
+        if ( status == null ) {
+            status = super.stat( path );
+            cache.putStat( path, status );
+        }
+        return status;
+    }
+
+    /** {@inheritDoc} */
+    public boolean mkdir( final String path )
+        throws DfsServiceIOException, TException
+    {
+        try {
+            return super.mkdir( path );
+        } finally {
+            cache.invalidate( path );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean move( final String oldpath, final String newpath )
+        throws DfsServiceIOException, TException
+    {
+        try {
+            return super.move( oldpath, newpath );
+        } finally {
+            cache.invalidate( oldpath );
+            cache.invalidate( newpath );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean remove( final String path, final boolean recursive )
+        throws DfsServiceIOException, TException
+    {
+        try {
+            return super.remove( path, recursive );
+        } finally {
+            cache.invalidate( path );
+        }
+    }
+
+    /**
+     * Remembers which file the handle is for, so reads through it can use
+     * the cache.
+     *
+     * @see DfsSession#open
+     */
+    public DfsHandle open( final String filename, final short mode )
+        throws DfsServiceIOException, TException
+    {
+        if ( mode != Constants.READ ) {
+            cache.invalidate( filename );
+        }
+        DfsHandle handle = super.open( filename, mode );
+        if ( handle != null ) {
+            paths.put( Long.valueOf( handle.id ), filename );
+            if ( mode == Constants.READ ) {
+                readers.put( Long.valueOf( handle.id ), Boolean.TRUE );
+            }
+        }
+        return handle;
+    }
+
+    /** {@inheritDoc} */
+    public boolean close( final DfsHandle handle )
+        throws DfsServiceIOException, TException
+    {
+        Long id = Long.valueOf( handle.id );
+        try {
+            return super.close( handle );
+        } finally {
+            String path = paths.remove( id );
+            if ( readers.remove( id ) == null && path != null ) {
+                // the new contents are visible now
+                cache.invalidate( path );
+            }
+        }
+    }
+
+    /**
+     * Assembles the range from cached blocks, reading missing blocks whole
+     * from the server.
+     *
+     * @see DfsSession#readBytes
+     */
+    public byte[] readBytes( final DfsHandle handle, final long offset,
+        final long len )
+        throws DfsServiceIOException, TException
+    {
+        Long id = Long.valueOf( handle.id );
+        String path = paths.get( id );
+        if ( path == null || !readers.containsKey( id ) || offset < 0
+                || len <= 0 || len > Integer.MAX_VALUE ) {
+            return super.readBytes( handle, offset, len );
+        }
+
+        FileStatus status = stat( path );
+        long end = Math.min( offset + len, status.length );
+        if ( offset >= end ) {
+            return new byte[0];
+        }
+        int blockSize = cache.getOptions().blockSize;
+        byte[] result = new byte[( int )( end - offset )];
+        int filled = 0;
+        for ( long index = offset / blockSize; filled < result.length;
+                index++ ) {
+            long blockStart = index * blockSize;
+            byte[] block = cache.getBlock( path, index, status );
+            if ( block == null ) {
+                block = super.readBytes( handle, blockStart, blockSize );
+                cache.putBlock( path, index, status, block );
+            }
+            int from = ( int )( offset + filled - blockStart );
+            int n = Math.min( block.length - from, result.length - filled );
+            if ( n <= 0 ) {
+                // the file is shorter than its cached status says
+                break;
+            }
+            System.arraycopy( block, from, result, filled, n );
+            filled += n;
+        }
+        if ( filled < result.length ) {
+            byte[] trimmed = new byte[filled];
+            System.arraycopy( result, 0, trimmed, 0, filled );
+            return trimmed;
+        }
+        return result;
+    }
+}
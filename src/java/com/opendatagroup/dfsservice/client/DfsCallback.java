@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+/**
+ * Receives the outcome of a call made through {@link DfsAsyncClient}.
+ * Exactly one of the two methods is called, once.
+ *
+ * @param <T> the result type of the call.
+ */
+public interface DfsCallback<T>
+{
+    /**
+     * Called when the server replied normally.
+     *
+     * @param result the value the call returned.
+     */
+    void onSuccess( T result );
+
+    /**
+     * Called when the call failed: a <code>DfsServiceIOException</code>
+     * from the server, a <code>TApplicationException</code>, or a transport
+     * error that broke the connection.
+     *
+     * @param error the failure.
+     */
+    void onFailure( Throwable error );
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.FileStatus;
+// end thrift-generated files
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory cache of file blocks and metadata for {@link DfsCachingSession}.
+ * Blocks are fixed-size pieces of a file keyed by path and block number;
+ * metadata is the result of <code>stat</code> and <code>listFiles</code>
+ * keyed by the path passed in.
+ * <p>
+ * Every block is tagged with the modification time and length of the file
+ * it was read from.  A block is only used while the file still has that
+ * modification time and length, so a changed file is detected by one
+ * <code>stat</code> instead of by rereading data.  To keep even that cheap,
+ * a <code>stat</code> result is trusted for
+ * {@link Options#metadataTtlMillis} before it is fetched again; a file that
+ * changes on the DFS may be served stale for up to that long.
+ * <p>
+ * Entries are evicted least recently used first when the total size goes
+ * over {@link Options#maxBytes}.  All methods are thread-safe.
+ */
+public class DfsClientCache
+{
+    // ** Inner Classes **
+
+    /**
+     * Cache settings.  Public fields in the style of
+     * {@link DfsConnectionPool.Options}.
+     */
+    public static class Options
+    {
+        /** Memory budget for all entries, in bytes. */
+        public long maxBytes = 64L * 1024 * 1024;
+
+        /** Size of a cached block, in bytes. */
+        public int blockSize = 1024 * 1024;
+
+        /**
+         * Time a <code>stat</code> or <code>listFiles</code> result is used
+         * without asking the server again, in milliseconds.
+         */
+        public long metadataTtlMillis = 1000L;
+    }
+
+    /**
+     * Key of an entry: the kind of entry, the path and, for blocks, the
+     * block number.
+     */
+    private static final class Key
+    {
+        /** One of {@link #BLOCK}, {@link #STAT} or {@link #LISTING}. */
+        private final int kind;
+
+        /** The path as passed by the caller. */
+        private final String path;
+
+        /** Block number, 0 for metadata. */
+        private final long index;
+
+        /**
+         * @param kind the kind of entry.
+         * @param path the path.
+         * @param index the block number.
+         */
+        private Key( final int kind, final String path, final long index )
+        {
+            this.kind = kind;
+            this.path = path;
+            this.index = index;
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals( final Object o )
+        {
+            if ( !( o instanceof Key ) ) {
+                return false;
+            }
+            Key k = ( Key )o;
+            return kind == k.kind && index == k.index && path.equals( k.path );
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode()
+        {
+            return ( path.hashCode() * 31 + ( int )( index ^ ( index >>> 32 ) ) )
+                * 31 + kind;
+        }
+    }
+
+    /**
+     * A cached value with what is needed to validate and account for it.
+     */
+    private static final class Entry
+    {
+        /** The block, status or listing. */
+        private final Object value;
+
+        /** Modification time of the file a block came from. */
+        private final long mtime;
+
+        /** Length of the file a block came from. */
+        private final long length;
+
+        /** Time a metadata entry was fetched. */
+        private final long fetched;
+
+        /** Approximate size in bytes. */
+        private final long weight;
+
+        /**
+         * @param value the cached value.
+         * @param mtime modification time of the file, for blocks.
+         * @param length length of the file, for blocks.
+         * @param fetched time the value was fetched.
+         * @param weight approximate size in bytes.
+         */
+        private Entry( final Object value, final long mtime,
+            final long length, final long fetched, final long weight )
+        {
+            this.value = value;
+            this.mtime = mtime;
+            this.length = length;
+            this.fetched = fetched;
+            this.weight = weight;
+        }
+    }
+
+    // ** Private Static Final Data **
+
+    /** Kind of a block entry. */
+    private static final int BLOCK = 0;
+
+    /** Kind of a <code>stat</code> entry. */
+    private static final int STAT = 1;
+
+    /** Kind of a <code>listFiles</code> entry. */
+    private static final int LISTING = 2;
+
+    /** Rough size of one file status beyond its strings, in bytes. */
+    private static final int STATUS_OVERHEAD = 96;
+
+    // ** Private Data **
+
+    /** Cache settings. */
+    private final Options options;
+
+    /** Entries in least recently used order; guarded by <code>this</code>. */
+    private final LinkedHashMap<Key, Entry> entries =
+        new LinkedHashMap<Key, Entry>( 256, 0.75f, true );
+
+    /** Total weight of {@link #entries}. */
+    private long usedBytes;
+
+    /** Blocks found. */
+    private long blockHits;
+
+    /** Blocks not found or stale. */
+    private long blockMisses;
+
+    /** Metadata found and fresh. */
+    private long metadataHits;
+
+    /** Metadata not found or expired. */
+    private long metadataMisses;
+
+    /** Entries evicted to stay within the budget. */
+    private long evictions;
+
+
+    // ** Constructors **
+
+    /**
+     * @param options the cache settings.
+     */
+    public DfsClientCache( final Options options )
+    {
+        if ( options.blockSize <= 0 ) {
+            throw new IllegalArgumentException( "invalid block size "
+                + options.blockSize );
+        }
+        this.options = options;
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * @return the cache settings.
+     */
+    public Options getOptions()
+    {
+        return options;
+    }
+
+    /** @return block lookups served from the cache. */
+    public synchronized long getBlockHits()
+    {
+        return blockHits;
+    }
+
+    /** @return block lookups that went to the server. */
+    public synchronized long getBlockMisses()
+    {
+        return blockMisses;
+    }
+
+    /** @return metadata lookups served from the cache. */
+    public synchronized long getMetadataHits()
+    {
+        return metadataHits;
+    }
+
+    /** @return metadata lookups that went to the server. */
+    public synchronized long getMetadataMisses()
+    {
+        return metadataMisses;
+    }
+
+    /** @return entries evicted to stay within the budget. */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /** @return the approximate bytes held. */
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    /**
+     * @return the fraction of all lookups served from the cache, 0 if there
+     * were none.
+     */
+    public synchronized double getHitRatio()
+    {
+        long hits = blockHits + metadataHits;
+        long total = hits + blockMisses + metadataMisses;
+        return total == 0L ? 0.0 : ( double )hits / total;
+    }
+
+    /**
+     * @return the fraction of block lookups served from the cache.
+     */
+    public synchronized double getBlockHitRatio()
+    {
+        long total = blockHits + blockMisses;
+        return total == 0L ? 0.0 : ( double )blockHits / total;
+    }
+
+    /**
+     * Drops every entry.  Statistics are kept.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        usedBytes = 0L;
+    }
+
+    /**
+     * @return the statistics on one line, for logging.
+     */
+    public synchronized String stats()
+    {
+        return "blockHits=" + blockHits + " blockMisses=" + blockMisses
+            + " metadataHits=" + metadataHits + " metadataMisses="
+            + metadataMisses + " hitRatio=" + getHitRatio() + " evictions="
+            + evictions + " usedBytes=" + usedBytes + " maxBytes="
+            + options.maxBytes;
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * @return a fresh <code>stat</code> result for <code>path</code>, or
+     * <code>null</code>.
+     */
+    synchronized FileStatus getStat( final String path )
+    {
+        return ( FileStatus )getMetadata( new Key( STAT, path, 0L ) );
+    }
+
+    /**
+     * Stores a <code>stat</code> result.
+     */
+    synchronized void putStat( final String path, final FileStatus status )
+    {
+        put( new Key( STAT, path, 0L ), new Entry( status, 0L, 0L,
+            System.currentTimeMillis(), weigh( status ) ) );
+    }
+
+    /**
+     * @return a fresh <code>listFiles</code> result for <code>path</code>,
+     * or <code>null</code>.
+     */
+    @SuppressWarnings( "unchecked" )
+    synchronized List<FileStatus> getListing( final String path )
+    {
+        return ( List<FileStatus> )getMetadata( new Key( LISTING, path, 0L ) );
+    }
+
+    /**
+     * Stores a <code>listFiles</code> result.
+     *
+     * @return the read-only list that was stored.
+     */
+    synchronized List<FileStatus> putListing( final String path,
+        final List<FileStatus> listing )
+    {
+        long weight = STATUS_OVERHEAD;
+        for ( FileStatus status : listing ) {
+            weight += weigh( status );
+        }
+        List<FileStatus> stored = Collections.unmodifiableList( listing );
+        put( new Key( LISTING, path, 0L ), new Entry( stored, 0L, 0L,
+            System.currentTimeMillis(), weight ) );
+        return stored;
+    }
+
+    /**
+     * @return block <code>index</code> of <code>path</code> if it was read
+     * from the version of the file described by <code>status</code>, or
+     * <code>null</code>.
+     */
+    synchronized byte[] getBlock( final String path, final long index,
+        final FileStatus status )
+    {
+        Key key = new Key( BLOCK, path, index );
+        Entry entry = entries.get( key );
+        if ( entry != null && ( entry.mtime != status.modification_time
+                || entry.length != status.length ) ) {
+            remove( key );
+            entry = null;
+        }
+        if ( entry == null ) {
+            blockMisses++;
+            return null;
+        }
+        blockHits++;
+        return ( byte[] )entry.value;
+    }
+
+    /**
+     * Stores block <code>index</code> of the version of <code>path</code>
+     * described by <code>status</code>.
+     */
+    synchronized void putBlock( final String path, final long index,
+        final FileStatus status, final byte[] block )
+    {
+        put( new Key( BLOCK, path, index ), new Entry( block,
+            status.modification_time, status.length, 0L,
+            block.length + STATUS_OVERHEAD ) );
+    }
+
+    /**
+     * Drops everything cached for <code>path</code> and anything below it,
+     * and all listings.  Called after this client changes the namespace.
+     */
+    synchronized void invalidate( final String path )
+    {
+        String prefix = path.endsWith( "/" ) ? path : path + "/";
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while ( it.hasNext() ) {
+            Map.Entry<Key, Entry> e = it.next();
+            Key key = e.getKey();
+            if ( key.kind == LISTING || key.path.equals( path )
+                    || key.path.startsWith( prefix ) ) {
+                usedBytes -= e.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Looks up a metadata entry, dropping it if it has expired.
+     */
+    private Object getMetadata( final Key key )
+    {
+        Entry entry = entries.get( key );
+        if ( entry != null && System.currentTimeMillis() - entry.fetched
+                >= options.metadataTtlMillis ) {
+            remove( key );
+            entry = null;
+        }
+        if ( entry == null ) {
+            metadataMisses++;
+            return null;
+        }
+        metadataHits++;
+        return entry.value;
+    }
+
+    /**
+     * Adds or replaces an entry and evicts until within the budget.
+     */
+    private void put( final Key key, final Entry entry )
+    {
+        if ( entry.weight > options.maxBytes ) {
+            return;
+        }
+        Entry old = entries.put( key, entry );
+        if ( old != null ) {
+            usedBytes -= old.weight;
+        }
+        usedBytes += entry.weight;
+        Iterator<Entry> it = entries.values().iterator();
+        while ( usedBytes > options.maxBytes && it.hasNext() ) {
+            usedBytes -= it.next().weight;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes one entry.
+     */
+    private void remove( final Key key )
+    {
+        Entry old = entries.remove( key );
+        if ( old != null ) {
+            usedBytes -= old.weight;
+        }
+    }
+
+    /**
+     * @return the approximate size of a file status in bytes.
+     */
+    private static long weigh( final FileStatus status )
+    {
+        return STATUS_OVERHEAD + 2L * ( length( status.path )
+            + length( status.permission ) + length( status.owner )
+            + length( status.group ) );
+    }
+
+    /**
+     * @return the length of a possibly <code>null</code> string.
+     */
+    private static int length( final String s )
+    {
+        return s == null ? 0 : s.length();
+    }
+}
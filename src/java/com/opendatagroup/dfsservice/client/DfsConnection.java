@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.DfsService;
+// end thrift-generated files
+
+import com.facebook.thrift.protocol.TBinaryProtocol;
+import com.facebook.thrift.transport.TSocket;
+
+/**
+ * One pooled connection to a Thrift server: the socket transport and the
+ * generated client that talks over it.  Instances are created by
+ * {@link DfsConnectionPool} and must only be used by the thread that
+ * borrowed them.
+ */
+public final class DfsConnection
+{
+    // ** Package Data **
+
+    /** The socket transport. */
+    final TSocket transport;
+
+    /** Time the connection was last returned to the pool. */
+    volatile long lastUsed;
+
+    // ** Private Data **
+
+    /** Generated client bound to {@link #transport}. */
+    private final DfsService.Client client;
+
+
+    // ** Constructors **
+
+    /**
+     * @param transport an open socket transport.
+     */
+    DfsConnection( final TSocket transport )
+    {
+        this.transport = transport;
+        this.client = new DfsService.Client( new TBinaryProtocol( transport ) );
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * @return the generated client for this connection.
+     */
+    public DfsService.Client getClient()
+    {
+        return client;
+    }
+
+
+    // ** Package Methods **
+
+    /** Closes the underlying socket. */
+    void close()
+    {
+        transport.close();
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.DfsService;
+// end thrift-generated files
+
+import com.facebook.thrift.protocol.TBinaryProtocol;
+import com.facebook.thrift.transport.TSocket;
+import com.facebook.thrift.transport.TTransportException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, thread-safe pool of connections to one Thrift server.  Each
+ * connection is a {@link TSocket} with {@link TBinaryProtocol} and the
+ * generated {@link DfsService.Client}, exactly as set up by
+ * {@link DfsClient#main}, but opened with connect and read timeouts.
+ * <p>
+ * A connection is used by one thread at a time: {@link #borrow} hands it
+ * out and {@link #release} returns it.  A connection that failed at the
+ * transport level must be handed back with {@link #invalidate} instead so
+ * it is closed rather than reused.  Idle connections are checked before
+ * they are handed out again and a background thread closes those that have
+ * been idle for too long or whose server end has gone away.
+ * <p>
+ * Most callers should use {@link DfsSession}, which borrows from the pool
+ * for every call and manages the <code>init</code>/<code>login</code>
+ * lifecycle.
+ */
+public class DfsConnectionPool
+{
+    // ** Inner Classes **
+
+    /**
+     * Settings for a pool.  Public fields in the style of
+     * {@link com.facebook.thrift.server.TThreadPoolServer.Options}; the
+     * defaults are usable as is apart from {@link #host}.
+     */
+    public static class Options
+    {
+        /** Host of the Thrift server. */
+        public String host = "localhost";
+
+        /** Port of the Thrift server. */
+        public int port = DfsClient.DEFAULT_PORT;
+
+        /** Most connections the pool will have open at once. */
+        public int maxConnections = 8;
+
+        /** Time to wait to establish a TCP connection, in milliseconds. */
+        public int connectTimeoutMillis = 5000;
+
+        /**
+         * Socket read timeout in milliseconds.  A call that gets no reply in
+         * this time fails with a transport exception.  <code>0</code> waits
+         * forever.
+         */
+        public int readTimeoutMillis = 60000;
+
+        /**
+         * Time {@link #borrow} waits for a connection when all of them are
+         * in use, in milliseconds.
+         */
+        public long maxWaitMillis = 30000L;
+
+        /** Idle connections older than this are closed, in milliseconds. */
+        public long idleTimeoutMillis = 60000L;
+
+        /**
+         * A connection idle for longer than this is checked for a closed
+         * server end before it is handed out, in milliseconds.
+         */
+        public long validateAfterMillis = 2000L;
+
+        /** How often the idle connections are swept, in milliseconds. */
+        public long evictionIntervalMillis = 15000L;
+    }
+
+    // ** Private Data **
+
+    /** Pool settings. */
+    private final Options options;
+
+    /** Idle connections, most recently used first. */
+    private final LinkedBlockingDeque<DfsConnection> idle =
+        new LinkedBlockingDeque<DfsConnection>();
+
+    /** One permit per connection that may be handed out. */
+    private final Semaphore permits;
+
+    /** Closes idle connections in the background. */
+    private final Thread evictor;
+
+    /** Set once {@link #close} is called. */
+    private volatile boolean closed;
+
+
+    // ** Constructors **
+
+    /**
+     * Creates an empty pool.  Connections are opened on demand.
+     *
+     * @param options the pool settings.
+     */
+    public DfsConnectionPool( final Options options )
+    {
+        this.options = options;
+        this.permits = new Semaphore( options.maxConnections, true );
+        this.evictor = new Thread( new Runnable() {
+            public void run()
+            {
+                while ( !closed ) {
+                    try {
+                        Thread.sleep( options.evictionIntervalMillis );
+                    } catch ( InterruptedException ie ) {
+                        return;
+                    }
+                    evictIdle();
+                }
+            }
+        }, "dfs-pool-evictor-" + options.host + ":" + options.port );
+        this.evictor.setDaemon( true );
+        this.evictor.start();
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * Takes a connection from the pool, opening a new one if none is idle.
+     * The caller must return it with {@link #release} or {@link #invalidate}.
+     *
+     * @return an open connection.
+     *
+     * @throws TTransportException if the pool is closed, no connection
+     * becomes available within {@link Options#maxWaitMillis}, or a new
+     * connection cannot be opened.
+     */
+    public DfsConnection borrow()
+        throws TTransportException
+    {
+        if ( closed ) {
+            throw new TTransportException( "connection pool is closed" );
+        }
+        try {
+            if ( !permits.tryAcquire( options.maxWaitMillis,
+                    TimeUnit.MILLISECONDS ) ) {
+                throw new TTransportException( "timed out waiting for a"
+                    + " connection to " + options.host + ":" + options.port );
+            }
+        } catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            throw new TTransportException( "interrupted waiting for a"
+                + " connection to " + options.host + ":" + options.port );
+        }
+
+        try {
+            DfsConnection conn;
+            while ( ( conn = idle.pollFirst() ) != null ) {
+                if ( System.currentTimeMillis() - conn.lastUsed
+                        < options.validateAfterMillis || isHealthy( conn ) ) {
+                    return conn;
+                }
+                conn.close();
+            }
+            return connect();
+        } catch ( TTransportException tte ) {
+            permits.release();
+            throw tte;
+        } catch ( RuntimeException re ) {
+            permits.release();
+            throw re;
+        }
+    }
+
+    /**
+     * Returns a healthy connection to the pool.
+     *
+     * @param conn a connection obtained from {@link #borrow}.
+     */
+    public void release( final DfsConnection conn )
+    {
+        conn.lastUsed = System.currentTimeMillis();
+        if ( closed ) {
+            conn.close();
+        } else {
+            idle.offerFirst( conn );
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes a connection that failed and frees its slot in the pool.
+     *
+     * @param conn a connection obtained from {@link #borrow}.
+     */
+    public void invalidate( final DfsConnection conn )
+    {
+        conn.close();
+        permits.release();
+    }
+
+    /** @return the number of idle connections. */
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    /** @return the number of connections currently handed out. */
+    public int getActiveCount()
+    {
+        return options.maxConnections - permits.availablePermits();
+    }
+
+    /** @return the settings of this pool. */
+    public Options getOptions()
+    {
+        return options;
+    }
+
+    /**
+     * Closes the idle connections and stops the evictor.  Connections still
+     * handed out are closed when they are returned.
+     */
+    public void close()
+    {
+        closed = true;
+        evictor.interrupt();
+        DfsConnection conn;
+        while ( ( conn = idle.pollFirst() ) != null ) {
+            conn.close();
+        }
+    }
+
+
+    // ** Package Static Methods **
+
+    /**
+     * Opens a socket transport to the server named in <code>options</code>
+     * with its connect and read timeouts and Nagle's algorithm off.
+     *
+     * @param options the server and timeouts.
+     *
+     * @return an open transport.
+     *
+     * @throws TTransportException if the server cannot be reached.
+     */
+    static TSocket openSocket( final Options options )
+        throws TTransportException
+    {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay( true );
+            socket.setSoTimeout( options.readTimeoutMillis );
+            socket.connect( new InetSocketAddress( options.host, options.port ),
+                options.connectTimeoutMillis );
+        } catch ( IOException ioe ) {
+            try {
+                socket.close();
+            } catch ( IOException ignored ) {
+                // nothing more to do
+            }
+            throw new TTransportException( "cannot connect to "
+                + options.host + ":" + options.port + ": " + ioe.getMessage() );
+        }
+        return new TSocket( socket );
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Opens a new connection with the configured timeouts.
+     */
+    private DfsConnection connect()
+        throws TTransportException
+    {
+        return new DfsConnection( openSocket( options ) );
+    }
+
+    /**
+     * Closes idle connections that have timed out or whose server end has
+     * closed.  Each connection is taken out of the idle list while it is
+     * looked at so that it cannot be borrowed at the same time.
+     */
+    private void evictIdle()
+    {
+        long now = System.currentTimeMillis();
+        List<DfsConnection> keep = new ArrayList<DfsConnection>();
+        DfsConnection conn;
+        int n = idle.size();
+        for ( int i = 0; i < n && ( conn = idle.pollLast() ) != null; i++ ) {
+            if ( now - conn.lastUsed > options.idleTimeoutMillis
+                    || !isHealthy( conn ) ) {
+                conn.close();
+            } else {
+                keep.add( conn );
+            }
+        }
+        for ( Iterator<DfsConnection> it = keep.iterator(); it.hasNext(); ) {
+            idle.offerLast( it.next() );
+        }
+    }
+
+    /**
+     * Checks an idle connection without sending a request.  An idle Thrift
+     * connection has nothing to read, so a read that times out means the
+     * connection is fine, while end of stream or unexpected bytes mean it
+     * cannot be used.
+     */
+    private static boolean isHealthy( final DfsConnection conn )
+    {
+        Socket socket = conn.transport.getSocket();
+        if ( socket == null || socket.isClosed() || !socket.isConnected()
+                || socket.isInputShutdown() ) {
+            return false;
+        }
+        int timeout = 0;
+        try {
+            timeout = socket.getSoTimeout();
+            socket.setSoTimeout( 1 );
+            InputStream in = socket.getInputStream();
+            in.read();
+            // end of stream or a stray byte, either way it is unusable
+            return false;
+        } catch ( SocketTimeoutException ste ) {
+            return true;
+        } catch ( IOException ioe ) {
+            return false;
+        } finally {
+            try {
+                if ( !socket.isClosed() ) {
+                    socket.setSoTimeout( timeout );
+                }
+            } catch ( IOException ignored ) {
+                // the next call on the connection will fail and invalidate it
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import com.facebook.thrift.TException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a call made through {@link DfsAsyncClient}.  Callers
+ * either block in {@link #get} or {@link #getResult}, or register a
+ * {@link DfsCallback} that is run when the reply arrives.
+ * <p>
+ * Cancelling does not take back a request that has already been sent; the
+ * reply is still read, to keep the connection in step, and then dropped.
+ *
+ * @param <T> the result type of the call.
+ */
+public class DfsFuture<T> implements Future<T>
+{
+    // ** Private Data **
+
+    /** Runs callbacks, or <code>null</code> to run them in place. */
+    private final Executor executor;
+
+    /** Callbacks waiting for the outcome; guarded by <code>this</code>. */
+    private List<DfsCallback<? super T>> callbacks =
+        new ArrayList<DfsCallback<? super T>>( 2 );
+
+    /** Set once there is an outcome or the future was cancelled. */
+    private boolean done;
+
+    /** Set if the future was cancelled before completing. */
+    private boolean cancelled;
+
+    /** The result, if the call succeeded. */
+    private T result;
+
+    /** The error, if the call failed. */
+    private Throwable failure;
+
+
+    // ** Constructors **
+
+    /**
+     * @param executor runs the callbacks, or <code>null</code> to run them
+     * on the thread that completes the future.
+     */
+    DfsFuture( final Executor executor )
+    {
+        this.executor = executor;
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * Registers a callback.  If the outcome is already known the callback is
+     * run straight away.  Callbacks must not block: without an executor they
+     * run on the thread that reads replies from the connection.
+     *
+     * @param callback told about the outcome.
+     */
+    public void addCallback( final DfsCallback<? super T> callback )
+    {
+        synchronized ( this ) {
+            if ( !done ) {
+                callbacks.add( callback );
+                return;
+            }
+        }
+        dispatch( callback );
+    }
+
+    /**
+     * Marks the future cancelled if it has no outcome yet.  Callbacks, those
+     * registered already and any added later, are failed with a
+     * {@link CancellationException}, and {@link #get} throws one.
+     *
+     * @param mayInterruptIfRunning ignored; there is nothing to interrupt.
+     *
+     * @return <code>false</code> if the outcome was already known.
+     */
+    public boolean cancel( final boolean mayInterruptIfRunning )
+    {
+        return finish( null, new CancellationException(), true );
+    }
+
+    /** {@inheritDoc} */
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized T get()
+        throws InterruptedException, ExecutionException
+    {
+        while ( !done ) {
+            wait();
+        }
+        return outcome();
+    }
+
+    /** {@inheritDoc} */
+    public synchronized T get( final long timeout, final TimeUnit unit )
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos( timeout );
+        while ( !done ) {
+            long remaining = deadline - System.nanoTime();
+            if ( remaining <= 0L ) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait( this, remaining );
+        }
+        return outcome();
+    }
+
+    /**
+     * Waits for the outcome and returns or throws it the way the blocking
+     * client would.
+     *
+     * @return the result of the call.
+     *
+     * @throws DfsServiceIOException if the server reported an error.
+     * @throws TException if the call failed in Thrift, was cancelled or the
+     * thread was interrupted.
+     */
+    public T getResult()
+        throws DfsServiceIOException, TException
+    {
+        try {
+            return get();
+        } catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            throw new TException( "interrupted waiting for reply" );
+        } catch ( CancellationException ce ) {
+            throw new TException( "call was cancelled" );
+        } catch ( ExecutionException ee ) {
+            Throwable cause = ee.getCause();
+            if ( cause instanceof DfsServiceIOException ) {
+                throw ( DfsServiceIOException )cause;
+            }
+            if ( cause instanceof TException ) {
+                throw ( TException )cause;
+            }
+            if ( cause instanceof RuntimeException ) {
+                throw ( RuntimeException )cause;
+            }
+            throw new TException( cause.toString() );
+        }
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * Completes the future with a result.
+     *
+     * @param value the result of the call.
+     *
+     * @return <code>false</code> if it was already complete or cancelled.
+     */
+    boolean complete( final T value )
+    {
+        return finish( value, null, false );
+    }
+
+    /**
+     * Completes the future with an error.
+     *
+     * @param error why the call failed.
+     *
+     * @return <code>false</code> if it was already complete or cancelled.
+     */
+    boolean fail( final Throwable error )
+    {
+        return finish( null, error, false );
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Records the outcome, wakes waiting threads and runs the callbacks.
+     */
+    private boolean finish( final T value, final Throwable error,
+        final boolean cancel )
+    {
+        List<DfsCallback<? super T>> toRun;
+        synchronized ( this ) {
+            if ( done ) {
+                return false;
+            }
+            done = true;
+            cancelled = cancel;
+            result = value;
+            failure = error;
+            toRun = callbacks;
+            callbacks = null;
+            notifyAll();
+        }
+        for ( DfsCallback<? super T> callback : toRun ) {
+            dispatch( callback );
+        }
+        return true;
+    }
+
+    /**
+     * Runs one callback, on the executor if there is one.
+     */
+    private void dispatch( final DfsCallback<? super T> callback )
+    {
+        if ( executor == null ) {
+            deliver( callback );
+            return;
+        }
+        executor.execute( new Runnable() {
+            public void run()
+            {
+                deliver( callback );
+            }
+        } );
+    }
+
+    /**
+     * Tells a callback about the outcome.  A callback that throws does not
+     * stop the others.
+     */
+    private void deliver( final DfsCallback<? super T> callback )
+    {
+        try {
+            if ( failure == null ) {
+                callback.onSuccess( result );
+            } else {
+                callback.onFailure( failure );
+            }
+        } catch ( RuntimeException re ) {
+            DfsAsyncClient.LOG.warn( "DfsFuture: callback threw", re );
+        }
+    }
+
+    /**
+     * Returns the result or throws the error.  Must be called holding the
+     * lock after the future is done.
+     */
+    private T outcome()
+        throws ExecutionException
+    {
+        if ( cancelled ) {
+            throw new CancellationException();
+        }
+        if ( failure != null ) {
+            throw new ExecutionException( failure );
+        }
+        return result;
+    }
+}
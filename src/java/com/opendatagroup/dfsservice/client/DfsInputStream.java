@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import com.opendatagroup.dfsservice.util.DfsEvents;
+
+import com.facebook.thrift.TException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a DFS file as a {@link InputStream}, so code written against
+ * {@link java.io.FileInputStream} can read from ThriftStore unchanged.  The
+ * chunked loop every client used to write by hand (read a chunk, advance the
+ * offset, repeat) is done here with <code>readBytes</code>, and while the
+ * caller consumes one chunk the next ones are already being fetched in the
+ * background.  The chunk size adapts to the measured throughput, see
+ * {@link AdaptiveChunkSize}.
+ * <p>
+ * Prefetches go over the connections of the {@link DfsSession}, so the pool
+ * needs at least one connection more than the prefetch depth for the
+ * prefetches to run in parallel.  Like other input streams, an instance must
+ * not be used by more than one thread at a time.
+ */
+public class DfsInputStream extends InputStream
+{
+    // ** Public Static Final Data **
+
+    /** Default number of chunks fetched ahead of the reader. */
+    public static final int DEFAULT_PREFETCH = 2;
+
+    // ** Inner Classes **
+
+    /**
+     * A chunk that has been requested from the server.
+     */
+    private static final class Chunk
+    {
+        /** File offset of the first byte of the chunk. */
+        private final long offset;
+
+        /** Number of bytes requested. */
+        private final int size;
+
+        /** The bytes, once they arrive. */
+        private final Future<byte[]> data;
+
+        /**
+         * @param offset file offset of the chunk.
+         * @param size bytes requested.
+         * @param data the pending read.
+         */
+        private Chunk( final long offset, final int size,
+            final Future<byte[]> data )
+        {
+            this.offset = offset;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    // ** Private Data **
+
+    /** Session the file is read through. */
+    private final DfsSession session;
+
+    /** Handle of the open file. */
+    private final DfsHandle handle;
+
+    /** Whether {@link #close} closes {@link #handle}. */
+    private final boolean ownsHandle;
+
+    /** Runs the prefetches. */
+    private final ExecutorService executor;
+
+    /** Number of chunks requested ahead of the one being read. */
+    private final int prefetch;
+
+    /** Chooses the size of each chunk. */
+    private final AdaptiveChunkSize chunkSize;
+
+    /** Requested chunks in file order. */
+    private final LinkedList<Chunk> pending = new LinkedList<Chunk>();
+
+    /** Chunk being consumed. */
+    private byte[] buffer = new byte[0];
+
+    /** Next byte of {@link #buffer} to return. */
+    private int index;
+
+    /** File offset of the next byte returned to the caller. */
+    private long position;
+
+    /** File offset of the next chunk to request. */
+    private long nextOffset;
+
+    /** Set once a chunk comes back short, which only happens at the end. */
+    private boolean eof;
+
+    /** Set once the stream is closed. */
+    private boolean closed;
+
+
+    // ** Constructors **
+
+    /**
+     * Opens <code>path</code> for reading with the default prefetch depth
+     * and chunk sizes.  The handle is closed when the stream is.
+     *
+     * @param session the session to read through.
+     * @param path the file on the DFS.
+     *
+     * @throws IOException if the file cannot be opened.
+     */
+    public DfsInputStream( final DfsSession session, final String path )
+        throws IOException
+    {
+        this( session, path, false );
+    }
+
+    /**
+     * Opens <code>path</code> for reading with the default chunk sizes,
+     * optionally decompressing it on the server.  The handle is closed when
+     * the stream is.  A decompressed file is read without prefetching: the
+     * prefetches may reach the server out of order, and a read before the
+     * last one decompresses again from an earlier point.
+     *
+     * @param session the session to read through.
+     * @param path the file on the DFS.
+     * @param decompress whether to read the uncompressed content of a file
+     * compressed with a codec the server recognises, see
+     * <code>Constants.DECOMPRESS</code>.
+     *
+     * @throws IOException if the file cannot be opened.
+     */
+    public DfsInputStream( final DfsSession session, final String path,
+        final boolean decompress )
+        throws IOException
+    {
+        this( session, open( session, path, decompress ), true,
+            decompress ? 0 : DEFAULT_PREFETCH, new AdaptiveChunkSize(),
+            DfsStreams.EXECUTOR );
+    }
+
+    /**
+     * Reads through a handle that is already open.
+     *
+     * @param session the session the handle was opened in.
+     * @param handle a handle opened for reading.
+     * @param ownsHandle whether closing the stream closes the handle.
+     * @param prefetch the number of chunks to fetch ahead, <code>0</code>
+     * for none.
+     * @param chunkSize chooses the size of the chunks.
+     * @param executor runs the prefetches.
+     */
+    public DfsInputStream( final DfsSession session, final DfsHandle handle,
+        final boolean ownsHandle, final int prefetch,
+        final AdaptiveChunkSize chunkSize, final ExecutorService executor )
+    {
+        this.session = session;
+        this.handle = handle;
+        this.ownsHandle = ownsHandle;
+        this.prefetch = Math.max( 0, prefetch );
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public int read()
+        throws IOException
+    {
+        if ( index >= buffer.length && !fill() ) {
+            return -1;
+        }
+        position++;
+        return buffer[index++] & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    public int read( final byte[] b, final int off, final int len )
+        throws IOException
+    {
+        if ( off < 0 || len < 0 || len > b.length - off ) {
+            throw new IndexOutOfBoundsException();
+        }
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( index >= buffer.length && !fill() ) {
+            return -1;
+        }
+        int n = Math.min( len, buffer.length - index );
+        System.arraycopy( buffer, index, b, off, n );
+        index += n;
+        position += n;
+        return n;
+    }
+
+    /**
+     * Skips forward by moving the read position.  Data that was already
+     * fetched is used if the new position falls inside it.
+     *
+     * @param n the number of bytes to skip.
+     *
+     * @return the number of bytes skipped, which may run past the end of
+     * the file.
+     *
+     * @throws IOException if the stream is closed.
+     */
+    public long skip( final long n )
+        throws IOException
+    {
+        if ( n <= 0 ) {
+            return 0L;
+        }
+        seek( position + n );
+        return n;
+    }
+
+    /** {@inheritDoc} */
+    public int available()
+        throws IOException
+    {
+        checkOpen();
+        return buffer.length - index;
+    }
+
+    /**
+     * Moves the read position to <code>pos</code>.  Prefetched chunks that
+     * do not cover the new position are dropped.
+     *
+     * @param pos the new file offset.
+     *
+     * @throws IOException if the stream is closed or <code>pos</code> is
+     * negative.
+     */
+    public void seek( final long pos )
+        throws IOException
+    {
+        checkOpen();
+        if ( pos < 0 ) {
+            throw new IOException( "negative seek offset " + pos );
+        }
+        long bufferStart = position - index;
+        if ( pos >= bufferStart && pos < bufferStart + buffer.length ) {
+            index = ( int )( pos - bufferStart );
+            position = pos;
+            return;
+        }
+
+        buffer = new byte[0];
+        index = 0;
+        position = pos;
+        // keep the prefetches that are still ahead of the new position
+        while ( !pending.isEmpty() ) {
+            Chunk first = pending.getFirst();
+            if ( pos >= first.offset && pos < first.offset + first.size ) {
+                break;
+            }
+            pending.removeFirst().data.cancel( false );
+        }
+        if ( pending.isEmpty() ) {
+            nextOffset = pos;
+            eof = false;
+        }
+    }
+
+    /**
+     * @return the file offset of the next byte to be read.
+     */
+    public long getPos()
+    {
+        return position;
+    }
+
+    /**
+     * Cancels outstanding prefetches and, if the stream opened the file,
+     * closes the handle.
+     *
+     * @throws IOException if the handle cannot be closed.
+     */
+    public void close()
+        throws IOException
+    {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        while ( !pending.isEmpty() ) {
+            pending.removeFirst().data.cancel( false );
+        }
+        buffer = new byte[0];
+        if ( ownsHandle ) {
+            try {
+                session.close( handle );
+            } catch ( DfsServiceIOException dsioe ) {
+                throw DfsStreams.toIOException( "close failed", dsioe );
+            } catch ( TException te ) {
+                throw DfsStreams.toIOException( "close failed", te );
+            }
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Makes the chunk holding {@link #position} the current buffer, topping
+     * up the prefetches as it goes.
+     *
+     * @return <code>false</code> at the end of the file.
+     */
+    private boolean fill()
+        throws IOException
+    {
+        checkOpen();
+        while ( true ) {
+            request();
+            if ( pending.isEmpty() ) {
+                return false;
+            }
+            Chunk chunk = pending.removeFirst();
+            byte[] data = await( chunk );
+            if ( data.length < chunk.size ) {
+                // the end of the file; anything requested after it is moot
+                eof = true;
+                while ( !pending.isEmpty() ) {
+                    pending.removeFirst().data.cancel( false );
+                }
+            }
+            long skip = position - chunk.offset;
+            if ( skip < data.length ) {
+                buffer = data;
+                index = ( int )skip;
+                request();
+                return true;
+            }
+            if ( eof ) {
+                buffer = new byte[0];
+                index = 0;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Requests chunks until {@link #prefetch} chunks are outstanding beyond
+     * the current one.
+     */
+    private void request()
+    {
+        while ( !eof && pending.size() <= prefetch ) {
+            final long offset = nextOffset;
+            final int size = chunkSize.get();
+            Future<byte[]> data = executor.submit( new Callable<byte[]>() {
+                public byte[] call()
+                    throws Exception
+                {
+                    long start = System.nanoTime();
+                    byte[] bytes = session.readBytes( handle, offset, size );
+                    long elapsed = System.nanoTime() - start;
+                    chunkSize.record( size, bytes.length, elapsed );
+                    if ( DfsEvents.SINK != null ) {
+                        DfsEvents.SINK.prefetch( handle.id, offset, size,
+                            bytes.length, elapsed );
+                    }
+                    return bytes;
+                }
+            } );
+            pending.addLast( new Chunk( offset, size, data ) );
+            nextOffset += size;
+        }
+    }
+
+    /**
+     * Waits for a chunk and unwraps any error from the read.
+     */
+    private static byte[] await( final Chunk chunk )
+        throws IOException
+    {
+        try {
+            return chunk.data.get();
+        } catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "interrupted waiting for data at offset "
+                + chunk.offset );
+        } catch ( ExecutionException ee ) {
+            throw DfsStreams.toIOException( "read failed at offset "
+                + chunk.offset, ee.getCause() );
+        }
+    }
+
+    /**
+     * @throws IOException if the stream is closed.
+     */
+    private void checkOpen()
+        throws IOException
+    {
+        if ( closed ) {
+            throw new IOException( "stream is closed" );
+        }
+    }
+
+    /**
+     * Opens a file for reading, translating errors to IOException.
+     */
+    private static DfsHandle open( final DfsSession session,
+        final String path, final boolean decompress )
+        throws IOException
+    {
+        try {
+            return session.open( path, decompress
+                ? ( short )( Constants.READ | Constants.DECOMPRESS )
+                : Constants.READ );
+        } catch ( DfsServiceIOException dsioe ) {
+            throw DfsStreams.toIOException( "cannot open " + path, dsioe );
+        } catch ( TException te ) {
+            throw DfsStreams.toIOException( "cannot open " + path, te );
+        }
+    }
+}
@@ -0,0 +1,777 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsService;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.FileStatus;
+// end thrift-generated files
+
+import com.opendatagroup.dfsservice.server.DfsServer.DfsHandler;
+import com.opendatagroup.dfsservice.util.LatencyHistogram;
+
+import com.facebook.thrift.TException;
+import com.facebook.thrift.server.TServer;
+import com.facebook.thrift.server.TThreadPoolServer;
+import com.facebook.thrift.transport.TServerSocket;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for a ThriftStore server.  A number of client threads
+ * issue a weighted mix of <code>stat</code>, <code>listFiles</code>,
+ * <code>open</code>, <code>readBytes</code>, <code>write</code> and
+ * <code>close</code> calls for a fixed time, and the latency of every call
+ * after the warm-up is recorded in a per-operation {@link LatencyHistogram}.
+ * The summary (count, errors, throughput, mean, p50, p90, p99, p99.9 and
+ * max) is printed and written as text and CSV.
+ * <p>
+ * With <code>-rate</code> the load is open loop: each thread issues calls on
+ * a fixed schedule whatever the server does, and latency is measured from
+ * the time a call was due rather than when it was sent, so a stalled server
+ * shows up in the percentiles instead of just lowering the request rate.
+ * Without it each thread issues the next call as soon as the last returns.
+ * <p>
+ * With <code>-local</code> the tool starts a server in process, backed by
+ * the local file system under the given directory, so it can be run without
+ * a Hadoop cluster.  Run with no arguments for the list of options.
+ */
+public final class DfsLoad
+{
+    // ** Private Static Final Data **
+
+    /** The operations in the mix. */
+    private static final String[] OPS =
+        { "stat", "list", "open", "read", "write", "close" };
+
+    /** Index of each operation in {@link #OPS}. */
+    private static final int STAT = 0;
+    private static final int LIST = 1;
+    private static final int OPEN = 2;
+    private static final int READ = 3;
+    private static final int WRITE = 4;
+    private static final int CLOSE = 5;
+
+    /** Most handles a thread keeps open from <code>open</code> calls. */
+    private static final int MAX_OPEN = 64;
+
+    /** Size at which a thread starts a new output file. */
+    private static final long MAX_WRITE_FILE = 64L * 1024 * 1024;
+
+    // ** Inner Classes **
+
+    /**
+     * Command line settings.
+     */
+    private static final class Settings
+    {
+        /** Server host. */
+        private String host = "localhost";
+
+        /** Server port. */
+        private int port = DfsClient.DEFAULT_PORT;
+
+        /** Directory for an in-process server, or <code>null</code>. */
+        private String local;
+
+        /** Number of client threads. */
+        private int clients = 8;
+
+        /** Target calls per second over all threads, 0 for closed loop. */
+        private double rate;
+
+        /** Seconds of measured load. */
+        private int duration = 30;
+
+        /** Seconds of load before measuring starts. */
+        private int warmup = 5;
+
+        /** Weights of the operations, indexed like {@link #OPS}. */
+        private int[] mix = { 30, 5, 10, 40, 10, 5 };
+
+        /** Number of files read. */
+        private int files = 100;
+
+        /** Length of each file read. */
+        private long fileSize = 4L * 1024 * 1024;
+
+        /** Bytes per read and write call. */
+        private int chunk = 64 * 1024;
+
+        /** DFS directory holding the files. */
+        private String dir = "dfsload";
+
+        /** Prefix of the report files. */
+        private String out = "dfsload";
+    }
+
+    /**
+     * One client thread and what it measured.
+     */
+    private static final class Worker implements Runnable
+    {
+        /** Settings of the run. */
+        private final Settings settings;
+
+        /** Session shared by all threads. */
+        private final DfsSession session;
+
+        /** Number of the thread. */
+        private final int id;
+
+        /** Cumulative operation weights. */
+        private final int[] cumulative;
+
+        /** Time the measurement starts. */
+        private final long measureFrom;
+
+        /** Time the run ends. */
+        private final long end;
+
+        /** First call due time of this thread. */
+        private final long firstDue;
+
+        /** Nanoseconds between calls of this thread, 0 for closed loop. */
+        private final long interval;
+
+        /** Counted down when the thread is done. */
+        private final CountDownLatch done;
+
+        /** Latencies per operation. */
+        private final LatencyHistogram[] latency =
+            new LatencyHistogram[OPS.length];
+
+        /** Failed calls per operation. */
+        private final long[] errors = new long[OPS.length];
+
+        /** First failure, for the report. */
+        private Exception firstError;
+
+        /** Picks operations, files and offsets. */
+        private final Random random;
+
+        /** Data sent by <code>write</code>. */
+        private final byte[] buf;
+
+        /** Handles opened by <code>open</code> calls, oldest first. */
+        private final LinkedList<DfsHandle> opened =
+            new LinkedList<DfsHandle>();
+
+        /** Handle read by <code>read</code> calls. */
+        private DfsHandle readHandle;
+
+        /** Handle written by <code>write</code> calls. */
+        private DfsHandle writeHandle;
+
+        /** Path of {@link #writeHandle}. */
+        private String writePath;
+
+        /** Offset of the next write. */
+        private long writeOffset;
+
+        /** Numbers the output files of this thread. */
+        private int writeFiles;
+
+        /**
+         * @param settings the run settings.
+         * @param session the shared session.
+         * @param id the thread number.
+         * @param start time the run starts.
+         * @param done counted down at the end.
+         */
+        private Worker( final Settings settings, final DfsSession session,
+            final int id, final long start, final CountDownLatch done )
+        {
+            this.settings = settings;
+            this.session = session;
+            this.id = id;
+            this.done = done;
+            this.measureFrom = start + settings.warmup * 1000000000L;
+            this.end = measureFrom + settings.duration * 1000000000L;
+            this.random = new Random( 31L * id + start );
+            this.buf = new byte[settings.chunk];
+            random.nextBytes( buf );
+            cumulative = new int[OPS.length];
+            int total = 0;
+            for ( int i = 0; i < OPS.length; i++ ) {
+                total += settings.mix[i];
+                cumulative[i] = total;
+                latency[i] = new LatencyHistogram();
+            }
+            if ( settings.rate > 0.0 ) {
+                interval = ( long )( settings.clients * 1.0e9 / settings.rate );
+                // spread the threads over one interval
+                firstDue = start + interval * id / settings.clients;
+            } else {
+                interval = 0L;
+                firstDue = start;
+            }
+        }
+
+        /**
+         * Issues calls until the end of the run, then closes its handles.
+         */
+        public void run()
+        {
+            try {
+                readHandle = session.open( dataFile( id ), Constants.READ );
+                openWriteFile();
+                long due = firstDue;
+                while ( true ) {
+                    long now = System.nanoTime();
+                    if ( interval > 0L ) {
+                        if ( due > now ) {
+                            LockSupport.parkNanos( due - now );
+                        }
+                    } else {
+                        due = now;
+                    }
+                    if ( due >= end ) {
+                        break;
+                    }
+                    int op = pick();
+                    boolean ok = call( op );
+                    long finished = System.nanoTime();
+                    if ( due >= measureFrom ) {
+                        latency[op].record( finished - due );
+                        if ( !ok ) {
+                            errors[op]++;
+                        }
+                    }
+                    due += interval;
+                }
+            } catch ( Exception e ) {
+                if ( firstError == null ) {
+                    firstError = e;
+                }
+            } finally {
+                cleanUp();
+                done.countDown();
+            }
+        }
+
+        /**
+         * @return an operation picked by weight.
+         */
+        private int pick()
+        {
+            int r = random.nextInt( cumulative[OPS.length - 1] );
+            int op = 0;
+            while ( r >= cumulative[op] ) {
+                op++;
+            }
+            return op;
+        }
+
+        /**
+         * Makes one call.
+         *
+         * @return <code>false</code> if it failed.
+         */
+        private boolean call( final int op )
+        {
+            try {
+                switch ( op ) {
+                case STAT:
+                    FileStatus st = session.stat( randomFile() );
+                    return st != null;
+                case LIST:
+                    session.listFiles( settings.dir );
+                    return true;
+                case OPEN:
+                    if ( opened.size() >= MAX_OPEN ) {
+                        session.close( opened.removeFirst() );
+                    }
+                    opened.addLast( session.open( randomFile(),
+                        Constants.READ ) );
+                    return true;
+                case READ:
+                    long blocks = Math.max( 1L,
+                        settings.fileSize / settings.chunk );
+                    long offset = ( long )( random.nextDouble() * blocks )
+                        * settings.chunk;
+                    session.readBytes( readHandle, offset, settings.chunk );
+                    return true;
+                case WRITE:
+                    if ( writeOffset >= MAX_WRITE_FILE ) {
+                        closeWriteFile();
+                        openWriteFile();
+                    }
+                    boolean ok = session.write( writeHandle, buf, writeOffset,
+                        buf.length );
+                    writeOffset += buf.length;
+                    return ok;
+                default:
+                    if ( opened.isEmpty() ) {
+                        opened.add( session.open( randomFile(),
+                            Constants.READ ) );
+                    }
+                    return session.close( opened.removeFirst() );
+                }
+            } catch ( DfsServiceIOException dsioe ) {
+                noteError( dsioe );
+            } catch ( TException te ) {
+                noteError( te );
+            }
+            return false;
+        }
+
+        /**
+         * Keeps the first error for the report.
+         */
+        private void noteError( final Exception e )
+        {
+            if ( firstError == null ) {
+                firstError = e;
+            }
+        }
+
+        /**
+         * @return the path of a random data file.
+         */
+        private String randomFile()
+        {
+            return dataFile( random.nextInt( settings.files ) );
+        }
+
+        /**
+         * @return the path of data file <code>i</code>, wrapping around.
+         */
+        private String dataFile( final int i )
+        {
+            return settings.dir + "/data-" + ( i % settings.files );
+        }
+
+        /**
+         * Starts a new output file.
+         */
+        private void openWriteFile()
+            throws DfsServiceIOException, TException
+        {
+            writePath = settings.dir + "/out-" + id + "-" + writeFiles++;
+            writeHandle = session.open( writePath, Constants.WRITE );
+            writeOffset = 0L;
+        }
+
+        /**
+         * Closes and removes the current output file.
+         */
+        private void closeWriteFile()
+            throws DfsServiceIOException, TException
+        {
+            session.close( writeHandle );
+            session.remove( writePath, false );
+            writeHandle = null;
+        }
+
+        /**
+         * Closes every handle of the thread, ignoring errors.
+         */
+        private void cleanUp()
+        {
+            try {
+                if ( writeHandle != null ) {
+                    closeWriteFile();
+                }
+                if ( readHandle != null ) {
+                    session.close( readHandle );
+                }
+                while ( !opened.isEmpty() ) {
+                    session.close( opened.removeFirst() );
+                }
+            } catch ( Exception e ) {
+                noteError( e );
+            }
+        }
+    }
+
+    /**
+     * Not instantiated.
+     */
+    private DfsLoad()
+    {
+    }
+
+
+    // ** Public Static Methods **
+
+    /**
+     * Runs the load described by the command line options.
+     *
+     * @param args the options, see {@link #usage}.
+     */
+    public static void main( final String[] args )
+    {
+        Settings settings;
+        try {
+            settings = parse( args );
+        } catch ( IllegalArgumentException iae ) {
+            System.out.println( iae.getMessage() );
+            usage();
+            System.exit( 1 );
+            return;
+        }
+
+        TServer server = null;
+        DfsSession session = null;
+        try {
+            if ( settings.local != null ) {
+                server = startLocalServer( settings );
+            }
+            DfsConnectionPool.Options options = new DfsConnectionPool.Options();
+            options.host = settings.host;
+            options.port = settings.port;
+            options.maxConnections = settings.clients;
+            session = DfsSession.open( options, null, "dfsload", "dfsload" );
+
+            System.out.println( "preparing " + settings.files + " files of "
+                + settings.fileSize + " bytes in " + settings.dir );
+            prepare( settings, session );
+
+            System.out.println( "running " + settings.clients + " clients for "
+                + settings.warmup + "s warm-up and " + settings.duration
+                + "s measured, " + ( settings.rate > 0.0 ? "target rate "
+                + settings.rate + "/s" : "closed loop" ) );
+            List<Worker> workers = run( settings, session );
+            report( settings, workers );
+        } catch ( Exception e ) {
+            System.out.println( "dfsload failed: " + e );
+            e.printStackTrace();
+            System.exit( 1 );
+        } finally {
+            if ( session != null ) {
+                session.close();
+            }
+            if ( server != null ) {
+                server.stop();
+            }
+        }
+        System.exit( 0 );
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * Prints the options.
+     */
+    private static void usage()
+    {
+        System.out.println( "usage: DfsLoad [options]\n"
+            + "  -host <host>       server host (localhost)\n"
+            + "  -port <port>       server port (" + DfsClient.DEFAULT_PORT
+            + ")\n"
+            + "  -local <dir>       start a server in process on -port, "
+            + "backed by the\n"
+            + "                     local file system under <dir>\n"
+            + "  -clients <n>       client threads (8)\n"
+            + "  -rate <n>          target calls per second over all "
+            + "clients; omit for\n"
+            + "                     closed loop\n"
+            + "  -duration <s>      measured seconds (30)\n"
+            + "  -warmup <s>        seconds before measuring (5)\n"
+            + "  -mix <op=w,...>    weights of stat, list, open, read, "
+            + "write and close\n"
+            + "                     (stat=30,list=5,open=10,read=40,"
+            + "write=10,close=5)\n"
+            + "  -files <n>         files to read (100)\n"
+            + "  -filesize <bytes>  length of each file (4194304)\n"
+            + "  -chunk <bytes>     bytes per read and write (65536)\n"
+            + "  -dir <path>        DFS directory for the files (dfsload)\n"
+            + "  -out <prefix>      report files <prefix>.txt and "
+            + "<prefix>.csv (dfsload)" );
+    }
+
+    /**
+     * Reads the command line.
+     *
+     * @throws IllegalArgumentException naming the bad option.
+     */
+    private static Settings parse( final String[] args )
+    {
+        Settings s = new Settings();
+        for ( int i = 0; i < args.length; i += 2 ) {
+            String name = args[i];
+            if ( i + 1 >= args.length ) {
+                throw new IllegalArgumentException( "no value for " + name );
+            }
+            String value = args[i + 1];
+            try {
+                if ( "-host".equals( name ) ) {
+                    s.host = value;
+                } else if ( "-port".equals( name ) ) {
+                    s.port = Integer.parseInt( value );
+                } else if ( "-local".equals( name ) ) {
+                    s.local = value;
+                } else if ( "-clients".equals( name ) ) {
+                    s.clients = Integer.parseInt( value );
+                } else if ( "-rate".equals( name ) ) {
+                    s.rate = Double.parseDouble( value );
+                } else if ( "-duration".equals( name ) ) {
+                    s.duration = Integer.parseInt( value );
+                } else if ( "-warmup".equals( name ) ) {
+                    s.warmup = Integer.parseInt( value );
+                } else if ( "-mix".equals( name ) ) {
+                    s.mix = parseMix( value );
+                } else if ( "-files".equals( name ) ) {
+                    s.files = Integer.parseInt( value );
+                } else if ( "-filesize".equals( name ) ) {
+                    s.fileSize = Long.parseLong( value );
+                } else if ( "-chunk".equals( name ) ) {
+                    s.chunk = Integer.parseInt( value );
+                } else if ( "-dir".equals( name ) ) {
+                    s.dir = value;
+                } else if ( "-out".equals( name ) ) {
+                    s.out = value;
+                } else {
+                    throw new IllegalArgumentException( "unknown option "
+                        + name );
+                }
+            } catch ( NumberFormatException nfe ) {
+                throw new IllegalArgumentException( "bad value for " + name
+                    + ": " + value );
+            }
+        }
+        if ( s.clients < 1 || s.files < 1 || s.chunk < 1 || s.fileSize < 1
+                || s.duration < 1 || s.warmup < 0 ) {
+            throw new IllegalArgumentException( "counts and sizes must be "
+                + "positive" );
+        }
+        if ( s.local != null ) {
+            s.host = "localhost";
+            s.dir = new File( s.local, s.dir ).getAbsolutePath();
+        }
+        return s;
+    }
+
+    /**
+     * Parses <code>op=weight</code> pairs.  Operations not named get weight
+     * 0.
+     */
+    private static int[] parseMix( final String value )
+    {
+        int[] mix = new int[OPS.length];
+        int total = 0;
+        for ( String pair : value.split( "," ) ) {
+            String[] kv = pair.trim().split( "=" );
+            int op = -1;
+            for ( int i = 0; i < OPS.length; i++ ) {
+                if ( OPS[i].equals( kv[0].trim() ) ) {
+                    op = i;
+                }
+            }
+            if ( op < 0 || kv.length != 2 ) {
+                throw new IllegalArgumentException( "bad mix entry " + pair );
+            }
+            mix[op] = Integer.parseInt( kv[1].trim() );
+            if ( mix[op] < 0 ) {
+                throw new IllegalArgumentException( "negative weight in "
+                    + pair );
+            }
+            total += mix[op];
+        }
+        if ( total == 0 ) {
+            throw new IllegalArgumentException( "mix has no weight" );
+        }
+        return mix;
+    }
+
+    /**
+     * Starts a Thrift server in process on the local file system.
+     */
+    private static TServer startLocalServer( final Settings settings )
+        throws Exception
+    {
+        File root = new File( settings.local );
+        if ( !root.isDirectory() && !root.mkdirs() ) {
+            throw new IOException( "cannot create " + root );
+        }
+        Configuration conf = new Configuration();
+        conf.set( "fs.default.name", "file:///" );
+        DfsHandler handler = new DfsHandler( conf );
+        final TServer server = new TThreadPoolServer(
+            new DfsService.Processor( handler ),
+            new TServerSocket( settings.port ) );
+        Thread t = new Thread( new Runnable() {
+            public void run()
+            {
+                server.serve();
+            }
+        }, "dfsload-server" );
+        t.setDaemon( true );
+        t.start();
+        System.out.println( "started local server on port " + settings.port
+            + " over " + root.getAbsolutePath() );
+        return server;
+    }
+
+    /**
+     * Creates the data files that are missing or have the wrong length.
+     */
+    private static void prepare( final Settings settings,
+        final DfsSession session )
+        throws DfsServiceIOException, TException
+    {
+        session.mkdir( settings.dir );
+        byte[] buf = new byte[Math.min( settings.chunk, 1024 * 1024 )];
+        new Random( 42L ).nextBytes( buf );
+        for ( int i = 0; i < settings.files; i++ ) {
+            String path = settings.dir + "/data-" + i;
+            try {
+                if ( session.stat( path ).length == settings.fileSize ) {
+                    continue;
+                }
+                session.remove( path, false );
+            } catch ( DfsServiceIOException missing ) {
+                // created below
+            }
+            DfsHandle h = session.open( path, Constants.WRITE );
+            long offset = 0L;
+            while ( offset < settings.fileSize ) {
+                int n = ( int )Math.min( buf.length,
+                    settings.fileSize - offset );
+                session.write( h, buf, offset, n );
+                offset += n;
+            }
+            session.close( h );
+        }
+    }
+
+    /**
+     * Runs the worker threads to completion.
+     */
+    private static List<Worker> run( final Settings settings,
+        final DfsSession session )
+        throws InterruptedException
+    {
+        CountDownLatch done = new CountDownLatch( settings.clients );
+        long start = System.nanoTime() + 100000000L;
+        List<Worker> workers = new ArrayList<Worker>( settings.clients );
+        for ( int i = 0; i < settings.clients; i++ ) {
+            Worker w = new Worker( settings, session, i, start, done );
+            workers.add( w );
+            Thread t = new Thread( w, "dfsload-" + i );
+            t.setDaemon( true );
+            t.start();
+        }
+        done.await();
+        return workers;
+    }
+
+    /**
+     * Merges the histograms of all threads and prints and writes the
+     * summary.
+     */
+    private static void report( final Settings settings,
+        final List<Worker> workers )
+        throws IOException
+    {
+        LatencyHistogram[] merged = new LatencyHistogram[OPS.length];
+        long[] errors = new long[OPS.length];
+        LatencyHistogram all = new LatencyHistogram();
+        for ( int op = 0; op < OPS.length; op++ ) {
+            merged[op] = new LatencyHistogram();
+            for ( Worker w : workers ) {
+                merged[op].add( w.latency[op] );
+                errors[op] += w.errors[op];
+            }
+            all.add( merged[op] );
+        }
+        for ( Worker w : workers ) {
+            if ( w.firstError != null ) {
+                System.out.println( "first error in client " + w.id + ": "
+                    + w.firstError );
+                break;
+            }
+        }
+
+        String header = String.format( Locale.US,
+            "%-6s %10s %8s %10s %10s %10s %10s %10s %10s %10s",
+            "op", "count", "errors", "ops/s", "mean(us)", "p50(us)",
+            "p90(us)", "p99(us)", "p99.9(us)", "max(us)" );
+        PrintWriter text = new PrintWriter( new FileWriter( settings.out
+            + ".txt" ) );
+        PrintWriter csv = new PrintWriter( new FileWriter( settings.out
+            + ".csv" ) );
+        try {
+            System.out.println( header );
+            text.println( header );
+            csv.println( "op,count,errors,ops_per_sec,mean_us,p50_us,p90_us,"
+                + "p99_us,p999_us,max_us" );
+            for ( int op = 0; op <= OPS.length; op++ ) {
+                LatencyHistogram h = op < OPS.length ? merged[op] : all;
+                String name = op < OPS.length ? OPS[op] : "all";
+                long errorCount = 0L;
+                if ( op < OPS.length ) {
+                    errorCount = errors[op];
+                } else {
+                    for ( long e : errors ) {
+                        errorCount += e;
+                    }
+                }
+                if ( h.getCount() == 0L ) {
+                    continue;
+                }
+                double rate = h.getCount() / ( double )settings.duration;
+                String line = String.format( Locale.US,
+                    "%-6s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f"
+                    + " %10.1f", name, h.getCount(), errorCount, rate,
+                    h.getMean() / 1000.0, micros( h, 50.0 ),
+                    micros( h, 90.0 ), micros( h, 99.0 ), micros( h, 99.9 ),
+                    h.getMax() / 1000.0 );
+                System.out.println( line );
+                text.println( line );
+                csv.println( String.format( Locale.US,
+                    "%s,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f", name,
+                    h.getCount(), errorCount, rate, h.getMean() / 1000.0,
+                    micros( h, 50.0 ), micros( h, 90.0 ), micros( h, 99.0 ),
+                    micros( h, 99.9 ), h.getMax() / 1000.0 ) );
+            }
+        } finally {
+            text.close();
+            csv.close();
+        }
+        System.out.println( "wrote " + settings.out + ".txt and "
+            + settings.out + ".csv" );
+    }
+
+    /**
+     * @return a percentile of a histogram in microseconds.
+     */
+    private static double micros( final LatencyHistogram h,
+        final double percentile )
+    {
+        return h.getValueAtPercentile( percentile ) / 1000.0;
+    }
+}
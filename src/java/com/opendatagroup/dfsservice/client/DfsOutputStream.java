@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import com.facebook.thrift.TException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Writes a new DFS file as an {@link OutputStream}, so code written against
+ * {@link java.io.FileOutputStream} can write to ThriftStore unchanged.
+ * Bytes are collected into chunks and handed to a background writer that
+ * sends them with <code>write</code> in order while the caller carries on
+ * producing the next chunk (write-behind).  At most a fixed number of
+ * chunks are waiting to be sent at any time; once that many are queued the
+ * caller blocks, which bounds the memory a fast producer can use.  The chunk
+ * size adapts to the measured throughput, see {@link AdaptiveChunkSize}.
+ * <p>
+ * Because sending happens in the background, a failed <code>write</code> is
+ * reported by the next call to {@link #write}, {@link #flush} or
+ * {@link #close}.  {@link #flush} and {@link #close} wait until everything
+ * written so far has been sent.  An instance must not be used by more than
+ * one thread at a time.
+ */
+public class DfsOutputStream extends OutputStream
+{
+    // ** Public Static Final Data **
+
+    /** Default number of chunks that may wait to be sent. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    // ** Private Data **
+
+    /** Session the file is written through. */
+    private final DfsSession session;
+
+    /** Handle of the file being written. */
+    private final DfsHandle handle;
+
+    /** Whether {@link #close} closes {@link #handle}. */
+    private final boolean ownsHandle;
+
+    /** Chooses the size of each chunk. */
+    private final AdaptiveChunkSize chunkSize;
+
+    /** Most chunks queued or being sent. */
+    private final int maxInFlight;
+
+    /**
+     * Chunks waiting to be sent, with {@link #head} the index of the oldest
+     * and {@link #queued} the number waiting.  Guarded by <code>this</code>,
+     * which is also used to signal the writer and waiting callers.
+     */
+    private final byte[][] queue;
+
+    /** Lengths of the chunks in {@link #queue}. */
+    private final int[] lengths;
+
+    /** Index of the oldest queued chunk. */
+    private int head;
+
+    /** Number of queued chunks, including one being sent. */
+    private int queued;
+
+    /** First error from the writer; fails every later call. */
+    private IOException failure;
+
+    /** Set once the stream is closed. */
+    private boolean closed;
+
+    /** Chunk being filled by the caller. */
+    private byte[] buffer;
+
+    /** Bytes in {@link #buffer}. */
+    private int count;
+
+    /** File offset of the next chunk sent, used only by the writer. */
+    private long offset;
+
+
+    // ** Constructors **
+
+    /**
+     * Creates <code>path</code>, which must not exist, for writing with the
+     * default buffering.  The handle is closed when the stream is.
+     *
+     * @param session the session to write through.
+     * @param path the new file on the DFS.
+     *
+     * @throws IOException if the file cannot be created.
+     */
+    public DfsOutputStream( final DfsSession session, final String path )
+        throws IOException
+    {
+        this( session, open( session, path ), true, DEFAULT_MAX_IN_FLIGHT,
+            new AdaptiveChunkSize(), DfsStreams.EXECUTOR );
+    }
+
+    /**
+     * Writes through a handle that is already open.
+     *
+     * @param session the session the handle was opened in.
+     * @param handle a handle opened for writing.
+     * @param ownsHandle whether closing the stream closes the handle.
+     * @param maxInFlight the most chunks that may wait to be sent.
+     * @param chunkSize chooses the size of the chunks.
+     * @param executor runs the background writer.
+     */
+    public DfsOutputStream( final DfsSession session, final DfsHandle handle,
+        final boolean ownsHandle, final int maxInFlight,
+        final AdaptiveChunkSize chunkSize, final ExecutorService executor )
+    {
+        this.session = session;
+        this.handle = handle;
+        this.ownsHandle = ownsHandle;
+        this.chunkSize = chunkSize;
+        this.maxInFlight = Math.max( 1, maxInFlight );
+        this.queue = new byte[this.maxInFlight][];
+        this.lengths = new int[this.maxInFlight];
+        this.buffer = new byte[chunkSize.get()];
+        executor.execute( new Runnable() {
+            public void run()
+            {
+                drain();
+            }
+        } );
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public void write( final int b )
+        throws IOException
+    {
+        if ( count == buffer.length ) {
+            enqueue();
+        }
+        buffer[count++] = ( byte )b;
+    }
+
+    /** {@inheritDoc} */
+    public void write( final byte[] b, final int off, final int len )
+        throws IOException
+    {
+        if ( off < 0 || len < 0 || len > b.length - off ) {
+            throw new IndexOutOfBoundsException();
+        }
+        int done = 0;
+        while ( done < len ) {
+            if ( count == buffer.length ) {
+                enqueue();
+            }
+            int n = Math.min( len - done, buffer.length - count );
+            System.arraycopy( b, off + done, buffer, count, n );
+            count += n;
+            done += n;
+        }
+    }
+
+    /**
+     * Sends any buffered bytes and waits until everything written so far has
+     * reached the server.
+     *
+     * @throws IOException if a write failed.
+     */
+    public void flush()
+        throws IOException
+    {
+        if ( count > 0 ) {
+            enqueue();
+        }
+        synchronized ( this ) {
+            while ( queued > 0 && failure == null ) {
+                await();
+            }
+            checkFailure();
+        }
+    }
+
+    /**
+     * Flushes, stops the background writer and, if the stream created the
+     * file, closes the handle so the file becomes visible.
+     *
+     * @throws IOException if a write or the close failed.
+     */
+    public void close()
+        throws IOException
+    {
+        synchronized ( this ) {
+            if ( closed ) {
+                return;
+            }
+        }
+        try {
+            flush();
+        } finally {
+            synchronized ( this ) {
+                closed = true;
+                notifyAll();
+            }
+            if ( ownsHandle ) {
+                try {
+                    session.close( handle );
+                } catch ( DfsServiceIOException dsioe ) {
+                    throw DfsStreams.toIOException( "close failed", dsioe );
+                } catch ( TException te ) {
+                    throw DfsStreams.toIOException( "close failed", te );
+                }
+            }
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Hands the current buffer to the writer, waiting for room in the queue,
+     * and starts a new buffer at the current chunk size.
+     */
+    private void enqueue()
+        throws IOException
+    {
+        synchronized ( this ) {
+            if ( closed ) {
+                throw new IOException( "stream is closed" );
+            }
+            while ( queued == maxInFlight && failure == null ) {
+                await();
+            }
+            checkFailure();
+            int tail = ( head + queued ) % maxInFlight;
+            queue[tail] = buffer;
+            lengths[tail] = count;
+            queued++;
+            notifyAll();
+        }
+        buffer = new byte[chunkSize.get()];
+        count = 0;
+    }
+
+    /**
+     * Body of the background writer: sends queued chunks in order until the
+     * stream is closed or a write fails.
+     */
+    private void drain()
+    {
+        while ( true ) {
+            byte[] chunk;
+            int len;
+            synchronized ( this ) {
+                try {
+                    while ( queued == 0 && !closed ) {
+                        await();
+                    }
+                } catch ( InterruptedIOException iioe ) {
+                    failure = iioe;
+                    notifyAll();
+                    return;
+                }
+                if ( queued == 0 ) {
+                    return;
+                }
+                chunk = queue[head];
+                len = lengths[head];
+            }
+
+            IOException error = null;
+            try {
+                long start = System.nanoTime();
+                if ( !session.write( handle, chunk, offset, len ) ) {
+                    error = new IOException( "server refused write at offset "
+                        + offset );
+                }
+                chunkSize.record( chunk.length, len,
+                    System.nanoTime() - start );
+                offset += len;
+            } catch ( DfsServiceIOException dsioe ) {
+                error = DfsStreams.toIOException( "write failed at offset "
+                    + offset, dsioe );
+            } catch ( TException te ) {
+                error = DfsStreams.toIOException( "write failed at offset "
+                    + offset, te );
+            } catch ( RuntimeException re ) {
+                error = DfsStreams.toIOException( "write failed at offset "
+                    + offset, re );
+            }
+
+            synchronized ( this ) {
+                if ( error != null ) {
+                    failure = error;
+                    notifyAll();
+                    return;
+                }
+                queue[head] = null;
+                head = ( head + 1 ) % maxInFlight;
+                queued--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @throws IOException the writer's failure, if there was one.  Must be
+     * called holding the lock.
+     */
+    private void checkFailure()
+        throws IOException
+    {
+        if ( failure != null ) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits on this object.  Must be called holding the lock.
+     *
+     * @throws InterruptedIOException if the thread is interrupted.
+     */
+    private void await()
+        throws InterruptedIOException
+    {
+        try {
+            wait();
+        } catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted writing handle.id="
+                + handle.id );
+        }
+    }
+
+    /**
+     * Creates a file for writing, translating errors to IOException.
+     */
+    private static DfsHandle open( final DfsSession session,
+        final String path )
+        throws IOException
+    {
+        try {
+            return session.open( path, Constants.WRITE );
+        } catch ( DfsServiceIOException dsioe ) {
+            throw DfsStreams.toIOException( "cannot create " + path, dsioe );
+        } catch ( TException te ) {
+            throw DfsStreams.toIOException( "cannot create " + path, te );
+        }
+    }
+}
@@ -0,0 +1,898 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.BlockLocation;
+import com.opendatagroup.dfsservice.ClientHandle;
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.ContentSummary;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsService;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.FileStatus;
+import com.opendatagroup.dfsservice.FollowResult;
+import com.opendatagroup.dfsservice.GrepResult;
+import com.opendatagroup.dfsservice.ModifiedListing;
+import com.opendatagroup.dfsservice.SharedRing;
+import com.opendatagroup.dfsservice.SplitResult;
+import com.opendatagroup.dfsservice.WatchResult;
+// end thrift-generated files
+
+import com.facebook.thrift.TApplicationException;
+import com.facebook.thrift.TException;
+
+import java.util.List;
+
+/**
+ * Thread-safe client for one ThriftStore server, backed by a
+ * {@link DfsConnectionPool}.  The session calls <code>init</code> and
+ * <code>login</code> once when it is opened and <code>logout</code> and
+ * <code>closeClient</code> when it is closed, so callers never handle the
+ * {@link ClientHandle} themselves.  It does not call <code>closeDfs</code>,
+ * which would shut the DFS down for every other client of the server.
+ * <p>
+ * Every call borrows a connection for its duration.  File handles belong to
+ * the session's client handle on the server, not to a connection, so a file
+ * opened on one connection can be read, written and closed on any other.
+ * When a call fails at the transport level the connection is discarded;
+ * calls that do not change anything on the DFS (<code>stat</code>,
+ * <code>listFiles</code> and <code>read</code>) are then retried once on a
+ * fresh connection.
+ * <p>
+ * For example:
+ * <pre>
+ *     DfsConnectionPool.Options options = new DfsConnectionPool.Options();
+ *     options.host = "192.168.15.1";
+ *     DfsSession session = DfsSession.open( options, null, "user", "pw" );
+ *     try {
+ *         FileStatus st = session.stat( "input/data.txt" );
+ *     } finally {
+ *         session.close();
+ *     }
+ * </pre>
+ */
+public class DfsSession
+{
+    // ** Inner Classes **
+
+    /**
+     * A single call made on a borrowed connection.
+     *
+     * @param <T> the result type of the call.
+     */
+    protected abstract static class Call<T>
+    {
+        /**
+         * Makes the call.
+         *
+         * @param client the generated client of the borrowed connection.
+         * @param chandle the client handle of the session.
+         *
+         * @return the result of the call.
+         *
+         * @throws DfsServiceIOException if the server reports an error.
+         * @throws TException if the call fails in Thrift.
+         */
+        protected abstract T call( DfsService.Client client,
+            ClientHandle chandle )
+            throws DfsServiceIOException, TException;
+    }
+
+    // ** Private Data **
+
+    /** Connections to the server. */
+    private final DfsConnectionPool pool;
+
+    /** Client handle returned by <code>init</code>. */
+    private final ClientHandle chandle;
+
+    /** Trace id sent ahead of each call made by a thread, if set. */
+    private final ThreadLocal<String> traceId = new ThreadLocal<String>();
+
+    /** Timeout sent ahead of each call made by a thread, if set. */
+    private final ThreadLocal<Long> callTimeout = new ThreadLocal<Long>();
+
+
+    // ** Constructors **
+
+    /**
+     * Wraps an existing pool and client handle.  Use {@link #open} to create
+     * a session from scratch.
+     *
+     * @param pool the connections to use.
+     * @param chandle a client handle that is already logged in.
+     */
+    protected DfsSession( final DfsConnectionPool pool,
+        final ClientHandle chandle )
+    {
+        this.pool = pool;
+        this.chandle = chandle;
+    }
+
+
+    // ** Public Static Methods **
+
+    /**
+     * Creates a pool with the passed in options and opens a session on it.
+     *
+     * @param options the connection pool settings.
+     * @param uri passed to <code>init</code>; may be <code>null</code> for
+     * the Hadoop server.
+     * @param user passed to <code>login</code>.
+     * @param password passed to <code>login</code>.
+     *
+     * @return a logged-in session.
+     *
+     * @throws DfsServiceIOException if <code>init</code> or
+     * <code>login</code> is refused by the server.
+     * @throws TException if the server cannot be reached.
+     */
+    public static DfsSession open( final DfsConnectionPool.Options options,
+        final String uri, final String user, final String password )
+        throws DfsServiceIOException, TException
+    {
+        DfsConnectionPool pool = new DfsConnectionPool( options );
+        try {
+            return open( pool, uri, user, password );
+        } catch ( DfsServiceIOException dsioe ) {
+            pool.close();
+            throw dsioe;
+        } catch ( TException te ) {
+            pool.close();
+            throw te;
+        }
+    }
+
+    /**
+     * Opens a session on an existing pool.  Closing the session closes the
+     * pool.
+     *
+     * @param pool the connections to use.
+     * @param uri passed to <code>init</code>; may be <code>null</code> for
+     * the Hadoop server.
+     * @param user passed to <code>login</code>.
+     * @param password passed to <code>login</code>.
+     *
+     * @return a logged-in session.
+     *
+     * @throws DfsServiceIOException if <code>init</code> or
+     * <code>login</code> is refused by the server.
+     * @throws TException if the server cannot be reached.
+     */
+    public static DfsSession open( final DfsConnectionPool pool,
+        final String uri, final String user, final String password )
+        throws DfsServiceIOException, TException
+    {
+        DfsConnection conn = pool.borrow();
+        try {
+            DfsService.Client client = conn.getClient();
+            ClientHandle chandle = client.init( uri );
+            if ( chandle == null || chandle.id < 0 ) {
+                throw new DfsServiceIOException( "init failed for uri=" + uri
+                    + ( chandle == null ? "" : ", id=" + chandle.id ) );
+            }
+            if ( !client.login( chandle, user, password ) ) {
+                client.closeClient( chandle );
+                throw new DfsServiceIOException( "login failed for user="
+                    + user );
+            }
+            pool.release( conn );
+            return new DfsSession( pool, chandle );
+        } catch ( DfsServiceIOException dsioe ) {
+            pool.release( conn );
+            throw dsioe;
+        } catch ( TException te ) {
+            release( pool, conn, te );
+            throw te;
+        } catch ( RuntimeException re ) {
+            pool.invalidate( conn );
+            throw re;
+        }
+    }
+
+
+    /**
+     * Tells whether the server refused a call because it was overloaded.
+     * Such a call never reached the DFS, so it can be retried later or on
+     * another server whatever it does.
+     *
+     * @param e an error returned by a call.
+     *
+     * @return <code>true</code> if <code>e</code> reports overload.
+     */
+    public static boolean isOverloaded( final DfsServiceIOException e )
+    {
+        return e.message != null
+            && e.message.startsWith( Constants.OVERLOADED );
+    }
+
+    /**
+     * Tells whether the server refused a call because this client or its
+     * user went over a rate limit.  Such a call never reached the DFS; it
+     * should be retried later on the same server, as another server would
+     * only let the client past its limit.
+     *
+     * @param e an error returned by a call.
+     *
+     * @return <code>true</code> if <code>e</code> reports a rate limit.
+     */
+    public static boolean isThrottled( final DfsServiceIOException e )
+    {
+        return e.message != null
+            && e.message.startsWith( Constants.THROTTLED );
+    }
+
+    /**
+     * Tells whether a call ran out of time on the server.  Such a call may
+     * or may not have taken effect.
+     *
+     * @param e an error returned by a call.
+     *
+     * @return <code>true</code> if <code>e</code> reports a timeout.
+     */
+    public static boolean isTimedOut( final DfsServiceIOException e )
+    {
+        return e.message != null
+            && e.message.startsWith( Constants.TIMED_OUT );
+    }
+
+    /**
+     * Tells whether the server failed a call at once because its DFS is
+     * not answering.  Such a call never reached the DFS, so it can be
+     * retried later whatever it does.
+     *
+     * @param e an error returned by a call.
+     *
+     * @return <code>true</code> if <code>e</code> reports the DFS down.
+     */
+    public static boolean isUnavailable( final DfsServiceIOException e )
+    {
+        return e.message != null
+            && e.message.startsWith( Constants.UNAVAILABLE );
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * @return the client handle of this session.
+     */
+    public ClientHandle getClientHandle()
+    {
+        return chandle;
+    }
+
+    /**
+     * @return the pool the session uses.
+     */
+    public DfsConnectionPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Tags the calls the current thread makes through this session with an
+     * id, so they can be found in the server's slow-request log.  The id is
+     * sent with <code>setTraceId</code> on the borrowed connection just
+     * before each call.  That call is one-way, so the server's reply is not
+     * waited for and tagging adds no round trip.
+     *
+     * @param id the trace id, <code>null</code> to stop tagging.
+     */
+    public void setTraceId( final String id )
+    {
+        if ( id == null ) {
+            traceId.remove();
+        } else {
+            traceId.set( id );
+        }
+    }
+
+    /**
+     * Gives each call the current thread makes through this session a
+     * deadline on the server, after which the server gives up on the DFS
+     * and fails the call with {@link Constants#TIMED_OUT}.  Like the trace
+     * id, the timeout is sent one-way with <code>setCallTimeout</code> just
+     * before each call, adding no round trip.  The read
+     * timeout of the pool should be longer, so the server's answer arrives
+     * before the socket gives up.
+     *
+     * @param millis the timeout, <code>0</code> for the server's default.
+     */
+    public void setCallTimeout( final long millis )
+    {
+        if ( millis <= 0L ) {
+            callTimeout.remove();
+        } else {
+            callTimeout.set( millis );
+        }
+    }
+
+    /**
+     * @see DfsService.Iface#listFiles
+     */
+    public List<FileStatus> listFiles( final String path )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<List<FileStatus>>() {
+            protected List<FileStatus> call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.listFiles( h, path );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#listFilesProjected
+     */
+    public List<FileStatus> listFilesProjected( final String path,
+        final int fields )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<List<FileStatus>>() {
+            protected List<FileStatus> call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.listFilesProjected( h, path, fields );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#listModifiedSince
+     */
+    public ModifiedListing listModifiedSince( final String path,
+        final long mtime, final boolean recursive )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<ModifiedListing>() {
+            protected ModifiedListing call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.listModifiedSince( h, path, mtime, recursive );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#stat
+     */
+    public FileStatus stat( final String path )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<FileStatus>() {
+            protected FileStatus call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.stat( h, path );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#statProjected
+     */
+    public FileStatus statProjected( final String path, final int fields )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<FileStatus>() {
+            protected FileStatus call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.statProjected( h, path, fields );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#contentSummary
+     */
+    public ContentSummary contentSummary( final String path )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<ContentSummary>() {
+            protected ContentSummary call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.contentSummary( h, path );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#getBlockLocations
+     */
+    public List<BlockLocation> getBlockLocations( final String path,
+        final long offset, final long length )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<List<BlockLocation>>() {
+            protected List<BlockLocation> call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.getBlockLocations( h, path, offset, length );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#mkdir
+     */
+    public boolean mkdir( final String path )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Call<Boolean>() {
+            protected Boolean call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.mkdir( h, path ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * @see DfsService.Iface#move
+     */
+    public boolean move( final String oldpath, final String newpath )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Call<Boolean>() {
+            protected Boolean call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.move( h, oldpath, newpath ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * @see DfsService.Iface#remove
+     */
+    public boolean remove( final String path, final boolean recursive )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Call<Boolean>() {
+            protected Boolean call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.remove( h, path, recursive ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * @see DfsService.Iface#open
+     */
+    public DfsHandle open( final String filename, final short mode )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Call<DfsHandle>() {
+            protected DfsHandle call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.open( h, filename, mode );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#close
+     */
+    public boolean close( final DfsHandle handle )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Call<Boolean>() {
+            protected Boolean call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.close( h, handle ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * @see DfsService.Iface#read
+     */
+    public String read( final DfsHandle handle, final long offset,
+        final long len )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<String>() {
+            protected String call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.read( h, handle, offset, len );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#readBytes
+     */
+    public byte[] readBytes( final DfsHandle handle, final long offset,
+        final long len )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<byte[]>() {
+            protected byte[] call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.readBytes( h, handle, offset, len );
+            }
+        } );
+    }
+
+    /**
+     * Local clients should use {@link DfsSharedRing}, which maps the ring.
+     *
+     * @see DfsService.Iface#openSharedRing
+     */
+    public SharedRing openSharedRing( final long size )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<SharedRing>() {
+            protected SharedRing call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.openSharedRing( h, size );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#readShared
+     */
+    public int readShared( final DfsHandle handle, final long offset,
+        final int len, final long ringOffset )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<Integer>() {
+            protected Integer call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.readShared( h, handle, offset, len, ringOffset );
+            }
+        } );
+    }
+
+    /**
+     * @see DfsService.Iface#write
+     */
+    public boolean write( final DfsHandle handle, final byte[] buf,
+        final long offset, final long len )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Call<Boolean>() {
+            protected Boolean call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.write( h, handle, buf, offset,
+                    len ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * @see DfsService.Iface#copyToLocalFile
+     */
+    public boolean copyToLocalFile( final String src, final String dest )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Call<Boolean>() {
+            protected Boolean call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.copyToLocalFile( src, dest ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * @see DfsService.Iface#copyFromLocalFile
+     */
+    public boolean copyFromLocalFile( final String src, final String dest )
+        throws DfsServiceIOException, TException
+    {
+        return execute( false, new Call<Boolean>() {
+            protected Boolean call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return Boolean.valueOf( c.copyFromLocalFile( src, dest ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * Finds matching lines on the server, so only they cross the network.
+     * Retried once after a transport failure.
+     *
+     * @see DfsService.Iface#grep
+     */
+    public GrepResult grep( final String path, final String pattern,
+        final boolean literal, final long offset, final long end,
+        final int maxMatches )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<GrepResult>() {
+            protected GrepResult call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.grep( h, path, pattern, literal, offset, end,
+                    maxMatches );
+            }
+        } );
+    }
+
+    /**
+     * Reads one page of the records owned by a split.  Retried once after
+     * a transport failure.
+     *
+     * @see DfsService.Iface#readSplit
+     * @see FileSplit#readRecords
+     */
+    public SplitResult readSplit( final String path, final long offset,
+        final long length, final String delimiter )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<SplitResult>() {
+            protected SplitResult call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.readSplit( h, path, offset, length, delimiter );
+            }
+        } );
+    }
+
+    /**
+     * Waits for a file to grow past <code>offset</code> and returns the
+     * bytes appended, for following a file as it is written.  Keep
+     * <code>waitMillis</code> below the pool's read timeout.  Retried once
+     * after a transport failure.
+     *
+     * @see DfsService.Iface#follow
+     */
+    public FollowResult follow( final String path, final long offset,
+        final long maxBytes, final long waitMillis )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<FollowResult>() {
+            protected FollowResult call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.follow( h, path, offset, maxBytes, waitMillis );
+            }
+        } );
+    }
+
+    /**
+     * Starts watching a directory for changes.  Cursors belong to the
+     * server that returned them; another server answers them with a
+     * reset.  Retried once after a transport failure.
+     *
+     * @return the cursor to pass to the first {@link #pollEvents}.
+     *
+     * @see DfsService.Iface#watch
+     */
+    public long watch( final String path )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<Long>() {
+            protected Long call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return Long.valueOf( c.watch( h, path ) );
+            }
+        } ).longValue();
+    }
+
+    /**
+     * Waits for changes to a watched directory.  Keep
+     * <code>waitMillis</code> below the pool's read timeout.  Retried once
+     * after a transport failure.
+     *
+     * @see DfsService.Iface#pollEvents
+     */
+    public WatchResult pollEvents( final String path, final long cursor,
+        final int maxEvents, final long waitMillis )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<WatchResult>() {
+            protected WatchResult call( final DfsService.Client c,
+                final ClientHandle h )
+                throws DfsServiceIOException, TException
+            {
+                return c.pollEvents( h, path, cursor, maxEvents, waitMillis );
+            }
+        } );
+    }
+
+    /**
+     * Stops watching a directory.  Closing the session stops all of its
+     * watches.
+     *
+     * @see DfsService.Iface#unwatch
+     */
+    public boolean unwatch( final String path )
+        throws DfsServiceIOException, TException
+    {
+        return execute( true, new Call<Boolean>() {
+            protected Boolean call( final DfsService.Client c,
+                final ClientHandle h )
+                throws TException
+            {
+                return Boolean.valueOf( c.unwatch( h, path ) );
+            }
+        } ).booleanValue();
+    }
+
+    /**
+     * Cuts a file into balanced splits for parallel readers.
+     *
+     * @param path the file on the DFS.
+     * @param count the number of splits wanted.
+     *
+     * @return the splits in file order.
+     *
+     * @see FileSplit#divide
+     */
+    public List<FileSplit> getSplits( final String path, final int count )
+        throws DfsServiceIOException, TException
+    {
+        return FileSplit.divide( path, stat( path ).length, count );
+    }
+
+    /**
+     * Cuts a file into balanced splits that know which hosts store them,
+     * ready for {@link FileSplit#assign}.
+     *
+     * @param path the file on the DFS.
+     * @param count the number of splits wanted.
+     *
+     * @return the splits in file order.
+     *
+     * @see FileSplit#divide(String, long, int, List)
+     */
+    public List<FileSplit> getLocatedSplits( final String path,
+        final int count )
+        throws DfsServiceIOException, TException
+    {
+        long length = stat( path ).length;
+        return FileSplit.divide( path, length, count,
+            getBlockLocations( path, 0L, length ) );
+    }
+
+    /**
+     * Logs out, releases the client handle on the server and closes the
+     * pool.  Errors are ignored since the session is unusable afterwards
+     * either way.
+     */
+    public void close()
+    {
+        try {
+            execute( false, new Call<Boolean>() {
+                protected Boolean call( final DfsService.Client c,
+                    final ClientHandle h )
+                    throws DfsServiceIOException, TException
+                {
+                    c.logout( h );
+                    return Boolean.valueOf( c.closeClient( h ) );
+                }
+            } );
+        } catch ( DfsServiceIOException dsioe ) {
+            // nothing more to do
+        } catch ( TException te ) {
+            // nothing more to do
+        } finally {
+            pool.close();
+        }
+    }
+
+
+    // ** Protected Methods **
+
+    /**
+     * Runs a call on a borrowed connection and returns the connection to the
+     * pool.  If the call fails at the transport level the connection is
+     * discarded and, if <code>idempotent</code> is set, the call is retried
+     * once on another connection.
+     *
+     * @param idempotent whether the call can safely be made twice.
+     * @param call the call to make.
+     *
+     * @return the result of the call.
+     *
+     * @throws DfsServiceIOException if the server reports an error.
+     * @throws TException if the call fails in Thrift.
+     */
+    protected <T> T execute( final boolean idempotent, final Call<T> call )
+        throws DfsServiceIOException, TException
+    {
+        int attempts = idempotent ? 2 : 1;
+        while ( true ) {
+            DfsConnection conn = pool.borrow();
+            try {
+                String id = traceId.get();
+                if ( id != null ) {
+                    conn.getClient().setTraceId( chandle, id );
+                }
+                Long timeout = callTimeout.get();
+                if ( timeout != null ) {
+                    conn.getClient().setCallTimeout( chandle, timeout );
+                }
+                T result = call.call( conn.getClient(), chandle );
+                pool.release( conn );
+                return result;
+            } catch ( DfsServiceIOException dsioe ) {
+                pool.release( conn );
+                throw dsioe;
+            } catch ( TException te ) {
+                release( pool, conn, te );
+                if ( --attempts == 0 || te instanceof TApplicationException ) {
+                    throw te;
+                }
+            } catch ( RuntimeException re ) {
+                pool.invalidate( conn );
+                throw re;
+            }
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Hands a connection back after a Thrift failure.  A
+     * {@link TApplicationException} is a well-formed reply, so the
+     * connection is still usable; anything else leaves the stream in an
+     * unknown state.
+     */
+    private static void release( final DfsConnectionPool pool,
+        final DfsConnection conn, final TException te )
+    {
+        if ( te instanceof TApplicationException ) {
+            pool.release( conn );
+        } else {
+            pool.invalidate( conn );
+        }
+    }
+}
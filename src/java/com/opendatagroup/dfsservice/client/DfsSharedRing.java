@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.SharedRing;
+// end thrift-generated files
+
+import com.facebook.thrift.TApplicationException;
+import com.facebook.thrift.TException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+/**
+ * Reads through the server's shared ring, for clients on the same host as
+ * the server.  The ring is a file the server and the client both map into
+ * memory; <code>readShared</code> has the server copy the file's bytes
+ * into a slot of the ring and return only their count, and the client
+ * copies them out of its mapping.  The data is never encoded by Thrift nor
+ * sent through the loopback socket, which carries only the call.
+ * <p>
+ * The ring is cut into slots so that any number of threads can read at
+ * once, each in a slot of its own; a thread waits while all slots are in
+ * use.  A slot whose call fails is not used again, since the server may
+ * still be writing to it, and once no slots are left reads go through
+ * <code>readBytes</code>.  The ring belongs to the session's client handle
+ * on one server, so the session must not be one that moves between
+ * servers.
+ * <p>
+ * For example:
+ * <pre>
+ *     DfsSharedRing ring = DfsSharedRing.open( session );
+ *     byte[] data = ring != null
+ *         ? ring.readBytes( handle, offset, len )
+ *         : session.readBytes( handle, offset, len );
+ * </pre>
+ */
+public class DfsSharedRing
+{
+    // ** Public Static Final Data **
+
+    /** Default bytes of the ring. */
+    public static final long DEFAULT_SIZE = 16L * 1024 * 1024;
+
+    /** Default bytes of a slot, the most one call reads. */
+    public static final int DEFAULT_SLOT_SIZE = 1024 * 1024;
+
+    // ** Private Static Final Data **
+
+    /** Bytes before the data area, holding the token. */
+    private static final int HEADER = 8;
+
+    // ** Private Data **
+
+    /** Session the calls go through. */
+    private final DfsSession session;
+
+    /** The ring mapped read-only, header included. */
+    private final MappedByteBuffer buffer;
+
+    /** Bytes of a slot. */
+    private final int slotSize;
+
+    /** Indexes of the slots not in use.  Guarded by itself. */
+    private final LinkedList<Integer> free = new LinkedList<Integer>();
+
+    /** Slots not retired by a failure.  Guarded by {@link #free}. */
+    private int live;
+
+
+    // ** Constructors **
+
+    /**
+     * @param session the session the ring was opened in.
+     * @param buffer the mapping.
+     * @param slotSize the bytes of a slot.
+     * @param slots the number of slots.
+     */
+    private DfsSharedRing( final DfsSession session,
+        final MappedByteBuffer buffer, final int slotSize, final int slots )
+    {
+        this.session = session;
+        this.buffer = buffer;
+        this.slotSize = slotSize;
+        for ( int i = 0; i < slots; i++ ) {
+            free.add( i );
+        }
+        live = slots;
+    }
+
+
+    // ** Public Static Methods **
+
+    /**
+     * Opens a ring of the default size and slot size.
+     *
+     * @param session the session to read through.
+     *
+     * @return the ring, or <code>null</code> if the client cannot share
+     * memory with the server.
+     *
+     * @throws TException if the server cannot be reached.
+     */
+    public static DfsSharedRing open( final DfsSession session )
+        throws TException
+    {
+        return open( session, DEFAULT_SIZE, DEFAULT_SLOT_SIZE );
+    }
+
+    /**
+     * Asks the server for a ring and maps it.  There is no ring when the
+     * server refuses one, is too old to know the call, or is on another
+     * host or runs as another user, so the file it names cannot be mapped
+     * or holds the wrong token.
+     *
+     * @param session the session to read through.
+     * @param size the bytes of the ring.  A session that already has a ring
+     * gets that one, whatever its size.
+     * @param slotSize the most bytes one call reads.
+     *
+     * @return the ring, or <code>null</code> if the client cannot share
+     * memory with the server.
+     *
+     * @throws TException if the server cannot be reached.
+     */
+    public static DfsSharedRing open( final DfsSession session,
+        final long size, final int slotSize )
+        throws TException
+    {
+        if ( slotSize <= 0 ) {
+            throw new IllegalArgumentException( "invalid slot size "
+                + slotSize );
+        }
+        SharedRing info;
+        try {
+            info = session.openSharedRing( size );
+        } catch ( DfsServiceIOException dsioe ) {
+            return null;
+        } catch ( TApplicationException tae ) {
+            return null;
+        }
+
+        File file = new File( info.path );
+        if ( !file.isFile() || !file.canRead() ) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try {
+            RandomAccessFile raf = new RandomAccessFile( file, "r" );
+            try {
+                buffer = raf.getChannel().map( FileChannel.MapMode.READ_ONLY,
+                    0L, HEADER + info.size );
+            } finally {
+                raf.close();
+            }
+        } catch ( IOException ioe ) {
+            return null;
+        }
+        if ( buffer.getLong( 0 ) != info.token ) {
+            // a file of the same name on another host
+            return null;
+        }
+        int slot = ( int )Math.min( slotSize, info.size );
+        return new DfsSharedRing( session, buffer, slot,
+            ( int )( info.size / slot ) );
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * Reads into a buffer of the caller's, with the same result as
+     * <code>readBytes</code>.
+     *
+     * @param handle a file opened for reading in the session.
+     * @param offset the file offset to read from.
+     * @param b the buffer.
+     * @param off where in <code>b</code> to put the bytes.
+     * @param len the number of bytes to read.
+     *
+     * @return the bytes read, fewer than <code>len</code> only at the end
+     * of the file.
+     *
+     * @throws DfsServiceIOException if the server cannot read the file.
+     * @throws TException if the call fails.
+     */
+    public int read( final DfsHandle handle, final long offset,
+        final byte[] b, final int off, final int len )
+        throws DfsServiceIOException, TException
+    {
+        if ( off < 0 || len < 0 || len > b.length - off ) {
+            throw new IndexOutOfBoundsException();
+        }
+        int slot = acquire();
+        if ( slot < 0 ) {
+            byte[] data = session.readBytes( handle, offset, len );
+            System.arraycopy( data, 0, b, off, data.length );
+            return data.length;
+        }
+
+        boolean ok = false;
+        try {
+            long ringOffset = ( long )slot * slotSize;
+            int total = 0;
+            while ( total < len ) {
+                int want = Math.min( slotSize, len - total );
+                int n = session.readShared( handle, offset + total, want,
+                    ringOffset );
+                ByteBuffer src = buffer.duplicate();
+                src.position( HEADER + ( int )ringOffset );
+                src.get( b, off + total, n );
+                total += n;
+                if ( n < want ) {
+                    break;
+                }
+            }
+            ok = true;
+            return total;
+        } finally {
+            release( slot, ok );
+        }
+    }
+
+    /**
+     * A drop-in for <code>DfsSession.readBytes</code>.
+     *
+     * @param handle a file opened for reading in the session.
+     * @param offset the file offset to read from.
+     * @param len the number of bytes to read.
+     *
+     * @return the bytes read, fewer than <code>len</code> only at the end
+     * of the file.
+     *
+     * @throws DfsServiceIOException if the server cannot read the file.
+     * @throws TException if the call fails.
+     */
+    public byte[] readBytes( final DfsHandle handle, final long offset,
+        final int len )
+        throws DfsServiceIOException, TException
+    {
+        byte[] buf = new byte[len];
+        int n = read( handle, offset, buf, 0, len );
+        if ( n == len ) {
+            return buf;
+        }
+        byte[] result = new byte[n];
+        System.arraycopy( buf, 0, result, 0, n );
+        return result;
+    }
+
+    /**
+     * @return the most bytes one call reads.
+     */
+    public int getSlotSize()
+    {
+        return slotSize;
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Waits for a free slot.
+     *
+     * @return the slot, or <code>-1</code> if every slot has been retired.
+     */
+    private int acquire()
+        throws TException
+    {
+        synchronized ( free ) {
+            try {
+                while ( free.isEmpty() && live > 0 ) {
+                    free.wait();
+                }
+            } catch ( InterruptedException ie ) {
+                Thread.currentThread().interrupt();
+                throw new TException( "interrupted waiting for a slot of "
+                    + "the shared ring" );
+            }
+            return free.isEmpty() ? -1 : free.removeFirst();
+        }
+    }
+
+    /**
+     * Hands a slot back, or retires it after a failed call.
+     */
+    private void release( final int slot, final boolean ok )
+    {
+        synchronized ( free ) {
+            if ( ok ) {
+                free.addFirst( slot );
+            } else {
+                live--;
+            }
+            free.notifyAll();
+        }
+    }
+}
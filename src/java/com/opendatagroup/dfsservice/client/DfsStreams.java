@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pieces of {@link DfsInputStream} and {@link DfsOutputStream}.
+ */
+final class DfsStreams
+{
+    /**
+     * Runs prefetches and write-behind for streams that are not given an
+     * executor of their own.  Threads are daemons so an unclosed stream does
+     * not keep the JVM alive.
+     */
+    static final ExecutorService EXECUTOR =
+        Executors.newCachedThreadPool( new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+            public Thread newThread( final Runnable r )
+            {
+                Thread t = new Thread( r, "dfs-stream-"
+                    + count.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+
+    /**
+     * Not instantiated.
+     */
+    private DfsStreams()
+    {
+    }
+
+    /**
+     * Wraps a Thrift or server error in the IOException that
+     * <code>java.io</code> callers expect.
+     *
+     * @param message what was being done.
+     * @param cause the error.
+     *
+     * @return an IOException with <code>cause</code> as its cause.
+     */
+    static IOException toIOException( final String message,
+        final Throwable cause )
+    {
+        if ( cause instanceof IOException ) {
+            return ( IOException )cause;
+        }
+        // the generated exception keeps its text in a field of its own
+        String detail = cause instanceof DfsServiceIOException
+            ? ( ( DfsServiceIOException )cause ).message : cause.getMessage();
+        IOException ioe = new IOException( message + ": " + detail );
+        ioe.initCause( cause );
+        return ioe;
+    }
+}
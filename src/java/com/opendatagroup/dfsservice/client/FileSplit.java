@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.client;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.BlockLocation;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.SplitResult;
+// end thrift-generated files
+
+import com.facebook.thrift.TException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A byte range of a DFS file that one worker processes.  The ranges made
+ * by {@link #divide} tile the file, and {@link #readRecords} returns the
+ * records that start inside the range, so any number of workers can each
+ * take a split and between them see every record exactly once, without
+ * talking to each other.
+ * <p>
+ * For example:
+ * <pre>
+ *     for ( FileSplit split : session.getSplits( "logs/big.txt", 8 ) ) {
+ *         // hand split to a worker, which calls
+ *         // split.readRecords( session, "" )
+ *     }
+ * </pre>
+ * Splits made by {@link DfsSession#getLocatedSplits} also know which hosts
+ * store their bytes, and {@link #assign} hands each one to a worker on such
+ * a host where it can, so the reads stay off the network.
+ */
+public class FileSplit
+{
+    // ** Private Data **
+
+    /** The file. */
+    private final String path;
+
+    /** Offset of the first byte of the split. */
+    private final long offset;
+
+    /** Length of the split in bytes. */
+    private final long length;
+
+    /** Hosts storing the split, those holding the most of it first. */
+    private final List<String> hosts;
+
+
+    // ** Constructors **
+
+    /**
+     * @param path the file on the DFS.
+     * @param offset the start of the split.
+     * @param length the length of the split.
+     */
+    public FileSplit( final String path, final long offset, final long length )
+    {
+        this( path, offset, length, Collections.<String>emptyList() );
+    }
+
+    /**
+     * @param path the file on the DFS.
+     * @param offset the start of the split.
+     * @param length the length of the split.
+     * @param hosts the hosts storing the split, best first.
+     */
+    public FileSplit( final String path, final long offset, final long length,
+        final List<String> hosts )
+    {
+        if ( offset < 0 || length < 0 ) {
+            throw new IllegalArgumentException( "invalid split at " + offset
+                + " of length " + length );
+        }
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+        this.hosts = Collections.unmodifiableList(
+            new ArrayList<String>( hosts ) );
+    }
+
+
+    // ** Public Static Methods **
+
+    /**
+     * Cuts a file into <code>count</code> ranges whose lengths differ by at
+     * most one byte.  Fewer are returned if the file has fewer bytes, and
+     * one empty split for an empty file.
+     *
+     * @param path the file on the DFS.
+     * @param fileLength the length of the file.
+     * @param count the number of splits wanted.
+     *
+     * @return the splits in file order.
+     */
+    public static List<FileSplit> divide( final String path,
+        final long fileLength, final int count )
+    {
+        if ( count <= 0 ) {
+            throw new IllegalArgumentException( "invalid split count "
+                + count );
+        }
+        int n = ( int )Math.max( 1L, Math.min( count, fileLength ) );
+        List<FileSplit> splits = new ArrayList<FileSplit>( n );
+        long size = fileLength / n;
+        long extra = fileLength % n;
+        long start = 0L;
+        for ( int i = 0; i < n; i++ ) {
+            long len = size + ( i < extra ? 1L : 0L );
+            splits.add( new FileSplit( path, start, len ) );
+            start += len;
+        }
+        return splits;
+    }
+
+    /**
+     * Cuts a file as {@link #divide(String, long, int)} does and gives each
+     * split the hosts storing its bytes, ordered by how many of them each
+     * host holds.
+     *
+     * @param path the file on the DFS.
+     * @param fileLength the length of the file.
+     * @param count the number of splits wanted.
+     * @param blocks the blocks of the file, from
+     * <code>getBlockLocations</code>.
+     *
+     * @return the splits in file order.
+     */
+    public static List<FileSplit> divide( final String path,
+        final long fileLength, final int count,
+        final List<BlockLocation> blocks )
+    {
+        List<FileSplit> plain = divide( path, fileLength, count );
+        List<FileSplit> splits = new ArrayList<FileSplit>( plain.size() );
+        for ( FileSplit split : plain ) {
+            long start = split.offset;
+            long end = split.offset + split.length;
+            final Map<String, Long> held = new LinkedHashMap<String, Long>();
+            for ( BlockLocation block : blocks ) {
+                long overlap = Math.min( end, block.offset + block.length )
+                    - Math.max( start, block.offset );
+                if ( overlap <= 0L || block.hosts == null ) {
+                    continue;
+                }
+                for ( String host : block.hosts ) {
+                    Long sum = held.get( host );
+                    held.put( host, ( sum == null ? 0L : sum ) + overlap );
+                }
+            }
+            List<String> hosts = new ArrayList<String>( held.keySet() );
+            Collections.sort( hosts, new Comparator<String>() {
+                public int compare( final String a, final String b )
+                {
+                    return held.get( b ).compareTo( held.get( a ) );
+                }
+            } );
+            splits.add( new FileSplit( path, start, split.length, hosts ) );
+        }
+        return splits;
+    }
+
+    /**
+     * Hands out splits to workers, preferring for each split a worker on one
+     * of its hosts.  A local worker is only chosen while it has no more than
+     * its fair share of splits, so a host holding most of the data does not
+     * end up with most of the work; otherwise the split goes to the worker
+     * with the fewest.  Workers are matched to hosts by name, ignoring case,
+     * so they must be named the way the DFS names its hosts.
+     *
+     * @param splits the splits, for example from
+     * {@link DfsSession#getLocatedSplits}.
+     * @param workers the host names of the workers.
+     *
+     * @return the splits of each worker, in the order of
+     * <code>workers</code>.
+     */
+    public static Map<String, List<FileSplit>> assign(
+        final List<FileSplit> splits, final Collection<String> workers )
+    {
+        if ( workers.isEmpty() ) {
+            throw new IllegalArgumentException( "no workers" );
+        }
+        Map<String, List<FileSplit>> assigned =
+            new LinkedHashMap<String, List<FileSplit>>();
+        Map<String, String> byHost = new HashMap<String, String>();
+        for ( String worker : workers ) {
+            assigned.put( worker, new ArrayList<FileSplit>() );
+            byHost.put( worker.toLowerCase(), worker );
+        }
+        int share = ( splits.size() + assigned.size() - 1 ) / assigned.size();
+
+        for ( FileSplit split : splits ) {
+            String best = null;
+            for ( String host : split.hosts ) {
+                String worker = byHost.get( host.toLowerCase() );
+                if ( worker != null && assigned.get( worker ).size() < share
+                    && ( best == null || assigned.get( worker ).size()
+                        < assigned.get( best ).size() ) ) {
+                    best = worker;
+                }
+            }
+            if ( best == null ) {
+                for ( String worker : assigned.keySet() ) {
+                    if ( best == null || assigned.get( worker ).size()
+                        < assigned.get( best ).size() ) {
+                        best = worker;
+                    }
+                }
+            }
+            assigned.get( best ).add( split );
+        }
+        return assigned;
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * Reads every record owned by the split, a page at a time.
+     *
+     * @param session the session to read through.
+     * @param delimiter the bytes that end a record, empty for a line.
+     *
+     * @return the records, without their delimiters.
+     *
+     * @throws DfsServiceIOException if the file cannot be read.
+     * @throws TException if the call fails.
+     */
+    public List<byte[]> readRecords( final DfsSession session,
+        final String delimiter )
+        throws DfsServiceIOException, TException
+    {
+        List<byte[]> records = new ArrayList<byte[]>();
+        long end = offset + length;
+        long next = offset;
+        while ( next >= 0 ) {
+            SplitResult page = session.readSplit( path, next, end - next,
+                delimiter );
+            records.addAll( page.records );
+            next = page.nextOffset;
+        }
+        return records;
+    }
+
+    /**
+     * @return the file.
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * @return the offset of the first byte of the split.
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * @return the length of the split.
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return the hosts storing the split, those holding the most of it
+     * first, or an empty list if they are not known.
+     */
+    public List<String> getHosts()
+    {
+        return hosts;
+    }
+
+    /** {@inheritDoc} */
+    public String toString()
+    {
+        return path + ":" + offset + "+" + length;
+    }
+}
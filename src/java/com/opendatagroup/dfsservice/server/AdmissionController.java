@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import com.opendatagroup.dfsservice.util.StripedCounter;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of calls in the handler at once, as a
+ * {@link DfsInterceptor}, so that a burst is turned away early instead of
+ * slowing every call down until clients time out.
+ * <p>
+ * The limit adapts to the latency of the calls it lets through, in the
+ * manner of TCP Vegas and Netflix's gradient limiter.  A <code>stat</code>
+ * and a 1 MB read take very different times on a healthy backend, so
+ * calls are grouped into classes by method and, for reads and writes, by
+ * size, and each class is compared only with itself: the fastest call of
+ * a class seen recently is taken as its latency on an unloaded backend,
+ * and a window's slowdown is the average, over its calls, of each call's
+ * class average divided by that class's unloaded latency.  After each
+ * window the limit is scaled by it:
+ * <pre>
+ *     gradient = clamp( tolerance / slowdown, 0.5, 1.0 )
+ *     limit    = limit * gradient + sqrt( limit )
+ * </pre>
+ * smoothed so that a single window moves it only part of the way.  While
+ * latency stays near the unloaded value the square-root term grows the
+ * limit; once calls start queueing in the backend the gradient shrinks it.
+ * The limit only grows in windows where it was actually reached, so an idle
+ * server does not drift to the maximum.  The unloaded latencies are
+ * re-measured every so often so that a backend that got slower for good is
+ * not treated as overloaded forever.
+ * <p>
+ * A call that finds the limit reached waits, up to a timeout, in a queue of
+ * bounded length.  When the queue is full or the wait times out, the call
+ * is refused with a <code>DfsServiceIOException</code> whose message
+ * starts with {@link Constants#OVERLOADED}, before it reaches the DFS.
+ * Only calls that can fail with that exception are limited; the session
+ * calls always go through.  Neither are long polls such as
+ * <code>follow</code>, which wait without loading the backend and would
+ * otherwise hold the limit down and skew the latencies it adapts to, nor
+ * bulk calls: the copies, <code>grep</code>, <code>readSplit</code>,
+ * <code>contentSummary</code> and reads and writes over
+ * {@link Options#bulkThreshold}.  A few of those would hold every slot for
+ * seconds and starve the metadata calls; {@link ExecutionLanes} bounds
+ * them instead.
+ */
+public class AdmissionController
+    implements DfsInterceptor, AdmissionControllerMBean
+{
+    // ** Public Static Inner Classes **
+
+    /**
+     * Settings of the controller.
+     */
+    public static class Options
+    {
+        /** Limit to start from. */
+        public int initialLimit = 20;
+
+        /** Lowest the limit goes. */
+        public int minLimit = 4;
+
+        /** Highest the limit goes. */
+        public int maxLimit = 200;
+
+        /** Most calls waiting to be admitted; 0 refuses at once. */
+        public int maxQueued = 50;
+
+        /** Longest a call waits to be admitted, in milliseconds. */
+        public long maxWaitMillis = 100L;
+
+        /**
+         * How many times the unloaded latency a window may average before
+         * the limit shrinks.
+         */
+        public double tolerance = 1.5;
+
+        /** Length of a measurement window, in milliseconds. */
+        public long windowMillis = 100L;
+
+        /** Fewest calls in a window for it to count. */
+        public int minWindowSamples = 10;
+
+        /** Number of windows after which the unloaded latency is reset. */
+        public int probeWindows = 600;
+
+        /** Weight of a new window in the smoothed limit. */
+        public double smoothing = 0.2;
+
+        /**
+         * Reads and writes asking for more bytes than this are bulk and not
+         * limited, as in {@link ExecutionLanes.Options#bulkThreshold}.
+         */
+        public long bulkThreshold = 1024L * 1024L;
+    }
+
+    // ** Private Static Final Data **
+
+    /**
+     * Size classes of reads and writes: up to 4 KB, up to 64 KB, and up to
+     * the bulk threshold.
+     */
+    private static final int SIZE_CLASSES = 3;
+
+    /** Number of latency classes. */
+    private static final int CLASSES = DfsOp.values().length * SIZE_CLASSES;
+
+    // ** Private Data **
+
+    /** Settings. */
+    private final Options options;
+
+    /** Calls admitted and not finished. */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** Current limit; written only by the window update. */
+    private volatile int limit;
+
+    /** Limit before rounding, only used by the window update. */
+    private double exactLimit;
+
+    /** Guards waiting and signals admission. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when a call finishes or the limit grows. */
+    private final Condition released = lock.newCondition();
+
+    /** Calls waiting to be admitted; written holding {@link #lock}. */
+    private volatile int queued;
+
+    /** Sum of the latencies of finished calls by class, in nanoseconds. */
+    private final AtomicLongArray latencySum = new AtomicLongArray( CLASSES );
+
+    /** Number of finished calls by class. */
+    private final AtomicLongArray latencyCount =
+        new AtomicLongArray( CLASSES );
+
+    /** Calls refused. */
+    private final StripedCounter rejected = new StripedCounter();
+
+    /** Set while one thread runs the window update. */
+    private final AtomicBoolean updating = new AtomicBoolean();
+
+    /** {@link System#nanoTime} when the current window ends. */
+    private volatile long windowEnd;
+
+    /** {@link #latencySum} when the window started. */
+    private final long[] windowSum = new long[CLASSES];
+
+    /** {@link #latencyCount} when the window started. */
+    private final long[] windowCount = new long[CLASSES];
+
+    /** Whether the limit was reached during the window. */
+    private volatile boolean saturated;
+
+    /** Fastest call of the current window by class, in nanoseconds. */
+    private final AtomicLongArray windowMin = new AtomicLongArray( CLASSES );
+
+    /**
+     * Fastest call by class since the last probe, in nanoseconds; only
+     * used by the window update.
+     */
+    private final long[] noLoadNanos = new long[CLASSES];
+
+    /** Average of the last window over all classes, in nanoseconds. */
+    private volatile long lastNanos;
+
+    /** Slowdown of the last window against the unloaded latencies. */
+    private volatile double lastSlowdown;
+
+    /** Windows since the unloaded latency was reset. */
+    private int windowsSinceProbe;
+
+
+    // ** Constructors **
+
+    /**
+     * @param options the settings, which must not be changed afterwards.
+     */
+    public AdmissionController( final Options options )
+    {
+        if ( options.minLimit < 1 || options.minLimit > options.maxLimit ) {
+            throw new IllegalArgumentException( "invalid limit range "
+                + options.minLimit + " - " + options.maxLimit );
+        }
+        this.options = options;
+        this.exactLimit = Math.max( options.minLimit,
+            Math.min( options.maxLimit, options.initialLimit ) );
+        this.limit = ( int )exactLimit;
+        for ( int i = 0; i < CLASSES; i++ ) {
+            windowMin.set( i, Long.MAX_VALUE );
+        }
+        Arrays.fill( noLoadNanos, Long.MAX_VALUE );
+        this.windowEnd = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos( options.windowMillis );
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public void before( final DfsCall call )
+        throws DfsServiceIOException
+    {
+        if ( !isLimited( call ) ) {
+            return;
+        }
+        if ( tryAcquire() || await() ) {
+            return;
+        }
+        rejected.increment();
+        throw new DfsServiceIOException( Constants.OVERLOADED
+            + call.getOp().getRpcName() + " refused, " + inFlight.get()
+            + " calls in progress with a limit of " + limit );
+    }
+
+    /** {@inheritDoc} */
+    public void after( final DfsCall call )
+    {
+        if ( !isLimited( call ) ) {
+            return;
+        }
+        inFlight.decrementAndGet();
+        if ( call.isSucceeded() ) {
+            int c = classOf( call );
+            long latency = call.getEndNanos() - call.getAdmittedNanos();
+            latencySum.addAndGet( c, latency );
+            latencyCount.incrementAndGet( c );
+            long m;
+            while ( latency < ( m = windowMin.get( c ) )
+                    && !windowMin.compareAndSet( c, m, latency ) ) {
+                // retry until the minimum is at most latency
+            }
+        }
+        if ( queued > 0 ) {
+            signal( false );
+        }
+        if ( call.getEndNanos() >= windowEnd
+                && updating.compareAndSet( false, true ) ) {
+            try {
+                update( call.getEndNanos() );
+            } finally {
+                updating.set( false );
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    /** {@inheritDoc} */
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /** {@inheritDoc} */
+    public int getQueued()
+    {
+        return queued;
+    }
+
+    /** {@inheritDoc} */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /** {@inheritDoc} */
+    public double getLastSlowdown()
+    {
+        return lastSlowdown;
+    }
+
+    /** {@inheritDoc} */
+    public long getLastLatencyMicros()
+    {
+        return lastNanos / 1000L;
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Takes a slot if one is free under the limit.
+     */
+    private boolean tryAcquire()
+    {
+        while ( true ) {
+            int n = inFlight.get();
+            if ( n >= limit ) {
+                saturated = true;
+                return false;
+            }
+            if ( inFlight.compareAndSet( n, n + 1 ) ) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Waits in the queue for a slot.
+     *
+     * @return <code>false</code> if the queue is full, the wait timed out
+     * or the thread was interrupted.
+     */
+    private boolean await()
+    {
+        long remaining = TimeUnit.MILLISECONDS.toNanos( options.maxWaitMillis );
+        lock.lock();
+        try {
+            if ( queued >= options.maxQueued || remaining <= 0L ) {
+                return false;
+            }
+            queued++;
+            try {
+                while ( !tryAcquire() ) {
+                    if ( remaining <= 0L ) {
+                        return false;
+                    }
+                    remaining = released.awaitNanos( remaining );
+                }
+                return true;
+            } finally {
+                queued--;
+            }
+        } catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes one waiting call, or all of them if the limit grew.
+     */
+    private void signal( final boolean all )
+    {
+        lock.lock();
+        try {
+            if ( all ) {
+                released.signalAll();
+            } else {
+                released.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends a window: works out how much slower its calls were than when
+     * unloaded and moves the limit.  Run by one thread at a time.
+     *
+     * @param now the time the window was found to have ended.
+     */
+    private void update( final long now )
+    {
+        windowEnd = now + TimeUnit.MILLISECONDS.toNanos( options.windowMillis );
+        long[] sums = new long[CLASSES];
+        long[] counts = new long[CLASSES];
+        long samples = 0L;
+        for ( int c = 0; c < CLASSES; c++ ) {
+            sums[c] = latencySum.get( c );
+            counts[c] = latencyCount.get( c );
+            samples += counts[c] - windowCount[c];
+        }
+        if ( samples < options.minWindowSamples ) {
+            // too few calls to say anything; keep collecting
+            return;
+        }
+        boolean wasSaturated = saturated;
+        saturated = false;
+        boolean probe = ++windowsSinceProbe >= options.probeWindows;
+        if ( probe ) {
+            windowsSinceProbe = 0;
+        }
+
+        double slowdown = 0.0;
+        long total = 0L;
+        for ( int c = 0; c < CLASSES; c++ ) {
+            long n = counts[c] - windowCount[c];
+            long sum = sums[c] - windowSum[c];
+            windowSum[c] = sums[c];
+            windowCount[c] = counts[c];
+            long fastest = windowMin.getAndSet( c, Long.MAX_VALUE );
+            if ( probe || fastest < noLoadNanos[c] ) {
+                noLoadNanos[c] = fastest;
+            }
+            if ( n > 0L ) {
+                // each call weighs the same, whatever its class
+                slowdown += ( double )sum / Math.max( 1L, noLoadNanos[c] );
+                total += sum;
+            }
+        }
+        slowdown /= samples;
+        lastSlowdown = slowdown;
+        lastNanos = total / samples;
+
+        double gradient = Math.max( 0.5, Math.min( 1.0,
+            options.tolerance / Math.max( 1.0, slowdown ) ) );
+        double target = exactLimit * gradient + Math.sqrt( exactLimit );
+        if ( !wasSaturated && target > exactLimit ) {
+            target = exactLimit;
+        }
+        double next = exactLimit * ( 1.0 - options.smoothing )
+            + target * options.smoothing;
+        exactLimit = Math.max( options.minLimit,
+            Math.min( options.maxLimit, next ) );
+        int old = limit;
+        limit = ( int )exactLimit;
+        if ( limit > old && queued > 0 ) {
+            signal( true );
+        }
+    }
+
+    /**
+     * @return whether a call counts against the limit.  Depends only on
+     * the call, so before and after agree.
+     */
+    private boolean isLimited( final DfsCall call )
+    {
+        DfsOp op = call.getOp();
+        switch ( op.getKind() ) {
+        case METADATA:
+            return op.isRejectable();
+        case DATA:
+            return op.isRejectable()
+                && call.getRequestedBytes() <= options.bulkThreshold;
+        default:
+            return false;
+        }
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * @return the latency class of a call.
+     */
+    private static int classOf( final DfsCall call )
+    {
+        long bytes = call.getRequestedBytes();
+        int size = bytes <= 4096L ? 0 : bytes <= 65536L ? 1 : 2;
+        return call.getOp().ordinal() * SIZE_CLASSES + size;
+    }
+}
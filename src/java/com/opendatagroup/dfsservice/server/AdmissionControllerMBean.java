@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+/**
+ * JMX view of an {@link AdmissionController}.
+ */
+public interface AdmissionControllerMBean
+{
+    /** @return the current concurrency limit. */
+    int getLimit();
+
+    /** @return calls admitted and not yet finished. */
+    int getInFlight();
+
+    /** @return calls waiting to be admitted. */
+    int getQueued();
+
+    /** @return calls refused as overloaded since start. */
+    long getRejectedCount();
+
+    /**
+     * @return how many times their unloaded latency the calls of the last
+     * window took, each compared with calls of the same method and size.
+     */
+    double getLastSlowdown();
+
+    /** @return the mean latency of the last window, in microseconds. */
+    long getLastLatencyMicros();
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fails calls fast while a backend is not answering, so threads do not
+ * pile up waiting on it.
+ * <p>
+ * The breaker starts closed and lets every call through.  After a number
+ * of failures in a row it opens and refuses every call for a while.  Then
+ * it lets a single call through as a probe: if the probe succeeds the
+ * breaker closes, and if it fails the breaker stays open for another
+ * while.  A probe that never reports back is replaced by another once the
+ * same while has passed.
+ */
+public class CircuitBreaker
+{
+    // ** Public Static Inner Classes **
+
+    /**
+     * State of a breaker.
+     */
+    public enum State
+    {
+        /** Calls go through. */
+        CLOSED,
+        /** Calls are refused. */
+        OPEN,
+        /** One call has been let through to see if the backend is back. */
+        HALF_OPEN
+    }
+
+    // ** Private Data **
+
+    /** Failures in a row that open the breaker. */
+    private final int threshold;
+
+    /** How long the breaker stays open before probing, in nanoseconds. */
+    private final long openNanos;
+
+    /** Failures since the last success. */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /** Times the breaker opened. */
+    private final AtomicLong openCount = new AtomicLong();
+
+    /** Current state; changed holding <code>this</code>. */
+    private volatile State state = State.CLOSED;
+
+    /** {@link System#nanoTime} of the last change to or probe while open. */
+    private long since;
+
+
+    // ** Constructors **
+
+    /**
+     * @param threshold the failures in a row that open the breaker.
+     * @param openMillis how long it stays open before probing.
+     */
+    public CircuitBreaker( final int threshold, final long openMillis )
+    {
+        if ( threshold < 1 ) {
+            throw new IllegalArgumentException( "invalid threshold "
+                + threshold );
+        }
+        this.threshold = threshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos( openMillis );
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * Asks whether a call may go through.  A call that is let through must
+     * report with {@link #succeeded} or {@link #failed} if it reaches the
+     * backend.
+     *
+     * @return <code>false</code> if the call should fail at once.
+     */
+    public boolean allow()
+    {
+        if ( state == State.CLOSED ) {
+            return true;
+        }
+        long now = System.nanoTime();
+        synchronized ( this ) {
+            if ( state == State.CLOSED ) {
+                return true;
+            }
+            if ( now - since < openNanos ) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            since = now;
+            return true;
+        }
+    }
+
+    /**
+     * Reports that the backend answered.
+     */
+    public void succeeded()
+    {
+        failures.set( 0 );
+        if ( state != State.CLOSED ) {
+            synchronized ( this ) {
+                state = State.CLOSED;
+            }
+        }
+    }
+
+    /**
+     * Reports that the backend did not answer.
+     */
+    public void failed()
+    {
+        if ( failures.incrementAndGet() < threshold
+                && state == State.CLOSED ) {
+            return;
+        }
+        synchronized ( this ) {
+            if ( state == State.CLOSED ) {
+                openCount.incrementAndGet();
+            }
+            state = State.OPEN;
+            since = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return the current state.
+     */
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return the times the breaker has opened.
+     */
+    public long getOpenCount()
+    {
+        return openCount.get();
+    }
+}
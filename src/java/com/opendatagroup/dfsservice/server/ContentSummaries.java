@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.ContentSummary;
+// end thrift-generated files
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves <code>contentSummary</code>, the totals of the files and
+ * directories under a path, by walking the tree on the server.
+ * <p>
+ * Directories are listed by a pool of threads shared by all calls, so a
+ * wide tree is listed many directories at a time while the calling thread
+ * only hands out the subdirectories found and adds up the totals.  The
+ * totals of every directory walked are kept for a while and used for any
+ * later call that reaches it, so summing a tree again after a change under
+ * one of its directories lists only the directories on the way down to it.
+ * <p>
+ * Changes made through this server drop the totals of the changed path
+ * and of its ancestors, and for a remove or move of a directory those of
+ * everything under it.  A walk that overlaps such a change does not keep
+ * the totals it could have counted before the change.  Changes made
+ * elsewhere are seen once the kept totals expire.
+ */
+final class ContentSummaries
+{
+    // ** Private Static Final Data **
+
+    /** Changes remembered for the walks running while they are made. */
+    private static final int RECENT_CHANGES = 1024;
+
+    // ** Inner Classes **
+
+    /**
+     * The totals of a directory, with when they were counted.
+     */
+    private static final class Cached
+    {
+        /** The totals. */
+        private final ContentSummary summary;
+
+        /** {@link System#currentTimeMillis} when the walk started. */
+        private final long counted;
+
+        /**
+         * @param summary the totals.
+         * @param counted when the walk started.
+         */
+        private Cached( final ContentSummary summary, final long counted )
+        {
+            this.summary = summary;
+            this.counted = counted;
+        }
+    }
+
+    /**
+     * A change made through the server.
+     */
+    private static final class Change
+    {
+        /** Value of {@link #generation} after the change. */
+        private final long generation;
+
+        /** Path changed. */
+        private final String path;
+
+        /** Whether everything under the path changed too. */
+        private final boolean subtree;
+
+        /**
+         * @param generation the generation after the change.
+         * @param path the path changed.
+         * @param subtree whether everything under it changed too.
+         */
+        private Change( final long generation, final String path,
+            final boolean subtree )
+        {
+            this.generation = generation;
+            this.path = path;
+            this.subtree = subtree;
+        }
+    }
+
+    /**
+     * A directory of a walk.  Its own files are counted by the task that
+     * lists it; its subdirectories are added in once they are done.
+     */
+    private static final class Node
+        implements Callable<Node>
+    {
+        /** The file system. */
+        private final FileSystem fs;
+
+        /** Path of the directory. */
+        private final String path;
+
+        /** The directory it is in, <code>null</code> for the top. */
+        private final Node parent;
+
+        /** Paths of the subdirectories found by the listing. */
+        private final List<String> subdirs = new ArrayList<String>();
+
+        /** Bytes in files so far. */
+        private long length;
+
+        /** Files so far. */
+        private long files;
+
+        /** Directories so far, itself included. */
+        private long dirs = 1L;
+
+        /** Bytes of all replicas so far. */
+        private long space;
+
+        /**
+         * @param fs the file system.
+         * @param path the directory.
+         * @param parent its parent node, <code>null</code> for the top.
+         */
+        private Node( final FileSystem fs, final String path,
+            final Node parent )
+        {
+            this.fs = fs;
+            this.path = path;
+            this.parent = parent;
+        }
+
+        /**
+         * Lists the directory and counts its files.
+         *
+         * @return this node.
+         */
+        public Node call()
+            throws IOException
+        {
+            FileStatus[] status = fs.listStatus( new Path( path ) );
+            if ( status == null ) {
+                // removed since its parent was listed
+                dirs = 0L;
+                return this;
+            }
+            for ( FileStatus s : status ) {
+                if ( s.isDir() ) {
+                    subdirs.add( s.getPath().toUri().getPath() );
+                } else {
+                    length += s.getLen();
+                    files++;
+                    space += s.getLen() * s.getReplication();
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Adds totals in.
+         */
+        private void add( final long length, final long files,
+            final long dirs, final long space )
+        {
+            this.length += length;
+            this.files += files;
+            this.dirs += dirs;
+            this.space += space;
+        }
+
+        /**
+         * @return the totals.
+         */
+        private ContentSummary toSummary()
+        {
+            return new ContentSummary( length, files, dirs, space );
+        }
+    }
+
+    // ** Private Data **
+
+    /** Lists the directories of all walks. */
+    private final ThreadPoolExecutor pool;
+
+    /** Time the totals of a directory are kept for, 0 for not at all. */
+    private final long maxAge;
+
+    /** Directories whose totals may be kept. */
+    private final int capacity;
+
+    /**
+     * Totals keyed on the path of their directory, in access order so that
+     * the first is the least recently used.  Guarded by itself, as are
+     * {@link #generation} and {@link #changes}.
+     */
+    private final LinkedHashMap<String, Cached> cache =
+        new LinkedHashMap<String, Cached>( 16, 0.75f, true );
+
+    /** Number of changes made so far. */
+    private long generation;
+
+    /** The latest changes, oldest first. */
+    private final LinkedList<Change> changes = new LinkedList<Change>();
+
+
+    // ** Constructors **
+
+    /**
+     * @param threads the threads listing directories.
+     * @param maxAge the time in milliseconds the totals of a directory are
+     * kept for, 0 for not at all.
+     * @param capacity the directories whose totals may be kept.
+     */
+    ContentSummaries( final int threads, final long maxAge,
+        final int capacity )
+    {
+        this.maxAge = maxAge;
+        this.capacity = capacity;
+        final AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor( threads, threads, 60L,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread( final Runnable r )
+                {
+                    Thread t = new Thread( r, "dfs-summary-"
+                        + count.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        pool.allowCoreThreadTimeOut( true );
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * Totals up the files and directories under a path.
+     *
+     * @param fs the file system.
+     * @param path a directory, or a file.
+     *
+     * @return the totals.
+     *
+     * @throws IOException if the path does not exist or a directory cannot
+     * be listed.
+     */
+    ContentSummary summarize( final FileSystem fs, final Path path )
+        throws IOException
+    {
+        FileStatus status = fs.getFileStatus( path );
+        if ( !status.isDir() ) {
+            return new ContentSummary( status.getLen(), 1L, 0L,
+                status.getLen() * status.getReplication() );
+        }
+        String root = status.getPath().toUri().getPath();
+        long start = System.currentTimeMillis();
+        long since;
+        synchronized ( cache ) {
+            Cached cached = lookup( root, start );
+            if ( cached != null ) {
+                return cached.summary;
+            }
+            since = generation;
+        }
+
+        Node top = new Node( fs, root, null );
+        List<Node> walked = walk( fs, top, start );
+        // children were walked after their parents, so going backwards
+        // every directory is complete before it is added to its parent
+        for ( int i = walked.size() - 1; i > 0; i-- ) {
+            Node node = walked.get( i );
+            node.parent.add( node.length, node.files, node.dirs, node.space );
+        }
+        store( walked, since, start );
+        return top.toSummary();
+    }
+
+    /**
+     * Drops the totals that a change to a file or an empty directory
+     * affects, those of the path and of its ancestors.
+     *
+     * @param fs the file system.
+     * @param path the path changed.
+     */
+    void changed( final FileSystem fs, final Path path )
+    {
+        invalidate( fs.makeQualified( path ).toUri().getPath(), false );
+    }
+
+    /**
+     * Drops the totals that removing or replacing everything under a path
+     * affects, those of its ancestors, of the path and of all under it.
+     *
+     * @param fs the file system.
+     * @param path the path changed.
+     */
+    void removed( final FileSystem fs, final Path path )
+    {
+        invalidate( fs.makeQualified( path ).toUri().getPath(), true );
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Lists every directory under <code>top</code> that has no kept
+     * totals, adding the kept totals of the others to their parents.
+     *
+     * @return the nodes walked, parents before their children.
+     */
+    private List<Node> walk( final FileSystem fs, final Node top,
+        final long now )
+        throws IOException
+    {
+        CompletionService<Node> done =
+            new ExecutorCompletionService<Node>( pool );
+        Set<Future<Node>> pending = new HashSet<Future<Node>>();
+        List<Node> walked = new ArrayList<Node>();
+        pending.add( done.submit( top ) );
+        try {
+            while ( !pending.isEmpty() ) {
+                Future<Node> future = done.take();
+                pending.remove( future );
+                Node node = future.get();
+                walked.add( node );
+                for ( String subdir : node.subdirs ) {
+                    Cached cached;
+                    synchronized ( cache ) {
+                        cached = lookup( subdir, now );
+                    }
+                    if ( cached != null ) {
+                        ContentSummary s = cached.summary;
+                        node.add( s.length, s.fileCount, s.directoryCount,
+                            s.spaceConsumed );
+                    } else {
+                        pending.add( done.submit(
+                            new Node( fs, subdir, node ) ) );
+                    }
+                }
+            }
+        } catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "interrupted summing "
+                + top.path );
+        } catch ( ExecutionException ee ) {
+            Throwable cause = ee.getCause();
+            if ( cause instanceof IOException ) {
+                throw ( IOException )cause;
+            }
+            IOException ioe = new IOException( "cannot sum " + top.path );
+            ioe.initCause( cause );
+            throw ioe;
+        } finally {
+            for ( Future<Node> future : pending ) {
+                future.cancel( true );
+            }
+        }
+        return walked;
+    }
+
+    /**
+     * Returns the kept totals of a directory, dropping them if they are too
+     * old.  Must be called holding the lock on {@link #cache}.
+     *
+     * @return the totals, or <code>null</code>.
+     */
+    private Cached lookup( final String path, final long now )
+    {
+        Cached cached = cache.get( path );
+        if ( cached != null && now - cached.counted >= maxAge ) {
+            cache.remove( path );
+            cached = null;
+        }
+        return cached;
+    }
+
+    /**
+     * Keeps the totals of the directories of a walk that no change made
+     * since it started may have affected.
+     *
+     * @param walked the nodes of the walk.
+     * @param since the generation when the walk started.
+     * @param counted when the walk started.
+     */
+    private void store( final List<Node> walked, final long since,
+        final long counted )
+    {
+        if ( maxAge <= 0L ) {
+            return;
+        }
+        synchronized ( cache ) {
+            List<Change> overlapping = new ArrayList<Change>();
+            if ( generation != since ) {
+                if ( changes.isEmpty()
+                    || changes.getFirst().generation > since + 1 ) {
+                    // some of the changes made meanwhile are forgotten
+                    return;
+                }
+                for ( Change change : changes ) {
+                    if ( change.generation > since ) {
+                        overlapping.add( change );
+                    }
+                }
+            }
+            for ( Node node : walked ) {
+                if ( node.dirs > 0L && !affected( node.path, overlapping ) ) {
+                    cache.put( node.path,
+                        new Cached( node.toSummary(), counted ) );
+                }
+            }
+            trim();
+        }
+    }
+
+    /**
+     * Records a change and drops the totals it affects.
+     *
+     * @param path the qualified path changed.
+     * @param subtree whether everything under it changed too.
+     */
+    private void invalidate( final String path, final boolean subtree )
+    {
+        synchronized ( cache ) {
+            generation++;
+            changes.addLast( new Change( generation, path, subtree ) );
+            if ( changes.size() > RECENT_CHANGES ) {
+                changes.removeFirst();
+            }
+            if ( cache.isEmpty() ) {
+                return;
+            }
+            String p = path;
+            while ( true ) {
+                cache.remove( p );
+                int slash = p.lastIndexOf( '/' );
+                if ( slash < 0 || p.length() == 1 ) {
+                    break;
+                }
+                p = slash == 0 ? "/" : p.substring( 0, slash );
+            }
+            if ( subtree ) {
+                Iterator<String> it = cache.keySet().iterator();
+                while ( it.hasNext() ) {
+                    if ( isUnder( it.next(), path ) ) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used totals while more than
+     * {@link #capacity} are kept.  Must be called holding the lock on
+     * {@link #cache}.
+     */
+    private void trim()
+    {
+        Iterator<Map.Entry<String, Cached>> it =
+            cache.entrySet().iterator();
+        while ( cache.size() > capacity && it.hasNext() ) {
+            it.next();
+            it.remove();
+        }
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * @return whether any of the changes may have changed the totals of
+     * <code>dir</code>: a change at or under it, or a change to a whole
+     * subtree it is in.
+     */
+    private static boolean affected( final String dir,
+        final List<Change> changes )
+    {
+        for ( Change change : changes ) {
+            if ( change.path.equals( dir ) || isUnder( change.path, dir )
+                || ( change.subtree && isUnder( dir, change.path ) ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether <code>path</code> is strictly under
+     * <code>dir</code>.
+     */
+    private static boolean isUnder( final String path, final String dir )
+    {
+        if ( dir.endsWith( "/" ) ) {
+            return path.length() > dir.length() && path.startsWith( dir );
+        }
+        return path.length() > dir.length() + 1 && path.startsWith( dir )
+            && path.charAt( dir.length() ) == '/';
+    }
+}
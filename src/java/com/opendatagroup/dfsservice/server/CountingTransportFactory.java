@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import com.facebook.thrift.transport.TTransport;
+import com.facebook.thrift.transport.TTransportException;
+import com.facebook.thrift.transport.TTransportFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport factory that counts the client connections a server has open.
+ * Used as the input transport factory of the server, it sees each accepted
+ * connection once and the server closes the transport when the client goes
+ * away.
+ */
+public class CountingTransportFactory extends TTransportFactory
+{
+    // ** Inner Classes **
+
+    /**
+     * Passes everything to the wrapped transport and counts the close.
+     */
+    private final class CountingTransport extends TTransport
+    {
+        /** The connection. */
+        private final TTransport transport;
+
+        /** Set on the first close, so a connection is uncounted once. */
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /**
+         * @param transport the connection.
+         */
+        private CountingTransport( final TTransport transport )
+        {
+            this.transport = transport;
+        }
+
+        /** {@inheritDoc} */
+        public boolean isOpen()
+        {
+            return transport.isOpen();
+        }
+
+        /** {@inheritDoc} */
+        public boolean peek()
+        {
+            return transport.peek();
+        }
+
+        /** {@inheritDoc} */
+        public void open()
+            throws TTransportException
+        {
+            transport.open();
+        }
+
+        /** {@inheritDoc} */
+        public void close()
+        {
+            if ( closed.compareAndSet( false, true ) ) {
+                openCount.decrementAndGet();
+            }
+            transport.close();
+        }
+
+        /** {@inheritDoc} */
+        public int read( final byte[] buf, final int off, final int len )
+            throws TTransportException
+        {
+            return transport.read( buf, off, len );
+        }
+
+        /** {@inheritDoc} */
+        public void write( final byte[] buf, final int off, final int len )
+            throws TTransportException
+        {
+            transport.write( buf, off, len );
+        }
+
+        /** {@inheritDoc} */
+        public void flush()
+            throws TTransportException
+        {
+            transport.flush();
+        }
+    }
+
+    // ** Private Data **
+
+    /** Wraps the accepted transport before it is counted. */
+    private final TTransportFactory factory;
+
+    /** Connections open. */
+    private final AtomicInteger openCount = new AtomicInteger();
+
+
+    // ** Constructors **
+
+    /**
+     * Counts plain transports.
+     */
+    public CountingTransportFactory()
+    {
+        this( new TTransportFactory() );
+    }
+
+    /**
+     * @param factory the factory whose transports are counted.
+     */
+    public CountingTransportFactory( final TTransportFactory factory )
+    {
+        this.factory = factory;
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public TTransport getTransport( final TTransport trans )
+    {
+        openCount.incrementAndGet();
+        return new CountingTransport( factory.getTransport( trans ) );
+    }
+
+    /**
+     * @return the connections open.
+     */
+    public int getOpenCount()
+    {
+        return openCount.get();
+    }
+}
@@ -0,0 +1,889 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.BlockLocation;
+import com.opendatagroup.dfsservice.ClientHandle;
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.ContentSummary;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsService;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.FileStatus;
+import com.opendatagroup.dfsservice.FollowResult;
+import com.opendatagroup.dfsservice.GrepResult;
+import com.opendatagroup.dfsservice.ModifiedListing;
+import com.opendatagroup.dfsservice.SharedRing;
+import com.opendatagroup.dfsservice.SplitResult;
+import com.opendatagroup.dfsservice.WatchResult;
+// end thrift-generated files
+
+import com.opendatagroup.dfsservice.util.StripedCounter;
+
+import com.facebook.thrift.TException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts a deadline on the calls a DfsService handler makes to the DFS, so
+ * a NameNode or DataNode that hangs cannot hold a server thread for good.
+ * <p>
+ * Only calls that are safe to abandon get a deadline: the listings,
+ * <code>stat</code> and the other lookups, and the positional reads, which
+ * change nothing and share no stream position with later calls.  The DFS
+ * part of such a call runs on a thread of a bounded pool while the
+ * connection's thread waits for it.  If the call is not done by its
+ * deadline, it is left to finish on its own and the client gets a
+ * <code>DfsServiceIOException</code> whose message starts with
+ * {@link Constants#TIMED_OUT}.  The pool thread is not interrupted, since
+ * that can close channels the DFS client shares with other calls.
+ * <code>open</code> has a deadline too, and a handle it returns after the
+ * deadline is closed rather than leaked.  Writes, <code>close</code>, the
+ * copies and the namespace changes always run to the end on the
+ * connection's thread: an abandoned write would overlap the next one on
+ * the same handle.
+ * <p>
+ * The deadline is the one the client set with <code>setCallTimeout</code>
+ * or else the server's default for the kind of call, and counts from when
+ * the request was read, so time spent waiting in interceptors uses it up
+ * too.  A kind of call with no default and no client timeout runs on the
+ * connection's thread as before.  So do long polls such as
+ * <code>follow</code>, which bound their own wait: running out of time
+ * while waiting for a file to grow says
+ * nothing about the DFS.
+ * <p>
+ * Timeouts feed a {@link CircuitBreaker}.  Once it opens, calls that would
+ * go to the DFS fail at once with a message starting with
+ * {@link Constants#UNAVAILABLE} until a probe call gets through, so a stuck
+ * DFS costs clients an error rather than a hung connection and the pool
+ * does not fill with abandoned calls.  The session calls never go to the
+ * pool.
+ */
+public class DeadlineHandler implements DfsService.Iface, DeadlineHandlerMBean
+{
+    // ** Public Static Inner Classes **
+
+    /**
+     * Settings of the deadlines.  Timeouts of 0 mean none.
+     */
+    public static class Options
+    {
+        /** Default timeout of lookups and open, in milliseconds. */
+        public long metadataTimeoutMillis = 30000L;
+
+        /** Default timeout of reads, in milliseconds. */
+        public long dataTimeoutMillis = 60000L;
+
+        /** Default timeout of grep, readSplit and contentSummary, in ms. */
+        public long bulkTimeoutMillis = 0L;
+
+        /** Most DFS calls running at once, abandoned ones included. */
+        public int backendThreads = 256;
+
+        /** Timeouts in a row that open the circuit breaker. */
+        public int breakerThreshold = 5;
+
+        /** How long the breaker stays open before probing, in ms. */
+        public long breakerOpenMillis = 10000L;
+    }
+
+    // ** Private Static Final Data **
+
+    /** Logger. */
+    private static final Log LOG =
+        LogFactory.getLog( DeadlineHandler.class.getName() );
+
+    // ** Private Static Inner Classes **
+
+    /**
+     * Disposes of the result of a call that finished after its deadline.
+     */
+    private interface Late<T>
+    {
+        /**
+         * @param result what the abandoned call returned.
+         *
+         * @throws Exception if it cannot be disposed of.
+         */
+        void discard( T result )
+            throws Exception;
+    }
+
+    // ** Private Data **
+
+    /** The handler doing the work. */
+    private final DfsService.Iface delegate;
+
+    /** Settings. */
+    private final Options options;
+
+    /** Runs the DFS calls. */
+    private final ThreadPoolExecutor pool;
+
+    /** Trips on timeouts. */
+    private final CircuitBreaker breaker;
+
+    /** DFS calls running on {@link #pool}. */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /** Calls that ran out of time. */
+    private final StripedCounter timedOut = new StripedCounter();
+
+    /** Calls failed by the open breaker. */
+    private final StripedCounter shortCircuited = new StripedCounter();
+
+
+    // ** Constructors **
+
+    /**
+     * @param delegate the handler to call.
+     * @param options the settings, which must not be changed afterwards.
+     */
+    public DeadlineHandler( final DfsService.Iface delegate,
+        final Options options )
+    {
+        this.delegate = delegate;
+        this.options = options;
+        this.breaker = new CircuitBreaker( options.breakerThreshold,
+            options.breakerOpenMillis );
+        final AtomicLong count = new AtomicLong();
+        this.pool = new ThreadPoolExecutor( options.backendThreads,
+            options.backendThreads, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread( final Runnable r )
+                {
+                    Thread t = new Thread( r, "dfs-backend-"
+                        + count.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        this.pool.allowCoreThreadTimeOut( true );
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public ClientHandle init( final String uri )
+        throws TException
+    {
+        return delegate.init( uri );
+    }
+
+    /** {@inheritDoc} */
+    public boolean login( final ClientHandle chandle, final String user,
+        final String password )
+        throws TException
+    {
+        return delegate.login( chandle, user, password );
+    }
+
+    /** {@inheritDoc} */
+    public boolean logout( final ClientHandle chandle )
+        throws TException
+    {
+        return delegate.logout( chandle );
+    }
+
+    /** {@inheritDoc} */
+    public boolean closeClient( final ClientHandle chandle )
+        throws TException
+    {
+        return delegate.closeClient( chandle );
+    }
+
+    /** {@inheritDoc} */
+    public boolean closeDfs()
+        throws TException
+    {
+        return delegate.closeDfs();
+    }
+
+    /** {@inheritDoc} */
+    public List<FileStatus> listFiles( final ClientHandle chandle,
+        final String path )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.LIST_FILES, new Callable<List<FileStatus>>() {
+            public List<FileStatus> call()
+                throws Exception
+            {
+                return delegate.listFiles( chandle, path );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public List<FileStatus> listFilesProjected( final ClientHandle chandle,
+        final String path, final int fields )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.LIST_FILES_PROJECTED,
+            new Callable<List<FileStatus>>() {
+                public List<FileStatus> call()
+                    throws Exception
+                {
+                    return delegate.listFilesProjected( chandle, path,
+                        fields );
+                }
+            } );
+    }
+
+    /** {@inheritDoc} */
+    public ModifiedListing listModifiedSince( final ClientHandle chandle,
+        final String path, final long mtime, final boolean recursive )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.LIST_MODIFIED_SINCE,
+            new Callable<ModifiedListing>() {
+                public ModifiedListing call()
+                    throws Exception
+                {
+                    return delegate.listModifiedSince( chandle, path, mtime,
+                        recursive );
+                }
+            } );
+    }
+
+    /** {@inheritDoc} */
+    public FileStatus stat( final ClientHandle chandle, final String path )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.STAT, new Callable<FileStatus>() {
+            public FileStatus call()
+                throws Exception
+            {
+                return delegate.stat( chandle, path );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public FileStatus statProjected( final ClientHandle chandle,
+        final String path, final int fields )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.STAT_PROJECTED, new Callable<FileStatus>() {
+            public FileStatus call()
+                throws Exception
+            {
+                return delegate.statProjected( chandle, path, fields );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public ContentSummary contentSummary( final ClientHandle chandle,
+        final String path )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.CONTENT_SUMMARY, new Callable<ContentSummary>() {
+            public ContentSummary call()
+                throws Exception
+            {
+                return delegate.contentSummary( chandle, path );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public List<BlockLocation> getBlockLocations( final ClientHandle chandle,
+        final String path, final long offset, final long length )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.GET_BLOCK_LOCATIONS,
+            new Callable<List<BlockLocation>>() {
+                public List<BlockLocation> call()
+                    throws Exception
+                {
+                    return delegate.getBlockLocations( chandle, path, offset,
+                        length );
+                }
+            } );
+    }
+
+    /** {@inheritDoc} */
+    public boolean mkdir( final ClientHandle chandle, final String path )
+        throws DfsServiceIOException, TException
+    {
+        return runToEnd( DfsOp.MKDIR, new Callable<Boolean>() {
+            public Boolean call()
+                throws Exception
+            {
+                return delegate.mkdir( chandle, path );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public boolean move( final ClientHandle chandle, final String oldpath,
+        final String newpath )
+        throws DfsServiceIOException, TException
+    {
+        return runToEnd( DfsOp.MOVE, new Callable<Boolean>() {
+            public Boolean call()
+                throws Exception
+            {
+                return delegate.move( chandle, oldpath, newpath );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public boolean remove( final ClientHandle chandle, final String path,
+        final boolean recursive )
+        throws DfsServiceIOException, TException
+    {
+        return runToEnd( DfsOp.REMOVE, new Callable<Boolean>() {
+            public Boolean call()
+                throws Exception
+            {
+                return delegate.remove( chandle, path, recursive );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public DfsHandle open( final ClientHandle chandle, final String filename,
+        final short mode )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.OPEN, new Callable<DfsHandle>() {
+            public DfsHandle call()
+                throws Exception
+            {
+                return delegate.open( chandle, filename, mode );
+            }
+        }, new Late<DfsHandle>() {
+            public void discard( final DfsHandle handle )
+                throws Exception
+            {
+                delegate.close( chandle, handle );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public boolean close( final ClientHandle chandle, final DfsHandle handle )
+        throws DfsServiceIOException, TException
+    {
+        return runToEnd( DfsOp.CLOSE, new Callable<Boolean>() {
+            public Boolean call()
+                throws Exception
+            {
+                return delegate.close( chandle, handle );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public String read( final ClientHandle chandle, final DfsHandle handle,
+        final long offset, final long len )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.READ, new Callable<String>() {
+            public String call()
+                throws Exception
+            {
+                return delegate.read( chandle, handle, offset, len );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public byte[] readBytes( final ClientHandle chandle,
+        final DfsHandle handle, final long offset, final long len )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.READ_BYTES, new Callable<byte[]>() {
+            public byte[] call()
+                throws Exception
+            {
+                return delegate.readBytes( chandle, handle, offset, len );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public SharedRing openSharedRing( final ClientHandle chandle,
+        final long size )
+        throws DfsServiceIOException, TException
+    {
+        return runToEnd( DfsOp.OPEN_SHARED_RING, new Callable<SharedRing>() {
+            public SharedRing call()
+                throws Exception
+            {
+                return delegate.openSharedRing( chandle, size );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public int readShared( final ClientHandle chandle, final DfsHandle handle,
+        final long offset, final int len, final long ringOffset )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.READ_SHARED, new Callable<Integer>() {
+            public Integer call()
+                throws Exception
+            {
+                return delegate.readShared( chandle, handle, offset, len,
+                    ringOffset );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public boolean write( final ClientHandle chandle, final DfsHandle handle,
+        final byte[] buf, final long offset, final long len )
+        throws DfsServiceIOException, TException
+    {
+        return runToEnd( DfsOp.WRITE, new Callable<Boolean>() {
+            public Boolean call()
+                throws Exception
+            {
+                return delegate.write( chandle, handle, buf, offset, len );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public boolean copyToLocalFile( final String src, final String dest )
+        throws DfsServiceIOException, TException
+    {
+        return runToEnd( DfsOp.COPY_TO_LOCAL_FILE, new Callable<Boolean>() {
+            public Boolean call()
+                throws Exception
+            {
+                return delegate.copyToLocalFile( src, dest );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public boolean copyFromLocalFile( final String src, final String dest )
+        throws DfsServiceIOException, TException
+    {
+        return runToEnd( DfsOp.COPY_FROM_LOCAL_FILE, new Callable<Boolean>() {
+            public Boolean call()
+                throws Exception
+            {
+                return delegate.copyFromLocalFile( src, dest );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public GrepResult grep( final ClientHandle chandle, final String path,
+        final String pattern, final boolean literal, final long offset,
+        final long end, final int maxMatches )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.GREP, new Callable<GrepResult>() {
+            public GrepResult call()
+                throws Exception
+            {
+                return delegate.grep( chandle, path, pattern, literal,
+                    offset, end, maxMatches );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public SplitResult readSplit( final ClientHandle chandle,
+        final String path, final long offset, final long length,
+        final String delimiter )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.READ_SPLIT, new Callable<SplitResult>() {
+            public SplitResult call()
+                throws Exception
+            {
+                return delegate.readSplit( chandle, path, offset, length,
+                    delimiter );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public FollowResult follow( final ClientHandle chandle, final String path,
+        final long offset, final long maxBytes, final long waitMillis )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.FOLLOW, new Callable<FollowResult>() {
+            public FollowResult call()
+                throws Exception
+            {
+                return delegate.follow( chandle, path, offset, maxBytes,
+                    waitMillis );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public long watch( final ClientHandle chandle, final String path )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.WATCH, new Callable<Long>() {
+            public Long call()
+                throws Exception
+            {
+                return delegate.watch( chandle, path );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public WatchResult pollEvents( final ClientHandle chandle,
+        final String path, final long cursor, final int maxEvents,
+        final long waitMillis )
+        throws DfsServiceIOException, TException
+    {
+        return run( DfsOp.POLL_EVENTS, new Callable<WatchResult>() {
+            public WatchResult call()
+                throws Exception
+            {
+                return delegate.pollEvents( chandle, path, cursor, maxEvents,
+                    waitMillis );
+            }
+        } );
+    }
+
+    /** {@inheritDoc} */
+    public boolean unwatch( final ClientHandle chandle, final String path )
+        throws TException
+    {
+        return delegate.unwatch( chandle, path );
+    }
+
+    /** {@inheritDoc} */
+    public void setTraceId( final ClientHandle chandle,
+        final String traceId )
+        throws TException
+    {
+        delegate.setTraceId( chandle, traceId );
+    }
+
+    /** {@inheritDoc} */
+    public void setCallTimeout( final ClientHandle chandle,
+        final long timeoutMillis )
+        throws TException
+    {
+        delegate.setCallTimeout( chandle, timeoutMillis );
+    }
+
+    /** {@inheritDoc} */
+    public String getBreakerState()
+    {
+        return breaker.getState().name();
+    }
+
+    /** {@inheritDoc} */
+    public long getBreakerOpenCount()
+    {
+        return breaker.getOpenCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getTimedOutCount()
+    {
+        return timedOut.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getShortCircuitedCount()
+    {
+        return shortCircuited.get();
+    }
+
+    /** {@inheritDoc} */
+    public int getBackendCallsRunning()
+    {
+        return running.get();
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Makes the DFS part of a call within its deadline.
+     *
+     * @param op the operation.
+     * @param task calls the delegate, and must be safe to abandon.
+     *
+     * @return the result of the delegate.
+     *
+     * @throws DfsServiceIOException if the delegate failed, the call ran
+     * out of time or the breaker is open.
+     */
+    private <T> T run( final DfsOp op, final Callable<T> task )
+        throws DfsServiceIOException, TException
+    {
+        return run( op, task, null );
+    }
+
+    /**
+     * Makes the DFS part of a call within its deadline.
+     *
+     * @param op the operation.
+     * @param task calls the delegate.
+     * @param late disposes of a result that comes after the deadline, or
+     * <code>null</code> if there is nothing to dispose of.
+     *
+     * @return the result of the delegate.
+     *
+     * @throws DfsServiceIOException if the delegate failed, the call ran
+     * out of time or the breaker is open.
+     */
+    private <T> T run( final DfsOp op, final Callable<T> task,
+        final Late<T> late )
+        throws DfsServiceIOException, TException
+    {
+        checkBreaker( op );
+        DfsCall call = DfsCall.current();
+        long timeout = op.getKind() == DfsOp.Kind.WAIT ? 0L
+            : call != null && call.getTimeoutMillis() > 0L
+            ? call.getTimeoutMillis() : defaultTimeout( op );
+        if ( timeout <= 0L ) {
+            return callHere( task );
+        }
+
+        long now = System.nanoTime();
+        long received = call != null ? call.getReceivedNanos() : now;
+        long remaining = TimeUnit.MILLISECONDS.toNanos( timeout )
+            - ( now - received );
+        if ( remaining <= 0L ) {
+            // used up before the DFS was asked, so not the DFS's fault
+            timedOut.increment();
+            throw timedOut( op, timeout );
+        }
+
+        // set by whichever of the waiter giving up and the task finishing
+        // comes first
+        final AtomicBoolean settled = new AtomicBoolean();
+        Future<T> future;
+        try {
+            future = pool.submit( new Callable<T>() {
+                public T call()
+                    throws Exception
+                {
+                    running.incrementAndGet();
+                    try {
+                        T result = task.call();
+                        if ( !settled.compareAndSet( false, true )
+                            && late != null && result != null ) {
+                            discard( op, late, result );
+                        }
+                        return result;
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            } );
+        } catch ( RejectedExecutionException ree ) {
+            throw new DfsServiceIOException( Constants.OVERLOADED
+                + op.getRpcName() + " refused, all "
+                + options.backendThreads + " DFS threads are busy" );
+        }
+
+        try {
+            T result;
+            try {
+                result = future.get( remaining, TimeUnit.NANOSECONDS );
+            } catch ( TimeoutException te ) {
+                if ( settled.compareAndSet( false, true ) ) {
+                    // no interrupt: it could close channels the DFS
+                    // client shares with other calls
+                    timedOut.increment();
+                    breaker.failed();
+                    throw timedOut( op, timeout );
+                }
+                // finished just now and its result is the caller's
+                result = future.get();
+            }
+            breaker.succeeded();
+            return result;
+        } catch ( ExecutionException ee ) {
+            // the DFS answered, even if with an error
+            breaker.succeeded();
+            return DeadlineHandler.<T>rethrow( ee.getCause() );
+        } catch ( InterruptedException ie ) {
+            if ( !settled.compareAndSet( false, true ) && late != null ) {
+                // it finished as we gave up, so its result is ours to
+                // dispose of, and no more than a return away
+                T result = finished( future );
+                if ( result != null ) {
+                    discard( op, late, result );
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw new DfsServiceIOException( op.getRpcName()
+                + " interrupted" );
+        }
+    }
+
+    /**
+     * Makes a call that is not safe to abandon, without a deadline, on the
+     * connection's thread.
+     *
+     * @param op the operation.
+     * @param task calls the delegate.
+     *
+     * @return the result of the delegate.
+     *
+     * @throws DfsServiceIOException if the delegate failed or the breaker
+     * is open.
+     */
+    private <T> T runToEnd( final DfsOp op, final Callable<T> task )
+        throws DfsServiceIOException, TException
+    {
+        checkBreaker( op );
+        return callHere( task );
+    }
+
+    /**
+     * Fails a call at once while the breaker is open.
+     */
+    private void checkBreaker( final DfsOp op )
+        throws DfsServiceIOException
+    {
+        if ( !breaker.allow() ) {
+            shortCircuited.increment();
+            throw new DfsServiceIOException( Constants.UNAVAILABLE
+                + op.getRpcName() + " failed at once, the DFS has stopped "
+                + "answering" );
+        }
+    }
+
+    /**
+     * Makes a call on the current thread.
+     */
+    private <T> T callHere( final Callable<T> task )
+        throws DfsServiceIOException, TException
+    {
+        try {
+            T result = task.call();
+            breaker.succeeded();
+            return result;
+        } catch ( Exception e ) {
+            return DeadlineHandler.<T>rethrow( e );
+        }
+    }
+
+    /**
+     * @return the server's timeout for an operation, 0 for none.
+     */
+    private long defaultTimeout( final DfsOp op )
+    {
+        switch ( op.getKind() ) {
+        case METADATA:
+            return options.metadataTimeoutMillis;
+        case DATA:
+            return options.dataTimeoutMillis;
+        case BULK:
+            return options.bulkTimeoutMillis;
+        default:
+            return 0L;
+        }
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * Disposes of the result of an abandoned call, logging if it fails.
+     */
+    private static <T> void discard( final DfsOp op, final Late<T> late,
+        final T result )
+    {
+        try {
+            late.discard( result );
+        } catch ( Exception e ) {
+            LOG.warn( "DeadlineHandler: cannot clean up after "
+                + op.getRpcName() + " that finished past its deadline", e );
+        }
+    }
+
+    /**
+     * @return the error of a call that ran out of time.
+     */
+    private static DfsServiceIOException timedOut( final DfsOp op,
+        final long timeout )
+    {
+        return new DfsServiceIOException( Constants.TIMED_OUT
+            + op.getRpcName() + " did not complete within " + timeout
+            + " ms" );
+    }
+
+    /**
+     * Waits, ignoring interrupts, for a call that has already finished.
+     *
+     * @return its result, or <code>null</code> if it failed.
+     */
+    private static <T> T finished( final Future<T> future )
+    {
+        while ( true ) {
+            try {
+                return future.get();
+            } catch ( InterruptedException ie ) {
+                // the caller restores the interrupt
+            } catch ( ExecutionException ee ) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Throws what the delegate threw, wrapping checked exceptions it
+     * cannot declare.
+     */
+    private static <T> T rethrow( final Throwable t )
+        throws DfsServiceIOException, TException
+    {
+        if ( t instanceof DfsServiceIOException ) {
+            throw ( DfsServiceIOException )t;
+        }
+        if ( t instanceof TException ) {
+            throw ( TException )t;
+        }
+        if ( t instanceof RuntimeException ) {
+            throw ( RuntimeException )t;
+        }
+        if ( t instanceof Error ) {
+            throw ( Error )t;
+        }
+        throw new DfsServiceIOException( "Server-side exception of " + t );
+    }
+}
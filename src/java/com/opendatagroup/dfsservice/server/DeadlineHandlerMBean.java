@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+/**
+ * JMX view of a {@link DeadlineHandler}.
+ */
+public interface DeadlineHandlerMBean
+{
+    /** @return the state of the circuit breaker. */
+    String getBreakerState();
+
+    /** @return the times the circuit breaker has opened. */
+    long getBreakerOpenCount();
+
+    /** @return calls that ran out of time since start. */
+    long getTimedOutCount();
+
+    /** @return calls failed at once by the open breaker since start. */
+    long getShortCircuitedCount();
+
+    /** @return DFS calls running, including abandoned ones. */
+    int getBackendCallsRunning();
+}
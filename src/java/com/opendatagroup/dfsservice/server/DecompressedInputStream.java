@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.io.compress.CompressionCodec;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The uncompressed content of a compressed file as a positionable stream,
+ * so a handle opened with <code>DECOMPRESS</code> is read with the same
+ * <code>read</code> and <code>readBytes</code> code as any other.
+ * <p>
+ * Reads that follow each other continue decompressing where the last one
+ * stopped.  For any other offset, gzip and zlib files start from the
+ * closest point before it in their {@link SeekIndex}; other codecs, such as
+ * bzip2, start again from the beginning of the file if the offset is
+ * behind the current position.
+ */
+final class DecompressedInputStream extends FSInputStream
+{
+    // ** Private Static Final Data **
+
+    /** Size of the buffer used to skip forward. */
+    private static final int SKIP_BUFFER = 64 * 1024;
+
+    // ** Private Data **
+
+    /** The compressed file. */
+    private final FSDataInputStream raw;
+
+    /** Codec of the file. */
+    private final CompressionCodec codec;
+
+    /** Framing if the file is decoded by {@link DeflateDecoder}. */
+    private final DeflateDecoder.Format format;
+
+    /** Seek points for {@link #format}, or <code>null</code>. */
+    private final SeekIndex index;
+
+    /** Decompressed content from the current point, or <code>null</code>. */
+    private InputStream decoded;
+
+    /** Uncompressed offset {@link #decoded} is at. */
+    private long decodedPos;
+
+    /** Uncompressed offset of the next read. */
+    private long pos;
+
+    /** Used to skip forward, allocated on first use. */
+    private byte[] skipBuffer;
+
+
+    // ** Constructors **
+
+    /**
+     * @param raw the compressed file.
+     * @param codec the codec of the file.
+     * @param format the framing if the file is gzip or zlib, otherwise
+     * <code>null</code> to use <code>codec</code>.
+     * @param index seek points for a gzip or zlib file.
+     */
+    DecompressedInputStream( final FSDataInputStream raw,
+        final CompressionCodec codec, final DeflateDecoder.Format format,
+        final SeekIndex index )
+    {
+        this.raw = raw;
+        this.codec = codec;
+        this.format = format;
+        this.index = format != null ? index : null;
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public synchronized int read()
+        throws IOException
+    {
+        if ( !position() ) {
+            return -1;
+        }
+        int b = decoded.read();
+        if ( b >= 0 ) {
+            pos++;
+            decodedPos++;
+        }
+        return b;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized int read( final byte[] b, final int off,
+        final int len )
+        throws IOException
+    {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( !position() ) {
+            return -1;
+        }
+        int n = decoded.read( b, off, len );
+        if ( n > 0 ) {
+            pos += n;
+            decodedPos += n;
+        }
+        return n;
+    }
+
+    /**
+     * Reads from <code>position</code> and leaves the stream after the
+     * bytes read, unlike the inherited version, so that the next read in
+     * order does not have to seek back.
+     *
+     * @param position the uncompressed offset to read from.
+     * @param b where to put the bytes.
+     * @param off the first index in <code>b</code> to fill.
+     * @param len the most bytes to read.
+     *
+     * @return the bytes read, or <code>-1</code> at the end of the content.
+     *
+     * @throws IOException if the file cannot be read or decompressed.
+     */
+    public synchronized int read( final long position, final byte[] b,
+        final int off, final int len )
+        throws IOException
+    {
+        seek( position );
+        return read( b, off, len );
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void seek( final long target )
+        throws IOException
+    {
+        if ( target < 0 ) {
+            throw new IOException( "negative seek offset " + target );
+        }
+        pos = target;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long getPos()
+    {
+        return pos;
+    }
+
+    /** {@inheritDoc} */
+    public boolean seekToNewSource( final long targetPos )
+    {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void close()
+        throws IOException
+    {
+        decoded = null;
+        raw.close();
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Moves {@link #decoded} to {@link #pos}, from where it is if that is
+     * closest, otherwise from the best place to start decompressing.
+     *
+     * @return <code>false</code> if the content ends before {@link #pos}.
+     */
+    private boolean position()
+        throws IOException
+    {
+        if ( decoded != null && decodedPos == pos ) {
+            return true;
+        }
+        long from = decoded != null && decodedPos <= pos ? decodedPos : -1L;
+        SeekIndex.Point point = index != null ? index.floor( pos ) : null;
+        if ( point != null && point.offset > from ) {
+            raw.seek( point.bitOffset >>> 3 );
+            decoded = new DeflateDecoder( raw, format, index, point );
+            decodedPos = point.offset;
+        } else if ( from < 0 ) {
+            raw.seek( 0L );
+            decoded = format != null
+                ? new DeflateDecoder( raw, format, index )
+                : codec.createInputStream( raw );
+            decodedPos = 0L;
+        }
+
+        if ( skipBuffer == null && decodedPos < pos ) {
+            skipBuffer = new byte[SKIP_BUFFER];
+        }
+        while ( decodedPos < pos ) {
+            int n = decoded.read( skipBuffer, 0,
+                ( int )Math.min( skipBuffer.length, pos - decodedPos ) );
+            if ( n < 0 ) {
+                return false;
+            }
+            decodedPos += n;
+        }
+        return true;
+    }
+}
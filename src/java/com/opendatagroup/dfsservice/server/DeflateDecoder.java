@@ -0,0 +1,778 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Decompresses a gzip or zlib stream and records seek points in a
+ * {@link SeekIndex} as it goes.  <code>java.util.zip.Inflater</code> cannot
+ * say where a deflate block starts nor be started in the middle of a
+ * stream, so the decoding is done here: at the start of a block the decoder
+ * state is just the bit offset in the compressed file and the last 32 KB of
+ * output, and a decoder can be started from such a point with
+ * {@link #DeflateDecoder(InputStream, Format, SeekIndex, SeekIndex.Point)}.
+ * <p>
+ * Concatenated gzip members are read as one stream.  The gzip CRC and
+ * length and the zlib Adler-32 in the trailers are checked for every member
+ * the decoder reads from its header; a decoder started from a seek point
+ * has not seen the start of its member, so it only checks the members after
+ * it.
+ */
+final class DeflateDecoder extends InputStream
+{
+    // ** Package Static Inner Classes **
+
+    /** Framing around the deflate data. */
+    enum Format
+    {
+        /** RFC 1952, as written by gzip and GzipCodec. */
+        GZIP,
+        /** RFC 1950, as written by DefaultCodec. */
+        ZLIB
+    }
+
+    // ** Private Static Inner Classes **
+
+    /**
+     * A canonical Huffman code.  Codes up to {@link #FAST_BITS} long are
+     * decoded with one table lookup, longer ones a bit at a time.
+     */
+    private static final class Huffman
+    {
+        /** Number of codes of each length. */
+        private final short[] count = new short[MAX_BITS + 1];
+
+        /** Symbols ordered by code. */
+        private final short[] symbol;
+
+        /**
+         * Symbol and length, as <code>symbol &lt;&lt; 4 | length</code>, by
+         * the next {@link #FAST_BITS} bits of input; 0 for longer codes.
+         */
+        private final int[] fast = new int[1 << FAST_BITS];
+
+        /**
+         * @param lengths code length of each symbol, 0 if unused.
+         * @param off index of the first symbol's length.
+         * @param n number of symbols.
+         *
+         * @throws IOException if the lengths do not make a prefix code.
+         */
+        private Huffman( final byte[] lengths, final int off, final int n )
+            throws IOException
+        {
+            symbol = new short[n];
+            for ( int i = 0; i < n; i++ ) {
+                count[lengths[off + i]]++;
+            }
+            int left = 1;
+            for ( int len = 1; len <= MAX_BITS; len++ ) {
+                left = ( left << 1 ) - count[len];
+                if ( left < 0 ) {
+                    throw new IOException( "invalid Huffman code lengths" );
+                }
+            }
+            int[] offs = new int[MAX_BITS + 2];
+            for ( int len = 1; len <= MAX_BITS; len++ ) {
+                offs[len + 1] = offs[len] + count[len];
+            }
+            for ( int i = 0; i < n; i++ ) {
+                if ( lengths[off + i] != 0 ) {
+                    symbol[offs[lengths[off + i]]++] = ( short )i;
+                }
+            }
+
+            int code = 0;
+            int k = 0;
+            for ( int len = 1; len <= FAST_BITS; len++ ) {
+                for ( int i = 0; i < count[len]; i++ ) {
+                    int entry = symbol[k++] << 4 | len;
+                    for ( int j = reverse( code++, len ); j < fast.length;
+                            j += 1 << len ) {
+                        fast[j] = entry;
+                    }
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    // ** Private Static Final Data **
+
+    /** Bytes of history a back reference can reach. */
+    private static final int WINDOW = 32 * 1024;
+
+    /** Output ring: history plus output not yet read. */
+    private static final int RING = 2 * WINDOW;
+
+    /** Longest Huffman code. */
+    private static final int MAX_BITS = 15;
+
+    /** Codes decoded by table lookup. */
+    private static final int FAST_BITS = 9;
+
+    /** Bytes read from the compressed stream at a time. */
+    private static final int INPUT_BUFFER = 64 * 1024;
+
+    /** States of the decoder. */
+    private static final int HEADER = 0;
+    private static final int BLOCK = 1;
+    private static final int STORED = 2;
+    private static final int CODES = 3;
+    private static final int TRAILER = 4;
+    private static final int DONE = 5;
+
+    /** Base lengths of length codes 257 to 285. */
+    private static final short[] LENGTH_BASE = {
+        3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51,
+        59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+
+    /** Extra bits of length codes 257 to 285. */
+    private static final byte[] LENGTH_EXTRA = {
+        0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4,
+        4, 5, 5, 5, 5, 0 };
+
+    /** Base distances of distance codes 0 to 29. */
+    private static final int[] DIST_BASE = {
+        1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385,
+        513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385,
+        24577 };
+
+    /** Extra bits of distance codes 0 to 29. */
+    private static final byte[] DIST_EXTRA = {
+        0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10,
+        10, 11, 11, 12, 12, 13, 13 };
+
+    /** Order of the code length code lengths in a dynamic block. */
+    private static final byte[] CLEN_ORDER = {
+        16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+    /** Literal/length code of fixed blocks. */
+    private static final Huffman FIXED_LIT;
+
+    /** Distance code of fixed blocks. */
+    private static final Huffman FIXED_DIST;
+
+    static {
+        byte[] lengths = new byte[288];
+        for ( int i = 0; i < 288; i++ ) {
+            lengths[i] = ( byte )( i < 144 ? 8 : i < 256 ? 9 : i < 280
+                ? 7 : 8 );
+        }
+        byte[] dist = new byte[30];
+        Arrays.fill( dist, ( byte )5 );
+        try {
+            FIXED_LIT = new Huffman( lengths, 0, 288 );
+            FIXED_DIST = new Huffman( dist, 0, 30 );
+        } catch ( IOException ioe ) {
+            throw new ExceptionInInitializerError( ioe );
+        }
+    }
+
+    // ** Private Data **
+
+    /** Compressed input. */
+    private final InputStream in;
+
+    /** Framing of the input. */
+    private final Format format;
+
+    /** Where seek points are recorded, or <code>null</code>. */
+    private final SeekIndex index;
+
+    /** Compressed bytes read from {@link #in}. */
+    private final byte[] input = new byte[INPUT_BUFFER];
+
+    /** File offset of <code>input[0]</code>. */
+    private long inputStart;
+
+    /** Next byte of {@link #input}. */
+    private int inputPos;
+
+    /** Bytes in {@link #input}. */
+    private int inputLen;
+
+    /** Bits taken from the input but not used yet, lowest first. */
+    private long bitBuf;
+
+    /** Number of bits in {@link #bitBuf}. */
+    private int bitCount;
+
+    /** Output ring, indexed by uncompressed offset modulo its size. */
+    private final byte[] ring = new byte[RING];
+
+    /** Uncompressed offset of the next byte decoded. */
+    private long produced;
+
+    /** Uncompressed offset of the next byte returned by {@link #read}. */
+    private long consumed;
+
+    /** Lowest uncompressed offset held in {@link #ring}. */
+    private long history;
+
+    /** One of {@link #HEADER} to {@link #DONE}. */
+    private int state;
+
+    /** Whether the current block is the last of its stream. */
+    private boolean last;
+
+    /** Bytes left in the current stored block. */
+    private int storedLeft;
+
+    /** Literal/length code of the current block. */
+    private Huffman lit;
+
+    /** Distance code of the current block. */
+    private Huffman dist;
+
+    /**
+     * Checksum of the current member's output, or <code>null</code> if the
+     * decoder did not start at the member's header.
+     */
+    private Checksum checksum;
+
+    /** Uncompressed offset of the start of the current member. */
+    private long memberStart;
+
+    /** Uncompressed offset up to which {@link #checksum} is updated. */
+    private long checked;
+
+
+    // ** Constructors **
+
+    /**
+     * Decodes a stream from its start.
+     *
+     * @param in the compressed file, positioned at its first byte.
+     * @param format the framing.
+     * @param index where to record seek points, or <code>null</code>.
+     */
+    DeflateDecoder( final InputStream in, final Format format,
+        final SeekIndex index )
+    {
+        this.in = in;
+        this.format = format;
+        this.index = index;
+        this.state = HEADER;
+    }
+
+    /**
+     * Decodes a stream from a seek point.
+     *
+     * @param in the compressed file, positioned at the byte holding the
+     * point's first bit.
+     * @param format the framing.
+     * @param index where to record further seek points, or
+     * <code>null</code>.
+     * @param point where to start.
+     *
+     * @throws IOException if the input cannot be read.
+     */
+    DeflateDecoder( final InputStream in, final Format format,
+        final SeekIndex index, final SeekIndex.Point point )
+        throws IOException
+    {
+        this( in, format, index );
+        inputStart = point.bitOffset >>> 3;
+        bits( ( int )( point.bitOffset & 7 ) );
+        byte[] window = point.window;
+        history = point.offset - window.length;
+        for ( int i = 0; i < window.length; i++ ) {
+            ring[( int )( history + i ) & ( RING - 1 )] = window[i];
+        }
+        produced = point.offset;
+        consumed = point.offset;
+        state = BLOCK;
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public int read()
+        throws IOException
+    {
+        if ( consumed == produced && !fill() ) {
+            return -1;
+        }
+        return ring[( int )consumed++ & ( RING - 1 )] & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    public int read( final byte[] b, final int off, final int len )
+        throws IOException
+    {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( consumed == produced && !fill() ) {
+            return -1;
+        }
+        int n = ( int )Math.min( len, produced - consumed );
+        int start = ( int )consumed & ( RING - 1 );
+        int first = Math.min( n, RING - start );
+        System.arraycopy( ring, start, b, off, first );
+        System.arraycopy( ring, 0, b, off + first, n - first );
+        consumed += n;
+        return n;
+    }
+
+    /**
+     * Closes the compressed input.
+     *
+     * @throws IOException if it cannot be closed.
+     */
+    public void close()
+        throws IOException
+    {
+        in.close();
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Decodes until a window's worth of output is waiting or the stream
+     * ends.
+     *
+     * @return <code>false</code> at the end of the stream.
+     */
+    private boolean fill()
+        throws IOException
+    {
+        while ( state != DONE && produced - consumed < WINDOW ) {
+            switch ( state ) {
+            case HEADER:
+                header();
+                break;
+            case BLOCK:
+                block();
+                break;
+            case STORED:
+                stored();
+                break;
+            case CODES:
+                codes();
+                break;
+            default:
+                trailer();
+                break;
+            }
+            if ( checksum != null ) {
+                // no step decodes more than the ring holds beyond the
+                // last update, so nothing is overwritten unchecked
+                check();
+            }
+        }
+        return produced > consumed;
+    }
+
+    /**
+     * Reads a gzip member or zlib header.
+     */
+    private void header()
+        throws IOException
+    {
+        if ( format == Format.ZLIB ) {
+            int cmf = bits( 8 );
+            int flg = bits( 8 );
+            if ( ( cmf & 0x0f ) != 8 || ( cmf << 8 | flg ) % 31 != 0 ) {
+                throw new IOException( "not in zlib format" );
+            }
+            if ( ( flg & 0x20 ) != 0 ) {
+                throw new IOException( "zlib preset dictionary not supported" );
+            }
+        } else {
+            if ( bits( 8 ) != 0x1f || bits( 8 ) != 0x8b ) {
+                throw new IOException( "not in gzip format" );
+            }
+            if ( bits( 8 ) != 8 ) {
+                throw new IOException( "unknown gzip compression method" );
+            }
+            int flg = bits( 8 );
+            // modification time, extra flags, operating system
+            bits( 32 );
+            bits( 16 );
+            if ( ( flg & 0x04 ) != 0 ) {
+                for ( int n = bits( 16 ); n > 0; n-- ) {
+                    bits( 8 );
+                }
+            }
+            if ( ( flg & 0x08 ) != 0 ) {
+                while ( bits( 8 ) != 0 ) {
+                    // file name
+                }
+            }
+            if ( ( flg & 0x10 ) != 0 ) {
+                while ( bits( 8 ) != 0 ) {
+                    // comment
+                }
+            }
+            if ( ( flg & 0x02 ) != 0 ) {
+                bits( 16 );
+            }
+        }
+        checksum = format == Format.ZLIB ? new Adler32() : new CRC32();
+        memberStart = produced;
+        checked = produced;
+        state = BLOCK;
+    }
+
+    /**
+     * Records a seek point if one is due and reads a block header.
+     */
+    private void block()
+        throws IOException
+    {
+        if ( index != null && index.wants( produced ) ) {
+            int n = ( int )Math.min( WINDOW, produced - history );
+            byte[] window = new byte[n];
+            for ( int i = 0; i < n; i++ ) {
+                window[i] = ring[( int )( produced - n + i ) & ( RING - 1 )];
+            }
+            index.add( new SeekIndex.Point( bitOffset(), produced, window ) );
+        }
+
+        last = bits( 1 ) == 1;
+        switch ( bits( 2 ) ) {
+        case 0:
+            align();
+            int len = bits( 16 );
+            if ( ( len ^ 0xffff ) != bits( 16 ) ) {
+                throw new IOException( "invalid stored block length" );
+            }
+            storedLeft = len;
+            state = STORED;
+            break;
+        case 1:
+            lit = FIXED_LIT;
+            dist = FIXED_DIST;
+            state = CODES;
+            break;
+        case 2:
+            dynamic();
+            state = CODES;
+            break;
+        default:
+            throw new IOException( "invalid block type" );
+        }
+    }
+
+    /**
+     * Reads the code lengths of a dynamic block and builds its codes.
+     */
+    private void dynamic()
+        throws IOException
+    {
+        int nlen = bits( 5 ) + 257;
+        int ndist = bits( 5 ) + 1;
+        int ncode = bits( 4 ) + 4;
+        if ( nlen > 286 || ndist > 30 ) {
+            throw new IOException( "too many length or distance codes" );
+        }
+        byte[] lengths = new byte[19];
+        for ( int i = 0; i < ncode; i++ ) {
+            lengths[CLEN_ORDER[i]] = ( byte )bits( 3 );
+        }
+        Huffman lencode = new Huffman( lengths, 0, 19 );
+
+        lengths = new byte[nlen + ndist];
+        int i = 0;
+        while ( i < nlen + ndist ) {
+            int sym = decode( lencode );
+            if ( sym < 16 ) {
+                lengths[i++] = ( byte )sym;
+                continue;
+            }
+            byte len = 0;
+            int repeat;
+            if ( sym == 16 ) {
+                if ( i == 0 ) {
+                    throw new IOException( "repeat with no first length" );
+                }
+                len = lengths[i - 1];
+                repeat = 3 + bits( 2 );
+            } else if ( sym == 17 ) {
+                repeat = 3 + bits( 3 );
+            } else {
+                repeat = 11 + bits( 7 );
+            }
+            if ( i + repeat > nlen + ndist ) {
+                throw new IOException( "too many code lengths" );
+            }
+            while ( repeat-- > 0 ) {
+                lengths[i++] = len;
+            }
+        }
+        if ( lengths[256] == 0 ) {
+            throw new IOException( "no end-of-block code" );
+        }
+        lit = new Huffman( lengths, 0, nlen );
+        dist = new Huffman( lengths, nlen, ndist );
+    }
+
+    /**
+     * Copies bytes of a stored block until it ends or enough output is
+     * waiting.
+     */
+    private void stored()
+        throws IOException
+    {
+        while ( storedLeft > 0 && produced - consumed < WINDOW ) {
+            ring[( int )produced++ & ( RING - 1 )] = ( byte )bits( 8 );
+            storedLeft--;
+        }
+        if ( storedLeft == 0 ) {
+            state = last ? TRAILER : BLOCK;
+        }
+    }
+
+    /**
+     * Decodes literals and back references until the block ends or enough
+     * output is waiting.
+     */
+    private void codes()
+        throws IOException
+    {
+        while ( produced - consumed < WINDOW ) {
+            int sym = decode( lit );
+            if ( sym < 256 ) {
+                ring[( int )produced++ & ( RING - 1 )] = ( byte )sym;
+                continue;
+            }
+            if ( sym == 256 ) {
+                state = last ? TRAILER : BLOCK;
+                return;
+            }
+            sym -= 257;
+            if ( sym >= LENGTH_BASE.length ) {
+                throw new IOException( "invalid length code" );
+            }
+            int len = LENGTH_BASE[sym] + bits( LENGTH_EXTRA[sym] );
+            int d = decode( dist );
+            if ( d >= DIST_BASE.length ) {
+                throw new IOException( "invalid distance code" );
+            }
+            int distance = DIST_BASE[d] + bits( DIST_EXTRA[d] );
+            if ( distance > produced - history ) {
+                throw new IOException( "invalid distance too far back" );
+            }
+            long from = produced - distance;
+            for ( int i = 0; i < len; i++ ) {
+                ring[( int )produced++ & ( RING - 1 )] =
+                    ring[( int )from++ & ( RING - 1 )];
+            }
+        }
+    }
+
+    /**
+     * Checks the trailer, if the whole member was seen, and moves on to the
+     * next gzip member, if any.
+     *
+     * @throws IOException if the output does not match the trailer.
+     */
+    private void trailer()
+        throws IOException
+    {
+        align();
+        if ( format == Format.ZLIB ) {
+            // the only big-endian field in either format
+            int adler = Integer.reverseBytes( bits( 32 ) );
+            if ( checksum != null && ( int )checksum.getValue() != adler ) {
+                throw new IOException( "incorrect data check" );
+            }
+            state = DONE;
+            return;
+        }
+        int crc = bits( 32 );
+        int size = bits( 32 );
+        if ( checksum != null ) {
+            if ( ( int )checksum.getValue() != crc ) {
+                throw new IOException( "incorrect data check" );
+            }
+            if ( ( int )( produced - memberStart ) != size ) {
+                throw new IOException( "incorrect length check" );
+            }
+        }
+        // anything but another member after the trailer, such as zero
+        // padding, is ignored as gzip does
+        state = peek() == 0x1f ? HEADER : DONE;
+    }
+
+    /**
+     * Adds the output decoded since the last call to {@link #checksum}.
+     */
+    private void check()
+    {
+        int n = ( int )( produced - checked );
+        if ( n == 0 ) {
+            return;
+        }
+        int start = ( int )checked & ( RING - 1 );
+        int first = Math.min( n, RING - start );
+        checksum.update( ring, start, first );
+        checksum.update( ring, 0, n - first );
+        checked = produced;
+    }
+
+    /**
+     * @return the next symbol of <code>h</code>.
+     */
+    private int decode( final Huffman h )
+        throws IOException
+    {
+        if ( bitCount < MAX_BITS ) {
+            refill();
+        }
+        int entry = h.fast[( int )bitBuf & ( ( 1 << FAST_BITS ) - 1 )];
+        if ( entry != 0 && ( entry & 0x0f ) <= bitCount ) {
+            bitBuf >>>= entry & 0x0f;
+            bitCount -= entry & 0x0f;
+            return entry >>> 4;
+        }
+
+        // one bit at a time, as in zlib's puff.c
+        int code = 0;
+        int first = 0;
+        int idx = 0;
+        for ( int len = 1; len <= MAX_BITS; len++ ) {
+            code |= bits( 1 );
+            int count = h.count[len];
+            if ( code - count < first ) {
+                return h.symbol[idx + ( code - first )];
+            }
+            idx += count;
+            first = ( first + count ) << 1;
+            code <<= 1;
+        }
+        throw new IOException( "invalid Huffman code" );
+    }
+
+    /**
+     * Takes <code>n</code> bits, up to 32, from the input.
+     *
+     * @throws EOFException if the input ends first.
+     */
+    private int bits( final int n )
+        throws IOException
+    {
+        while ( bitCount < n ) {
+            int b = nextByte();
+            if ( b < 0 ) {
+                throw new EOFException( "unexpected end of compressed data" );
+            }
+            bitBuf |= ( long )b << bitCount;
+            bitCount += 8;
+        }
+        int v = ( int )( bitBuf & ( ( 1L << n ) - 1 ) );
+        bitBuf >>>= n;
+        bitCount -= n;
+        return v;
+    }
+
+    /**
+     * Tops up {@link #bitBuf} as far as the input allows.
+     */
+    private void refill()
+        throws IOException
+    {
+        while ( bitCount <= 56 ) {
+            int b = nextByte();
+            if ( b < 0 ) {
+                return;
+            }
+            bitBuf |= ( long )b << bitCount;
+            bitCount += 8;
+        }
+    }
+
+    /**
+     * @return the next input byte without taking it, or <code>-1</code>
+     * at the end of the input.  Must be called on a byte boundary.
+     */
+    private int peek()
+        throws IOException
+    {
+        if ( bitCount == 0 ) {
+            int b = nextByte();
+            if ( b < 0 ) {
+                return -1;
+            }
+            bitBuf = b;
+            bitCount = 8;
+        }
+        return ( int )bitBuf & 0xff;
+    }
+
+    /**
+     * Drops the bits up to the next byte boundary.
+     */
+    private void align()
+        throws IOException
+    {
+        bits( bitCount & 7 );
+    }
+
+    /**
+     * @return the next byte of the input, or <code>-1</code> at its end.
+     */
+    private int nextByte()
+        throws IOException
+    {
+        if ( inputPos == inputLen ) {
+            int n = in.read( input, 0, input.length );
+            if ( n <= 0 ) {
+                return -1;
+            }
+            inputStart += inputLen;
+            inputPos = 0;
+            inputLen = n;
+        }
+        return input[inputPos++] & 0xff;
+    }
+
+    /**
+     * @return the offset in bits of the next unused input bit.
+     */
+    private long bitOffset()
+    {
+        return ( inputStart + inputPos ) * 8L - bitCount;
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * @return the low <code>len</code> bits of <code>code</code> reversed.
+     */
+    private static int reverse( final int code, final int len )
+    {
+        int r = 0;
+        for ( int i = 0; i < len; i++ ) {
+            r = r << 1 | ( code >>> i & 1 );
+        }
+        return r;
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.ClientHandle;
+import com.opendatagroup.dfsservice.DfsHandle;
+// end thrift-generated files
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The call an {@link InterceptingHandler} is running on the current thread,
+ * as seen by its {@link DfsInterceptor}s.  One instance per thread is
+ * reused for every call, so recording a call allocates nothing; an
+ * interceptor must not keep a reference to it past
+ * {@link DfsInterceptor#after}.
+ * <p>
+ * Each call gets a request id that is unique within the server, and
+ * carries the trace id the client set with <code>setTraceId</code>, if
+ * any.  Besides the time the handler was entered and left, the call
+ * records when its request was read off the connection, which a
+ * {@link TracingProtocolFactory} notes, so the time spent decoding the
+ * request can be told apart from the time in the handler.
+ */
+public final class DfsCall
+{
+    // ** Private Static Final Data **
+
+    /** The instance of each thread. */
+    private static final ThreadLocal<DfsCall> CURRENT =
+        new ThreadLocal<DfsCall>() {
+            protected DfsCall initialValue()
+            {
+                return new DfsCall();
+            }
+        };
+
+    /** Hands each thread a block of request ids of its own. */
+    private static final AtomicLong ID_BLOCKS = new AtomicLong();
+
+    // ** Private Data **
+
+    /** Next request id of this thread. */
+    private long nextRequestId = ID_BLOCKS.incrementAndGet() << 32;
+
+    /** Trace id set by <code>setTraceId</code> for the next call. */
+    private String nextTraceId;
+
+    /** Timeout set by <code>setCallTimeout</code> for the next call. */
+    private long nextTimeoutMillis;
+
+    /** Time the next call was read off the connection, if noted. */
+    private long nextReceivedNanos;
+
+    /**
+     * Client handle last passed on the connection this thread serves,
+     * <code>null</code> if none yet.
+     */
+    private ClientHandle connectionClient;
+
+    /** Request id of the call. */
+    private long requestId;
+
+    /** Trace id of the call, <code>null</code> if none was set. */
+    private String traceId;
+
+    /** Timeout the client set for the call, <code>0</code> if none. */
+    private long timeoutMillis;
+
+    /** The operation. */
+    private DfsOp op;
+
+    /** Client handle passed to the call, <code>null</code> if none. */
+    private ClientHandle clientHandle;
+
+    /** Path the call names, <code>null</code> if none. */
+    private String path;
+
+    /** File handle the call names, <code>null</code> if none. */
+    private DfsHandle dfsHandle;
+
+    /** Bytes the call asks to read or write, <code>0</code> if none. */
+    private long requestedBytes;
+
+    /**
+     * {@link System#nanoTime} when the request was read off the
+     * connection, the same as {@link #startNanos} if not known.
+     */
+    private long receivedNanos;
+
+    /** {@link System#nanoTime} when the handler was entered. */
+    private long startNanos;
+
+    /**
+     * {@link System#nanoTime} when every interceptor had let the call
+     * through and the handler was called.
+     */
+    private long admittedNanos;
+
+    /** {@link System#nanoTime} when the handler returned. */
+    private long endNanos;
+
+    /** Whether the handler returned normally. */
+    private boolean succeeded;
+
+    /** File bytes returned to the client or copied out of the DFS. */
+    private long bytesRead;
+
+    /** File bytes received from the client or copied into the DFS. */
+    private long bytesWritten;
+
+    /** Whether a call is in progress. */
+    private boolean active;
+
+
+    // ** Constructors **
+
+    /**
+     * Only created through {@link #CURRENT}.
+     */
+    private DfsCall()
+    {
+    }
+
+
+    // ** Public Static Methods **
+
+    /**
+     * @return the call in progress on this thread, or <code>null</code> if
+     * the thread is not inside an {@link InterceptingHandler} call.
+     */
+    public static DfsCall current()
+    {
+        DfsCall call = CURRENT.get();
+        return call.active ? call : null;
+    }
+
+
+    // ** Public Methods **
+
+    /** @return the id of the call, unique within the server. */
+    public long getRequestId()
+    {
+        return requestId;
+    }
+
+    /**
+     * @return the trace id the client set for the call, <code>null</code>
+     * if none.
+     */
+    public String getTraceId()
+    {
+        return traceId;
+    }
+
+    /**
+     * @return the time the client gave the call with
+     * <code>setCallTimeout</code>, in milliseconds, <code>0</code> if none.
+     */
+    public long getTimeoutMillis()
+    {
+        return timeoutMillis;
+    }
+
+    /** @return the operation. */
+    public DfsOp getOp()
+    {
+        return op;
+    }
+
+    /** @return the client handle passed, <code>null</code> if none. */
+    public ClientHandle getClientHandle()
+    {
+        return clientHandle;
+    }
+
+    /**
+     * @return the client handle passed to the call or, for calls that take
+     * none such as the copies, the last one passed on the same connection;
+     * <code>null</code> if there has been none.
+     */
+    public ClientHandle getConnectionClient()
+    {
+        return clientHandle != null ? clientHandle : connectionClient;
+    }
+
+    /** @return the path the call names, <code>null</code> if none. */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /** @return the file handle the call names, <code>null</code> if none. */
+    public DfsHandle getDfsHandle()
+    {
+        return dfsHandle;
+    }
+
+    /**
+     * @return the bytes a read or write asks to move, or <code>0</code> for
+     * other calls.
+     */
+    public long getRequestedBytes()
+    {
+        return requestedBytes;
+    }
+
+    /**
+     * @return {@link System#nanoTime} when the request was read off the
+     * connection, or {@link #getStartNanos} if the server does not note it.
+     */
+    public long getReceivedNanos()
+    {
+        return receivedNanos;
+    }
+
+    /** @return {@link System#nanoTime} when the handler was entered. */
+    public long getStartNanos()
+    {
+        return startNanos;
+    }
+
+    /**
+     * @return {@link System#nanoTime} when every interceptor had let the
+     * call through, so the time since {@link #getStartNanos} is the time
+     * the call waited to be admitted; only meaningful in
+     * {@link DfsInterceptor#after}.
+     */
+    public long getAdmittedNanos()
+    {
+        return admittedNanos;
+    }
+
+    /**
+     * @return {@link System#nanoTime} when the handler returned; only
+     * meaningful in {@link DfsInterceptor#after}.
+     */
+    public long getEndNanos()
+    {
+        return endNanos;
+    }
+
+    /**
+     * @return whether the handler returned normally; only meaningful in
+     * {@link DfsInterceptor#after}.
+     */
+    public boolean isSucceeded()
+    {
+        return succeeded;
+    }
+
+    /**
+     * @return file bytes returned to the client, or copied out of the DFS
+     * by <code>copyToLocalFile</code>.
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * @return file bytes received from the client, or copied into the DFS
+     * by <code>copyFromLocalFile</code>.
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * @return this thread's instance, whether or not a call is in progress.
+     */
+    static DfsCall thread()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Notes that a request has been read off the connection served by this
+     * thread.
+     *
+     * @param nanos {@link System#nanoTime} when it was read.
+     */
+    static void received( final long nanos )
+    {
+        CURRENT.get().nextReceivedNanos = nanos;
+    }
+
+    /**
+     * Notes that this thread has started serving a new connection, so
+     * nothing noted for the previous one carries over.
+     */
+    static void connected()
+    {
+        DfsCall call = CURRENT.get();
+        call.nextTraceId = null;
+        call.nextTimeoutMillis = 0L;
+        call.nextReceivedNanos = 0L;
+        call.connectionClient = null;
+    }
+
+    /**
+     * Sets the trace id of the next call made on this thread, which serves
+     * one connection.
+     *
+     * @param traceId the id, <code>null</code> to clear it.
+     */
+    static void setNextTraceId( final String traceId )
+    {
+        CURRENT.get().nextTraceId = traceId;
+    }
+
+    /**
+     * Sets the timeout of the next call made on this thread, which serves
+     * one connection.
+     *
+     * @param millis the timeout, <code>0</code> to clear it.
+     */
+    static void setNextTimeout( final long millis )
+    {
+        CURRENT.get().nextTimeoutMillis = Math.max( 0L, millis );
+    }
+
+    /**
+     * Starts a call on this thread's instance.
+     *
+     * @param op the operation.
+     * @param clientHandle the client handle passed, <code>null</code> if
+     * none.
+     * @param path the path passed, <code>null</code> if none.
+     * @param dfsHandle the file handle passed, <code>null</code> if none.
+     * @param requestedBytes the length passed to a read or write,
+     * <code>0</code> for other calls.
+     */
+    static DfsCall begin( final DfsOp op, final ClientHandle clientHandle,
+        final String path, final DfsHandle dfsHandle,
+        final long requestedBytes )
+    {
+        DfsCall call = start( op, clientHandle, path, dfsHandle,
+            requestedBytes );
+        call.traceId = call.nextTraceId;
+        call.nextTraceId = null;
+        call.timeoutMillis = call.nextTimeoutMillis;
+        call.nextTimeoutMillis = 0L;
+        return call;
+    }
+
+    /**
+     * Starts a <code>setTraceId</code> or <code>setCallTimeout</code> call
+     * on this thread's instance.  Unlike {@link #begin}, it leaves the trace
+     * id and timeout set for the next call alone, so a client may send both
+     * before the call they are meant for.
+     *
+     * @param op the operation.
+     * @param clientHandle the client handle passed, <code>null</code> if
+     * none.
+     */
+    static DfsCall beginOption( final DfsOp op,
+        final ClientHandle clientHandle )
+    {
+        DfsCall call = start( op, clientHandle, null, null, 0L );
+        call.traceId = null;
+        call.timeoutMillis = 0L;
+        return call;
+    }
+
+    /**
+     * Marks the call as having returned normally.
+     *
+     * @param read file bytes returned to the client.
+     * @param written file bytes received from the client.
+     */
+    void succeed( final long read, final long written )
+    {
+        succeeded = true;
+        bytesRead = read;
+        bytesWritten = written;
+    }
+
+    /**
+     * Notes that the interceptors have let the call through.
+     */
+    void admitted()
+    {
+        admittedNanos = System.nanoTime();
+    }
+
+    /**
+     * Notes that the handler has returned or thrown.
+     */
+    void returned()
+    {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * Ends the call.  The fields keep their values until {@link #clear} or
+     * the next call, so the call can still be traced once its response has
+     * been sent.
+     */
+    void end()
+    {
+        active = false;
+    }
+
+    /**
+     * Forgets the call once it is fully done, so a request that never
+     * reaches a handler is not mistaken for it.
+     */
+    void clear()
+    {
+        op = null;
+        clientHandle = null;
+        path = null;
+        dfsHandle = null;
+        traceId = null;
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * Resets this thread's instance for a new call, apart from its trace
+     * id and timeout.
+     */
+    private static DfsCall start( final DfsOp op,
+        final ClientHandle clientHandle, final String path,
+        final DfsHandle dfsHandle, final long requestedBytes )
+    {
+        DfsCall call = CURRENT.get();
+        call.requestId = call.nextRequestId++;
+        call.op = op;
+        call.clientHandle = clientHandle;
+        if ( clientHandle != null ) {
+            call.connectionClient = clientHandle;
+        }
+        call.path = path;
+        call.dfsHandle = dfsHandle;
+        call.requestedBytes = requestedBytes;
+        call.startNanos = System.nanoTime();
+        call.receivedNanos = call.nextReceivedNanos != 0L
+            ? call.nextReceivedNanos : call.startNanos;
+        call.nextReceivedNanos = 0L;
+        call.admittedNanos = call.startNanos;
+        call.endNanos = 0L;
+        call.succeeded = false;
+        call.bytesRead = 0L;
+        call.bytesWritten = 0L;
+        call.active = true;
+        return call;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+/**
+ * Observes, and may refuse, the calls made through an
+ * {@link InterceptingHandler}.  Both methods run on the thread serving the
+ * call, so they must be cheap and thread-safe.
+ */
+public interface DfsInterceptor
+{
+    /**
+     * Called before the handler.  Throwing refuses the call: the client
+     * gets the exception, the handler is not called and
+     * {@link #after} is still called on the interceptors that came before
+     * this one.  Only calls whose {@link DfsOp#isRejectable} is true may be
+     * refused; for the others the exception is logged and ignored.
+     *
+     * @param call the call about to run.
+     *
+     * @throws DfsServiceIOException to refuse the call.
+     */
+    void before( DfsCall call )
+        throws DfsServiceIOException;
+
+    /**
+     * Called after the handler returns or throws, or after a later
+     * interceptor refused the call.
+     *
+     * @param call the call that ran.
+     */
+    void after( DfsCall call );
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import com.opendatagroup.dfsservice.util.LatencyHistogram;
+import com.opendatagroup.dfsservice.util.StripedCounter;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts and times every DfsService call, as a {@link DfsInterceptor}.
+ * Each method has a {@link DfsOpMetrics} with latency histograms for
+ * successes and failures; server-wide there are the calls in progress, the
+ * file bytes moved, and gauges for open connections, clients and files,
+ * plus the counters of the read cache when it is enabled.
+ * <p>
+ * The work done on the call path is two striped counter increments and one
+ * histogram update, all lock-free and without allocation; gauges that need
+ * to walk a collection are only computed when read.  The figures are
+ * published as MBeans by {@link #register} and as text by {@link #format},
+ * which {@link MetricsHttpServer} serves.
+ */
+public class DfsMetrics implements DfsInterceptor, DfsMetricsMBean
+{
+    // ** Public Static Final Data **
+
+    /** JMX domain of the MBeans. */
+    public static final String DOMAIN = "com.opendatagroup.dfsservice";
+
+    // ** Private Data **
+
+    /** Handler whose clients and files are reported, may be null. */
+    private final DfsServer.DfsHandler handler;
+
+    /** Counts connections, may be null. */
+    private final CountingTransportFactory connections;
+
+    /** Per-method figures, indexed by {@link DfsOp#ordinal}. */
+    private final DfsOpMetrics[] ops;
+
+    /** Calls started. */
+    private final StripedCounter started = new StripedCounter();
+
+    /** Calls finished. */
+    private final StripedCounter finished = new StripedCounter();
+
+    /** File bytes returned to clients. */
+    private final StripedCounter bytesRead = new StripedCounter();
+
+    /** File bytes received from clients. */
+    private final StripedCounter bytesWritten = new StripedCounter();
+
+
+    // ** Constructors **
+
+    /**
+     * @param handler the handler whose open clients and files are reported,
+     * <code>null</code> to leave those gauges at 0.
+     * @param connections the input transport factory of the server,
+     * <code>null</code> to leave the connection gauges at 0.
+     */
+    public DfsMetrics( final DfsServer.DfsHandler handler,
+        final CountingTransportFactory connections )
+    {
+        this.handler = handler;
+        this.connections = connections;
+        DfsOp[] all = DfsOp.values();
+        ops = new DfsOpMetrics[all.length];
+        for ( int i = 0; i < all.length; i++ ) {
+            ops[i] = new DfsOpMetrics( all[i] );
+        }
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public void before( final DfsCall call )
+    {
+        started.increment();
+    }
+
+    /** {@inheritDoc} */
+    public void after( final DfsCall call )
+    {
+        ops[call.getOp().ordinal()].record( call.isSucceeded(),
+            call.getEndNanos() - call.getStartNanos() );
+        if ( call.getBytesRead() != 0L ) {
+            bytesRead.add( call.getBytesRead() );
+        }
+        if ( call.getBytesWritten() != 0L ) {
+            bytesWritten.add( call.getBytesWritten() );
+        }
+        finished.increment();
+    }
+
+    /**
+     * @param op an operation.
+     *
+     * @return the figures of <code>op</code>.
+     */
+    public DfsOpMetrics getOpMetrics( final DfsOp op )
+    {
+        return ops[op.ordinal()];
+    }
+
+    /** {@inheritDoc} */
+    public long getCallCount()
+    {
+        return started.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getCallsInProgress()
+    {
+        // read finished first so a call ending in between is not negative
+        long done = finished.get();
+        return Math.max( 0L, started.get() - done );
+    }
+
+    /** {@inheritDoc} */
+    public long getConnections()
+    {
+        return connections == null ? 0L : connections.getOpenCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getIdleConnections()
+    {
+        return Math.max( 0L, getConnections() - getCallsInProgress() );
+    }
+
+    /** {@inheritDoc} */
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getBytesWritten()
+    {
+        return bytesWritten.get();
+    }
+
+    /** {@inheritDoc} */
+    public int getOpenClients()
+    {
+        return handler == null ? 0 : handler.getClientCount();
+    }
+
+    /** {@inheritDoc} */
+    public int getOpenFiles()
+    {
+        return handler == null ? 0 : handler.getOpenFileCount();
+    }
+
+    /** {@inheritDoc} */
+    public void resetLatencies()
+    {
+        for ( DfsOpMetrics m : ops ) {
+            m.reset();
+        }
+    }
+
+    /**
+     * Registers this object as <code>DOMAIN:type=DfsServer</code> and each
+     * method as <code>DOMAIN:type=Rpc,name=&lt;method&gt;</code> with the
+     * platform MBean server.
+     *
+     * @throws JMException if an MBean cannot be registered, e.g. because a
+     * second server in the same JVM already did.
+     */
+    public void register()
+        throws JMException
+    {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        mbs.registerMBean( this, new ObjectName( DOMAIN + ":type=DfsServer" ) );
+        for ( DfsOpMetrics m : ops ) {
+            mbs.registerMBean( m, new ObjectName( DOMAIN + ":type=Rpc,name="
+                + m.getName() ) );
+        }
+    }
+
+    /**
+     * Writes all figures in the plain-text exposition format understood by
+     * Prometheus and most other scrapers.  Latencies are in seconds.
+     *
+     * @param out where to write.
+     */
+    public void format( final StringBuilder out )
+    {
+        gauge( out, "thriftstore_calls_total", "counter", getCallCount() );
+        gauge( out, "thriftstore_calls_in_progress", "gauge",
+            getCallsInProgress() );
+        gauge( out, "thriftstore_connections", "gauge", getConnections() );
+        gauge( out, "thriftstore_idle_connections", "gauge",
+            getIdleConnections() );
+        gauge( out, "thriftstore_read_bytes_total", "counter",
+            getBytesRead() );
+        gauge( out, "thriftstore_written_bytes_total", "counter",
+            getBytesWritten() );
+        gauge( out, "thriftstore_open_clients", "gauge", getOpenClients() );
+        gauge( out, "thriftstore_open_files", "gauge", getOpenFiles() );
+
+        LocalFileCacheMBean cache = handler == null ? null
+            : handler.getCache();
+        if ( cache != null ) {
+            gauge( out, "thriftstore_cache_hits_total", "counter",
+                cache.getHits() );
+            gauge( out, "thriftstore_cache_misses_total", "counter",
+                cache.getMisses() );
+            gauge( out, "thriftstore_cache_hit_ratio", "gauge",
+                cache.getHitRatio() );
+            gauge( out, "thriftstore_cache_fills_total", "counter",
+                cache.getFills() );
+            gauge( out, "thriftstore_cache_evictions_total", "counter",
+                cache.getEvictions() );
+            gauge( out, "thriftstore_cache_used_bytes", "gauge",
+                cache.getUsedBytes() );
+            gauge( out, "thriftstore_cache_capacity_bytes", "gauge",
+                cache.getCapacity() );
+        }
+
+        out.append( "# TYPE thriftstore_rpc_seconds summary\n" );
+        for ( DfsOpMetrics m : ops ) {
+            summary( out, m.getName(), "ok", m.getSuccessHistogram() );
+            summary( out, m.getName(), "error", m.getFailureHistogram() );
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Writes a metric with a single value.
+     */
+    private static void gauge( final StringBuilder out, final String name,
+        final String type, final long value )
+    {
+        out.append( "# TYPE " ).append( name ).append( ' ' ).append( type )
+            .append( '\n' ).append( name ).append( ' ' ).append( value )
+            .append( '\n' );
+    }
+
+    /**
+     * Writes a metric with a single fractional value.
+     */
+    private static void gauge( final StringBuilder out, final String name,
+        final String type, final double value )
+    {
+        out.append( "# TYPE " ).append( name ).append( ' ' ).append( type )
+            .append( '\n' ).append( name ).append( ' ' ).append( value )
+            .append( '\n' );
+    }
+
+    /**
+     * Writes the quantiles, sum and count of one histogram.
+     */
+    private static void summary( final StringBuilder out, final String rpc,
+        final String outcome, final LatencyHistogram h )
+    {
+        String labels = "rpc=\"" + rpc + "\",outcome=\"" + outcome + "\"";
+        double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+        for ( double q : quantiles ) {
+            out.append( "thriftstore_rpc_seconds{" ).append( labels )
+                .append( ",quantile=\"" ).append( q ).append( "\"} " )
+                .append( h.getValueAtPercentile( q * 100.0 ) / 1e9 )
+                .append( '\n' );
+        }
+        out.append( "thriftstore_rpc_seconds_sum{" ).append( labels )
+            .append( "} " ).append( h.getSum() / 1e9 ).append( '\n' );
+        out.append( "thriftstore_rpc_seconds_count{" ).append( labels )
+            .append( "} " ).append( h.getCount() ).append( '\n' );
+    }
+}
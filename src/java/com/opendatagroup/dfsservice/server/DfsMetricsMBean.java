@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+/**
+ * JMX view of the server-wide figures kept by {@link DfsMetrics}.
+ */
+public interface DfsMetricsMBean
+{
+    /** @return calls received since start, over all methods. */
+    long getCallCount();
+
+    /** @return calls being served right now. */
+    long getCallsInProgress();
+
+    /** @return open client connections. */
+    long getConnections();
+
+    /**
+     * @return connections that are open but not in a call.  The server
+     * runs one worker thread per connection and has no request queue, so
+     * this, together with {@link #getCallsInProgress}, is what stands in
+     * for queue depth.
+     */
+    long getIdleConnections();
+
+    /** @return file bytes returned by read and readBytes. */
+    long getBytesRead();
+
+    /** @return file bytes accepted by write. */
+    long getBytesWritten();
+
+    /** @return clients that called init and have not closed. */
+    int getOpenClients();
+
+    /** @return file handles open over all clients. */
+    int getOpenFiles();
+
+    /** Clears the histograms of every method. */
+    void resetLatencies();
+}
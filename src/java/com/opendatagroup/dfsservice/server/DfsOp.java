@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+/**
+ * The operations of the DfsService interface, for code that treats every
+ * call the same way, e.g. the {@link DfsInterceptor}s of an
+ * {@link InterceptingHandler}.
+ */
+public enum DfsOp
+{
+    /** <code>init</code>. */
+    INIT( "init", false, Kind.SESSION ),
+    /** <code>login</code>. */
+    LOGIN( "login", false, Kind.SESSION ),
+    /** <code>logout</code>. */
+    LOGOUT( "logout", false, Kind.SESSION ),
+    /** <code>closeClient</code>. */
+    CLOSE_CLIENT( "closeClient", false, Kind.SESSION ),
+    /** <code>closeDfs</code>. */
+    CLOSE_DFS( "closeDfs", false, Kind.SESSION ),
+    /** <code>listFiles</code>. */
+    LIST_FILES( "listFiles", true, Kind.METADATA ),
+    /** <code>listModifiedSince</code>. */
+    LIST_MODIFIED_SINCE( "listModifiedSince", true, Kind.METADATA ),
+    /** <code>listFilesProjected</code>. */
+    LIST_FILES_PROJECTED( "listFilesProjected", true, Kind.METADATA ),
+    /** <code>stat</code>. */
+    STAT( "stat", true, Kind.METADATA ),
+    /** <code>statProjected</code>. */
+    STAT_PROJECTED( "statProjected", true, Kind.METADATA ),
+    /** <code>contentSummary</code>. */
+    CONTENT_SUMMARY( "contentSummary", true, Kind.BULK ),
+    /** <code>getBlockLocations</code>. */
+    GET_BLOCK_LOCATIONS( "getBlockLocations", true, Kind.METADATA ),
+    /** <code>mkdir</code>. */
+    MKDIR( "mkdir", true, Kind.METADATA ),
+    /** <code>move</code>. */
+    MOVE( "move", true, Kind.METADATA ),
+    /** <code>remove</code>. */
+    REMOVE( "remove", true, Kind.METADATA ),
+    /** <code>open</code>. */
+    OPEN( "open", true, Kind.METADATA ),
+    /** <code>close</code>. */
+    CLOSE( "close", true, Kind.METADATA ),
+    /** <code>read</code>. */
+    READ( "read", true, Kind.DATA ),
+    /** <code>readBytes</code>. */
+    READ_BYTES( "readBytes", true, Kind.DATA ),
+    /** <code>openSharedRing</code>. */
+    OPEN_SHARED_RING( "openSharedRing", true, Kind.METADATA ),
+    /** <code>readShared</code>. */
+    READ_SHARED( "readShared", true, Kind.DATA ),
+    /** <code>write</code>. */
+    WRITE( "write", true, Kind.DATA ),
+    /** <code>copyToLocalFile</code>. */
+    COPY_TO_LOCAL_FILE( "copyToLocalFile", true, Kind.BULK ),
+    /** <code>copyFromLocalFile</code>. */
+    COPY_FROM_LOCAL_FILE( "copyFromLocalFile", true, Kind.BULK ),
+    /** <code>grep</code>. */
+    GREP( "grep", true, Kind.BULK ),
+    /** <code>readSplit</code>. */
+    READ_SPLIT( "readSplit", true, Kind.BULK ),
+    /** <code>follow</code>. */
+    FOLLOW( "follow", true, Kind.WAIT ),
+    /** <code>watch</code>. */
+    WATCH( "watch", true, Kind.METADATA ),
+    /** <code>pollEvents</code>. */
+    POLL_EVENTS( "pollEvents", true, Kind.WAIT ),
+    /** <code>unwatch</code>. */
+    UNWATCH( "unwatch", false, Kind.SESSION ),
+    /** <code>setTraceId</code>. */
+    SET_TRACE_ID( "setTraceId", false, Kind.SESSION ),
+    /** <code>setCallTimeout</code>. */
+    SET_CALL_TIMEOUT( "setCallTimeout", false, Kind.SESSION );
+
+    // ** Public Static Inner Classes **
+
+    /**
+     * How much work an operation does, for scheduling.
+     */
+    public enum Kind
+    {
+        /** Session bookkeeping that never touches the DFS. */
+        SESSION,
+        /** Namespace and handle operations, cheap and latency sensitive. */
+        METADATA,
+        /** Reads and writes of part of a file. */
+        DATA,
+        /** Whole-file copies. */
+        BULK,
+        /** Long polls that spend most of their time waiting, not working. */
+        WAIT
+    }
+
+    // ** Private Data **
+
+    /** Name of the method in the IDL. */
+    private final String rpcName;
+
+    /** Whether the method declares DfsServiceIOException. */
+    private final boolean rejectable;
+
+    /** How much work the method does. */
+    private final Kind kind;
+
+
+    // ** Constructors **
+
+    /**
+     * @param rpcName the method name in the IDL.
+     * @param rejectable whether the method can fail with a
+     * DfsServiceIOException.
+     * @param kind how much work the method does.
+     */
+    private DfsOp( final String rpcName, final boolean rejectable,
+        final Kind kind )
+    {
+        this.rpcName = rpcName;
+        this.rejectable = rejectable;
+        this.kind = kind;
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * @return the name of the method in the IDL, e.g. <code>listFiles</code>.
+     */
+    public String getRpcName()
+    {
+        return rpcName;
+    }
+
+    /**
+     * @return whether the method declares <code>DfsServiceIOException</code>
+     * and so can be refused by an interceptor.  The session calls
+     * (<code>init</code>, <code>login</code> and so on) and the
+     * diagnostic and call option methods cannot.
+     */
+    public boolean isRejectable()
+    {
+        return rejectable;
+    }
+
+    /**
+     * @return how much work the method does.  A {@link Kind#DATA} call
+     * asking for many bytes may be treated as {@link Kind#BULK}, see
+     * {@link DfsCall#getRequestedBytes}.
+     */
+    public Kind getKind()
+    {
+        return kind;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import com.opendatagroup.dfsservice.util.LatencyHistogram;
+
+/**
+ * Latency histograms of one DfsService method, kept apart for calls that
+ * returned normally and calls that failed, since a fast failure would
+ * otherwise hide in the percentiles of the successes.
+ */
+public class DfsOpMetrics implements DfsOpMetricsMBean
+{
+    // ** Private Data **
+
+    /** The operation. */
+    private final DfsOp op;
+
+    /** Latencies of successful calls. */
+    private final LatencyHistogram success = new LatencyHistogram();
+
+    /** Latencies of failed calls. */
+    private final LatencyHistogram failure = new LatencyHistogram();
+
+
+    // ** Constructors **
+
+    /**
+     * @param op the operation measured.
+     */
+    public DfsOpMetrics( final DfsOp op )
+    {
+        this.op = op;
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * Records one call.
+     *
+     * @param succeeded whether the call returned normally.
+     * @param nanos how long it took.
+     */
+    public void record( final boolean succeeded, final long nanos )
+    {
+        ( succeeded ? success : failure ).record( nanos );
+    }
+
+    /** @return the operation measured. */
+    public DfsOp getOp()
+    {
+        return op;
+    }
+
+    /** @return the histogram of successful calls, in nanoseconds. */
+    public LatencyHistogram getSuccessHistogram()
+    {
+        return success;
+    }
+
+    /** @return the histogram of failed calls, in nanoseconds. */
+    public LatencyHistogram getFailureHistogram()
+    {
+        return failure;
+    }
+
+    /** {@inheritDoc} */
+    public String getName()
+    {
+        return op.getRpcName();
+    }
+
+    /** {@inheritDoc} */
+    public long getSuccessCount()
+    {
+        return success.getCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getFailureCount()
+    {
+        return failure.getCount();
+    }
+
+    /** {@inheritDoc} */
+    public double getMeanMicros()
+    {
+        return success.getMean() / 1000.0;
+    }
+
+    /** {@inheritDoc} */
+    public long getP50Micros()
+    {
+        return success.getValueAtPercentile( 50.0 ) / 1000L;
+    }
+
+    /** {@inheritDoc} */
+    public long getP99Micros()
+    {
+        return success.getValueAtPercentile( 99.0 ) / 1000L;
+    }
+
+    /** {@inheritDoc} */
+    public long getP999Micros()
+    {
+        return success.getValueAtPercentile( 99.9 ) / 1000L;
+    }
+
+    /** {@inheritDoc} */
+    public long getMaxMicros()
+    {
+        return success.getMax() / 1000L;
+    }
+
+    /** {@inheritDoc} */
+    public double getFailureMeanMicros()
+    {
+        return failure.getMean() / 1000.0;
+    }
+
+    /** {@inheritDoc} */
+    public long getFailureP99Micros()
+    {
+        return failure.getValueAtPercentile( 99.0 ) / 1000L;
+    }
+
+    /** {@inheritDoc} */
+    public void reset()
+    {
+        success.reset();
+        failure.reset();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+/**
+ * JMX view of the calls of one DfsService method, see {@link DfsOpMetrics}.
+ * Latencies are in microseconds.
+ */
+public interface DfsOpMetricsMBean
+{
+    /** @return the method name in the IDL. */
+    String getName();
+
+    /** @return calls that returned normally. */
+    long getSuccessCount();
+
+    /** @return calls that failed or were refused. */
+    long getFailureCount();
+
+    /** @return mean latency of successful calls. */
+    double getMeanMicros();
+
+    /** @return median latency of successful calls. */
+    long getP50Micros();
+
+    /** @return 99th percentile latency of successful calls. */
+    long getP99Micros();
+
+    /** @return 99.9th percentile latency of successful calls. */
+    long getP999Micros();
+
+    /** @return largest latency of a successful call. */
+    long getMaxMicros();
+
+    /** @return mean latency of failed calls. */
+    double getFailureMeanMicros();
+
+    /** @return 99th percentile latency of failed calls. */
+    long getFailureP99Micros();
+
+    /** Clears the counts and histograms. */
+    void reset();
+}
@@ -18,17 +18,30 @@
 package com.opendatagroup.dfsservice.server;
 
 // start thrift-generated files
+import com.opendatagroup.dfsservice.BlockLocation;
 import com.opendatagroup.dfsservice.Constants;
 import com.opendatagroup.dfsservice.ClientHandle;
+import com.opendatagroup.dfsservice.ContentSummary;
 import com.opendatagroup.dfsservice.DfsHandle;
 import com.opendatagroup.dfsservice.DfsService;
 import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.FollowResult;
+import com.opendatagroup.dfsservice.GrepResult;
+import com.opendatagroup.dfsservice.ModifiedListing;
+import com.opendatagroup.dfsservice.SharedRing;
+import com.opendatagroup.dfsservice.SplitResult;
+import com.opendatagroup.dfsservice.WatchResult;
 // end thrift-generated files
 
+import com.opendatagroup.dfsservice.util.DfsEvents;
+
+import com.facebook.thrift.TProcessor;
+import com.facebook.thrift.protocol.TBinaryProtocol;
 import com.facebook.thrift.server.TServer;
 import com.facebook.thrift.server.TThreadPoolServer;
 import com.facebook.thrift.transport.TServerSocket;
 import com.facebook.thrift.transport.TServerTransport;
+import com.facebook.thrift.transport.TTransportFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,22 +51,34 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.PatternSyntaxException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 // To avoid confusion, do not import and use fully-qualified name for these
 // classes:
@@ -77,6 +102,10 @@ public final class DfsServer
      */
     public static String HADOOP_DIR;
 
+    /** Server transport for Unix domain sockets, built by the uds target. */
+    private static final String UDS_TRANSPORT =
+        "com.opendatagroup.dfsservice.uds.UnixServerTransport";
+
     // ** Inner Classes **
 
     /**
@@ -93,6 +122,327 @@ public final class DfsServer
         /** Buffer size to use for read and write methods. */
         private static final int BUFFER_SIZE = 4096;
 
+        /**
+         * Configuration key for the local directory used to cache whole files
+         * read from the DFS.  Caching is disabled if this is not set.
+         */
+        public static final String CACHE_DIR_KEY = "thriftstore.cache.dir";
+
+        /** Configuration key for the disk budget of the read cache. */
+        public static final String CACHE_SIZE_KEY =
+            "thriftstore.cache.size.bytes";
+
+        /** Configuration key for the smallest file put in the read cache. */
+        public static final String CACHE_MIN_FILE_KEY =
+            "thriftstore.cache.min.file.bytes";
+
+        /** Configuration key for the number of cache fill threads. */
+        public static final String CACHE_FILL_THREADS_KEY =
+            "thriftstore.cache.fill.threads";
+
+        /**
+         * Configuration key for the local port serving the metrics as plain
+         * text.  The endpoint is disabled if this is not set.
+         */
+        public static final String METRICS_HTTP_PORT_KEY =
+            "thriftstore.metrics.http.port";
+
+        /** Configuration key for the address the metrics endpoint binds. */
+        public static final String METRICS_HTTP_ADDRESS_KEY =
+            "thriftstore.metrics.http.address";
+
+        /**
+         * Configuration key for the time in milliseconds above which a call
+         * is written to the slow-request log.  Negative turns the log off.
+         */
+        public static final String SLOWLOG_THRESHOLD_KEY =
+            "thriftstore.slowlog.threshold.ms";
+
+        /** Configuration key for the file of the slow-request log. */
+        public static final String SLOWLOG_FILE_KEY =
+            "thriftstore.slowlog.file";
+
+        /** Configuration key that turns on admission control. */
+        public static final String ADMISSION_ENABLED_KEY =
+            "thriftstore.admission.enabled";
+
+        /** Configuration key for the concurrency limit to start from. */
+        public static final String ADMISSION_INITIAL_LIMIT_KEY =
+            "thriftstore.admission.limit.initial";
+
+        /** Configuration key for the lowest concurrency limit. */
+        public static final String ADMISSION_MIN_LIMIT_KEY =
+            "thriftstore.admission.limit.min";
+
+        /** Configuration key for the highest concurrency limit. */
+        public static final String ADMISSION_MAX_LIMIT_KEY =
+            "thriftstore.admission.limit.max";
+
+        /** Configuration key for the most calls waiting for admission. */
+        public static final String ADMISSION_QUEUE_SIZE_KEY =
+            "thriftstore.admission.queue.size";
+
+        /** Configuration key for the longest wait for admission, in ms. */
+        public static final String ADMISSION_QUEUE_TIMEOUT_KEY =
+            "thriftstore.admission.queue.timeout.ms";
+
+        /**
+         * Configuration key for how many times the unloaded latency calls
+         * may take before the limit shrinks.
+         */
+        public static final String ADMISSION_TOLERANCE_KEY =
+            "thriftstore.admission.tolerance";
+
+        /** Configuration key that turns on the execution lanes. */
+        public static final String LANES_ENABLED_KEY =
+            "thriftstore.lanes.enabled";
+
+        /** Configuration key for the most metadata calls at once. */
+        public static final String LANES_METADATA_PERMITS_KEY =
+            "thriftstore.lanes.metadata.permits";
+
+        /** Configuration key for the most small reads and writes at once. */
+        public static final String LANES_DATA_PERMITS_KEY =
+            "thriftstore.lanes.data.permits";
+
+        /** Configuration key for the most bulk transfers at once. */
+        public static final String LANES_BULK_PERMITS_KEY =
+            "thriftstore.lanes.bulk.permits";
+
+        /**
+         * Configuration key for the size above which a read or write is
+         * a bulk transfer, in bytes.
+         */
+        public static final String LANES_BULK_THRESHOLD_KEY =
+            "thriftstore.lanes.bulk.threshold";
+
+        /** Configuration key for the most calls waiting in each lane. */
+        public static final String LANES_QUEUE_SIZE_KEY =
+            "thriftstore.lanes.queue.size";
+
+        /** Configuration key for the longest wait for a lane, in ms. */
+        public static final String LANES_QUEUE_TIMEOUT_KEY =
+            "thriftstore.lanes.queue.timeout.ms";
+
+        /** Configuration key that turns on per-client QoS limits. */
+        public static final String QOS_ENABLED_KEY =
+            "thriftstore.qos.enabled";
+
+        /** Configuration key for the bandwidth of each client handle. */
+        public static final String QOS_CLIENT_BYTES_KEY =
+            "thriftstore.qos.client.bytes.per.sec";
+
+        /** Configuration key for the request rate of each client handle. */
+        public static final String QOS_CLIENT_REQUESTS_KEY =
+            "thriftstore.qos.client.requests.per.sec";
+
+        /** Configuration key for the bandwidth of each user. */
+        public static final String QOS_USER_BYTES_KEY =
+            "thriftstore.qos.user.bytes.per.sec";
+
+        /** Configuration key for the request rate of each user. */
+        public static final String QOS_USER_REQUESTS_KEY =
+            "thriftstore.qos.user.requests.per.sec";
+
+        /** Configuration key for the bandwidth shared by all clients. */
+        public static final String QOS_SERVER_BYTES_KEY =
+            "thriftstore.qos.server.bytes.per.sec";
+
+        /** Configuration key for the seconds of burst a limit allows. */
+        public static final String QOS_BURST_KEY =
+            "thriftstore.qos.burst.seconds";
+
+        /** Configuration key for the longest QoS delay, in ms. */
+        public static final String QOS_MAX_WAIT_KEY =
+            "thriftstore.qos.max.wait.ms";
+
+        /** Configuration key that turns on deadlines for DFS calls. */
+        public static final String DEADLINE_ENABLED_KEY =
+            "thriftstore.deadline.enabled";
+
+        /** Configuration key for the default timeout of metadata calls. */
+        public static final String DEADLINE_METADATA_KEY =
+            "thriftstore.deadline.metadata.ms";
+
+        /** Configuration key for the default timeout of reads. */
+        public static final String DEADLINE_DATA_KEY =
+            "thriftstore.deadline.data.ms";
+
+        /** Configuration key for the default timeout of grep and similar. */
+        public static final String DEADLINE_BULK_KEY =
+            "thriftstore.deadline.bulk.ms";
+
+        /** Configuration key for the most DFS calls running at once. */
+        public static final String DEADLINE_THREADS_KEY =
+            "thriftstore.deadline.threads";
+
+        /** Configuration key for the timeouts in a row that fail fast. */
+        public static final String BREAKER_THRESHOLD_KEY =
+            "thriftstore.breaker.threshold";
+
+        /**
+         * Configuration key for how long calls fail fast before the DFS is
+         * tried again, in ms.
+         */
+        public static final String BREAKER_OPEN_KEY =
+            "thriftstore.breaker.open.ms";
+
+        /** Configuration key for the most matches one grep call returns. */
+        public static final String GREP_MAX_MATCHES_KEY =
+            "thriftstore.grep.max.matches";
+
+        /** Configuration key for the most bytes one grep call scans. */
+        public static final String GREP_PAGE_BYTES_KEY =
+            "thriftstore.grep.page.bytes";
+
+        /**
+         * Configuration key for the longest line grep keeps in memory; the
+         * rest of a longer line is not matched or returned.
+         */
+        public static final String GREP_MAX_LINE_KEY =
+            "thriftstore.grep.max.line";
+
+        /** Configuration key for the bytes after which a split page ends. */
+        public static final String SPLIT_PAGE_BYTES_KEY =
+            "thriftstore.split.page.bytes";
+
+        /** Configuration key for the longest record readSplit returns. */
+        public static final String SPLIT_MAX_RECORD_KEY =
+            "thriftstore.split.max.record";
+
+        /**
+         * Configuration key for the uncompressed bytes between the seek
+         * points kept for files read with DECOMPRESS.
+         */
+        public static final String DECOMPRESS_INDEX_SPAN_KEY =
+            "thriftstore.decompress.index.span";
+
+        /** Configuration key for the memory all seek points may take. */
+        public static final String DECOMPRESS_INDEX_BYTES_KEY =
+            "thriftstore.decompress.index.bytes";
+
+        /** Configuration key for the time between polls of followed files. */
+        public static final String FOLLOW_POLL_KEY =
+            "thriftstore.follow.poll.ms";
+
+        /**
+         * Configuration key for the bytes at the end of each followed file
+         * kept in memory for the followers.
+         */
+        public static final String FOLLOW_TAIL_BYTES_KEY =
+            "thriftstore.follow.tail.bytes";
+
+        /**
+         * Configuration key for the time after which a file nobody follows
+         * any more stops being polled.
+         */
+        public static final String FOLLOW_IDLE_KEY =
+            "thriftstore.follow.idle.ms";
+
+        /** Configuration key for the longest time one follow call waits. */
+        public static final String FOLLOW_MAX_WAIT_KEY =
+            "thriftstore.follow.max.wait.ms";
+
+        /** Configuration key for the most bytes one follow call returns. */
+        public static final String FOLLOW_MAX_BYTES_KEY =
+            "thriftstore.follow.max.bytes";
+
+        /** Configuration key for the time between listings of watched dirs. */
+        public static final String WATCH_SCAN_KEY =
+            "thriftstore.watch.scan.ms";
+
+        /**
+         * Configuration key for the delay before a watched directory changed
+         * through this server is listed again.
+         */
+        public static final String WATCH_SETTLE_KEY =
+            "thriftstore.watch.settle.ms";
+
+        /**
+         * Configuration key for the time after which a directory nobody
+         * watches or polls any more stops being listed.
+         */
+        public static final String WATCH_IDLE_KEY =
+            "thriftstore.watch.idle.ms";
+
+        /** Configuration key for the most events kept per directory. */
+        public static final String WATCH_MAX_EVENTS_KEY =
+            "thriftstore.watch.max.events";
+
+        /** Configuration key for the longest time one pollEvents waits. */
+        public static final String WATCH_MAX_WAIT_KEY =
+            "thriftstore.watch.max.wait.ms";
+
+        /**
+         * Configuration key for the longest time the last listing of a
+         * directory is used by listModifiedSince.
+         */
+        public static final String LISTING_SNAPSHOT_AGE_KEY =
+            "thriftstore.listing.snapshot.ms";
+
+        /**
+         * Configuration key for the entries the listings kept for
+         * listModifiedSince may hold.
+         */
+        public static final String LISTING_SNAPSHOT_ENTRIES_KEY =
+            "thriftstore.listing.snapshot.entries";
+
+        /**
+         * Configuration key for the most the DFS clock may be ahead of the
+         * server's, which holds back the high-water mark of
+         * listModifiedSince.
+         */
+        public static final String LISTING_CLOCK_SKEW_KEY =
+            "thriftstore.listing.clock.skew.ms";
+
+        /**
+         * Configuration key for the threads listing directories for
+         * contentSummary.
+         */
+        public static final String SUMMARY_THREADS_KEY =
+            "thriftstore.summary.threads";
+
+        /**
+         * Configuration key for the time the totals of a directory counted
+         * by contentSummary are kept for.
+         */
+        public static final String SUMMARY_CACHE_KEY =
+            "thriftstore.summary.cache.ms";
+
+        /**
+         * Configuration key for the directories whose totals
+         * contentSummary may keep.
+         */
+        public static final String SUMMARY_CACHE_ENTRIES_KEY =
+            "thriftstore.summary.cache.entries";
+
+        /**
+         * Configuration key for the directory the files of shared rings are
+         * created in.  Unset for <code>/dev/shm</code>.
+         */
+        public static final String SHARED_RING_DIR_KEY =
+            "thriftstore.shm.dir";
+
+        /**
+         * Configuration key for the largest shared ring a client may open,
+         * 0 to refuse them.
+         */
+        public static final String SHARED_RING_MAX_KEY =
+            "thriftstore.shm.ring.bytes";
+
+        /**
+         * Configuration key for the bytes all shared rings together may
+         * take.
+         */
+        public static final String SHARED_RING_TOTAL_KEY =
+            "thriftstore.shm.total.bytes";
+
+        /**
+         * Configuration key for the Unix domain socket the server also
+         * listens on.  Unset for TCP only.
+         */
+        public static final String UDS_PATH_KEY = "thriftstore.uds.path";
+
         // ** Private Data **
 
         /**
@@ -118,12 +468,50 @@ public final class DfsServer
             ConcurrentHashMap<Long, Object> > clienthandles =
                 new ConcurrentHashMap<Long, ConcurrentHashMap<Long, Object> >();
 
+        /** User each client logged in as, by client id. */
+        private ConcurrentHashMap<Long, String> users =
+            new ConcurrentHashMap<Long, String>();
+
         /** The Configuration resource. */
         private Configuration config;
 
         /** File System using {@link config}. */
         private FileSystem fs;
 
+        /**
+         * Local whole-file cache used by {@link #open} for reads, or
+         * <code>null</code> if caching is not configured.
+         */
+        private LocalFileCache cache;
+
+        /** Finds the codec of a file opened with DECOMPRESS. */
+        private CompressionCodecFactory codecs;
+
+        /** Seek points into the files opened with DECOMPRESS. */
+        private SeekIndexCache indexes;
+
+        /** Watches the files clients follow. */
+        private FileFollower follower;
+
+        /** Watches the directories clients watch. */
+        private DirectoryWatcher watcher;
+
+        /** Last listings of the directories listModifiedSince visits. */
+        private ListingSnapshots listings;
+
+        /** Totals of the directories contentSummary walks. */
+        private ContentSummaries summaries;
+
+        /**
+         * Paths of the files open for writing, by handle id, whose totals
+         * are dropped again once they are closed.
+         */
+        private ConcurrentHashMap<Long, Path> writing =
+            new ConcurrentHashMap<Long, Path>();
+
+        /** Memory-mapped files readShared places data in. */
+        private SharedRings rings;
+
 
         // ** Constructors **
 
@@ -132,19 +520,64 @@ public final class DfsServer
          */
         public DfsHandler()
         {
-            config = new Configuration();
-            // NOTE: order is import, properties declared in both are assigned
-            // the value defeine in the property file loaded last.
-            config.addResource( 
-                new Path( HADOOP_DIR + "/conf/hadoop-default.xml" ) );
-            config.addResource( 
-                new Path( HADOOP_DIR + "/conf/hadoop-site.xml" ) );
+            this( loadConfiguration() );
+        }
+
+        /**
+         * Uses the passed in Configuration as is, without reading the files
+         * under {@link DfsServer#HADOOP_DIR}.  This lets benchmarks and tools
+         * run the handler in process, e.g. against the local file system with
+         * <code>fs.default.name</code> set to <code>file:///</code>.
+         *
+         * @param conf the Hadoop configuration to use.
+         */
+        public DfsHandler( final Configuration conf )
+        {
+            config = conf;
 
             // client numbering starts at 1
             clientId = new AtomicLong( 1L );
 
             // file handle starts at something more random
             along = new AtomicLong( System.currentTimeMillis() );
+
+            String cacheDir = config.get( CACHE_DIR_KEY );
+            if ( cacheDir != null ) {
+                try {
+                    cache = new LocalFileCache( config, new File( cacheDir ),
+                        config.getLong( CACHE_SIZE_KEY, 10L << 30 ),
+                        config.getLong( CACHE_MIN_FILE_KEY, 1L << 20 ),
+                        config.getInt( CACHE_FILL_THREADS_KEY, 2 ) );
+                } catch ( IOException ioe ) {
+                    LOG.error( "DfsServer: cannot set up the read cache in "
+                        + cacheDir + ", reading from the DFS only", ioe );
+                }
+            }
+
+            codecs = new CompressionCodecFactory( config );
+            indexes = new SeekIndexCache(
+                config.getLong( DECOMPRESS_INDEX_SPAN_KEY, 4L << 20 ),
+                config.getLong( DECOMPRESS_INDEX_BYTES_KEY, 256L << 20 ) );
+            follower = new FileFollower(
+                config.getLong( FOLLOW_POLL_KEY, 1000L ),
+                config.getInt( FOLLOW_TAIL_BYTES_KEY, 1 << 20 ),
+                config.getLong( FOLLOW_IDLE_KEY, 60000L ) );
+            watcher = new DirectoryWatcher(
+                config.getLong( WATCH_SCAN_KEY, 5000L ),
+                config.getLong( WATCH_SETTLE_KEY, 100L ),
+                config.getLong( WATCH_IDLE_KEY, 60000L ),
+                config.getInt( WATCH_MAX_EVENTS_KEY, 10000 ) );
+            listings = new ListingSnapshots(
+                config.getLong( LISTING_SNAPSHOT_AGE_KEY, 30000L ),
+                config.getLong( LISTING_CLOCK_SKEW_KEY, 1000L ),
+                config.getLong( LISTING_SNAPSHOT_ENTRIES_KEY, 1000000L ) );
+            summaries = new ContentSummaries(
+                config.getInt( SUMMARY_THREADS_KEY, 8 ),
+                config.getLong( SUMMARY_CACHE_KEY, 60000L ),
+                config.getInt( SUMMARY_CACHE_ENTRIES_KEY, 100000 ) );
+            rings = new SharedRings( config.get( SHARED_RING_DIR_KEY ),
+                config.getLong( SHARED_RING_MAX_KEY, 67108864L ),
+                config.getLong( SHARED_RING_TOTAL_KEY, 1073741824L ) );
         }
 
 
@@ -213,6 +646,9 @@ public final class DfsServer
             try {
                 clienthandles.put(chandle.id,
                     new ConcurrentHashMap<Long, Object>()  );
+                if ( user != null ) {
+                    users.put( chandle.id, user );
+                }
                 LOG.debug( "DfsServer call to login with user=" + user
                     + " and password=" + hash( password ) );
             } catch ( NoSuchAlgorithmException nsae ) {
@@ -284,6 +720,11 @@ public final class DfsServer
                 result = false;
             }
             clienthandles.clear();
+            users.clear();
+
+            if ( cache != null ) {
+                LOG.info( "DfsServer.closeDfs: read cache " + cache.stats() );
+            }
 
             return result;
         }
@@ -309,30 +750,67 @@ public final class DfsServer
             throws DfsServiceIOException {
 
             LOG.debug( "DfsServer call to listFiles with path=" + path );
-            List<com.opendatagroup.dfsservice.FileStatus> stats =
-                new ArrayList<com.opendatagroup.dfsservice.FileStatus>();
+            return listStatus( "listFiles", path, Constants.FIELD_ALL );
+        }
+
+        /**
+         * Like {@link #listFiles}, but fills in only the fields of each
+         * status that the caller asked for.  Leaving out the permission,
+         * owner and group saves building their strings, which the local
+         * file system even looks up one entry at a time, and sending them.
+         *
+         * @param chandle the client handle.  This is ignored by the method and
+         * is included for interoperability.
+         * @param path the path to a file or directory.
+         * @param fields the <code>Constants.FIELD_</code> bits of the fields
+         * to fill in.
+         * @return list of file statuses.  This is never <code>null</code> but
+         * it may be empty.
+         * @throws DfsServiceIOException if there is a problem getting the file
+         * information from the File System or if the path does not exist.
+         */
+        public List<com.opendatagroup.dfsservice.FileStatus>
+            listFilesProjected( final ClientHandle chandle, final String path,
+                final int fields )
+            throws DfsServiceIOException {
+
+            LOG.debug( "DfsServer call to listFilesProjected with path=" + path
+                + " fields=" + fields );
+            return listStatus( "listFilesProjected", path, fields );
+        }
+
+        /**
+         * Lists the entries under <code>path</code> modified after
+         * <code>mtime</code>.  The last listing of each directory is kept
+         * and used again while the directory's modification time stays the
+         * same, see {@link ListingSnapshots}.
+         *
+         * @param chandle the client handle.  This is ignored by the method and
+         * is included for interoperability.
+         * @param path the directory to list, or a file.
+         * @param mtime the watermark; entries modified at or before it are
+         * left out.
+         * @param recursive whether to list the subdirectories too.
+         *
+         * @return the entries, with their full paths, and the watermark to
+         * pass to the next call.
+         * @throws DfsServiceIOException if the path does not exist or a
+         * directory cannot be listed.
+         */
+        public ModifiedListing listModifiedSince( final ClientHandle chandle,
+            final String path, final long mtime, final boolean recursive )
+            throws DfsServiceIOException {
+
+            LOG.debug( "DfsServer call to listModifiedSince with path=" + path
+                + " mtime=" + mtime + " recursive=" + recursive );
             try {
-                org.apache.hadoop.fs.FileStatus[] status =
-                    fs.listStatus( new Path( path ) );
-                if ( status != null ) {
-                    for ( int i = 0; i < status.length; i++ ) {
-                        stats.add( convertToThriftFileStatus( status[i] ) );
-                    }
-                } else {
-                    LOG.warn(
-                        "DfsServer.listFiles: listStatus returned null for " +
-                            path );
-                    throw new DfsServiceIOException(
-                        "listStatus cannot access " + path );
-                }
+                return listings.list( fs, new Path( path ), mtime, recursive );
             } catch ( IOException ioe ) {
-                LOG.error(
-                    "DfsServer.listFiles: caught io exception with path=" +
-                        path );
+                LOG.error( "DfsServer.listModifiedSince: caught io exception "
+                    + "with path=" + path );
                 throw new DfsServiceIOException( "Server-side IOException of " +
                     ioe.getMessage() );
             }
-            return stats;
         }
 
         /**
@@ -355,21 +833,108 @@ public final class DfsServer
             throws DfsServiceIOException {
 
             LOG.debug( "DfsServer call to stat with path=" + path );
+            return getStatus( "stat", path, Constants.FIELD_ALL );
+        }
+
+        /**
+         * Like {@link #stat}, but fills in only the fields that the caller
+         * asked for.
+         *
+         * @param chandle the client handle.  This is ignored by the method and
+         * is included for interoperability.
+         * @param path the path to a file or directory.
+         * @param fields the <code>Constants.FIELD_</code> bits of the fields
+         * to fill in.
+         *
+         * @return this is never <code>null</code> and an exception is thrown if
+         * any problem is encountered.
+         * @throws DfsServiceIOException if there is a problem getting the file
+         * information from the File System or if the path does not exist.
+         */
+        public com.opendatagroup.dfsservice.FileStatus statProjected(
+            final ClientHandle chandle, final String path, final int fields )
+            throws DfsServiceIOException {
+
+            LOG.debug( "DfsServer call to statProjected with path=" + path
+                + " fields=" + fields );
+            return getStatus( "statProjected", path, fields );
+        }
+
+        /**
+         * Totals up the files and directories under <code>path</code>.
+         * Directories are listed in parallel and their totals kept, see
+         * {@link ContentSummaries}.
+         *
+         * @param chandle the client handle.  This is ignored by the method and
+         * is included for interoperability.
+         * @param path the path to a file or directory.
+         *
+         * @return the totals.
+         * @throws DfsServiceIOException if the path does not exist or a
+         * directory cannot be listed.
+         */
+        public ContentSummary contentSummary( final ClientHandle chandle,
+            final String path )
+            throws DfsServiceIOException {
+
+            LOG.debug( "DfsServer call to contentSummary with path=" + path );
+            try {
+                return summaries.summarize( fs, new Path( path ) );
+            } catch ( IOException ioe ) {
+                LOG.error(
+                    "DfsServer.contentSummary: caught io exception with path="
+                        + path );
+                throw new DfsServiceIOException( "Server-side IOException of " +
+                    ioe.getMessage() );
+            }
+        }
+
+        /**
+         * Finds where the blocks of a file are stored.
+         *
+         * @param chandle the client handle.  This is ignored by the method and
+         * is included for interoperability.
+         * @param path the path to a file.
+         * @param offset the first byte of the range of interest.
+         * @param length the length of the range.
+         *
+         * @return the blocks holding the range in file order, with the hosts
+         * of their replicas.  This is empty if the range starts past the end
+         * of the file.
+         * @throws DfsServiceIOException if the path does not exist or is a
+         * directory, or the range is invalid.
+         */
+        public List<BlockLocation> getBlockLocations(
+            final ClientHandle chandle, final String path, final long offset,
+            final long length )
+            throws DfsServiceIOException {
+
+            LOG.debug( "DfsServer call to getBlockLocations with path=" + path
+                + " offset=" + offset + " length=" + length );
+            if ( offset < 0 || length < 0 ) {
+                throw new DfsServiceIOException( "invalid range at offset "
+                    + offset + " of length " + length );
+            }
             try {
                 org.apache.hadoop.fs.FileStatus status =
                     fs.getFileStatus( new Path( path ) );
-                if ( status != null ) {
-                        return convertToThriftFileStatus( status );
-                } else {
-                    LOG.warn(
-                        "DfsServer.stat: getFileStatus returned null for " +
-                            path );
-                    throw new DfsServiceIOException( "stat cannot access " +
-                        path );
+                if ( status.isDir() ) {
+                    throw new DfsServiceIOException( path
+                        + " is a directory" );
+                }
+                org.apache.hadoop.fs.BlockLocation[] blocks =
+                    fs.getFileBlockLocations( status, offset, length );
+                List<BlockLocation> result = new ArrayList<BlockLocation>();
+                if ( blocks != null ) {
+                    for ( org.apache.hadoop.fs.BlockLocation b : blocks ) {
+                        result.add( new BlockLocation( b.getOffset(),
+                            b.getLength(), Arrays.asList( b.getHosts() ) ) );
+                    }
                 }
+                return result;
             } catch ( IOException ioe ) {
-                LOG.error( "DfsServer.stat: caught io exception with path=" +
-                    path );
+                LOG.error( "DfsServer.getBlockLocations: caught io exception "
+                    + "with path=" + path );
                 throw new DfsServiceIOException( "Server-side IOException of " +
                     ioe.getMessage() );
             }
@@ -400,7 +965,10 @@ public final class DfsServer
         {
             LOG.debug( "DfsServer call to mkdir with path=" + path );
             try {
-                return fs.mkdirs( new Path( path ) );
+                boolean result = fs.mkdirs( new Path( path ) );
+                watcher.changed( fs, new Path( path ) );
+                summaries.changed( fs, new Path( path ) );
+                return result;
             } catch ( IOException ioe ) {
                 LOG.error( "DfsServer.mkdir: caught io exception with path=" +
                     path );
@@ -437,7 +1005,20 @@ public final class DfsServer
             LOG.debug( "DfsServer call to move with src=" + oldpath +
                 " , dest =" + newpath );
             try {
-                return fs.rename( new Path( oldpath ), new Path( newpath ) );
+                Path source = new Path( oldpath );
+                Path target = new Path( newpath );
+                if ( watcher.isWatching() && fs.exists( target )
+                        && fs.getFileStatus( target ).isDir() ) {
+                    // rename moves the source into an existing directory
+                    target = new Path( target, source.getName() );
+                }
+                boolean result = fs.rename( source, new Path( newpath ) );
+                if ( result ) {
+                    watcher.renamed( fs, source, target );
+                    summaries.removed( fs, source );
+                    summaries.removed( fs, new Path( newpath ) );
+                }
+                return result;
             } catch ( IOException ioe ) {
                 LOG.error( "DfsServer.move: caught io exception with src=" +
                     oldpath + " and dest=" + newpath );
@@ -479,7 +1060,12 @@ public final class DfsServer
             LOG.debug( "DfsServer call to remove with path=" + path +
                 " , recursive=" + recursive );
             try {
-                return fs.delete( new Path( path ), recursive );
+                boolean result = fs.delete( new Path( path ), recursive );
+                if ( result ) {
+                    watcher.changed( fs, new Path( path ) );
+                    summaries.removed( fs, new Path( path ) );
+                }
+                return result;
             } catch ( IOException ioe ) {
                 LOG.error( "DfsServer.remove: caught io exception with path=" +
                     path );
@@ -496,6 +1082,8 @@ public final class DfsServer
          * an option for overwriting, but we do not expose it.  If the intention
          * is to completely overwrite an exisitng file, then first delete it
          * by a call to {@link #remove} and then call open with WRITEONLY mode.
+         * READ plus DECOMPRESS opens a file compressed with a known codec for
+         * reading its uncompressed content, see {@link #decompressed}.
          *
          * @param chandle the ClientHandle for the client who wants to open the
          * file.  The file handle will be associated with the ClientHandle id.
@@ -523,10 +1111,16 @@ public final class DfsServer
             LOG.debug( "DfsServer call to open with ClientHandle=" + chandle.id
                 + " , filename=" + filename + " , mode=" + mode );
             DfsHandle handle = null;
-            if ( mode == new Constants().READ ) {
+            boolean decompress =
+                mode == ( Constants.READ | Constants.DECOMPRESS );
+            if ( mode == Constants.READ || decompress ) {
                 try {
                     if ( fs.exists( new Path( filename ) ) ) {
-                        FSDataInputStream in = fs.open( new Path( filename ) );
+                        FSDataInputStream in = openForRead(
+                            new Path( filename ) );
+                        if ( decompress ) {
+                            in = decompressed( new Path( filename ), in );
+                        }
 
                         ConcurrentHashMap<Long, Object> filehandles =
                             clienthandles.get( chandle.id );
@@ -535,6 +1129,10 @@ public final class DfsServer
 
                         filehandles.put(
                             Long.valueOf( handle.id ), ( Object )in );
+                        if ( DfsEvents.SINK != null ) {
+                            DfsEvents.SINK.handleOpened( chandle.id,
+                                handle.id, filename, false );
+                        }
 
                     } else {
                         LOG.error(
@@ -550,7 +1148,7 @@ public final class DfsServer
                     throw new DfsServiceIOException(
                          "Server-side IOException of " + ioe.getMessage() );
                 }
-            } else if ( mode == new Constants().WRITE ) {
+            } else if ( mode == Constants.WRITE ) {
                 try {
                     if ( fs.exists( new Path( filename ) ) ) {
                         LOG.error(
@@ -562,14 +1160,22 @@ public final class DfsServer
                     } else {
                         FSDataOutputStream out  = fs.create(
                             new Path( filename ), false, BUFFER_SIZE );
+                        watcher.changed( fs, new Path( filename ) );
+                        summaries.changed( fs, new Path( filename ) );
 
                         ConcurrentHashMap<Long, Object> filehandles =
                             clienthandles.get( chandle.id );
 
                         handle = new DfsHandle( along.getAndIncrement() );
 
+                        writing.put( Long.valueOf( handle.id ),
+                            new Path( filename ) );
                         filehandles.put(
                             Long.valueOf( handle.id ), ( Object )out );
+                        if ( DfsEvents.SINK != null ) {
+                            DfsEvents.SINK.handleOpened( chandle.id,
+                                handle.id, filename, true );
+                        }
                     }
                 } catch ( IOException ioe ) {
                     LOG.error(
@@ -627,10 +1233,18 @@ public final class DfsServer
 
             if ( filehandles.containsKey( Long.valueOf( handle.id ) ) ) {
                 Object fh = filehandles.remove( Long.valueOf( handle.id ) );
+                if ( DfsEvents.SINK != null ) {
+                    DfsEvents.SINK.handleClosed( chandle.id, handle.id,
+                        fh instanceof FSDataOutputStream );
+                }
                 try {
                     if ( fh instanceof FSDataOutputStream ) {
                         FSDataOutputStream out = ( FSDataOutputStream )fh;
-                        out.close();
+                        try {
+                            out.close();
+                        } finally {
+                            closedWrite( Long.valueOf( handle.id ) );
+                        }
                     } else if ( fh instanceof FSDataInputStream ) {
                         FSDataInputStream in = ( FSDataInputStream )fh;
                         in.close();
@@ -743,23 +1357,161 @@ public final class DfsServer
         }
 
         /**
-         * Writes only to newly created empty files.  Before you can read what
-         * has been written to a file, it has to be closed by a call to
-         * {@link #close}.  If you open another handle to the file before
-         * closing the first, the writes made with the first handle are not
-         * visable.  If the passed in DfsHandle is not associated with the
-         * passed in ClientHandle, the write will not take place.
+         * Reads up to <code>len</code> bytes from a file starting at position
+         * <code>offset</code> and returns them unchanged.  Unlike
+         * {@link #read}, the bytes are not converted to a String, so binary
+         * files come back intact, and the read is repeated until
+         * <code>len</code> bytes are read or the end of the file is reached.
+         * The read will not take place if the passed in DfsHandle is not
+         * associated with the passed in ClientHandle.
          *
-         * @see #close
          * @see #open
          *
-         * @param chandle the ClientHandle for the client that opened the file
-         * and now wants to write to it.
-         * @param handle the DfsHandle to the file to be written to.  It must
-         * have been opened (created) for writing by a previous call to
-         * {@link #open}.
-         * @param contents a byte array whose contents are to be written to the
-         * file.
+         * @param chandle the ClientHandle for the client who opened the file
+         * and now wants to read it.
+         * @param handle the DfsHandle to the file that is going to be read.
+         * It must have be opened for reading by a previous call to
+         * {@link #open}.
+         * @param offset the offset to begain reading at.
+         * @param len the number of bytes to read for the offset.
+         *
+         * @return the bytes read.  This has fewer than <code>len</code> bytes
+         * only if the end of the file was reached and is empty if
+         * <code>offset</code> is at or past the end of the file.
+         *
+         * @throws DfsServiceIOException if a problem is encountered reading the
+         * file or if it cannot be found or opened for reading.
+         */
+        public byte[] readBytes( final ClientHandle chandle,
+            final DfsHandle handle, final long offset, final long len )
+            throws DfsServiceIOException
+        {
+            LOG.debug( "DfsServer call to readBytes with client.id="
+                + chandle.id + " , and handle.id=" + handle.id );
+
+            if ( len < 0 || len > Integer.MAX_VALUE ) {
+                throw new DfsServiceIOException( "invalid len=" + len
+                    + " passed to readBytes" );
+            }
+            FSDataInputStream in = getInputStream( chandle, handle,
+                "readBytes" );
+
+            byte[] buf = new byte[( int )len];
+            int total = 0;
+            try {
+                while ( total < buf.length ) {
+                    int n = in.read( offset + total, buf, total,
+                        buf.length - total );
+                    if ( n <= 0 ) {
+                        break;
+                    }
+                    total += n;
+                }
+            } catch ( IOException ioe ) {
+                LOG.error( "DfsServer.readBytes: error reading file.  handle.id="
+                    + handle.id );
+                throw new DfsServiceIOException( "Server-side IOException of "
+                    + ioe.getMessage() );
+            }
+
+            if ( total == buf.length ) {
+                return buf;
+            }
+            byte[] result = new byte[total];
+            System.arraycopy( buf, 0, result, 0, total );
+            return result;
+        }
+
+        /**
+         * Creates the shared ring of a client, a file on this host that the
+         * client maps so that {@link #readShared} can hand over data without
+         * sending it.  Only a client on the same host, running as the same
+         * user, can map it.
+         *
+         * @param chandle the client handle.
+         * @param size the bytes of data the ring holds.
+         *
+         * @return the file and the token in its header.  A client that
+         * already has a ring gets it back whatever the size.
+         *
+         * @throws DfsServiceIOException if the client is unknown, the size is
+         * over the configured limits or the file cannot be created.
+         */
+        public SharedRing openSharedRing( final ClientHandle chandle,
+            final long size )
+            throws DfsServiceIOException
+        {
+            LOG.debug( "DfsServer call to openSharedRing with client.id="
+                + chandle.id + " size=" + size );
+            if ( !clienthandles.containsKey( chandle.id ) ) {
+                throw new DfsServiceIOException( "DfsServer.openSharedRing: "
+                    + "unknown client id=" + chandle.id );
+            }
+            try {
+                return rings.open( chandle.id, size );
+            } catch ( IOException ioe ) {
+                LOG.error( "DfsServer.openSharedRing: caught io exception "
+                    + "with client.id=" + chandle.id );
+                throw new DfsServiceIOException( "Server-side IOException of "
+                    + ioe.getMessage() );
+            }
+        }
+
+        /**
+         * Reads as {@link #readBytes} does, but places the bytes in the
+         * client's shared ring and returns only their count.
+         *
+         * @param chandle the client handle, which must have a shared ring.
+         * @param handle a file opened for reading.
+         * @param offset the offset to begin reading at.
+         * @param len the number of bytes to read.
+         * @param ringOffset where in the ring's data area to put them.
+         *
+         * @return the number of bytes placed, fewer than <code>len</code>
+         * only at the end of the file.
+         *
+         * @throws DfsServiceIOException if the handle is not open for
+         * reading, the client has no ring, the range does not fit in it or
+         * the file cannot be read.
+         */
+        public int readShared( final ClientHandle chandle,
+            final DfsHandle handle, final long offset, final int len,
+            final long ringOffset )
+            throws DfsServiceIOException
+        {
+            LOG.debug( "DfsServer call to readShared with client.id="
+                + chandle.id + " , and handle.id=" + handle.id );
+
+            FSDataInputStream in = getInputStream( chandle, handle,
+                "readShared" );
+            try {
+                return rings.read( chandle.id, in, offset, len, ringOffset );
+            } catch ( IOException ioe ) {
+                LOG.error( "DfsServer.readShared: error reading file.  "
+                    + "handle.id=" + handle.id );
+                throw new DfsServiceIOException( "Server-side IOException of "
+                    + ioe.getMessage() );
+            }
+        }
+
+        /**
+         * Writes only to newly created empty files.  Before you can read what
+         * has been written to a file, it has to be closed by a call to
+         * {@link #close}.  If you open another handle to the file before
+         * closing the first, the writes made with the first handle are not
+         * visable.  If the passed in DfsHandle is not associated with the
+         * passed in ClientHandle, the write will not take place.
+         *
+         * @see #close
+         * @see #open
+         *
+         * @param chandle the ClientHandle for the client that opened the file
+         * and now wants to write to it.
+         * @param handle the DfsHandle to the file to be written to.  It must
+         * have been opened (created) for writing by a previous call to
+         * {@link #open}.
+         * @param contents a byte array whose contents are to be written to the
+         * file.
          * @param offset the offset to begain writing at.  The first time this
          * method is called for a file, the offset must be <code>0L</code> since
          * it is a new (empty) file.
@@ -911,6 +1663,8 @@ public final class DfsServer
                 in = new BufferedInputStream( new FileInputStream( localsrc ) );
                 out = fs.create( new Path( dest ) );
                 IOUtils.copyBytes( in, out, BUFFER_SIZE, true );
+                watcher.changed( fs, new Path( dest ) );
+                summaries.changed( fs, new Path( dest ) );
             } catch ( IOException ioe ) {
                 LOG.error(
                     "DfsServer.copyFromLocalFile: caught io exception with src="
@@ -924,9 +1678,545 @@ public final class DfsServer
             return true;
         }
 
+        /**
+         * Scans part of a file for lines matching <code>pattern</code> and
+         * returns only those, so a client looking for a few lines in a large
+         * file does not have to pull the whole file across the network.  One
+         * call returns at most {@link #GREP_MAX_MATCHES_KEY} matches and scans
+         * at most {@link #GREP_PAGE_BYTES_KEY} bytes; the client continues
+         * from {@link GrepResult#nextOffset} until it is <code>-1</code>.
+         *
+         * @param chandle the client handle, not used.
+         * @param path the file to scan.
+         * @param pattern a {@link java.util.regex.Pattern} or, if
+         * <code>literal</code>, a plain string.
+         * @param literal whether <code>pattern</code> is a plain string.
+         * @param offset scan lines starting at or after this offset.
+         * @param end scan lines starting before this offset, <code>0</code>
+         * or less for the end of the file.
+         * @param maxMatches the most matches to return, <code>0</code> or
+         * less for the server's limit.
+         *
+         * @return the matches and where to continue.
+         *
+         * @throws DfsServiceIOException if the pattern is invalid or the file
+         * cannot be read.
+         */
+        public GrepResult grep( final ClientHandle chandle, final String path,
+            final String pattern, final boolean literal, final long offset,
+            final long end, final int maxMatches )
+            throws DfsServiceIOException
+        {
+            LOG.debug( "DfsServer call to grep with path=" + path
+                + ", pattern=" + pattern + ", offset=" + offset + ", end="
+                + end );
+            if ( pattern == null || offset < 0 ) {
+                throw new DfsServiceIOException( "invalid grep of " + path
+                    + " from offset " + offset );
+            }
+            GrepScanner scanner;
+            try {
+                scanner = new GrepScanner( pattern, literal,
+                    config.getInt( GREP_MAX_LINE_KEY, 1 << 20 ) );
+            } catch ( PatternSyntaxException pse ) {
+                throw new DfsServiceIOException( "invalid pattern: "
+                    + pse.getDescription() );
+            }
+            int limit = config.getInt( GREP_MAX_MATCHES_KEY, 10000 );
+            int page = maxMatches > 0 ? Math.min( maxMatches, limit ) : limit;
+
+            FSDataInputStream in = null;
+            try {
+                in = openForRead( new Path( path ) );
+                if ( offset > 0 ) {
+                    // start on the byte before, to know if a line starts
+                    in.seek( offset - 1 );
+                }
+                return scanner.scan( in, offset,
+                    end > 0 ? end : Long.MAX_VALUE, page,
+                    config.getLong( GREP_PAGE_BYTES_KEY, 64L << 20 ) );
+            } catch ( IOException ioe ) {
+                LOG.error( "DfsServer.grep: caught io exception with path="
+                    + path );
+                throw new DfsServiceIOException( "Server-side IOException of "
+                    + ioe.getMessage() );
+            } finally {
+                IOUtils.closeStream( in );
+            }
+        }
+
+        /**
+         * Reads the records owned by a byte range of a file, so parallel
+         * readers can each take a range without handling the records that
+         * cross range boundaries themselves.  A range owns the records that
+         * start inside it, like Hadoop's <code>TextInputFormat</code>.  One
+         * call returns about {@link #SPLIT_PAGE_BYTES_KEY} bytes; the
+         * client continues from {@link SplitResult#nextOffset} until it is
+         * <code>-1</code>.
+         *
+         * @param chandle the client handle, not used.
+         * @param path the file to read.
+         * @param offset the start of the split.
+         * @param length the length of the split.
+         * @param delimiter the end of a record, empty for a line.
+         *
+         * @return the records and where to continue.
+         *
+         * @throws DfsServiceIOException if the file cannot be read or a
+         * record is too long.
+         */
+        public SplitResult readSplit( final ClientHandle chandle,
+            final String path, final long offset, final long length,
+            final String delimiter )
+            throws DfsServiceIOException
+        {
+            LOG.debug( "DfsServer call to readSplit with path=" + path
+                + ", offset=" + offset + ", length=" + length );
+            if ( offset < 0 || length < 0 ) {
+                throw new DfsServiceIOException( "invalid split of " + path
+                    + " at offset " + offset + " length " + length );
+            }
+            SplitReader reader;
+            try {
+                reader = new SplitReader( delimiter == null ? new byte[0]
+                    : delimiter.getBytes( "UTF-8" ),
+                    config.getInt( SPLIT_MAX_RECORD_KEY, 64 << 20 ) );
+            } catch ( UnsupportedEncodingException uee ) {
+                throw new DfsServiceIOException( uee.getMessage() );
+            }
+            long end = length > Long.MAX_VALUE - offset ? Long.MAX_VALUE
+                : offset + length;
+
+            FSDataInputStream in = null;
+            try {
+                in = openForRead( new Path( path ) );
+                in.seek( reader.seekOffset( offset ) );
+                return reader.scan( in, offset, end,
+                    config.getLong( SPLIT_PAGE_BYTES_KEY, 16L << 20 ) );
+            } catch ( IOException ioe ) {
+                LOG.error( "DfsServer.readSplit: caught io exception with path="
+                    + path );
+                throw new DfsServiceIOException( "Server-side IOException of "
+                    + ioe.getMessage() );
+            } finally {
+                IOUtils.closeStream( in );
+            }
+        }
+
+        /**
+         * Waits for a file to grow past an offset and returns the bytes
+         * appended, for clients that follow a log as it is written.  The
+         * wait is served by a {@link FileFollower} shared by all followers
+         * of the file, so many followers cost the NameNode no more than
+         * one.  The wait is cut to {@link #FOLLOW_MAX_WAIT_KEY} and the
+         * bytes to {@link #FOLLOW_MAX_BYTES_KEY}.  Growing files are read
+         * from the DFS, never from the read cache.
+         *
+         * @param chandle the client handle, not used.
+         * @param path the file to follow.
+         * @param offset the offset the client has read up to.
+         * @param maxBytes the most bytes to return.
+         * @param waitMillis the longest time to wait for the file to grow.
+         *
+         * @return the bytes from <code>offset</code>, if any, and the length
+         * of the file.
+         *
+         * @throws DfsServiceIOException if the file cannot be read.
+         */
+        public FollowResult follow( final ClientHandle chandle,
+            final String path, final long offset, final long maxBytes,
+            final long waitMillis )
+            throws DfsServiceIOException
+        {
+            LOG.debug( "DfsServer call to follow with path=" + path
+                + ", offset=" + offset + ", waitMillis=" + waitMillis );
+            if ( offset < 0 || maxBytes < 0 ) {
+                throw new DfsServiceIOException( "invalid follow of " + path
+                    + " at offset " + offset + " maxBytes " + maxBytes );
+            }
+            try {
+                return follower.follow( fs, new Path( path ), offset,
+                    ( int )Math.min( maxBytes,
+                        config.getInt( FOLLOW_MAX_BYTES_KEY, 16 << 20 ) ),
+                    Math.min( waitMillis,
+                        config.getLong( FOLLOW_MAX_WAIT_KEY, 30000L ) ) );
+            } catch ( IOException ioe ) {
+                LOG.error( "DfsServer.follow: caught io exception with path="
+                    + path );
+                throw new DfsServiceIOException( "Server-side IOException of "
+                    + ioe.getMessage() );
+            }
+        }
+
+        /**
+         * Starts watching a directory for changes on behalf of a client, so
+         * it can poll for them with {@link #pollEvents} instead of listing
+         * the directory over and over.  All watchers of a directory share
+         * one {@link DirectoryWatcher} scan.
+         *
+         * @param chandle the client watching.
+         * @param path the directory.
+         *
+         * @return the cursor to poll from.
+         *
+         * @throws DfsServiceIOException if the directory cannot be listed.
+         */
+        public long watch( final ClientHandle chandle, final String path )
+            throws DfsServiceIOException
+        {
+            LOG.debug( "DfsServer call to watch with path=" + path );
+            try {
+                return watcher.watch( fs, new Path( path ), chandle.id );
+            } catch ( IOException ioe ) {
+                LOG.error( "DfsServer.watch: caught io exception with path="
+                    + path );
+                throw new DfsServiceIOException( "Server-side IOException of "
+                    + ioe.getMessage() );
+            }
+        }
+
+        /**
+         * Waits for changes to a watched directory after a cursor.  The
+         * wait is cut to {@link #WATCH_MAX_WAIT_KEY}.
+         *
+         * @param chandle the client handle, not used.
+         * @param path the directory.
+         * @param cursor the cursor returned by the last call, or by
+         * {@link #watch}.
+         * @param maxEvents the most events to return.
+         * @param waitMillis the longest time to wait for an event.
+         *
+         * @return the events and the next cursor, or a reset.
+         *
+         * @throws DfsServiceIOException if the directory cannot be listed.
+         */
+        public WatchResult pollEvents( final ClientHandle chandle,
+            final String path, final long cursor, final int maxEvents,
+            final long waitMillis )
+            throws DfsServiceIOException
+        {
+            LOG.debug( "DfsServer call to pollEvents with path=" + path
+                + ", cursor=" + cursor + ", waitMillis=" + waitMillis );
+            try {
+                return watcher.poll( fs, new Path( path ), cursor,
+                    Math.max( 1, maxEvents ),
+                    Math.min( waitMillis,
+                        config.getLong( WATCH_MAX_WAIT_KEY, 30000L ) ) );
+            } catch ( IOException ioe ) {
+                LOG.error( "DfsServer.pollEvents: caught io exception with path="
+                    + path );
+                throw new DfsServiceIOException( "Server-side IOException of "
+                    + ioe.getMessage() );
+            }
+        }
+
+        /**
+         * Stops watching a directory on behalf of a client.  Closing the
+         * client stops all of its watches.
+         *
+         * @param chandle the client that called {@link #watch}.
+         * @param path the directory.
+         *
+         * @return <code>false</code> if the client was not watching it.
+         */
+        public boolean unwatch( final ClientHandle chandle, final String path )
+        {
+            LOG.debug( "DfsServer call to unwatch with path=" + path );
+            return watcher.unwatch( fs, new Path( path ), chandle.id );
+        }
+
+        /**
+         * Tags the next call made on this connection with a client-chosen
+         * id, which the slow-request log prints with the call.  The server
+         * serves each connection on a thread of its own, so the id is kept
+         * with the thread until the next call takes it.
+         *
+         * @param chandle the client handle, not used.
+         * @param traceId the id, <code>null</code> to clear it.
+         */
+        public void setTraceId( final ClientHandle chandle,
+            final String traceId )
+        {
+            DfsCall.setNextTraceId( traceId );
+        }
+
+        /**
+         * Gives the next call made on this connection a deadline, which a
+         * {@link DeadlineHandler} in front of the handler enforces.  Like
+         * the trace id, it is kept with the thread until the next call.
+         *
+         * @param chandle the client handle, not used.
+         * @param timeoutMillis the deadline, <code>0</code> for the server
+         * default.
+         */
+        public void setCallTimeout( final ClientHandle chandle,
+            final long timeoutMillis )
+        {
+            DfsCall.setNextTimeout( timeoutMillis );
+        }
+
+        /**
+         * @return the Hadoop configuration the handler was created with.
+         */
+        public Configuration getConfiguration()
+        {
+            return config;
+        }
+
+        /**
+         * @return the watcher serving {@link #follow}.
+         */
+        public FileFollower getFollower()
+        {
+            return follower;
+        }
+
+        /**
+         * @return the watcher serving {@link #watch} and
+         * {@link #pollEvents}.
+         */
+        public DirectoryWatcher getWatcher()
+        {
+            return watcher;
+        }
+
+        /**
+         * @return the read cache, or <code>null</code> if caching is not
+         * configured.
+         */
+        public LocalFileCacheMBean getCache()
+        {
+            return cache;
+        }
+
+        /**
+         * @return the number of clients that called {@link #init} and have
+         * not closed.
+         */
+        public int getClientCount()
+        {
+            return clienthandles.size();
+        }
+
+        /**
+         * @param clientId the id of a client handle.
+         *
+         * @return the user the client logged in as, <code>null</code> if it
+         * has not logged in or has closed.
+         */
+        public String getUser( final long clientId )
+        {
+            return users.get( clientId );
+        }
+
+        /**
+         * Counts the open file handles of all clients.  This walks the
+         * handle maps, so it is meant for monitoring, not the call path.
+         *
+         * @return the number of open file handles.
+         */
+        public int getOpenFileCount()
+        {
+            int count = 0;
+            for ( ConcurrentHashMap<Long, Object> files
+                    : clienthandles.values() ) {
+                count += files.size();
+            }
+            return count;
+        }
+
 
         // ** Private Methods **
 
+        /**
+         * Body of {@link #listFiles} and {@link #listFilesProjected}.
+         *
+         * @param op the name of the call, for the log.
+         */
+        private List<com.opendatagroup.dfsservice.FileStatus> listStatus(
+            final String op, final String path, final int fields )
+            throws DfsServiceIOException {
+
+            List<com.opendatagroup.dfsservice.FileStatus> stats =
+                new ArrayList<com.opendatagroup.dfsservice.FileStatus>();
+            try {
+                org.apache.hadoop.fs.FileStatus[] status =
+                    fs.listStatus( new Path( path ) );
+                if ( status != null ) {
+                    for ( int i = 0; i < status.length; i++ ) {
+                        stats.add( convertToThriftFileStatus( status[i],
+                            fields ) );
+                    }
+                } else {
+                    LOG.warn( "DfsServer." + op +
+                        ": listStatus returned null for " + path );
+                    throw new DfsServiceIOException(
+                        "listStatus cannot access " + path );
+                }
+            } catch ( IOException ioe ) {
+                LOG.error( "DfsServer." + op +
+                    ": caught io exception with path=" + path );
+                throw new DfsServiceIOException( "Server-side IOException of " +
+                    ioe.getMessage() );
+            }
+            return stats;
+        }
+
+        /**
+         * Body of {@link #stat} and {@link #statProjected}.
+         *
+         * @param op the name of the call, for the log.
+         */
+        private com.opendatagroup.dfsservice.FileStatus getStatus(
+            final String op, final String path, final int fields )
+            throws DfsServiceIOException {
+
+            try {
+                org.apache.hadoop.fs.FileStatus status =
+                    fs.getFileStatus( new Path( path ) );
+                if ( status != null ) {
+                        return convertToThriftFileStatus( status, fields );
+                } else {
+                    LOG.warn( "DfsServer." + op +
+                        ": getFileStatus returned null for " + path );
+                    throw new DfsServiceIOException( "stat cannot access " +
+                        path );
+                }
+            } catch ( IOException ioe ) {
+                LOG.error( "DfsServer." + op +
+                    ": caught io exception with path=" + path );
+                throw new DfsServiceIOException( "Server-side IOException of " +
+                    ioe.getMessage() );
+            }
+        }
+
+        /**
+         * Opens a file on the DFS for reading.  If the read cache is enabled
+         * and holds a copy whose length and modification time match the DFS,
+         * the local copy is opened instead.  Otherwise the file is opened on
+         * the DFS and the cache is left to fill in the background.
+         *
+         * @param path the file to open.
+         *
+         * @return a stream over the DFS file or its cached copy.
+         *
+         * @throws IOException if the file cannot be opened.
+         */
+        private FSDataInputStream openForRead( final Path path )
+            throws IOException
+        {
+            if ( cache != null ) {
+                FSDataInputStream in =
+                    cache.open( fs, path, fs.getFileStatus( path ) );
+                if ( in != null ) {
+                    LOG.debug( "DfsServer.open: serving " + path
+                        + " from the read cache" );
+                    return in;
+                }
+            }
+            return fs.open( path );
+        }
+
+        /**
+         * Wraps a stream over a compressed file so that it reads the
+         * uncompressed content.  gzip and zlib (DefaultCodec) files are
+         * decoded with a {@link SeekIndex} shared by every handle on the
+         * same version of the file; other codecs are decoded by the codec.
+         *
+         * @param path the file.
+         * @param in a stream over the file.
+         *
+         * @return a stream over the uncompressed content, or <code>in</code>
+         * if the file has no recognised codec.
+         *
+         * @throws IOException if the file status cannot be read.
+         */
+        private FSDataInputStream decompressed( final Path path,
+            final FSDataInputStream in )
+            throws IOException
+        {
+            CompressionCodec codec = codecs.getCodec( path );
+            if ( codec == null ) {
+                return in;
+            }
+            DeflateDecoder.Format format = null;
+            if ( codec instanceof GzipCodec ) {
+                format = DeflateDecoder.Format.GZIP;
+            } else if ( codec.getClass() == DefaultCodec.class ) {
+                format = DeflateDecoder.Format.ZLIB;
+            }
+            SeekIndex index = null;
+            if ( format != null ) {
+                org.apache.hadoop.fs.FileStatus status =
+                    fs.getFileStatus( path );
+                index = indexes.get( fs.makeQualified( path ).toString(),
+                    status.getLen(), status.getModificationTime() );
+            }
+            return new FSDataInputStream(
+                new DecompressedInputStream( in, codec, format, index ) );
+        }
+
+        /**
+         * Looks up a handle opened for reading by the passed in client.
+         *
+         * @param chandle the client that opened the file.
+         * @param handle the handle returned by {@link #open}.
+         * @param method the name of the calling method, for messages.
+         *
+         * @return the input stream for the handle.
+         *
+         * @throws DfsServiceIOException if the client has no such handle or
+         * the handle is not open for reading.
+         */
+        private FSDataInputStream getInputStream( final ClientHandle chandle,
+            final DfsHandle handle, final String method )
+            throws DfsServiceIOException
+        {
+            ConcurrentHashMap<Long, Object> filehandles =
+                clienthandles.get( chandle.id );
+            if ( filehandles == null ) {
+                LOG.error( "DfsServer." + method
+                    + ": no filehandles associated with client id="
+                    + chandle.id );
+                throw new DfsServiceIOException( "DfsServer." + method
+                    + ": no filehandles associated with client id="
+                    + chandle.id );
+            }
+
+            Object fh = filehandles.get( Long.valueOf( handle.id ) );
+            if ( fh == null ) {
+                LOG.warn( "DfsServer." + method + ": could not find file handle="
+                    + handle.id + " for client.id=" + chandle.id );
+                throw new DfsServiceIOException( "Can't find handle for handle.id="
+                    + handle.id + " for client.id=" + chandle.id );
+            }
+            if ( !( fh instanceof FSDataInputStream ) ) {
+                LOG.error( "DfsServer." + method + ": handle.id=" + handle.id
+                    + " is not open for reading" );
+                throw new DfsServiceIOException( "Can't open handle.id="
+                    + handle.id + " for reading." );
+            }
+            return ( FSDataInputStream )fh;
+        }
+
+        /**
+         * Reads the Hadoop configuration files of the installation in
+         * {@link DfsServer#HADOOP_DIR}.
+         *
+         * @return the loaded Configuration.
+         */
+        private static Configuration loadConfiguration()
+        {
+            Configuration conf = new Configuration();
+            // NOTE: order is import, properties declared in both are assigned
+            // the value defeine in the property file loaded last.
+            conf.addResource( 
+                new Path( HADOOP_DIR + "/conf/hadoop-default.xml" ) );
+            conf.addResource( 
+                new Path( HADOOP_DIR + "/conf/hadoop-site.xml" ) );
+            return conf;
+        }
+
         /**
          * Converts an instance of the Apache FileStatus to an instance of the
          * generated FielStatus object used with thrift.  The values are sent to
@@ -939,7 +2229,7 @@ public final class DfsServer
          * populated with values from the passed in
          * org.apache.hadoop.fs.FileStatus.
          */
-        private static com.opendatagroup.dfsservice.FileStatus
+        static com.opendatagroup.dfsservice.FileStatus
             convertToThriftFileStatus(
                 final org.apache.hadoop.fs.FileStatus fs )
         {
@@ -954,6 +2244,64 @@ public final class DfsServer
                 fs.getPath().getName() );
         }
 
+        /**
+         * Converts only the fields of an Apache FileStatus whose
+         * <code>Constants.FIELD_</code> bits are set.  The others are left
+         * unset, and the strings among them are then not serialized.
+         *
+         * @param fs the FileStatus instance to be converted.
+         * @param fields the bits of the fields to convert.
+         *
+         * @return the converted status.
+         */
+        static com.opendatagroup.dfsservice.FileStatus
+            convertToThriftFileStatus(
+                final org.apache.hadoop.fs.FileStatus fs, final int fields )
+        {
+            if ( ( fields & Constants.FIELD_ALL ) == Constants.FIELD_ALL ) {
+                return convertToThriftFileStatus( fs );
+            }
+            com.opendatagroup.dfsservice.FileStatus result =
+                new com.opendatagroup.dfsservice.FileStatus();
+            if ( ( fields & Constants.FIELD_LENGTH ) != 0 ) {
+                result.length = fs.getLen();
+                result.__isset.length = true;
+            }
+            if ( ( fields & Constants.FIELD_ISDIR ) != 0 ) {
+                result.isdir = fs.isDir();
+                result.__isset.isdir = true;
+            }
+            if ( ( fields & Constants.FIELD_BLOCK_REPLICATION ) != 0 ) {
+                result.block_replication = fs.getReplication();
+                result.__isset.block_replication = true;
+            }
+            if ( ( fields & Constants.FIELD_BLOCKSIZE ) != 0 ) {
+                result.blocksize = fs.getBlockSize();
+                result.__isset.blocksize = true;
+            }
+            if ( ( fields & Constants.FIELD_MODIFICATION_TIME ) != 0 ) {
+                result.modification_time = fs.getModificationTime();
+                result.__isset.modification_time = true;
+            }
+            if ( ( fields & Constants.FIELD_PERMISSION ) != 0 ) {
+                result.permission = fs.getPermission().toString();
+                result.__isset.permission = true;
+            }
+            if ( ( fields & Constants.FIELD_OWNER ) != 0 ) {
+                result.owner = fs.getOwner();
+                result.__isset.owner = true;
+            }
+            if ( ( fields & Constants.FIELD_GROUP ) != 0 ) {
+                result.group = fs.getGroup();
+                result.__isset.group = true;
+            }
+            if ( ( fields & Constants.FIELD_PATH ) != 0 ) {
+                result.path = fs.getPath().getName();
+                result.__isset.path = true;
+            }
+            return result;
+        }
+
         /**
          * Hashes the passed in cleartext so that it can be safely logged
          * without any security concerns.  SHA is used and a
@@ -1007,6 +2355,9 @@ public final class DfsServer
                 chandleId );
 
             boolean result = true;
+            users.remove( chandleId );
+            watcher.unwatchAll( chandleId.longValue() );
+            rings.close( chandleId.longValue() );
 
             ConcurrentHashMap<Long, Object> filehandles =
                 clienthandles.get( chandleId );
@@ -1017,6 +2368,13 @@ public final class DfsServer
                 return result;
             }
 
+            if ( DfsEvents.SINK != null ) {
+                for ( Map.Entry<Long, Object> e : filehandles.entrySet() ) {
+                    DfsEvents.SINK.handleClosed( chandleId, e.getKey(),
+                        e.getValue() instanceof FSDataOutputStream );
+                }
+            }
+
             try {
                 // close all active Streams
                 Collection streams = filehandles.values();
@@ -1049,6 +2407,9 @@ public final class DfsServer
                     }
                 }
             } finally {
+                for ( Long id : filehandles.keySet() ) {
+                    closedWrite( id );
+                }
                 filehandles.clear();
                 clienthandles.remove( chandleId );
             }
@@ -1056,6 +2417,20 @@ public final class DfsServer
             return result;
         }
 
+        /**
+         * Forgets a file that was open for writing and drops the totals that
+         * writing it changed.
+         *
+         * @param id the id of the handle it was open with.
+         */
+        private void closedWrite( final Long id )
+        {
+            Path path = writing.remove( id );
+            if ( path != null ) {
+                summaries.changed( fs, path );
+            }
+        }
+
     }
 
 
@@ -1108,11 +2483,48 @@ public final class DfsServer
             }
 
             DfsHandler handler = new DfsHandler();
-            DfsService.Processor processor =
-                new DfsService.Processor( handler );
+            CountingTransportFactory connections =
+                new CountingTransportFactory();
+            DfsMetrics metrics = new DfsMetrics( handler, connections );
+            try {
+                metrics.register();
+            } catch ( JMException jme ) {
+                System.out.println( "Cannot register the metrics MBeans: "
+                    + jme );
+            }
+            register( handler.getFollower(), "type=FileFollower" );
+            register( handler.getWatcher(), "type=DirectoryWatcher" );
+            if ( handler.getCache() != null ) {
+                register( handler.getCache(), "type=LocalFileCache" );
+            }
+            Configuration conf = handler.getConfiguration();
+            int metricsPort = conf.getInt( DfsHandler.METRICS_HTTP_PORT_KEY,
+                -1 );
+            if ( metricsPort >= 0 ) {
+                String address = conf.get(
+                    DfsHandler.METRICS_HTTP_ADDRESS_KEY, "127.0.0.1" );
+                new MetricsHttpServer( metrics, address, metricsPort ).start();
+                System.out.println( "Serving metrics on http://" + address
+                    + ":" + metricsPort + "/metrics" );
+            }
+
+            SlowRequestLog slowLog = new SlowRequestLog(
+                conf.getLong( DfsHandler.SLOWLOG_THRESHOLD_KEY, 1000L ),
+                conf.get( DfsHandler.SLOWLOG_FILE_KEY ) );
+
+            TProcessor processor = new TracingProcessor(
+                new DfsService.Processor( new InterceptingHandler(
+                    deadlines( conf, handler ),
+                    interceptors( conf, handler, metrics ) ) ),
+                slowLog );
+            String udsPath = conf.get( DfsHandler.UDS_PATH_KEY );
+            if ( udsPath != null ) {
+                serveUnixSocket( udsPath, processor, connections );
+            }
             TServerTransport serverTransport = new TServerSocket( port );
-            TServer server =
-                new TThreadPoolServer( processor, serverTransport );
+            TServer server = new TThreadPoolServer( processor,
+                serverTransport, connections, new TTransportFactory(),
+                new TracingProtocolFactory(), new TBinaryProtocol.Factory() );
             System.out.println( "Starting server on port " + port + " ..." );
             server.serve();
         } catch ( Exception ex ) {
@@ -1120,4 +2532,194 @@ public final class DfsServer
         }
     }
 
+
+    // ** Private Static Methods **
+
+    /**
+     * Puts a {@link DeadlineHandler} in front of the handler if deadlines
+     * are configured.
+     *
+     * @param conf the server configuration.
+     * @param handler the handler.
+     *
+     * @return the handler the interceptors call.
+     */
+    private static DfsService.Iface deadlines( final Configuration conf,
+        final DfsHandler handler )
+    {
+        if ( !conf.getBoolean( DfsHandler.DEADLINE_ENABLED_KEY, false ) ) {
+            return handler;
+        }
+        DeadlineHandler.Options options = new DeadlineHandler.Options();
+        options.metadataTimeoutMillis = conf.getLong(
+            DfsHandler.DEADLINE_METADATA_KEY, options.metadataTimeoutMillis );
+        options.dataTimeoutMillis = conf.getLong(
+            DfsHandler.DEADLINE_DATA_KEY, options.dataTimeoutMillis );
+        options.bulkTimeoutMillis = conf.getLong(
+            DfsHandler.DEADLINE_BULK_KEY, options.bulkTimeoutMillis );
+        options.backendThreads = conf.getInt(
+            DfsHandler.DEADLINE_THREADS_KEY, options.backendThreads );
+        options.breakerThreshold = conf.getInt(
+            DfsHandler.BREAKER_THRESHOLD_KEY, options.breakerThreshold );
+        options.breakerOpenMillis = conf.getLong(
+            DfsHandler.BREAKER_OPEN_KEY, options.breakerOpenMillis );
+        DeadlineHandler deadlines = new DeadlineHandler( handler, options );
+        register( deadlines, "type=DeadlineHandler" );
+        return deadlines;
+    }
+
+    /**
+     * Builds the interceptors run around every call, outermost first.
+     * Metrics come first so they also count calls refused further in.
+     * Calls delayed by QoS, then calls waiting for their lane, should not
+     * hold a place in the stages after, so QoS comes before the lanes and
+     * the lanes before admission control.
+     *
+     * @param conf the server configuration.
+     * @param handler the handler, which QoS asks for users.
+     * @param metrics the metrics interceptor.
+     *
+     * @return the interceptor chain.
+     */
+    private static DfsInterceptor[] interceptors( final Configuration conf,
+        final DfsHandler handler, final DfsMetrics metrics )
+    {
+        List<DfsInterceptor> chain = new ArrayList<DfsInterceptor>();
+        chain.add( metrics );
+
+        if ( conf.getBoolean( DfsHandler.QOS_ENABLED_KEY, false ) ) {
+            QosLimiter.Options options = new QosLimiter.Options();
+            options.clientBytesPerSecond = conf.getLong(
+                DfsHandler.QOS_CLIENT_BYTES_KEY,
+                options.clientBytesPerSecond );
+            options.clientRequestsPerSecond = conf.getLong(
+                DfsHandler.QOS_CLIENT_REQUESTS_KEY,
+                options.clientRequestsPerSecond );
+            options.userBytesPerSecond = conf.getLong(
+                DfsHandler.QOS_USER_BYTES_KEY, options.userBytesPerSecond );
+            options.userRequestsPerSecond = conf.getLong(
+                DfsHandler.QOS_USER_REQUESTS_KEY,
+                options.userRequestsPerSecond );
+            options.serverBytesPerSecond = conf.getLong(
+                DfsHandler.QOS_SERVER_BYTES_KEY,
+                options.serverBytesPerSecond );
+            options.burstSeconds = conf.getFloat( DfsHandler.QOS_BURST_KEY,
+                ( float )options.burstSeconds );
+            options.maxWaitMillis = conf.getLong(
+                DfsHandler.QOS_MAX_WAIT_KEY, options.maxWaitMillis );
+            QosLimiter qos = new QosLimiter( handler, options );
+            register( qos, "type=QosLimiter" );
+            chain.add( qos );
+        }
+
+        if ( conf.getBoolean( DfsHandler.LANES_ENABLED_KEY, false ) ) {
+            ExecutionLanes.Options options = new ExecutionLanes.Options();
+            options.metadataPermits = conf.getInt(
+                DfsHandler.LANES_METADATA_PERMITS_KEY,
+                options.metadataPermits );
+            options.dataPermits = conf.getInt(
+                DfsHandler.LANES_DATA_PERMITS_KEY, options.dataPermits );
+            options.bulkPermits = conf.getInt(
+                DfsHandler.LANES_BULK_PERMITS_KEY, options.bulkPermits );
+            options.bulkThreshold = conf.getLong(
+                DfsHandler.LANES_BULK_THRESHOLD_KEY, options.bulkThreshold );
+            options.maxQueued = conf.getInt(
+                DfsHandler.LANES_QUEUE_SIZE_KEY, options.maxQueued );
+            options.maxWaitMillis = conf.getLong(
+                DfsHandler.LANES_QUEUE_TIMEOUT_KEY, options.maxWaitMillis );
+            ExecutionLanes lanes = new ExecutionLanes( options );
+            register( lanes, "type=ExecutionLanes" );
+            chain.add( lanes );
+        }
+
+        if ( conf.getBoolean( DfsHandler.ADMISSION_ENABLED_KEY, false ) ) {
+            AdmissionController.Options options =
+                new AdmissionController.Options();
+            options.initialLimit = conf.getInt(
+                DfsHandler.ADMISSION_INITIAL_LIMIT_KEY, options.initialLimit );
+            options.minLimit = conf.getInt(
+                DfsHandler.ADMISSION_MIN_LIMIT_KEY, options.minLimit );
+            options.maxLimit = conf.getInt(
+                DfsHandler.ADMISSION_MAX_LIMIT_KEY, options.maxLimit );
+            options.maxQueued = conf.getInt(
+                DfsHandler.ADMISSION_QUEUE_SIZE_KEY, options.maxQueued );
+            options.maxWaitMillis = conf.getLong(
+                DfsHandler.ADMISSION_QUEUE_TIMEOUT_KEY, options.maxWaitMillis );
+            options.tolerance = conf.getFloat(
+                DfsHandler.ADMISSION_TOLERANCE_KEY,
+                ( float )options.tolerance );
+            options.bulkThreshold = conf.getLong(
+                DfsHandler.LANES_BULK_THRESHOLD_KEY, options.bulkThreshold );
+            AdmissionController admission = new AdmissionController( options );
+            register( admission, "type=AdmissionController" );
+            chain.add( admission );
+        }
+
+        // last, so recorded events time the handler and not the waits
+        if ( DfsEvents.SINK != null ) {
+            chain.add( new EventInterceptor( DfsEvents.SINK ) );
+        }
+        return chain.toArray( new DfsInterceptor[chain.size()] );
+    }
+
+    /**
+     * Starts serving the same calls on a Unix domain socket, in a thread of
+     * its own.  The transport is in the jar built by the <code>uds</code>
+     * target and needs JDK 16 or later, so it is loaded by name; if it
+     * cannot be, the server prints why and carries on with TCP only.
+     *
+     * @param path the socket file.
+     * @param processor the processor the TCP server uses.
+     * @param connections counts the connections of both servers.
+     */
+    private static void serveUnixSocket( final String path,
+        final TProcessor processor,
+        final CountingTransportFactory connections )
+    {
+        TServerTransport transport;
+        try {
+            transport = ( TServerTransport )Class.forName( UDS_TRANSPORT )
+                .getConstructor( String.class ).newInstance( path );
+            // here rather than in serve(), so a failure is reported now
+            transport.listen();
+        } catch ( Exception e ) {
+            System.out.println( "Cannot listen on " + path + ": " + e );
+            return;
+        } catch ( LinkageError le ) {
+            System.out.println( "Cannot listen on " + path + ": " + le );
+            return;
+        }
+        final TServer server = new TThreadPoolServer( processor, transport,
+            connections, new TTransportFactory(),
+            new TracingProtocolFactory(), new TBinaryProtocol.Factory() );
+        Thread serving = new Thread( new Runnable() {
+            public void run()
+            {
+                server.serve();
+            }
+        }, "uds-server" );
+        serving.setDaemon( true );
+        serving.start();
+        System.out.println( "Starting server on " + path + " ..." );
+    }
+
+    /**
+     * Registers an MBean under {@link DfsMetrics#DOMAIN}, printing rather
+     * than failing if it cannot be.
+     *
+     * @param mbean the MBean.
+     * @param properties the key properties of its name.
+     */
+    private static void register( final Object mbean,
+        final String properties )
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( mbean,
+                new ObjectName( DfsMetrics.DOMAIN + ":" + properties ) );
+        } catch ( JMException jme ) {
+            System.out.println( "Cannot register MBean " + properties + ": "
+                + jme );
+        }
+    }
+
 }
@@ -0,0 +1,856 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.FileStatus;
+import com.opendatagroup.dfsservice.NamespaceEvent;
+import com.opendatagroup.dfsservice.WatchResult;
+// end thrift-generated files
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves <code>watch</code> and <code>pollEvents</code>, which report the
+ * entries created, deleted, renamed and modified in a directory, from one
+ * scanner per directory shared by everyone watching it.
+ * <p>
+ * The first watcher of a directory lists it.  From then on a scanner
+ * thread lists it again once per scan interval, however many clients are
+ * watching, and records the differences from the last listing as events
+ * in a log kept with the directory; pollers waiting for events are woken.
+ * Calls made through this server that change a watched directory (create,
+ * mkdir, move, remove) have it rescanned at once instead of at the next
+ * interval, and tell the scanner which renames they made, so a move shows
+ * as one rename event rather than a delete and a create.  Renames made
+ * elsewhere are recognised when exactly one entry disappeared and one with
+ * the same type, length and modification time appeared.  Changes that come
+ * and go between two scans are not seen.
+ * <p>
+ * A client reads the log with a cursor, the sequence number of the last
+ * event it has seen.  Sequence numbers grow across all directories and
+ * start from the time the server started, so a cursor from before the log
+ * began, from before events it has dropped, or from another server is
+ * detected and answered with a reset, telling the client to list the
+ * directory again.  A directory is watched until all of its clients have
+ * unwatched it or closed, and nobody has polled it for a while, or until it
+ * is removed; a listing that fails while the directory is still there is
+ * tried again at the next scan.
+ */
+public class DirectoryWatcher implements DirectoryWatcherMBean
+{
+    // ** Private Static Final Data **
+
+    /** Logger. */
+    private static final Log LOG =
+        LogFactory.getLog( DirectoryWatcher.class.getName() );
+
+    /** Number of threads scanning the watched directories. */
+    private static final int SCAN_THREADS = 2;
+
+    /** Time a rename is remembered for the scans that have to see it. */
+    private static final long RENAME_MILLIS = 60000L;
+
+    // ** Inner Classes **
+
+    /**
+     * A rename made through the server, waiting for the scans of the
+     * directories at either end.
+     */
+    private static final class Rename
+    {
+        /** The old path. */
+        private final String source;
+
+        /** The new path. */
+        private final String target;
+
+        /** {@link System#currentTimeMillis} after which it is forgotten. */
+        private final long expires;
+
+        /** Set once a scan saw the old path go. */
+        private boolean sourceSeen;
+
+        /** Set once a scan saw the new path appear. */
+        private boolean targetSeen;
+
+        /**
+         * @param source the old path.
+         * @param target the new path.
+         */
+        private Rename( final String source, final String target )
+        {
+            this.source = source;
+            this.target = target;
+            this.expires = System.currentTimeMillis() + RENAME_MILLIS;
+        }
+    }
+
+    /**
+     * An event with its place in the log.
+     */
+    private static final class Logged
+    {
+        /** Sequence number of the event. */
+        private final long sequence;
+
+        /** The event. */
+        private final NamespaceEvent event;
+
+        /**
+         * @param sequence the sequence number.
+         * @param event the event.
+         */
+        private Logged( final long sequence, final NamespaceEvent event )
+        {
+            this.sequence = sequence;
+            this.event = event;
+        }
+    }
+
+    /**
+     * The shared state of one watched directory.  Everything but the
+     * immutable fields is guarded by {@link #lock}; scans are serialised
+     * on the watch itself.
+     */
+    private final class Watch implements Runnable
+    {
+        /** File system the directory is in. */
+        private final FileSystem fs;
+
+        /** The directory. */
+        private final Path path;
+
+        /** Key of the watch in {@link DirectoryWatcher#watches}. */
+        private final String key;
+
+        /** Guards the watch. */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** Signalled when an event is logged or the watch ends. */
+        private final Condition changed = lock.newCondition();
+
+        /** The last listing, keyed on the path of each entry. */
+        private Map<String, FileStatus> entries;
+
+        /** Events in sequence order. */
+        private final LinkedList<Logged> log = new LinkedList<Logged>();
+
+        /** Sequence number of the last event dropped or before the log. */
+        private long dropped;
+
+        /** Sequence number of the last event, {@link #dropped} if none. */
+        private long latest;
+
+        /** Ids of the clients watching the directory. */
+        private final Set<Long> clients = new HashSet<Long>();
+
+        /** Pollers waiting on {@link #changed}. */
+        private int waiting;
+
+        /** {@link System#currentTimeMillis} when last polled. */
+        private long lastUsed = System.currentTimeMillis();
+
+        /** The error that ended the watch, if any. */
+        private IOException error;
+
+        /** Set once the watch has ended. */
+        private boolean closed;
+
+        /** Set while a rescan asked for by {@link #changed} is pending. */
+        private boolean rescanning;
+
+        /** The periodic scan, once scheduled. */
+        private ScheduledFuture<?> task;
+
+        /**
+         * Lists the directory, without reporting its entries as events.
+         *
+         * @param fs the file system.
+         * @param path the directory.
+         * @param key the key of the watch.
+         *
+         * @throws IOException if the directory cannot be listed.
+         */
+        private Watch( final FileSystem fs, final Path path,
+            final String key )
+            throws IOException
+        {
+            this.fs = fs;
+            this.path = path;
+            this.key = key;
+            if ( !fs.getFileStatus( path ).isDir() ) {
+                throw new IOException( path + " is not a directory" );
+            }
+            this.entries = list();
+            this.dropped = sequence.get();
+            this.latest = dropped;
+        }
+
+        /**
+         * Scans the directory, or ends the watch if it is no longer used.
+         */
+        public void run()
+        {
+            lock.lock();
+            try {
+                rescanning = false;
+                if ( closed ) {
+                    return;
+                }
+                long idle = System.currentTimeMillis() - lastUsed;
+                if ( clients.isEmpty() && waiting == 0 && idle > idleMillis ) {
+                    close( null );
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            synchronized ( this ) {
+                scans.incrementAndGet();
+                Map<String, FileStatus> now;
+                try {
+                    now = list();
+                } catch ( IOException ioe ) {
+                    if ( exists() ) {
+                        // e.g. an entry went while it was being listed
+                        LOG.debug( "DirectoryWatcher: cannot list " + path
+                            + ", trying again at the next scan", ioe );
+                        return;
+                    }
+                    LOG.debug( "DirectoryWatcher: stopped watching " + path,
+                        ioe );
+                    lock.lock();
+                    try {
+                        close( ioe );
+                    } finally {
+                        lock.unlock();
+                    }
+                    return;
+                }
+                List<NamespaceEvent> found = diff( entries, now );
+                lock.lock();
+                try {
+                    entries = now;
+                    for ( NamespaceEvent event : found ) {
+                        append( event );
+                    }
+                    if ( !found.isEmpty() ) {
+                        changed.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * @return the entries of the directory keyed on their paths.
+         *
+         * @throws IOException if the directory cannot be listed.
+         */
+        private Map<String, FileStatus> list()
+            throws IOException
+        {
+            org.apache.hadoop.fs.FileStatus[] status = fs.listStatus( path );
+            if ( status == null ) {
+                throw new FileNotFoundException( path + " does not exist" );
+            }
+            Map<String, FileStatus> result =
+                new HashMap<String, FileStatus>( status.length * 2 );
+            try {
+                for ( org.apache.hadoop.fs.FileStatus s : status ) {
+                    result.put( s.getPath().toUri().getPath(),
+                        DfsServer.DfsHandler.convertToThriftFileStatus( s ) );
+                }
+            } catch ( RuntimeException re ) {
+                // the local file system looks permissions up lazily and
+                // fails this way for an entry that has gone since; an
+                // exception escaping a scan would stop it for good
+                IOException ioe = new IOException( "cannot list " + path );
+                ioe.initCause( re );
+                throw ioe;
+            }
+            return result;
+        }
+
+        /**
+         * @return whether the directory still exists, <code>false</code>
+         * if that cannot be told either.
+         */
+        private boolean exists()
+        {
+            try {
+                return fs.exists( path );
+            } catch ( IOException ioe ) {
+                return false;
+            }
+        }
+
+        /**
+         * Logs an event.  Must be called holding the lock.
+         */
+        private void append( final NamespaceEvent event )
+        {
+            log.addLast( new Logged( sequence.incrementAndGet(), event ) );
+            latest = log.getLast().sequence;
+            events.incrementAndGet();
+            while ( log.size() > maxEvents ) {
+                dropped = log.removeFirst().sequence;
+            }
+        }
+
+        /**
+         * Ends the watch and wakes the pollers.  Must be called holding the
+         * lock.
+         *
+         * @param cause the error to pass to the pollers, if any.
+         */
+        private void close( final IOException cause )
+        {
+            closed = true;
+            error = cause;
+            log.clear();
+            watches.remove( key, this );
+            if ( task != null ) {
+                task.cancel( false );
+            }
+            changed.signalAll();
+        }
+    }
+
+    // ** Private Data **
+
+    /** Time between two scans of a watched directory, in milliseconds. */
+    private final long scanMillis;
+
+    /** Delay before the rescan after a change made through the server. */
+    private final long settleMillis;
+
+    /** Time after which a directory nobody watches is dropped. */
+    private final long idleMillis;
+
+    /** Most events kept for each directory. */
+    private final int maxEvents;
+
+    /** Watches keyed on the path of the directory. */
+    private final ConcurrentHashMap<String, Watch> watches =
+        new ConcurrentHashMap<String, Watch>();
+
+    /** Renames made through the server that scans have yet to see. */
+    private final List<Rename> renames = new LinkedList<Rename>();
+
+    /** Source of the sequence numbers of events. */
+    private final AtomicLong sequence =
+        new AtomicLong( System.currentTimeMillis() * 1000L );
+
+    /** Runs the scans. */
+    private final ScheduledThreadPoolExecutor scanner;
+
+    /** Pollers waiting for events. */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /** Scans made. */
+    private final AtomicLong scans = new AtomicLong();
+
+    /** Events logged. */
+    private final AtomicLong events = new AtomicLong();
+
+
+    // ** Constructors **
+
+    /**
+     * @param scanMillis the time between two scans of a watched directory.
+     * @param settleMillis the delay before a watched directory changed
+     * through the server is rescanned.
+     * @param idleMillis the time after which a directory nobody watches or
+     * polls is dropped.
+     * @param maxEvents the most events kept for each directory.
+     */
+    public DirectoryWatcher( final long scanMillis, final long settleMillis,
+        final long idleMillis, final int maxEvents )
+    {
+        this.scanMillis = Math.max( 1L, scanMillis );
+        this.settleMillis = Math.max( 0L, settleMillis );
+        this.idleMillis = idleMillis;
+        this.maxEvents = Math.max( 1, maxEvents );
+        final AtomicLong count = new AtomicLong();
+        this.scanner = new ScheduledThreadPoolExecutor( SCAN_THREADS,
+            new ThreadFactory() {
+                public Thread newThread( final Runnable r )
+                {
+                    Thread t = new Thread( r, "dfs-watch-"
+                        + count.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * Registers a client's interest in a directory.
+     *
+     * @param fs the file system the directory is in.
+     * @param path the directory.
+     * @param client the id of the client handle.
+     *
+     * @return the cursor to poll from, which sees every event after now.
+     *
+     * @throws IOException if the directory cannot be listed.
+     */
+    public long watch( final FileSystem fs, final Path path,
+        final long client )
+        throws IOException
+    {
+        while ( true ) {
+            Watch watch = watch( fs, path );
+            watch.lock.lock();
+            try {
+                if ( watch.closed ) {
+                    if ( watch.error != null ) {
+                        throw watch.error;
+                    }
+                    continue;
+                }
+                watch.clients.add( Long.valueOf( client ) );
+                watch.lastUsed = System.currentTimeMillis();
+                return watch.latest;
+            } finally {
+                watch.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Withdraws a client's interest in a directory.  The directory is
+     * dropped once nobody watches or polls it.
+     *
+     * @param fs the file system the directory is in.
+     * @param path the directory.
+     * @param client the id of the client handle.
+     *
+     * @return whether the client was watching the directory.
+     */
+    public boolean unwatch( final FileSystem fs, final Path path,
+        final long client )
+    {
+        Watch watch = watches.get( key( fs, path ) );
+        if ( watch == null ) {
+            return false;
+        }
+        watch.lock.lock();
+        try {
+            return watch.clients.remove( Long.valueOf( client ) );
+        } finally {
+            watch.lock.unlock();
+        }
+    }
+
+    /**
+     * Withdraws a client's interest in every directory, for a client that
+     * closed.
+     *
+     * @param client the id of the client handle.
+     */
+    public void unwatchAll( final long client )
+    {
+        for ( Watch watch : watches.values() ) {
+            watch.lock.lock();
+            try {
+                watch.clients.remove( Long.valueOf( client ) );
+            } finally {
+                watch.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for events after a cursor in a directory and returns them.  A
+     * directory polled without being watched is watched from now, so its
+     * first poll is a reset.
+     *
+     * @param fs the file system the directory is in.
+     * @param path the directory.
+     * @param cursor the sequence number of the last event seen.
+     * @param maxEvents the most events to return.
+     * @param waitMillis the longest time to wait for an event.
+     *
+     * @return the events and the cursor to poll from next, or a reset if
+     * events after <code>cursor</code> are not known.
+     *
+     * @throws IOException if the directory cannot be listed or the thread
+     * is interrupted.
+     */
+    public WatchResult poll( final FileSystem fs, final Path path,
+        final long cursor, final int maxEvents, final long waitMillis )
+        throws IOException
+    {
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos( Math.max( 0L, waitMillis ) );
+        while ( true ) {
+            Watch watch = watch( fs, path );
+            watch.lock.lock();
+            try {
+                watch.lastUsed = System.currentTimeMillis();
+                if ( !watch.closed && ( cursor < watch.dropped
+                        || cursor > watch.latest ) ) {
+                    return new WatchResult( new ArrayList<NamespaceEvent>(),
+                        watch.latest, true );
+                }
+                watch.waiting++;
+                waiting.incrementAndGet();
+                try {
+                    long nanos;
+                    while ( !watch.closed && watch.latest == cursor
+                            && ( nanos = deadline - System.nanoTime() ) > 0L ) {
+                        watch.changed.awaitNanos( nanos );
+                    }
+                } catch ( InterruptedException ie ) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( "interrupted watching "
+                        + path );
+                } finally {
+                    watch.waiting--;
+                    waiting.decrementAndGet();
+                    watch.lastUsed = System.currentTimeMillis();
+                }
+                if ( watch.closed ) {
+                    if ( watch.error != null ) {
+                        throw watch.error;
+                    }
+                    // dropped as idle just before it was found; start again
+                    continue;
+                }
+                if ( cursor < watch.dropped ) {
+                    // the log moved past the cursor while waiting
+                    return new WatchResult( new ArrayList<NamespaceEvent>(),
+                        watch.latest, true );
+                }
+                List<NamespaceEvent> result = new ArrayList<NamespaceEvent>();
+                long next = cursor;
+                for ( Logged logged : watch.log ) {
+                    if ( result.size() >= maxEvents ) {
+                        break;
+                    }
+                    if ( logged.sequence > cursor ) {
+                        result.add( logged.event );
+                        next = logged.sequence;
+                    }
+                }
+                return new WatchResult( result, next, false );
+            } finally {
+                watch.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Notes that an entry was created, removed or changed through the
+     * server, so the watched directory holding it, and the entry itself if
+     * it is a watched directory, are rescanned shortly.
+     *
+     * @param fs the file system.
+     * @param path the entry.
+     */
+    public void changed( final FileSystem fs, final Path path )
+    {
+        if ( watches.isEmpty() ) {
+            return;
+        }
+        Path qualified = fs.makeQualified( path );
+        rescan( qualified.toUri().getPath() );
+        if ( qualified.getParent() != null ) {
+            rescan( qualified.getParent().toUri().getPath() );
+        }
+    }
+
+    /**
+     * Notes that an entry was renamed through the server, so the scans of
+     * the directories at either end report it as a rename.
+     *
+     * @param fs the file system.
+     * @param source the old path.
+     * @param target the new path, after any move into a directory.
+     */
+    public void renamed( final FileSystem fs, final Path source,
+        final Path target )
+    {
+        if ( watches.isEmpty() ) {
+            return;
+        }
+        synchronized ( renames ) {
+            renames.add( new Rename(
+                fs.makeQualified( source ).toUri().getPath(),
+                fs.makeQualified( target ).toUri().getPath() ) );
+        }
+        changed( fs, source );
+        changed( fs, target );
+    }
+
+    /**
+     * @return whether any directory is watched, so that callers can skip
+     * work done only for {@link #renamed}.
+     */
+    public boolean isWatching()
+    {
+        return !watches.isEmpty();
+    }
+
+    /** {@inheritDoc} */
+    public int getWatchedDirectoryCount()
+    {
+        return watches.size();
+    }
+
+    /** {@inheritDoc} */
+    public int getWaitingPollerCount()
+    {
+        return waiting.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getScanCount()
+    {
+        return scans.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getEventCount()
+    {
+        return events.get();
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Returns the watch of a directory, starting one if there is none.
+     */
+    private Watch watch( final FileSystem fs, final Path path )
+        throws IOException
+    {
+        String key = key( fs, path );
+        Watch watch = watches.get( key );
+        if ( watch != null ) {
+            return watch;
+        }
+        Watch created = new Watch( fs, path, key );
+        watch = watches.putIfAbsent( key, created );
+        if ( watch != null ) {
+            return watch;
+        }
+        created.lock.lock();
+        try {
+            created.task = scanner.scheduleWithFixedDelay( created,
+                scanMillis, scanMillis, TimeUnit.MILLISECONDS );
+        } finally {
+            created.lock.unlock();
+        }
+        return created;
+    }
+
+    /**
+     * Schedules a rescan of a directory if it is watched and none is
+     * pending.
+     */
+    private void rescan( final String key )
+    {
+        Watch watch = watches.get( key );
+        if ( watch == null ) {
+            return;
+        }
+        watch.lock.lock();
+        try {
+            if ( watch.closed || watch.rescanning ) {
+                return;
+            }
+            watch.rescanning = true;
+        } finally {
+            watch.lock.unlock();
+        }
+        scanner.schedule( watch, settleMillis, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Works out the events between two listings of a directory.
+     *
+     * @param before the earlier listing.
+     * @param after the later listing.
+     *
+     * @return the events, renames first.
+     */
+    private List<NamespaceEvent> diff( final Map<String, FileStatus> before,
+        final Map<String, FileStatus> after )
+    {
+        Map<String, FileStatus> created = new HashMap<String, FileStatus>();
+        Map<String, FileStatus> deleted = new HashMap<String, FileStatus>();
+        List<NamespaceEvent> result = new ArrayList<NamespaceEvent>();
+        List<NamespaceEvent> modified = new ArrayList<NamespaceEvent>();
+
+        for ( Map.Entry<String, FileStatus> e : after.entrySet() ) {
+            FileStatus old = before.get( e.getKey() );
+            FileStatus now = e.getValue();
+            if ( old == null ) {
+                created.put( e.getKey(), now );
+            } else if ( !now.isdir && ( now.length != old.length
+                    || now.modification_time != old.modification_time ) ) {
+                modified.add( new NamespaceEvent( Constants.EVENT_MODIFIED,
+                    e.getKey(), "", now ) );
+            }
+        }
+        for ( Map.Entry<String, FileStatus> e : before.entrySet() ) {
+            if ( !after.containsKey( e.getKey() ) ) {
+                deleted.put( e.getKey(), e.getValue() );
+            }
+        }
+
+        if ( !created.isEmpty() || !deleted.isEmpty() ) {
+            renamesMadeHere( created, deleted, result );
+            renamesSeenHere( created, deleted, result );
+        }
+        for ( Map.Entry<String, FileStatus> e : created.entrySet() ) {
+            result.add( new NamespaceEvent( Constants.EVENT_CREATED,
+                e.getKey(), "", e.getValue() ) );
+        }
+        for ( Map.Entry<String, FileStatus> e : deleted.entrySet() ) {
+            result.add( new NamespaceEvent( Constants.EVENT_DELETED,
+                e.getKey(), "", e.getValue() ) );
+        }
+        result.addAll( modified );
+        return result;
+    }
+
+    /**
+     * Turns the creations and deletions explained by renames made through
+     * the server into rename events.
+     */
+    private void renamesMadeHere( final Map<String, FileStatus> created,
+        final Map<String, FileStatus> deleted,
+        final List<NamespaceEvent> result )
+    {
+        long now = System.currentTimeMillis();
+        synchronized ( renames ) {
+            for ( Iterator<Rename> i = renames.iterator(); i.hasNext(); ) {
+                Rename r = i.next();
+                if ( r.expires < now ) {
+                    i.remove();
+                    continue;
+                }
+                FileStatus target = created.remove( r.target );
+                FileStatus source = deleted.remove( r.source );
+                if ( target != null || source != null ) {
+                    result.add( new NamespaceEvent( Constants.EVENT_RENAMED,
+                        r.source, r.target,
+                        target != null ? target : source ) );
+                }
+                r.targetSeen |= target != null;
+                r.sourceSeen |= source != null;
+                if ( r.sourceSeen && r.targetSeen ) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Turns a deletion and a creation of entries that look the same into a
+     * rename event, when there is exactly one candidate on each side.
+     */
+    private void renamesSeenHere( final Map<String, FileStatus> created,
+        final Map<String, FileStatus> deleted,
+        final List<NamespaceEvent> result )
+    {
+        Iterator<Map.Entry<String, FileStatus>> i =
+            deleted.entrySet().iterator();
+        while ( i.hasNext() ) {
+            Map.Entry<String, FileStatus> d = i.next();
+            String match = null;
+            int matches = 0;
+            for ( Map.Entry<String, FileStatus> c : created.entrySet() ) {
+                if ( same( d.getValue(), c.getValue() ) ) {
+                    match = c.getKey();
+                    matches++;
+                }
+            }
+            if ( matches != 1 ) {
+                continue;
+            }
+            int sources = 0;
+            for ( FileStatus other : deleted.values() ) {
+                if ( same( other, created.get( match ) ) ) {
+                    sources++;
+                }
+            }
+            if ( sources != 1 ) {
+                continue;
+            }
+            result.add( new NamespaceEvent( Constants.EVENT_RENAMED,
+                d.getKey(), match, created.remove( match ) ) );
+            i.remove();
+        }
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * @return the key of a directory in {@link #watches}.
+     */
+    private static String key( final FileSystem fs, final Path path )
+    {
+        return fs.makeQualified( path ).toUri().getPath();
+    }
+
+    /**
+     * @return whether two entries could be the same one under two names.
+     */
+    private static boolean same( final FileStatus a, final FileStatus b )
+    {
+        return a.isdir == b.isdir && a.length == b.length
+            && a.modification_time == b.modification_time;
+    }
+}
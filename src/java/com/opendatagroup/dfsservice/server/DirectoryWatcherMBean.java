@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+/**
+ * JMX view of a {@link DirectoryWatcher}.
+ */
+public interface DirectoryWatcherMBean
+{
+    /** @return directories being watched. */
+    int getWatchedDirectoryCount();
+
+    /** @return pollEvents calls waiting for an event. */
+    int getWaitingPollerCount();
+
+    /** @return listings of watched directories since start. */
+    long getScanCount();
+
+    /** @return events recorded since start. */
+    long getEventCount();
+}
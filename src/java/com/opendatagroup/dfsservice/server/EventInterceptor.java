@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import com.opendatagroup.dfsservice.util.DfsEventSink;
+
+/**
+ * Reports every call to a {@link DfsEventSink}, so a recording shows which
+ * operation, path and handle each serving thread was busy with.  It is
+ * only put in the interceptor chain when a sink is configured.
+ */
+public class EventInterceptor implements DfsInterceptor
+{
+    // ** Private Data **
+
+    /** Where the calls are reported. */
+    private final DfsEventSink sink;
+
+
+    // ** Constructors **
+
+    /**
+     * @param sink where the calls are reported.
+     */
+    public EventInterceptor( final DfsEventSink sink )
+    {
+        this.sink = sink;
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public void before( final DfsCall call )
+    {
+        sink.rpcBegin();
+    }
+
+    /** {@inheritDoc} */
+    public void after( final DfsCall call )
+    {
+        sink.rpcEnd( call.getOp().getRpcName(), call.getPath(),
+            call.getDfsHandle() == null ? -1L : call.getDfsHandle().id,
+            call.getBytesRead(), call.getBytesWritten(),
+            call.isSucceeded() );
+    }
+}
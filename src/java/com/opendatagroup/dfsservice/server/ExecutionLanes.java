@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import com.opendatagroup.dfsservice.util.StripedCounter;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives each class of operation its own share of the handler, as a
+ * {@link DfsInterceptor}, so that a flood of large transfers cannot hold up
+ * the cheap calls interactive users are waiting on.
+ * <p>
+ * Every call that can be refused is put in one of three lanes:
+ * <ul>
+ * <li>metadata - {@link DfsOp.Kind#METADATA} calls such as
+ * <code>stat</code>, <code>listFiles</code> and <code>open</code>;</li>
+ * <li>data - reads and writes of at most the bulk threshold;</li>
+ * <li>bulk - <code>copyToLocalFile</code>, <code>copyFromLocalFile</code>
+ * and reads and writes of more than the bulk threshold.</li>
+ * </ul>
+ * Each lane runs at most a fixed number of calls at once.  The server runs
+ * one thread per connection, so a lane does not need threads of its own: a
+ * call over its lane's limit waits on the connection's thread, up to a
+ * timeout, in a queue of bounded length, and the lanes only bound how many
+ * calls of each class are in the DFS together.  When the queue is full or
+ * the wait times out, the call is refused with a
+ * <code>DfsServiceIOException</code> whose message starts with
+ * {@link Constants#OVERLOADED}.  Session calls are never held, and neither
+ * are long polls such as <code>follow</code>, which would sit on a slot
+ * while they wait.
+ * <p>
+ * Placed before an {@link AdmissionController}, bulk calls waiting for
+ * their lane do not take admission slots, so metadata calls still find
+ * room.
+ */
+public class ExecutionLanes implements DfsInterceptor, ExecutionLanesMBean
+{
+    // ** Public Static Inner Classes **
+
+    /**
+     * Settings of the lanes.
+     */
+    public static class Options
+    {
+        /** Most metadata calls running at once. */
+        public int metadataPermits = 32;
+
+        /** Most small reads and writes running at once. */
+        public int dataPermits = 16;
+
+        /** Most bulk transfers running at once. */
+        public int bulkPermits = 4;
+
+        /** Reads and writes asking for more bytes than this are bulk. */
+        public long bulkThreshold = 1024L * 1024L;
+
+        /** Most calls waiting in each lane; 0 refuses at once. */
+        public int maxQueued = 100;
+
+        /** Longest a call waits for its lane, in milliseconds. */
+        public long maxWaitMillis = 2000L;
+    }
+
+    // ** Private Static Inner Classes **
+
+    /**
+     * One lane: its permits, waiters and refusals.
+     */
+    private static final class Lane
+    {
+        /** Name used in error messages. */
+        private final String name;
+
+        /** Number of permits, for reporting. */
+        private final int permits;
+
+        /** Free slots. */
+        private final Semaphore slots;
+
+        /** Calls waiting for a slot. */
+        private final AtomicInteger queued = new AtomicInteger();
+
+        /** Calls refused. */
+        private final StripedCounter rejected = new StripedCounter();
+
+        /**
+         * @param name the lane's name.
+         * @param permits the most calls running at once.
+         */
+        private Lane( final String name, final int permits )
+        {
+            if ( permits < 1 ) {
+                throw new IllegalArgumentException( "lane " + name
+                    + " needs at least one permit, not " + permits );
+            }
+            this.name = name;
+            this.permits = permits;
+            this.slots = new Semaphore( permits, true );
+        }
+
+        /**
+         * @return calls running in the lane.
+         */
+        private int active()
+        {
+            return permits - slots.availablePermits();
+        }
+    }
+
+    // ** Private Data **
+
+    /** Settings. */
+    private final Options options;
+
+    /** Lane of metadata calls. */
+    private final Lane metadata;
+
+    /** Lane of small reads and writes. */
+    private final Lane data;
+
+    /** Lane of bulk transfers. */
+    private final Lane bulk;
+
+
+    // ** Constructors **
+
+    /**
+     * @param options the settings, which must not be changed afterwards.
+     */
+    public ExecutionLanes( final Options options )
+    {
+        this.options = options;
+        this.metadata = new Lane( "metadata", options.metadataPermits );
+        this.data = new Lane( "data", options.dataPermits );
+        this.bulk = new Lane( "bulk", options.bulkPermits );
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public void before( final DfsCall call )
+        throws DfsServiceIOException
+    {
+        Lane lane = laneOf( call );
+        if ( lane == null || acquire( lane ) ) {
+            return;
+        }
+        lane.rejected.increment();
+        throw new DfsServiceIOException( Constants.OVERLOADED
+            + call.getOp().getRpcName() + " refused, " + lane.active()
+            + " calls in the " + lane.name + " lane with a limit of "
+            + lane.permits );
+    }
+
+    /** {@inheritDoc} */
+    public void after( final DfsCall call )
+    {
+        Lane lane = laneOf( call );
+        if ( lane != null ) {
+            lane.slots.release();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public int getMetadataActive()
+    {
+        return metadata.active();
+    }
+
+    /** {@inheritDoc} */
+    public int getMetadataQueued()
+    {
+        return metadata.queued.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getMetadataRejectedCount()
+    {
+        return metadata.rejected.get();
+    }
+
+    /** {@inheritDoc} */
+    public int getDataActive()
+    {
+        return data.active();
+    }
+
+    /** {@inheritDoc} */
+    public int getDataQueued()
+    {
+        return data.queued.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getDataRejectedCount()
+    {
+        return data.rejected.get();
+    }
+
+    /** {@inheritDoc} */
+    public int getBulkActive()
+    {
+        return bulk.active();
+    }
+
+    /** {@inheritDoc} */
+    public int getBulkQueued()
+    {
+        return bulk.queued.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getBulkRejectedCount()
+    {
+        return bulk.rejected.get();
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * @return the lane of a call, <code>null</code> for calls that are not
+     * held.  Depends only on the call, so before and after agree.
+     */
+    private Lane laneOf( final DfsCall call )
+    {
+        switch ( call.getOp().getKind() ) {
+        case METADATA:
+            return metadata;
+        case DATA:
+            return call.getRequestedBytes() > options.bulkThreshold
+                ? bulk : data;
+        case BULK:
+            return bulk;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Takes a slot in a lane, waiting in its queue if none is free.
+     *
+     * @return <code>false</code> if the queue is full, the wait timed out
+     * or the thread was interrupted.
+     */
+    private boolean acquire( final Lane lane )
+    {
+        // barge when a slot is free; only waiters are served in order
+        if ( lane.slots.tryAcquire() ) {
+            return true;
+        }
+        if ( lane.queued.incrementAndGet() > options.maxQueued ) {
+            lane.queued.decrementAndGet();
+            return false;
+        }
+        try {
+            return lane.slots.tryAcquire( options.maxWaitMillis,
+                TimeUnit.MILLISECONDS );
+        } catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lane.queued.decrementAndGet();
+        }
+    }
+}
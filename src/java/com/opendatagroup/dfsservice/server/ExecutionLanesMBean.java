@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+/**
+ * JMX view of an {@link ExecutionLanes}.
+ */
+public interface ExecutionLanesMBean
+{
+    /** @return metadata calls running. */
+    int getMetadataActive();
+
+    /** @return metadata calls waiting for their lane. */
+    int getMetadataQueued();
+
+    /** @return metadata calls refused since start. */
+    long getMetadataRejectedCount();
+
+    /** @return small reads and writes running. */
+    int getDataActive();
+
+    /** @return small reads and writes waiting for their lane. */
+    int getDataQueued();
+
+    /** @return small reads and writes refused since start. */
+    long getDataRejectedCount();
+
+    /** @return bulk transfers running. */
+    int getBulkActive();
+
+    /** @return bulk transfers waiting for their lane. */
+    int getBulkQueued();
+
+    /** @return bulk transfers refused since start. */
+    long getBulkRejectedCount();
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.FollowResult;
+// end thrift-generated files
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves <code>follow</code> calls, which wait for a file to grow, from one
+ * watcher per file shared by everyone following it.
+ * <p>
+ * The first follower of a file starts a watch.  From then on a poller
+ * thread asks the DFS for the file's status once per poll interval, however
+ * many clients are following it, so the load on the NameNode grows with the
+ * number of files followed, not with the number of followers.  When the
+ * file has grown, the poller reads the new bytes once and keeps the last
+ * few of them in memory, and wakes every follower waiting for them.
+ * Followers that are up to date are answered from memory; one that fell
+ * behind what is kept reads the file itself until it has caught up.  A
+ * watch nobody has used for a while is dropped.
+ * <p>
+ * A file that got shorter is taken to have been truncated or replaced:
+ * the bytes kept are dropped and followers past the new end are answered
+ * at once with the new length.  An error from the DFS, e.g. because the
+ * file was removed, ends the watch and is passed to the followers waiting
+ * on it.
+ */
+public class FileFollower implements FileFollowerMBean
+{
+    // ** Private Static Final Data **
+
+    /** Logger. */
+    private static final Log LOG =
+        LogFactory.getLog( FileFollower.class.getName() );
+
+    /** Number of threads polling the watched files. */
+    private static final int POLL_THREADS = 2;
+
+    // ** Inner Classes **
+
+    /**
+     * The shared state of one followed file.  Everything but the immutable
+     * fields is guarded by {@link #lock}.
+     */
+    private final class Watch implements Runnable
+    {
+        /** File system the file is in. */
+        private final FileSystem fs;
+
+        /** The file. */
+        private final Path path;
+
+        /** Key of the watch in {@link FileFollower#watches}. */
+        private final String key;
+
+        /** Guards the watch. */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** Signalled when the length changes or the watch ends. */
+        private final Condition changed = lock.newCondition();
+
+        /** Length of the file at the last poll. */
+        private long length;
+
+        /** The last bytes of the file, ending at {@link #length}. */
+        private byte[] tail = new byte[0];
+
+        /** Number of bytes of {@link #tail} in use. */
+        private int tailLength;
+
+        /** Followers waiting on {@link #changed}. */
+        private int waiting;
+
+        /** {@link System#currentTimeMillis} when last used by a follower. */
+        private long lastUsed = System.currentTimeMillis();
+
+        /** The error that ended the watch, if any. */
+        private IOException error;
+
+        /** Set once the watch has ended. */
+        private boolean closed;
+
+        /** The poll, once scheduled. */
+        private ScheduledFuture<?> task;
+
+        /**
+         * Reads the file's length, without keeping any of its bytes.
+         *
+         * @param fs the file system.
+         * @param path the file.
+         * @param key the key of the watch.
+         *
+         * @throws IOException if the file cannot be found.
+         */
+        private Watch( final FileSystem fs, final Path path, final String key )
+            throws IOException
+        {
+            this.fs = fs;
+            this.path = path;
+            this.key = key;
+            this.length = fs.getFileStatus( path ).getLen();
+        }
+
+        /**
+         * Polls the file, or ends the watch if it is no longer used.
+         */
+        public void run()
+        {
+            long known;
+            lock.lock();
+            try {
+                if ( closed ) {
+                    return;
+                }
+                if ( waiting == 0
+                        && System.currentTimeMillis() - lastUsed > idleMillis ) {
+                    close( null );
+                    return;
+                }
+                known = length;
+            } finally {
+                lock.unlock();
+            }
+
+            polls.incrementAndGet();
+            try {
+                long now = fs.getFileStatus( path ).getLen();
+                byte[] fresh = null;
+                long freshStart = now;
+                if ( now > known && tailBytes > 0 ) {
+                    // only what will be kept is worth reading
+                    freshStart = Math.max( known, now - tailBytes );
+                    fresh = new byte[( int )( now - freshStart )];
+                    FSDataInputStream in = fs.open( path );
+                    try {
+                        in.readFully( freshStart, fresh );
+                    } finally {
+                        IOUtils.closeStream( in );
+                    }
+                }
+                lock.lock();
+                try {
+                    update( now, fresh, freshStart );
+                } finally {
+                    lock.unlock();
+                }
+            } catch ( IOException ioe ) {
+                LOG.debug( "FileFollower: stopped watching " + path, ioe );
+                lock.lock();
+                try {
+                    close( ioe );
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Records a new length and the bytes read up to it, and wakes the
+         * followers if it changed.  Must be called holding the lock.
+         *
+         * @param now the length of the file.
+         * @param fresh the bytes from <code>freshStart</code> to
+         * <code>now</code>, or <code>null</code> if none were read.
+         * @param freshStart the offset of <code>fresh</code>.
+         */
+        private void update( final long now, final byte[] fresh,
+            final long freshStart )
+        {
+            if ( now == length ) {
+                return;
+            }
+            if ( now < length || fresh == null || freshStart != length ) {
+                // truncated, or the bytes kept no longer join up
+                tailLength = 0;
+            }
+            if ( fresh != null ) {
+                int keep = Math.min( tailLength, tailBytes - fresh.length );
+                byte[] next = tail.length >= keep + fresh.length ? tail
+                    : new byte[keep + fresh.length];
+                System.arraycopy( tail, tailLength - keep, next, 0, keep );
+                System.arraycopy( fresh, 0, next, keep, fresh.length );
+                tail = next;
+                tailLength = keep + fresh.length;
+            }
+            length = now;
+            changed.signalAll();
+        }
+
+        /**
+         * Ends the watch and wakes the followers.  Must be called holding
+         * the lock.
+         *
+         * @param cause the error to pass to the followers, if any.
+         */
+        private void close( final IOException cause )
+        {
+            closed = true;
+            error = cause;
+            tail = new byte[0];
+            tailLength = 0;
+            watches.remove( key, this );
+            if ( task != null ) {
+                task.cancel( false );
+            }
+            changed.signalAll();
+        }
+    }
+
+    // ** Private Data **
+
+    /** Time between two polls of a watched file, in milliseconds. */
+    private final long pollMillis;
+
+    /** Most bytes of a watched file kept in memory. */
+    private final int tailBytes;
+
+    /** Time after which a watch nobody used is dropped, in milliseconds. */
+    private final long idleMillis;
+
+    /** Watches keyed on the qualified path of the file. */
+    private final ConcurrentHashMap<String, Watch> watches =
+        new ConcurrentHashMap<String, Watch>();
+
+    /** Runs the polls. */
+    private final ScheduledThreadPoolExecutor poller;
+
+    /** Followers waiting for a file to grow. */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /** Polls made. */
+    private final AtomicLong polls = new AtomicLong();
+
+    /** Calls answered from memory. */
+    private final AtomicLong tailReads = new AtomicLong();
+
+    /** Calls that read the file. */
+    private final AtomicLong catchUpReads = new AtomicLong();
+
+
+    // ** Constructors **
+
+    /**
+     * @param pollMillis the time between two polls of a watched file.
+     * @param tailBytes the most bytes of a watched file kept in memory.
+     * @param idleMillis the time after which a watch nobody used is
+     * dropped.
+     */
+    public FileFollower( final long pollMillis, final int tailBytes,
+        final long idleMillis )
+    {
+        this.pollMillis = Math.max( 1L, pollMillis );
+        this.tailBytes = Math.max( 0, tailBytes );
+        this.idleMillis = idleMillis;
+        final AtomicLong count = new AtomicLong();
+        this.poller = new ScheduledThreadPoolExecutor( POLL_THREADS,
+            new ThreadFactory() {
+                public Thread newThread( final Runnable r )
+                {
+                    Thread t = new Thread( r, "dfs-follow-"
+                        + count.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * Waits for a file to grow past an offset and returns the bytes after
+     * it.  Returns at once, with no bytes, if the file is shorter than the
+     * offset.
+     *
+     * @param fs the file system the file is in.
+     * @param path the file.
+     * @param offset the offset the caller has read up to.
+     * @param maxBytes the most bytes to return.
+     * @param waitMillis the longest time to wait.
+     *
+     * @return the bytes from <code>offset</code>, if any, and the length of
+     * the file.
+     *
+     * @throws IOException if the file cannot be read or the thread is
+     * interrupted.
+     */
+    public FollowResult follow( final FileSystem fs, final Path path,
+        final long offset, final int maxBytes, final long waitMillis )
+        throws IOException
+    {
+        String key = fs.makeQualified( path ).toString();
+        long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos( Math.max( 0L, waitMillis ) );
+        while ( true ) {
+            Watch watch = watch( fs, path, key );
+            long length;
+            int count;
+            byte[] data = null;
+            watch.lock.lock();
+            try {
+                watch.waiting++;
+                waiting.incrementAndGet();
+                try {
+                    long nanos;
+                    while ( !watch.closed && watch.length == offset
+                            && ( nanos = deadline - System.nanoTime() ) > 0L ) {
+                        watch.changed.awaitNanos( nanos );
+                    }
+                } catch ( InterruptedException ie ) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( "interrupted following "
+                        + path );
+                } finally {
+                    watch.waiting--;
+                    waiting.decrementAndGet();
+                    watch.lastUsed = System.currentTimeMillis();
+                }
+                if ( watch.closed ) {
+                    if ( watch.error != null ) {
+                        throw watch.error;
+                    }
+                    // dropped as idle just before it was found; start again
+                    continue;
+                }
+                length = watch.length;
+                if ( length <= offset ) {
+                    return new FollowResult( new byte[0], length );
+                }
+                count = ( int )Math.min( maxBytes, length - offset );
+                long tailStart = length - watch.tailLength;
+                if ( offset >= tailStart ) {
+                    data = new byte[count];
+                    System.arraycopy( watch.tail,
+                        ( int )( offset - tailStart ), data, 0, count );
+                }
+            } finally {
+                watch.lock.unlock();
+            }
+
+            if ( data != null ) {
+                tailReads.incrementAndGet();
+            } else {
+                catchUpReads.incrementAndGet();
+                data = new byte[count];
+                FSDataInputStream in = fs.open( path );
+                try {
+                    in.readFully( offset, data );
+                } finally {
+                    IOUtils.closeStream( in );
+                }
+            }
+            return new FollowResult( data, length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public int getWatchedFileCount()
+    {
+        return watches.size();
+    }
+
+    /** {@inheritDoc} */
+    public int getWaitingFollowerCount()
+    {
+        return waiting.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getPollCount()
+    {
+        return polls.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getTailReadCount()
+    {
+        return tailReads.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getCatchUpReadCount()
+    {
+        return catchUpReads.get();
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Returns the watch of a file, starting one if there is none.
+     */
+    private Watch watch( final FileSystem fs, final Path path,
+        final String key )
+        throws IOException
+    {
+        Watch watch = watches.get( key );
+        if ( watch != null ) {
+            return watch;
+        }
+        Watch created = new Watch( fs, path, key );
+        watch = watches.putIfAbsent( key, created );
+        if ( watch != null ) {
+            return watch;
+        }
+        created.lock.lock();
+        try {
+            created.task = poller.scheduleWithFixedDelay( created,
+                pollMillis, pollMillis, TimeUnit.MILLISECONDS );
+        } finally {
+            created.lock.unlock();
+        }
+        return created;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+/**
+ * JMX view of a {@link FileFollower}.
+ */
+public interface FileFollowerMBean
+{
+    /** @return files being watched for growth. */
+    int getWatchedFileCount();
+
+    /** @return follow calls waiting for a file to grow. */
+    int getWaitingFollowerCount();
+
+    /** @return times a watched file was checked since start. */
+    long getPollCount();
+
+    /** @return follow calls answered from the bytes kept in memory. */
+    long getTailReadCount();
+
+    /** @return follow calls that had to read the file to catch up. */
+    long getCatchUpReadCount();
+}
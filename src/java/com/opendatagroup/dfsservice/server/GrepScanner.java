@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.GrepMatch;
+import com.opendatagroup.dfsservice.GrepResult;
+// end thrift-generated files
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scans a stream for the lines that match a pattern, for
+ * <code>grep</code>.  Lines are found and, for a literal pattern, matched
+ * on the raw bytes, so only the lines returned are decoded.  A literal
+ * works on UTF-8 bytes because no UTF-8 character is part of another.
+ * <p>
+ * An instance holds the compiled pattern and a buffer, so it is used by one
+ * thread at a time.
+ */
+final class GrepScanner
+{
+    // ** Private Static Final Data **
+
+    /** Encoding of the files and of the lines returned. */
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    /** Size the buffer starts at. */
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    // ** Private Data **
+
+    /** Substring searched for, <code>null</code> for a regex. */
+    private final byte[] literal;
+
+    /** Horspool shift of each byte value, for {@link #literal}. */
+    private final int[] shift;
+
+    /** Matcher of a regex, <code>null</code> for a literal. */
+    private final Matcher matcher;
+
+    /** Longest line matched in full; longer ones are truncated. */
+    private final int maxLine;
+
+    /** Bytes read and not yet consumed, from {@link #head}. */
+    private byte[] buf;
+
+
+    // ** Constructors **
+
+    /**
+     * @param pattern the pattern.
+     * @param isLiteral whether the pattern is a plain substring.
+     * @param maxLine the longest line matched in full.
+     *
+     * @throws java.util.regex.PatternSyntaxException if the pattern is not
+     * a valid regex.
+     */
+    GrepScanner( final String pattern, final boolean isLiteral,
+        final int maxLine )
+    {
+        if ( isLiteral ) {
+            literal = pattern.getBytes( UTF8 );
+            shift = new int[256];
+            int n = literal.length;
+            for ( int i = 0; i < shift.length; i++ ) {
+                shift[i] = Math.max( 1, n );
+            }
+            for ( int i = 0; i < n - 1; i++ ) {
+                shift[literal[i] & 0xff] = n - 1 - i;
+            }
+            matcher = null;
+        } else {
+            literal = null;
+            shift = null;
+            matcher = Pattern.compile( pattern ).matcher( "" );
+        }
+        this.maxLine = Math.max( 1, maxLine );
+        this.buf = new byte[Math.min( INITIAL_BUFFER, this.maxLine )];
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * Scans one page.
+     *
+     * @param in the file, positioned at <code>start - 1</code>, or at 0 if
+     * <code>start</code> is 0.  Starting a byte early tells whether
+     * <code>start</code> begins a line.
+     * @param start the offset of the first line that may be scanned.
+     * @param end the offset no scanned line may start at or after,
+     * <code>Long.MAX_VALUE</code> for the end of the file.
+     * @param maxMatches the most lines to return.
+     * @param maxScan the bytes after which the page ends at the next line.
+     *
+     * @return the page.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    GrepResult scan( final InputStream in, final long start, final long end,
+        final int maxMatches, final long maxScan )
+        throws IOException
+    {
+        List<GrepMatch> matches = new ArrayList<GrepMatch>();
+        long bufStart = start > 0L ? start - 1L : 0L;
+        int head = 0;
+        int tail = 0;
+        int from = 0;
+        // the first line read ends before start unless start is 0
+        boolean skip = start > 0L;
+        boolean discard = false;
+        boolean eof = false;
+        long nextOffset = -1L;
+
+        while ( true ) {
+            int nl = indexOf( buf, ( byte )'\n', from, tail );
+            if ( nl < 0 && !eof ) {
+                if ( head > 0 ) {
+                    System.arraycopy( buf, head, buf, 0, tail - head );
+                    bufStart += head;
+                    tail -= head;
+                    head = 0;
+                }
+                from = tail;
+                if ( tail == buf.length ) {
+                    if ( buf.length < maxLine ) {
+                        byte[] grown = new byte[( int )Math.min( maxLine,
+                            2L * buf.length )];
+                        System.arraycopy( buf, 0, grown, 0, tail );
+                        buf = grown;
+                    } else {
+                        // a line over the limit: match what is here, drop
+                        // the rest up to the next line
+                        if ( !skip && !discard ) {
+                            if ( bufStart >= end ) {
+                                break;
+                            }
+                            match( bufStart, 0, tail, matches );
+                        }
+                        discard = true;
+                        bufStart += tail;
+                        tail = 0;
+                        from = 0;
+                    }
+                }
+                int n = in.read( buf, tail, buf.length - tail );
+                if ( n < 0 ) {
+                    eof = true;
+                } else {
+                    tail += n;
+                }
+                continue;
+            }
+
+            int lineEnd = nl < 0 ? tail : nl;
+            if ( nl < 0 && head == lineEnd ) {
+                break;
+            }
+            long lineOffset = bufStart + head;
+            if ( skip || discard ) {
+                skip = false;
+                discard = false;
+            } else {
+                if ( lineOffset >= end ) {
+                    break;
+                }
+                int len = lineEnd - head;
+                if ( len > 0 && buf[head + len - 1] == '\r' ) {
+                    len--;
+                }
+                match( lineOffset, head, len, matches );
+            }
+            head = lineEnd + 1;
+            from = head;
+            long next = bufStart + head;
+            if ( nl < 0 ) {
+                break;
+            }
+            if ( matches.size() >= maxMatches || next - start >= maxScan ) {
+                nextOffset = next < end ? next : -1L;
+                break;
+            }
+        }
+        long scanned = Math.max( 0L, bufStart + Math.min( head, tail )
+            - start );
+        return new GrepResult( matches, nextOffset, scanned );
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Adds a line to the page if it matches.
+     */
+    private void match( final long offset, final int off, final int len,
+        final List<GrepMatch> matches )
+    {
+        if ( literal != null ) {
+            if ( contains( off, len ) ) {
+                matches.add( new GrepMatch( offset,
+                    new String( buf, off, len, UTF8 ) ) );
+            }
+        } else {
+            String line = new String( buf, off, len, UTF8 );
+            if ( matcher.reset( line ).find() ) {
+                matches.add( new GrepMatch( offset, line ) );
+            }
+        }
+    }
+
+    /**
+     * Boyer-Moore-Horspool search for {@link #literal}.
+     */
+    private boolean contains( final int off, final int len )
+    {
+        int n = literal.length;
+        if ( n == 0 ) {
+            return true;
+        }
+        int limit = off + len;
+        int i = off + n - 1;
+        while ( i < limit ) {
+            int j = n - 1;
+            int k = i;
+            while ( buf[k] == literal[j] ) {
+                if ( j == 0 ) {
+                    return true;
+                }
+                j--;
+                k--;
+            }
+            i += shift[buf[i] & 0xff];
+        }
+        return false;
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * @return the index of <code>b</code> in <code>a[from, to)</code>, or
+     * -1.
+     */
+    private static int indexOf( final byte[] a, final byte b, final int from,
+        final int to )
+    {
+        for ( int i = from; i < to; i++ ) {
+            if ( a[i] == b ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,703 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.BlockLocation;
+import com.opendatagroup.dfsservice.ClientHandle;
+import com.opendatagroup.dfsservice.ContentSummary;
+import com.opendatagroup.dfsservice.DfsHandle;
+import com.opendatagroup.dfsservice.DfsService;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+import com.opendatagroup.dfsservice.FollowResult;
+import com.opendatagroup.dfsservice.GrepMatch;
+import com.opendatagroup.dfsservice.GrepResult;
+import com.opendatagroup.dfsservice.ModifiedListing;
+import com.opendatagroup.dfsservice.SharedRing;
+import com.opendatagroup.dfsservice.SplitResult;
+import com.opendatagroup.dfsservice.WatchResult;
+// end thrift-generated files
+
+import com.facebook.thrift.TException;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Runs a chain of {@link DfsInterceptor}s around every call to a
+ * DfsService handler.  This is where cross-cutting concerns such as metrics
+ * hook in, so the handler itself stays about the DFS.  The interceptors see
+ * each call through the thread's reusable {@link DfsCall}, so the wrapper
+ * adds no allocation to a call.
+ */
+public class InterceptingHandler implements DfsService.Iface
+{
+    // ** Private Data **
+
+    /** The handler doing the work. */
+    private final DfsService.Iface delegate;
+
+    /** Interceptors in the order {@link DfsInterceptor#before} runs. */
+    private final DfsInterceptor[] interceptors;
+
+
+    // ** Constructors **
+
+    /**
+     * @param delegate the handler to call.
+     * @param interceptors the interceptors, outermost first.
+     */
+    public InterceptingHandler( final DfsService.Iface delegate,
+        final DfsInterceptor... interceptors )
+    {
+        this.delegate = delegate;
+        this.interceptors = interceptors.clone();
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public ClientHandle init( final String uri )
+        throws TException
+    {
+        DfsCall call = enterControl( DfsOp.INIT, null, null, null, 0L );
+        try {
+            ClientHandle result = delegate.init( uri );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean login( final ClientHandle chandle, final String user,
+        final String password )
+        throws TException
+    {
+        DfsCall call = enterControl( DfsOp.LOGIN, chandle, null, null, 0L );
+        try {
+            boolean result = delegate.login( chandle, user, password );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean logout( final ClientHandle chandle )
+        throws TException
+    {
+        DfsCall call = enterControl( DfsOp.LOGOUT, chandle, null, null, 0L );
+        try {
+            boolean result = delegate.logout( chandle );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean closeClient( final ClientHandle chandle )
+        throws TException
+    {
+        DfsCall call = enterControl( DfsOp.CLOSE_CLIENT, chandle, null, null,
+            0L );
+        try {
+            boolean result = delegate.closeClient( chandle );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean closeDfs()
+        throws TException
+    {
+        DfsCall call = enterControl( DfsOp.CLOSE_DFS, null, null, null, 0L );
+        try {
+            boolean result = delegate.closeDfs();
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public List<com.opendatagroup.dfsservice.FileStatus> listFiles(
+        final ClientHandle chandle, final String path )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.LIST_FILES, chandle, path, null, 0L );
+        try {
+            List<com.opendatagroup.dfsservice.FileStatus> result =
+                delegate.listFiles( chandle, path );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public List<com.opendatagroup.dfsservice.FileStatus> listFilesProjected(
+        final ClientHandle chandle, final String path, final int fields )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.LIST_FILES_PROJECTED, chandle, path, null,
+            0L );
+        try {
+            List<com.opendatagroup.dfsservice.FileStatus> result =
+                delegate.listFilesProjected( chandle, path, fields );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public ModifiedListing listModifiedSince( final ClientHandle chandle,
+        final String path, final long mtime, final boolean recursive )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.LIST_MODIFIED_SINCE, chandle, path, null,
+            0L );
+        try {
+            ModifiedListing result =
+                delegate.listModifiedSince( chandle, path, mtime, recursive );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public com.opendatagroup.dfsservice.FileStatus stat(
+        final ClientHandle chandle, final String path )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.STAT, chandle, path, null, 0L );
+        try {
+            com.opendatagroup.dfsservice.FileStatus result =
+                delegate.stat( chandle, path );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public com.opendatagroup.dfsservice.FileStatus statProjected(
+        final ClientHandle chandle, final String path, final int fields )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.STAT_PROJECTED, chandle, path, null, 0L );
+        try {
+            com.opendatagroup.dfsservice.FileStatus result =
+                delegate.statProjected( chandle, path, fields );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public ContentSummary contentSummary( final ClientHandle chandle,
+        final String path )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.CONTENT_SUMMARY, chandle, path, null, 0L );
+        try {
+            ContentSummary result = delegate.contentSummary( chandle, path );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public List<BlockLocation> getBlockLocations( final ClientHandle chandle,
+        final String path, final long offset, final long length )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.GET_BLOCK_LOCATIONS, chandle, path, null,
+            0L );
+        try {
+            List<BlockLocation> result =
+                delegate.getBlockLocations( chandle, path, offset, length );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean mkdir( final ClientHandle chandle, final String path )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.MKDIR, chandle, path, null, 0L );
+        try {
+            boolean result = delegate.mkdir( chandle, path );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean move( final ClientHandle chandle, final String oldpath,
+        final String newpath )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.MOVE, chandle, oldpath, null, 0L );
+        try {
+            boolean result = delegate.move( chandle, oldpath, newpath );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean remove( final ClientHandle chandle, final String path,
+        final boolean recursive )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.REMOVE, chandle, path, null, 0L );
+        try {
+            boolean result = delegate.remove( chandle, path, recursive );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public DfsHandle open( final ClientHandle chandle, final String filename,
+        final short mode )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.OPEN, chandle, filename, null, 0L );
+        try {
+            DfsHandle result = delegate.open( chandle, filename, mode );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean close( final ClientHandle chandle, final DfsHandle handle )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.CLOSE, chandle, null, handle, 0L );
+        try {
+            boolean result = delegate.close( chandle, handle );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public String read( final ClientHandle chandle, final DfsHandle handle,
+        final long offset, final long len )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.READ, chandle, null, handle, len );
+        try {
+            String result = delegate.read( chandle, handle, offset, len );
+            // read returns text, so this counts characters
+            call.succeed( result == null ? 0L : result.length(), 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public byte[] readBytes( final ClientHandle chandle,
+        final DfsHandle handle, final long offset, final long len )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.READ_BYTES, chandle, null, handle, len );
+        try {
+            byte[] result = delegate.readBytes( chandle, handle, offset, len );
+            call.succeed( result == null ? 0L : result.length, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public SharedRing openSharedRing( final ClientHandle chandle,
+        final long size )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.OPEN_SHARED_RING, chandle, null, null,
+            0L );
+        try {
+            SharedRing result = delegate.openSharedRing( chandle, size );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public int readShared( final ClientHandle chandle, final DfsHandle handle,
+        final long offset, final int len, final long ringOffset )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.READ_SHARED, chandle, null, handle, len );
+        try {
+            int result = delegate.readShared( chandle, handle, offset, len,
+                ringOffset );
+            call.succeed( result, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean write( final ClientHandle chandle, final DfsHandle handle,
+        final byte[] buf, final long offset, final long len )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.WRITE, chandle, null, handle, len );
+        try {
+            boolean result = delegate.write( chandle, handle, buf, offset,
+                len );
+            call.succeed( 0L, result ? len : 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean copyToLocalFile( final String src, final String dest )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.COPY_TO_LOCAL_FILE, null, src, null, 0L );
+        try {
+            boolean result = delegate.copyToLocalFile( src, dest );
+            call.succeed( result ? new File( dest ).length() : 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean copyFromLocalFile( final String src, final String dest )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.COPY_FROM_LOCAL_FILE, null, dest, null,
+            0L );
+        try {
+            boolean result = delegate.copyFromLocalFile( src, dest );
+            call.succeed( 0L, result ? new File( src ).length() : 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public GrepResult grep( final ClientHandle chandle, final String path,
+        final String pattern, final boolean literal, final long offset,
+        final long end, final int maxMatches )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.GREP, chandle, path, null, 0L );
+        try {
+            GrepResult result = delegate.grep( chandle, path, pattern,
+                literal, offset, end, maxMatches );
+            long read = 0L;
+            if ( result != null && result.matches != null ) {
+                for ( GrepMatch m : result.matches ) {
+                    read += m.line.length();
+                }
+            }
+            call.succeed( read, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public SplitResult readSplit( final ClientHandle chandle,
+        final String path, final long offset, final long length,
+        final String delimiter )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.READ_SPLIT, chandle, path, null, length );
+        try {
+            SplitResult result = delegate.readSplit( chandle, path, offset,
+                length, delimiter );
+            long read = 0L;
+            if ( result != null && result.records != null ) {
+                for ( byte[] record : result.records ) {
+                    read += record.length;
+                }
+            }
+            call.succeed( read, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public FollowResult follow( final ClientHandle chandle, final String path,
+        final long offset, final long maxBytes, final long waitMillis )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.FOLLOW, chandle, path, null, maxBytes );
+        try {
+            FollowResult result = delegate.follow( chandle, path, offset,
+                maxBytes, waitMillis );
+            call.succeed( result != null && result.data != null
+                ? result.data.length : 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public long watch( final ClientHandle chandle, final String path )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.WATCH, chandle, path, null, 0L );
+        try {
+            long result = delegate.watch( chandle, path );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public WatchResult pollEvents( final ClientHandle chandle,
+        final String path, final long cursor, final int maxEvents,
+        final long waitMillis )
+        throws DfsServiceIOException, TException
+    {
+        DfsCall call = enter( DfsOp.POLL_EVENTS, chandle, path, null, 0L );
+        try {
+            WatchResult result = delegate.pollEvents( chandle, path, cursor,
+                maxEvents, waitMillis );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean unwatch( final ClientHandle chandle, final String path )
+        throws TException
+    {
+        DfsCall call = enterControl( DfsOp.UNWATCH, chandle, path, null, 0L );
+        try {
+            boolean result = delegate.unwatch( chandle, path );
+            call.succeed( 0L, 0L );
+            return result;
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void setTraceId( final ClientHandle chandle,
+        final String traceId )
+        throws TException
+    {
+        DfsCall call = enterOption( DfsOp.SET_TRACE_ID, chandle );
+        try {
+            delegate.setTraceId( chandle, traceId );
+            call.succeed( 0L, 0L );
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void setCallTimeout( final ClientHandle chandle,
+        final long timeoutMillis )
+        throws TException
+    {
+        DfsCall call = enterOption( DfsOp.SET_CALL_TIMEOUT, chandle );
+        try {
+            delegate.setCallTimeout( chandle, timeoutMillis );
+            call.succeed( 0L, 0L );
+        } finally {
+            exit( call, interceptors.length );
+        }
+    }
+
+
+    // ** Protected Methods **
+
+    /**
+     * Starts a call that the interceptors may refuse.
+     *
+     * @param op the operation.
+     * @param chandle the client handle passed, <code>null</code> if none.
+     * @param path the path passed, <code>null</code> if none.
+     * @param handle the file handle passed, <code>null</code> if none.
+     * @param length the length passed to a read or write, <code>0</code>
+     * for other calls.
+     *
+     * @return the call, to be passed to {@link #exit}.
+     *
+     * @throws DfsServiceIOException if an interceptor refused the call.
+     */
+    protected DfsCall enter( final DfsOp op, final ClientHandle chandle,
+        final String path, final DfsHandle handle, final long length )
+        throws DfsServiceIOException
+    {
+        DfsCall call = DfsCall.begin( op, chandle, path, handle,
+            length );
+        int i = 0;
+        try {
+            for ( ; i < interceptors.length; i++ ) {
+                interceptors[i].before( call );
+            }
+        } catch ( DfsServiceIOException dsioe ) {
+            exit( call, i );
+            throw dsioe;
+        } catch ( RuntimeException re ) {
+            exit( call, i );
+            throw re;
+        }
+        call.admitted();
+        return call;
+    }
+
+    /**
+     * Starts a session call, which cannot be refused: an exception from an
+     * interceptor is logged and the call goes ahead.
+     *
+     * @param op the operation.
+     * @param chandle the client handle passed, <code>null</code> if none.
+     * @param path the path passed, <code>null</code> if none.
+     * @param handle the file handle passed, <code>null</code> if none.
+     * @param length the length passed to a read or write, <code>0</code>
+     * for other calls.
+     *
+     * @return the call, to be passed to {@link #exit}.
+     */
+    protected DfsCall enterControl( final DfsOp op,
+        final ClientHandle chandle, final String path,
+        final DfsHandle handle, final long length )
+    {
+        return control( DfsCall.begin( op, chandle, path, handle, length ) );
+    }
+
+    /**
+     * Starts a <code>setTraceId</code> or <code>setCallTimeout</code> call
+     * like {@link #enterControl}, but without taking the trace id or
+     * timeout an earlier such call set, which belong to the next real call.
+     *
+     * @param op the operation.
+     * @param chandle the client handle passed, <code>null</code> if none.
+     *
+     * @return the call, to be passed to {@link #exit}.
+     */
+    protected DfsCall enterOption( final DfsOp op,
+        final ClientHandle chandle )
+    {
+        return control( DfsCall.beginOption( op, chandle ) );
+    }
+
+    /**
+     * Runs {@link DfsInterceptor#after} on the first <code>count</code>
+     * interceptors, innermost first, and ends the call.
+     *
+     * @param call the call.
+     * @param count the number of interceptors whose before ran.
+     */
+    protected void exit( final DfsCall call, final int count )
+    {
+        call.returned();
+        try {
+            for ( int i = count - 1; i >= 0; i-- ) {
+                try {
+                    interceptors[i].after( call );
+                } catch ( RuntimeException re ) {
+                    DfsServer.DfsHandler.LOG.error( "DfsServer: interceptor "
+                        + "failed after " + call.getOp().getRpcName(), re );
+                }
+            }
+        } finally {
+            call.end();
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Runs {@link DfsInterceptor#before} on every interceptor for a call
+     * that cannot be refused.
+     *
+     * @param call the call.
+     *
+     * @return <code>call</code>.
+     */
+    private DfsCall control( final DfsCall call )
+    {
+        DfsOp op = call.getOp();
+        for ( int i = 0; i < interceptors.length; i++ ) {
+            try {
+                interceptors[i].before( call );
+            } catch ( DfsServiceIOException dsioe ) {
+                DfsServer.DfsHandler.LOG.warn( "DfsServer: interceptor "
+                    + "cannot refuse " + op.getRpcName() + ": "
+                    + dsioe.message );
+            }
+        }
+        call.admitted();
+        return call;
+    }
+}
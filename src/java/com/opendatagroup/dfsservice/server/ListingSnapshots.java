@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.FileStatus;
+import com.opendatagroup.dfsservice.ModifiedListing;
+// end thrift-generated files
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves <code>listModifiedSince</code> from the last listing of each
+ * directory, so a client that keeps asking what changed in a tree costs the
+ * DFS a <code>getFileStatus</code> per unchanged directory rather than a
+ * listing of it.
+ * <p>
+ * Adding, removing or renaming an entry changes the modification time of
+ * its directory, so while that stays the same the snapshot has the right
+ * entries and is used instead of listing again.  What the directory's time
+ * does not show is an entry changing in place, such as a file being closed
+ * after it was written, so a snapshot is only used for a limited time, and
+ * the high-water mark returned is held back to just before the oldest
+ * listing used was made.  Anything that changed after that listing has a
+ * later modification time and is returned once the directory is listed
+ * again; the same holds for the listings of the directories of one call,
+ * which are not made at the same instant.  The price is that an entry may
+ * be returned by more than one call.  The DFS sets the modification times
+ * and this server's clock times the listings, so the two must not differ
+ * by more than the allowed skew.
+ * <p>
+ * Snapshots are evicted least recently used first once they hold more than
+ * a set number of entries.
+ */
+final class ListingSnapshots
+{
+    // ** Inner Classes **
+
+    /**
+     * The entries of a directory as listed.
+     */
+    private static final class Snapshot
+    {
+        /** Modification time of the directory before it was listed. */
+        private final long modificationTime;
+
+        /** {@link System#currentTimeMillis} before it was listed. */
+        private final long taken;
+
+        /** The entries, with their full paths. */
+        private final List<FileStatus> entries;
+
+        /**
+         * @param modificationTime the directory's modification time.
+         * @param taken when the listing started.
+         * @param entries the entries.
+         */
+        private Snapshot( final long modificationTime, final long taken,
+            final List<FileStatus> entries )
+        {
+            this.modificationTime = modificationTime;
+            this.taken = taken;
+            this.entries = entries;
+        }
+    }
+
+    // ** Private Data **
+
+    /** Longest time a snapshot is used for. */
+    private final long maxAge;
+
+    /** Most the DFS clock may be ahead of this server's. */
+    private final long skew;
+
+    /** Entries all snapshots may hold. */
+    private final long capacity;
+
+    /**
+     * Snapshots keyed on the path of their directory, in access order so
+     * that the first is the least recently used.  Guarded by itself.
+     */
+    private final LinkedHashMap<String, Snapshot> snapshots =
+        new LinkedHashMap<String, Snapshot>( 16, 0.75f, true );
+
+    /** Entries held by {@link #snapshots}.  Guarded by the same lock. */
+    private long held;
+
+
+    // ** Constructors **
+
+    /**
+     * @param maxAge the longest time in milliseconds a snapshot is used for.
+     * @param skew the most in milliseconds the DFS clock may be ahead of
+     * this server's.
+     * @param capacity the entries all snapshots may hold.
+     */
+    ListingSnapshots( final long maxAge, final long skew,
+        final long capacity )
+    {
+        this.maxAge = maxAge;
+        this.skew = skew;
+        this.capacity = capacity;
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * Lists the entries under a directory modified after a watermark.
+     *
+     * @param fs the file system.
+     * @param path the directory, or a file.
+     * @param mtime the watermark.
+     * @param recursive whether to descend into subdirectories.
+     *
+     * @return the entries and the watermark for the next call.
+     *
+     * @throws IOException if the path does not exist or a directory cannot
+     * be listed.
+     */
+    ModifiedListing list( final FileSystem fs, final Path path,
+        final long mtime, final boolean recursive )
+        throws IOException
+    {
+        long start = System.currentTimeMillis();
+        List<FileStatus> result = new ArrayList<FileStatus>();
+        FileStatus root = toThrift( fs.getFileStatus( path ) );
+        if ( !root.isdir ) {
+            if ( root.modification_time > mtime ) {
+                result.add( root );
+            }
+            return new ModifiedListing( result,
+                Math.max( mtime, root.modification_time ) );
+        }
+
+        long newest = mtime;
+        long horizon = Long.MAX_VALUE;
+        LinkedList<FileStatus> dirs = new LinkedList<FileStatus>();
+        dirs.add( root );
+        while ( !dirs.isEmpty() ) {
+            Snapshot snapshot = snapshot( fs, dirs.removeFirst() );
+            if ( snapshot == null ) {
+                continue;
+            }
+            horizon = Math.min( horizon, snapshot.taken );
+            boolean reused = snapshot.taken < start;
+            for ( FileStatus entry : snapshot.entries ) {
+                if ( recursive && entry.isdir ) {
+                    // descending needs the current modification time
+                    if ( reused ) {
+                        entry = stat( fs, entry.path );
+                        if ( entry == null ) {
+                            continue;
+                        }
+                    }
+                    dirs.add( entry );
+                }
+                if ( entry.modification_time > mtime ) {
+                    result.add( entry );
+                }
+                newest = Math.max( newest, entry.modification_time );
+            }
+        }
+        // not raised to mtime: the snapshots used may be older than the
+        // listings behind it, e.g. if it came from another server
+        return new ModifiedListing( result,
+            Math.min( newest, horizon - skew ) );
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Returns the snapshot of a directory, listing it again unless it has
+     * not changed since the last snapshot, which is not too old.
+     *
+     * @param dir the current status of the directory.
+     *
+     * @return the snapshot, or <code>null</code> if the directory has gone.
+     */
+    private Snapshot snapshot( final FileSystem fs, final FileStatus dir )
+        throws IOException
+    {
+        long now = System.currentTimeMillis();
+        synchronized ( snapshots ) {
+            Snapshot snapshot = snapshots.get( dir.path );
+            if ( snapshot != null
+                && snapshot.modificationTime == dir.modification_time
+                && now - snapshot.taken < maxAge ) {
+                return snapshot;
+            }
+        }
+
+        org.apache.hadoop.fs.FileStatus[] status =
+            fs.listStatus( new Path( dir.path ) );
+        if ( status == null ) {
+            synchronized ( snapshots ) {
+                Snapshot old = snapshots.remove( dir.path );
+                if ( old != null ) {
+                    held -= old.entries.size();
+                }
+            }
+            return null;
+        }
+        List<FileStatus> entries = new ArrayList<FileStatus>( status.length );
+        try {
+            for ( org.apache.hadoop.fs.FileStatus s : status ) {
+                entries.add( toThrift( s ) );
+            }
+        } catch ( RuntimeException re ) {
+            // the local file system looks permissions up lazily and fails
+            // this way for an entry that has gone since
+            IOException ioe = new IOException( "cannot list " + dir.path );
+            ioe.initCause( re );
+            throw ioe;
+        }
+
+        Snapshot snapshot = new Snapshot( dir.modification_time, now,
+            entries );
+        synchronized ( snapshots ) {
+            Snapshot old = snapshots.put( dir.path, snapshot );
+            if ( old != null ) {
+                held -= old.entries.size();
+            }
+            held += entries.size();
+            trim( snapshot );
+        }
+        return snapshot;
+    }
+
+    /**
+     * Evicts the least recently used snapshots other than <code>keep</code>
+     * while more than {@link #capacity} entries are held.  Must be called
+     * holding the lock on {@link #snapshots}.
+     */
+    private void trim( final Snapshot keep )
+    {
+        Iterator<Map.Entry<String, Snapshot>> it =
+            snapshots.entrySet().iterator();
+        while ( held > capacity && it.hasNext() ) {
+            Snapshot snapshot = it.next().getValue();
+            if ( snapshot != keep ) {
+                held -= snapshot.entries.size();
+                it.remove();
+            }
+        }
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * @return the current status of <code>path</code>, or <code>null</code>
+     * if it has gone.
+     */
+    private static FileStatus stat( final FileSystem fs, final String path )
+        throws IOException
+    {
+        try {
+            return toThrift( fs.getFileStatus( new Path( path ) ) );
+        } catch ( FileNotFoundException fnfe ) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the status of an entry with its full path.
+     */
+    private static FileStatus toThrift(
+        final org.apache.hadoop.fs.FileStatus status )
+    {
+        FileStatus result =
+            DfsServer.DfsHandler.convertToThriftFileStatus( status );
+        result.path = status.getPath().toUri().getPath();
+        return result;
+    }
+}
@@ -0,0 +1,616 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import com.opendatagroup.dfsservice.util.DfsEvents;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Whole-file read cache kept in a directory on the local disk of the server
+ * node, usually an SSD.  A cached copy is only served while its length and
+ * modification time match the status reported by the backing DFS, so a file
+ * that is replaced or rewritten is never served stale.  On a miss the caller
+ * reads from the DFS as before and a copy of the file is pulled into the cache
+ * in the background.
+ * <p>
+ * Entries are evicted in least-recently-used order once the bytes held in the
+ * cache exceed the disk budget.  Next to each copy is a small
+ * <code>.meta</code> file with the DFS path, length and modification time it
+ * was copied under, so a restarted server picks the copies up again; they are
+ * revalidated against the DFS on first use like any other entry.  Only files
+ * named the way the cache names them are ever read or removed, so the
+ * directory may be shared.
+ */
+final class LocalFileCache implements LocalFileCacheMBean
+{
+    // ** Private Static Final Data **
+
+    /** Logger. */
+    private static final Log LOG =
+        LogFactory.getLog( LocalFileCache.class.getName() );
+
+    /** Suffix for files that are still being filled. */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** Suffix for the file describing a cached copy. */
+    private static final String META_SUFFIX = ".meta";
+
+    /**
+     * Names of the files this cache creates: a hex sequence number and a hex
+     * key hash, then optionally {@link #META_SUFFIX} and {@link #TMP_SUFFIX}.
+     */
+    private static final Pattern NAME =
+        Pattern.compile( "([0-9a-f]+)-[0-9a-f]+(\\.meta)?(\\.tmp)?" );
+
+    /** Buffer size used when copying a file into the cache. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // ** Inner Classes **
+
+    /**
+     * A file held in the cache along with the backend status it was copied
+     * under.
+     */
+    private static final class Entry
+    {
+        /** Qualified DFS path of the file. */
+        private final String key;
+
+        /** Local copy of the file. */
+        private final File file;
+
+        /** Description of the copy, see {@link #writeMeta}. */
+        private final File meta;
+
+        /** Length of the file on the DFS when it was cached. */
+        private final long length;
+
+        /** Modification time of the file on the DFS when it was cached. */
+        private final long modificationTime;
+
+        /**
+         * @param key the DFS path.
+         * @param file the local copy.
+         * @param length the backend length.
+         * @param modificationTime the backend modification time.
+         */
+        private Entry( final String key, final File file, final long length,
+            final long modificationTime )
+        {
+            this.key = key;
+            this.file = file;
+            this.meta = new File( file.getPath() + META_SUFFIX );
+            this.length = length;
+            this.modificationTime = modificationTime;
+        }
+    }
+
+    // ** Private Data **
+
+    /** Directory holding the cached files. */
+    private final File dir;
+
+    /** Upper bound on the bytes held in {@link #dir}. */
+    private final long capacity;
+
+    /** Files smaller than this are read from the DFS without caching. */
+    private final long minFileSize;
+
+    /** Used to open the cached copies as positionable streams. */
+    private final FileSystem local;
+
+    /**
+     * Cached files keyed on the qualified DFS path, in access order so that
+     * the first entry is the least recently used.  Guarded by itself.
+     */
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+
+    /** Paths with a fill in progress, used so a file is only copied once. */
+    private final ConcurrentHashMap<String, Boolean> filling =
+        new ConcurrentHashMap<String, Boolean>();
+
+    /** Runs the background fills. */
+    private final ExecutorService fillers;
+
+    /** Bytes currently held in the cache.  Guarded by {@link #entries}. */
+    private long used;
+
+    /** Number of opens served from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of opens that had to go to the DFS. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of files copied into the cache. */
+    private final AtomicLong fills = new AtomicLong();
+
+    /** Number of files evicted to stay under the budget. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Used to give every cached copy a unique local name. */
+    private final AtomicLong sequence = new AtomicLong();
+
+
+    // ** Constructors **
+
+    /**
+     * Creates the cache directory if needed and takes over the copies left
+     * in it by an earlier run.  Partial fills and copies without a matching
+     * description are removed; other files in the directory are left alone.
+     *
+     * @param config the configuration used to get the local file system.
+     * @param dir the directory to hold the cached files.
+     * @param capacity the disk budget in bytes.
+     * @param minFileSize the smallest file that is cached.
+     * @param fillThreads the number of background fill threads.
+     *
+     * @throws IOException if the directory cannot be created.
+     */
+    LocalFileCache( final Configuration config, final File dir,
+        final long capacity, final long minFileSize, final int fillThreads )
+        throws IOException
+    {
+        if ( !dir.isDirectory() && !dir.mkdirs() ) {
+            throw new IOException( "cannot create cache directory " + dir );
+        }
+
+        this.dir = dir;
+        this.capacity = capacity;
+        this.minFileSize = minFileSize;
+        this.local = FileSystem.getLocal( config ).getRawFileSystem();
+        this.fillers = Executors.newFixedThreadPool( fillThreads,
+            new ThreadFactory() {
+                private final AtomicLong count = new AtomicLong();
+                public Thread newThread( final Runnable r )
+                {
+                    Thread t = new Thread( r, "cache-fill-"
+                        + count.incrementAndGet() );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+
+        reload();
+        LOG.info( "LocalFileCache: caching in " + dir + " with capacity="
+            + capacity + " bytes, " + entries.size() + " files and " + used
+            + " bytes kept from an earlier run" );
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * Opens the cached copy of a file if there is one that matches the
+     * passed in status.  If there is no usable copy, <code>null</code> is
+     * returned and, if the file is a candidate for caching, a background
+     * copy is scheduled.
+     *
+     * @param fs the backing DFS, used by the background copy.
+     * @param path the path of the file on the DFS.
+     * @param status the current status of the file on the DFS.
+     *
+     * @return a stream over the cached copy or <code>null</code> if the
+     * caller has to read from the DFS.
+     */
+    FSDataInputStream open( final FileSystem fs, final Path path,
+        final org.apache.hadoop.fs.FileStatus status )
+    {
+        if ( status.isDir() || status.getLen() < minFileSize
+                || status.getLen() > capacity ) {
+            return null;
+        }
+
+        final String key = status.getPath().toString();
+        Entry entry;
+        synchronized ( entries ) {
+            entry = entries.get( key );
+            if ( entry != null && ( entry.length != status.getLen()
+                    || entry.modificationTime
+                        != status.getModificationTime() ) ) {
+                // the file changed on the DFS since it was copied
+                remove( key );
+                entry = null;
+            }
+        }
+
+        if ( entry != null ) {
+            try {
+                FSDataInputStream in =
+                    local.open( new Path( entry.file.getAbsolutePath() ) );
+                hits.incrementAndGet();
+                if ( DfsEvents.SINK != null ) {
+                    DfsEvents.SINK.cacheLookup( key, true, status.getLen() );
+                }
+                return in;
+            } catch ( IOException ioe ) {
+                LOG.warn( "LocalFileCache: cannot open cached copy of "
+                    + key + ", dropping it", ioe );
+                synchronized ( entries ) {
+                    remove( key );
+                }
+            }
+        }
+
+        misses.incrementAndGet();
+        if ( DfsEvents.SINK != null ) {
+            DfsEvents.SINK.cacheLookup( key, false, status.getLen() );
+        }
+        scheduleFill( fs, path, status, key );
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of opens served from the cache, or
+     * <code>0.0</code> if no open has been attempted.
+     */
+    public double getHitRatio()
+    {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0L ? 0.0 : ( double )h / total;
+    }
+
+    /** {@inheritDoc} */
+    public long getFills()
+    {
+        return fills.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getUsedBytes()
+    {
+        synchronized ( entries ) {
+            return used;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return a one-line summary of the cache counters, suitable for the log.
+     */
+    String stats()
+    {
+        return "hits=" + getHits() + " misses=" + getMisses() + " hitRatio="
+            + getHitRatio() + " fills=" + getFills() + " evictions="
+            + getEvictions() + " used=" + getUsedBytes() + "/" + capacity;
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Indexes the copies found in {@link #dir}, oldest first so the least
+     * recently filled are evicted first, and removes the leftovers of fills
+     * and evictions that were cut short.
+     */
+    private void reload()
+    {
+        File[] files = dir.listFiles();
+        if ( files == null ) {
+            return;
+        }
+        // oldest first, so a newer copy of the same path replaces an older one
+        Arrays.sort( files, new Comparator<File>() {
+            public int compare( final File a, final File b )
+            {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : ( x == y ? 0 : 1 );
+            }
+        } );
+
+        long last = 0L;
+        synchronized ( entries ) {
+            for ( File file : files ) {
+                Matcher m = NAME.matcher( file.getName() );
+                if ( !file.isFile() || !m.matches() ) {
+                    continue;
+                }
+                try {
+                    last = Math.max( last, Long.parseLong( m.group( 1 ), 16 ) );
+                } catch ( NumberFormatException nfe ) {
+                    // too long for a sequence number, not one of ours
+                    continue;
+                }
+                if ( m.group( 3 ) != null ) {
+                    delete( file );
+                } else if ( m.group( 2 ) != null ) {
+                    File data = new File( dir, file.getName().substring( 0,
+                        file.getName().length() - META_SUFFIX.length() ) );
+                    if ( !data.isFile() ) {
+                        delete( file );
+                    }
+                } else {
+                    Entry entry = readMeta( file );
+                    if ( entry == null ) {
+                        delete( new File( file.getPath() + META_SUFFIX ) );
+                        delete( file );
+                    } else {
+                        String key = entry.key;
+                        remove( key );
+                        entries.put( key, entry );
+                        used += entry.length;
+                    }
+                }
+            }
+            evict();
+        }
+        sequence.set( last );
+    }
+
+    /**
+     * Reads the description of a cached copy.
+     *
+     * @return the entry, or <code>null</code> if the description is missing
+     * or unreadable or the copy does not have the length it records.
+     */
+    private static Entry readMeta( final File file )
+    {
+        File meta = new File( file.getPath() + META_SUFFIX );
+        if ( !meta.isFile() ) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream( new BufferedInputStream(
+                new FileInputStream( meta ) ) );
+            String key = in.readUTF();
+            long length = in.readLong();
+            long modificationTime = in.readLong();
+            if ( file.length() != length ) {
+                return null;
+            }
+            return new Entry( key, file, length, modificationTime );
+        } catch ( IOException ioe ) {
+            LOG.warn( "LocalFileCache: cannot read " + meta, ioe );
+            return null;
+        } finally {
+            IOUtils.closeStream( in );
+        }
+    }
+
+    /**
+     * Writes the description of a cached copy through a temporary file, so
+     * that it either exists whole or not at all.
+     *
+     * @throws IOException if it cannot be written.
+     */
+    private static void writeMeta( final Entry entry )
+        throws IOException
+    {
+        File tmp = new File( entry.meta.getPath() + TMP_SUFFIX );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+            new FileOutputStream( tmp ) ) );
+        try {
+            out.writeUTF( entry.key );
+            out.writeLong( entry.length );
+            out.writeLong( entry.modificationTime );
+        } finally {
+            out.close();
+        }
+        if ( !tmp.renameTo( entry.meta ) ) {
+            delete( tmp );
+            throw new IOException( "cannot rename " + tmp + " to "
+                + entry.meta );
+        }
+    }
+
+    /**
+     * Queues a copy of the file into the cache unless one is already under
+     * way.
+     */
+    private void scheduleFill( final FileSystem fs, final Path path,
+        final org.apache.hadoop.fs.FileStatus status, final String key )
+    {
+        if ( filling.putIfAbsent( key, Boolean.TRUE ) != null ) {
+            return;
+        }
+        try {
+            fillers.execute( new Runnable() {
+                public void run()
+                {
+                    try {
+                        fill( fs, path, status, key );
+                    } finally {
+                        filling.remove( key );
+                    }
+                }
+            } );
+        } catch ( RejectedExecutionException ree ) {
+            filling.remove( key );
+        }
+    }
+
+    /**
+     * Copies the file to a temporary file in the cache directory and, if the
+     * file did not change on the DFS while it was copied, publishes it under
+     * its final name.
+     */
+    private void fill( final FileSystem fs, final Path path,
+        final org.apache.hadoop.fs.FileStatus status, final String key )
+    {
+        final String name = Long.toHexString( sequence.incrementAndGet() )
+            + "-" + Integer.toHexString( key.hashCode() );
+        final File tmp = new File( dir, name + TMP_SUFFIX );
+        final File file = new File( dir, name );
+
+        final long start = System.nanoTime();
+        boolean kept = false;
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = fs.open( path );
+            out = new BufferedOutputStream( new FileOutputStream( tmp ) );
+            IOUtils.copyBytes( in, out, BUFFER_SIZE, true );
+            in = null;
+            out = null;
+
+            org.apache.hadoop.fs.FileStatus after = fs.getFileStatus( path );
+            if ( after.getLen() != status.getLen()
+                    || after.getModificationTime()
+                        != status.getModificationTime()
+                    || tmp.length() != status.getLen() ) {
+                LOG.debug( "LocalFileCache: " + key
+                    + " changed while being cached, discarding the copy" );
+                delete( tmp );
+                return;
+            }
+            if ( !tmp.renameTo( file ) ) {
+                throw new IOException( "cannot rename " + tmp + " to " + file );
+            }
+            Entry entry = new Entry( key, file, status.getLen(),
+                status.getModificationTime() );
+            try {
+                writeMeta( entry );
+            } catch ( IOException ioe ) {
+                delete( file );
+                throw ioe;
+            }
+
+            synchronized ( entries ) {
+                remove( key );
+                entries.put( key, entry );
+                used += status.getLen();
+                evict();
+            }
+            fills.incrementAndGet();
+            kept = true;
+            LOG.debug( "LocalFileCache: cached " + key + " ("
+                + status.getLen() + " bytes)" );
+        } catch ( IOException ioe ) {
+            LOG.warn( "LocalFileCache: failed to cache " + key, ioe );
+            IOUtils.closeStream( in );
+            IOUtils.closeStream( out );
+            delete( tmp );
+        } finally {
+            if ( DfsEvents.SINK != null ) {
+                DfsEvents.SINK.cacheFilled( key, status.getLen(),
+                    System.nanoTime() - start, kept );
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is within its
+     * budget.  Must be called holding the lock on {@link #entries}.
+     */
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Entry>> it =
+            entries.entrySet().iterator();
+        while ( used > capacity && it.hasNext() ) {
+            Map.Entry<String, Entry> e = it.next();
+            Entry victim = e.getValue();
+            it.remove();
+            used -= victim.length;
+            // readers that already have the file open keep their copy
+            discard( victim );
+            evictions.incrementAndGet();
+            if ( DfsEvents.SINK != null ) {
+                DfsEvents.SINK.cacheEvicted( e.getKey(), victim.length );
+            }
+        }
+    }
+
+    /**
+     * Drops the entry for <code>key</code> and its local copy.  Must be called
+     * holding the lock on {@link #entries}.
+     */
+    private void remove( final String key )
+    {
+        Entry old = entries.remove( key );
+        if ( old != null ) {
+            used -= old.length;
+            discard( old );
+        }
+    }
+
+    /**
+     * Deletes the local copy of an entry, its description first so a crash in
+     * between leaves an orphan that {@link #reload} removes rather than a
+     * description without its copy.
+     */
+    private static void discard( final Entry entry )
+    {
+        delete( entry.meta );
+        delete( entry.file );
+    }
+
+    /** Deletes a local file, logging if it cannot be removed. */
+    private static void delete( final File file )
+    {
+        if ( file.exists() && !file.delete() ) {
+            LOG.warn( "LocalFileCache: cannot delete " + file );
+        }
+    }
+}
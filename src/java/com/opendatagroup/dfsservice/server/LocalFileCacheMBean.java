@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+/**
+ * JMX view of the read cache.
+ */
+public interface LocalFileCacheMBean
+{
+    /** @return opens served from the cache. */
+    long getHits();
+
+    /** @return opens that had to go to the DFS. */
+    long getMisses();
+
+    /** @return the fraction of opens served from the cache. */
+    double getHitRatio();
+
+    /** @return files copied into the cache. */
+    long getFills();
+
+    /** @return files evicted to stay under the disk budget. */
+    long getEvictions();
+
+    /** @return bytes held in the cache. */
+    long getUsedBytes();
+
+    /** @return the disk budget in bytes. */
+    long getCapacity();
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+/**
+ * Serves {@link DfsMetrics#format} as plain text at <code>/metrics</code>
+ * for scrapers that do not speak JMX.  It uses the HTTP server bundled with
+ * the JDK and a single thread, which is plenty for a scrape every few
+ * seconds, and by default only listens on the loopback address.
+ */
+final class MetricsHttpServer
+{
+    // ** Private Data **
+
+    /** The server. */
+    private final HttpServer server;
+
+
+    // ** Constructors **
+
+    /**
+     * Binds the port; {@link #start} starts serving.
+     *
+     * @param metrics the figures to serve.
+     * @param address the address to listen on.
+     * @param port the port to listen on.
+     *
+     * @throws IOException if the port cannot be bound.
+     */
+    MetricsHttpServer( final DfsMetrics metrics, final String address,
+        final int port )
+        throws IOException
+    {
+        server = HttpServer.create( new InetSocketAddress( address, port ), 0 );
+        server.createContext( "/metrics", new HttpHandler() {
+            public void handle( final HttpExchange exchange )
+                throws IOException
+            {
+                try {
+                    if ( !"GET".equals( exchange.getRequestMethod() ) ) {
+                        exchange.sendResponseHeaders( 405, -1L );
+                        return;
+                    }
+                    StringBuilder text = new StringBuilder( 16384 );
+                    metrics.format( text );
+                    byte[] body = text.toString().getBytes( "UTF-8" );
+                    exchange.getResponseHeaders().set( "Content-Type",
+                        "text/plain; version=0.0.4; charset=utf-8" );
+                    exchange.sendResponseHeaders( 200, body.length );
+                    OutputStream out = exchange.getResponseBody();
+                    out.write( body );
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        } );
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * Starts serving on a thread of the HTTP server.
+     */
+    void start()
+    {
+        server.start();
+    }
+
+    /**
+     * Stops serving and releases the port.
+     */
+    void stop()
+    {
+        server.stop( 0 );
+    }
+}
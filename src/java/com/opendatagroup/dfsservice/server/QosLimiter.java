@@ -0,0 +1,846 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.ClientHandle;
+import com.opendatagroup.dfsservice.Constants;
+import com.opendatagroup.dfsservice.DfsServiceIOException;
+// end thrift-generated files
+
+import com.opendatagroup.dfsservice.util.StripedCounter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the bandwidth and request rate of each client, as a
+ * {@link DfsInterceptor}, so that one tenant cannot saturate the server's
+ * network at everyone else's expense.
+ * <p>
+ * Reads, writes and copies are charged to token buckets of the client
+ * handle they come from and of the user that handle logged in as: one
+ * counting requests per second and one counting bytes per second.  A
+ * bucket holds up to {@link Options#burstSeconds} of its rate, so short
+ * bursts go through at full speed.  Copies pass no client handle and are
+ * charged to the last one passed on the same connection.  Reads and writes
+ * are charged the length they ask for up front, and a short read gets the
+ * difference back; copies and follows are charged once done, as their
+ * length is not known before.  A call that finds a bucket in debt is
+ * delayed until the bucket would have refilled, and refused with a
+ * <code>DfsServiceIOException</code> if that would take longer than
+ * {@link Options#maxWaitMillis}.  The message starts with
+ * {@link Constants#THROTTLED} when a client or user limit was hit, so
+ * clients do not take it for overload and go round the limit through
+ * another server, and with {@link Constants#OVERLOADED} when it was the
+ * server's bandwidth.
+ * <p>
+ * The server as a whole may also be given a bandwidth.  Calls over it wait
+ * their turn by start-time fair queueing: each call is tagged with its
+ * client's share of the bytes served so far, and the lowest tag goes first,
+ * so a saturated server splits its bandwidth evenly between clients
+ * however many connections each of them uses.
+ * <p>
+ * All rates can be changed through JMX while the server runs, and single
+ * users can be given limits of their own.
+ */
+public class QosLimiter implements DfsInterceptor, QosLimiterMBean
+{
+    // ** Public Static Inner Classes **
+
+    /**
+     * Settings of the limiter.  Rates of 0 mean no limit.
+     */
+    public static class Options
+    {
+        /** Bytes per second of each client handle. */
+        public long clientBytesPerSecond = 0L;
+
+        /** Requests per second of each client handle. */
+        public long clientRequestsPerSecond = 0L;
+
+        /** Bytes per second of each user. */
+        public long userBytesPerSecond = 0L;
+
+        /** Requests per second of each user. */
+        public long userRequestsPerSecond = 0L;
+
+        /** Bytes per second of the whole server, shared fairly. */
+        public long serverBytesPerSecond = 0L;
+
+        /** Seconds of its rate a bucket holds when full. */
+        public double burstSeconds = 1.0;
+
+        /** Longest a call is delayed before it is refused, in ms. */
+        public long maxWaitMillis = 1000L;
+    }
+
+    // ** Private Static Inner Classes **
+
+    /**
+     * Token bucket that may go into debt, so a call larger than the bucket
+     * still goes through once the debt from earlier calls is paid.
+     */
+    private static final class TokenBucket
+    {
+        /** Tokens available; negative while in debt. */
+        private double tokens;
+
+        /** {@link System#nanoTime} of the last refill, 0 before the first. */
+        private long last;
+
+        /**
+         * Takes tokens, if the bucket is out of debt within a bound.
+         *
+         * @param cost the tokens to take.
+         * @param rate the tokens added per second, 0 for no limit.
+         * @param burst the most tokens held.
+         * @param now the current {@link System#nanoTime}.
+         * @param maxWaitNanos the longest the caller may wait.
+         *
+         * @return the nanoseconds the caller must wait before going ahead,
+         * or <code>-1</code>, taking nothing, if that is over
+         * <code>maxWaitNanos</code>.
+         */
+        synchronized long reserve( final double cost, final long rate,
+            final double burst, final long now, final long maxWaitNanos )
+        {
+            if ( rate <= 0L ) {
+                return 0L;
+            }
+            refill( rate, burst, now );
+            long wait = debt( rate );
+            if ( wait > maxWaitNanos ) {
+                return -1L;
+            }
+            tokens -= cost;
+            return wait;
+        }
+
+        /**
+         * Adds or takes tokens without waiting.
+         *
+         * @param amount the tokens to add, negative to take.
+         * @param rate the tokens added per second, 0 for no limit.
+         * @param burst the most tokens held.
+         * @param now the current {@link System#nanoTime}.
+         */
+        synchronized void adjust( final double amount, final long rate,
+            final double burst, final long now )
+        {
+            if ( rate <= 0L ) {
+                return;
+            }
+            refill( rate, burst, now );
+            tokens = Math.min( burst, tokens + amount );
+        }
+
+        /**
+         * @return the nanoseconds until the bucket is out of debt.
+         */
+        synchronized long delay( final long rate, final double burst,
+            final long now )
+        {
+            if ( rate <= 0L ) {
+                return 0L;
+            }
+            refill( rate, burst, now );
+            return debt( rate );
+        }
+
+        /**
+         * Adds the tokens earned since the last refill.  A new bucket
+         * starts full.
+         */
+        private void refill( final long rate, final double burst,
+            final long now )
+        {
+            if ( last == 0L ) {
+                tokens = burst;
+            } else if ( now > last ) {
+                tokens = Math.min( burst, tokens + ( now - last ) * 1.0e-9
+                    * rate );
+            }
+            last = now;
+        }
+
+        /**
+         * @return the nanoseconds the current debt takes to pay off.
+         */
+        private long debt( final long rate )
+        {
+            return tokens >= 0.0 ? 0L : ( long )( -tokens * 1.0e9 / rate );
+        }
+    }
+
+    /**
+     * A client handle or user with its buckets and usage.
+     */
+    private static final class Principal
+    {
+        /** Client id or user name. */
+        private final String key;
+
+        /** Description used in messages, e.g. <code>client 3</code>. */
+        private final String name;
+
+        /** Requests per second. */
+        private final TokenBucket requests = new TokenBucket();
+
+        /** Bytes per second. */
+        private final TokenBucket bytes = new TokenBucket();
+
+        /** Requests charged. */
+        private final AtomicLong requestCount = new AtomicLong();
+
+        /** Bytes charged. */
+        private final AtomicLong byteCount = new AtomicLong();
+
+        /** Calls delayed. */
+        private final AtomicLong delayed = new AtomicLong();
+
+        /** Calls refused. */
+        private final AtomicLong rejected = new AtomicLong();
+
+        /**
+         * Virtual time at which the client's queued bytes are served;
+         * guarded by the limiter's lock.
+         */
+        private double finishTag;
+
+        /**
+         * @param kind what the principal is, e.g. <code>user</code>.
+         * @param key the client id or user name.
+         */
+        private Principal( final String kind, final String key )
+        {
+            this.key = key;
+            this.name = kind + " " + key;
+        }
+
+        /**
+         * @return a line of usage for JMX.
+         */
+        private String usage()
+        {
+            return name + ": " + byteCount.get() + " bytes, "
+                + requestCount.get() + " requests, " + delayed.get()
+                + " delayed, " + rejected.get() + " refused";
+        }
+    }
+
+    /**
+     * A call waiting for its share of the server bandwidth.
+     */
+    private static final class Waiter
+    {
+        /** Virtual start time; the lowest is served first. */
+        private final double tag;
+
+        /** Arrival order, to break ties. */
+        private final long seq;
+
+        /**
+         * @param tag the virtual start time.
+         * @param seq the arrival order.
+         */
+        private Waiter( final double tag, final long seq )
+        {
+            this.tag = tag;
+            this.seq = seq;
+        }
+    }
+
+    // ** Private Static Final Data **
+
+    /** Orders waiters by tag, then arrival. */
+    private static final Comparator<Waiter> BY_TAG =
+        new Comparator<Waiter>() {
+            public int compare( final Waiter a, final Waiter b )
+            {
+                if ( a.tag != b.tag ) {
+                    return a.tag < b.tag ? -1 : 1;
+                }
+                return a.seq < b.seq ? -1 : ( a.seq == b.seq ? 0 : 1 );
+            }
+        };
+
+    // ** Private Data **
+
+    /** Used to find the user a client logged in as. */
+    private final DfsServer.DfsHandler handler;
+
+    /** Bytes per second of each client handle. */
+    private volatile long clientBytesPerSecond;
+
+    /** Requests per second of each client handle. */
+    private volatile long clientRequestsPerSecond;
+
+    /** Bytes per second of each user without an override. */
+    private volatile long userBytesPerSecond;
+
+    /** Requests per second of each user without an override. */
+    private volatile long userRequestsPerSecond;
+
+    /** Bytes per second of the server. */
+    private volatile long serverBytesPerSecond;
+
+    /** Seconds of its rate a bucket holds. */
+    private final double burstSeconds;
+
+    /** Longest delay before a call is refused, in ms. */
+    private volatile long maxWaitMillis;
+
+    /** Limits of single users, as bytes and requests per second. */
+    private final ConcurrentHashMap<String, long[]> overrides =
+        new ConcurrentHashMap<String, long[]>();
+
+    /** State of each client handle, by id. */
+    private final ConcurrentHashMap<Long, Principal> clients =
+        new ConcurrentHashMap<Long, Principal>();
+
+    /** State of each user, by name. */
+    private final ConcurrentHashMap<String, Principal> users =
+        new ConcurrentHashMap<String, Principal>();
+
+    /** Charged for copies on connections that never passed a handle. */
+    private final Principal anonymous = new Principal( "client",
+        "unknown" );
+
+    /** Bandwidth of the server; used holding {@link #lock}. */
+    private final TokenBucket server = new TokenBucket();
+
+    /** Guards the fair queue. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when the head of the queue changes or tokens come back. */
+    private final Condition served = lock.newCondition();
+
+    /** Calls waiting for server bandwidth, lowest tag first. */
+    private final PriorityQueue<Waiter> waiting =
+        new PriorityQueue<Waiter>( 16, BY_TAG );
+
+    /** Tag of the call served last. */
+    private double virtualTime;
+
+    /** Arrival counter of {@link #waiting}. */
+    private long seq;
+
+    /** Size of {@link #waiting}, for reading without the lock. */
+    private volatile int queued;
+
+    /** Calls delayed. */
+    private final StripedCounter delayed = new StripedCounter();
+
+    /** Calls refused. */
+    private final StripedCounter rejected = new StripedCounter();
+
+
+    // ** Constructors **
+
+    /**
+     * @param handler the handler, asked for the user of each client.
+     * @param options the settings, copied.
+     */
+    public QosLimiter( final DfsServer.DfsHandler handler,
+        final Options options )
+    {
+        if ( options.burstSeconds <= 0.0 ) {
+            throw new IllegalArgumentException( "invalid burst of "
+                + options.burstSeconds + " seconds" );
+        }
+        this.handler = handler;
+        this.clientBytesPerSecond = options.clientBytesPerSecond;
+        this.clientRequestsPerSecond = options.clientRequestsPerSecond;
+        this.userBytesPerSecond = options.userBytesPerSecond;
+        this.userRequestsPerSecond = options.userRequestsPerSecond;
+        this.serverBytesPerSecond = options.serverBytesPerSecond;
+        this.burstSeconds = options.burstSeconds;
+        this.maxWaitMillis = options.maxWaitMillis;
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public void before( final DfsCall call )
+        throws DfsServiceIOException
+    {
+        if ( !isCharged( call.getOp() ) ) {
+            return;
+        }
+        long cost = upfront( call );
+        Principal client = client( call );
+        Principal user = user( call );
+        long[] userRates = userRates( user );
+        long start = System.nanoTime();
+        long maxWait = TimeUnit.MILLISECONDS.toNanos( maxWaitMillis );
+        long deadline = start + maxWait;
+
+        long wait = reserve( client, cost, clientBytesPerSecond,
+            clientRequestsPerSecond, start, maxWait );
+        if ( wait < 0L ) {
+            throw refuse( call, client, client );
+        }
+        if ( user != null ) {
+            long userWait = reserve( user, cost, userRates[0], userRates[1],
+                start, maxWait );
+            if ( userWait < 0L ) {
+                release( client, cost, clientBytesPerSecond,
+                    clientRequestsPerSecond );
+                throw refuse( call, client, user );
+            }
+            wait = Math.max( wait, userWait );
+        }
+
+        boolean ok = true;
+        if ( wait > 0L ) {
+            delayed.increment();
+            client.delayed.incrementAndGet();
+            try {
+                TimeUnit.NANOSECONDS.sleep( wait );
+            } catch ( InterruptedException ie ) {
+                Thread.currentThread().interrupt();
+                ok = false;
+            }
+        }
+        if ( ok && serverBytesPerSecond > 0L ) {
+            ok = share( client, cost, deadline );
+        }
+        if ( !ok ) {
+            release( client, cost, clientBytesPerSecond,
+                clientRequestsPerSecond );
+            if ( user != null ) {
+                release( user, cost, userRates[0], userRates[1] );
+            }
+            throw refuse( call, client, null );
+        }
+        client.requestCount.incrementAndGet();
+        if ( user != null ) {
+            user.requestCount.incrementAndGet();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void after( final DfsCall call )
+    {
+        DfsOp op = call.getOp();
+        if ( op == DfsOp.CLOSE_CLIENT && call.getClientHandle() != null ) {
+            clients.remove( call.getClientHandle().id );
+            return;
+        }
+        if ( op == DfsOp.CLOSE_DFS ) {
+            clients.clear();
+            return;
+        }
+        if ( !isCharged( op ) ) {
+            return;
+        }
+        long actual = call.getBytesRead() + call.getBytesWritten();
+        long extra = actual - upfront( call );
+        Principal client = client( call );
+        Principal user = user( call );
+        client.byteCount.addAndGet( actual );
+        if ( user != null ) {
+            user.byteCount.addAndGet( actual );
+        }
+        if ( extra == 0L ) {
+            return;
+        }
+        // settle the difference between what was asked for and moved
+        long now = System.nanoTime();
+        client.bytes.adjust( -extra, clientBytesPerSecond,
+            burstSeconds * clientBytesPerSecond, now );
+        if ( user != null ) {
+            long[] userRates = userRates( user );
+            user.bytes.adjust( -extra, userRates[0],
+                burstSeconds * userRates[0], now );
+        }
+        long rate = serverBytesPerSecond;
+        if ( rate > 0L ) {
+            lock.lock();
+            try {
+                server.adjust( -extra, rate, burstSeconds * rate, now );
+                if ( extra < 0L && queued > 0 ) {
+                    served.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public long getClientBytesPerSecond()
+    {
+        return clientBytesPerSecond;
+    }
+
+    /** {@inheritDoc} */
+    public void setClientBytesPerSecond( final long rate )
+    {
+        clientBytesPerSecond = rate;
+    }
+
+    /** {@inheritDoc} */
+    public long getClientRequestsPerSecond()
+    {
+        return clientRequestsPerSecond;
+    }
+
+    /** {@inheritDoc} */
+    public void setClientRequestsPerSecond( final long rate )
+    {
+        clientRequestsPerSecond = rate;
+    }
+
+    /** {@inheritDoc} */
+    public long getUserBytesPerSecond()
+    {
+        return userBytesPerSecond;
+    }
+
+    /** {@inheritDoc} */
+    public void setUserBytesPerSecond( final long rate )
+    {
+        userBytesPerSecond = rate;
+    }
+
+    /** {@inheritDoc} */
+    public long getUserRequestsPerSecond()
+    {
+        return userRequestsPerSecond;
+    }
+
+    /** {@inheritDoc} */
+    public void setUserRequestsPerSecond( final long rate )
+    {
+        userRequestsPerSecond = rate;
+    }
+
+    /** {@inheritDoc} */
+    public long getServerBytesPerSecond()
+    {
+        return serverBytesPerSecond;
+    }
+
+    /** {@inheritDoc} */
+    public void setServerBytesPerSecond( final long rate )
+    {
+        serverBytesPerSecond = rate;
+        lock.lock();
+        try {
+            served.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public long getMaxWaitMillis()
+    {
+        return maxWaitMillis;
+    }
+
+    /** {@inheritDoc} */
+    public void setMaxWaitMillis( final long millis )
+    {
+        maxWaitMillis = millis;
+    }
+
+    /** {@inheritDoc} */
+    public void setUserLimit( final String user, final long bytesPerSecond,
+        final long requestsPerSecond )
+    {
+        overrides.put( user, new long[] { bytesPerSecond,
+            requestsPerSecond } );
+    }
+
+    /** {@inheritDoc} */
+    public void removeUserLimit( final String user )
+    {
+        overrides.remove( user );
+    }
+
+    /** {@inheritDoc} */
+    public String[] getUserLimits()
+    {
+        List<String> lines = new ArrayList<String>();
+        for ( Map.Entry<String, long[]> e : overrides.entrySet() ) {
+            lines.add( e.getKey() + ": " + e.getValue()[0] + " bytes/s, "
+                + e.getValue()[1] + " requests/s" );
+        }
+        return lines.toArray( new String[lines.size()] );
+    }
+
+    /** {@inheritDoc} */
+    public long getDelayedCount()
+    {
+        return delayed.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /** {@inheritDoc} */
+    public int getQueued()
+    {
+        return queued;
+    }
+
+    /** {@inheritDoc} */
+    public String[] getClientUsage()
+    {
+        return usage( clients.values() );
+    }
+
+    /** {@inheritDoc} */
+    public String[] getUserUsage()
+    {
+        return usage( users.values() );
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * @return the state of the client a call is charged to.
+     */
+    private Principal client( final DfsCall call )
+    {
+        ClientHandle chandle = call.getConnectionClient();
+        if ( chandle == null ) {
+            return anonymous;
+        }
+        Principal p = clients.get( chandle.id );
+        if ( p == null ) {
+            Principal created = new Principal( "client",
+                String.valueOf( chandle.id ) );
+            p = clients.putIfAbsent( chandle.id, created );
+            if ( p == null ) {
+                p = created;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @return the state of the user a call is charged to,
+     * <code>null</code> if its client has not logged in.
+     */
+    private Principal user( final DfsCall call )
+    {
+        ClientHandle chandle = call.getConnectionClient();
+        String name = chandle == null ? null : handler.getUser( chandle.id );
+        if ( name == null ) {
+            return null;
+        }
+        Principal p = users.get( name );
+        if ( p == null ) {
+            Principal created = new Principal( "user", name );
+            p = users.putIfAbsent( name, created );
+            if ( p == null ) {
+                p = created;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @return the bytes and requests per second of a user.
+     */
+    private long[] userRates( final Principal user )
+    {
+        long[] rates = user == null ? null : overrides.get( user.key );
+        return rates != null ? rates
+            : new long[] { userBytesPerSecond, userRequestsPerSecond };
+    }
+
+    /**
+     * Takes one request and <code>cost</code> bytes from a principal.
+     *
+     * @return the nanoseconds to wait, or <code>-1</code>, taking
+     * nothing, if that is over <code>maxWait</code>.
+     */
+    private long reserve( final Principal p, final long cost,
+        final long bytesPerSecond, final long requestsPerSecond,
+        final long now, final long maxWait )
+    {
+        long requestWait = p.requests.reserve( 1.0, requestsPerSecond,
+            Math.max( 1.0, burstSeconds * requestsPerSecond ), now, maxWait );
+        if ( requestWait < 0L ) {
+            return -1L;
+        }
+        long byteWait = p.bytes.reserve( cost, bytesPerSecond,
+            burstSeconds * bytesPerSecond, now, maxWait );
+        if ( byteWait < 0L ) {
+            p.requests.adjust( 1.0, requestsPerSecond,
+                Math.max( 1.0, burstSeconds * requestsPerSecond ), now );
+            return -1L;
+        }
+        return Math.max( requestWait, byteWait );
+    }
+
+    /**
+     * Gives back what {@link #reserve} took.
+     */
+    private void release( final Principal p, final long cost,
+        final long bytesPerSecond, final long requestsPerSecond )
+    {
+        long now = System.nanoTime();
+        p.requests.adjust( 1.0, requestsPerSecond,
+            Math.max( 1.0, burstSeconds * requestsPerSecond ), now );
+        p.bytes.adjust( cost, bytesPerSecond, burstSeconds * bytesPerSecond,
+            now );
+    }
+
+    /**
+     * Waits for the call's fair share of the server bandwidth.
+     *
+     * @param client the client charged.
+     * @param cost the bytes asked for.
+     * @param deadline the {@link System#nanoTime} to give up at.
+     *
+     * @return <code>false</code> if the deadline passed or the thread was
+     * interrupted.
+     */
+    private boolean share( final Principal client, final long cost,
+        final long deadline )
+    {
+        lock.lock();
+        try {
+            double tag = Math.max( client.finishTag, virtualTime );
+            client.finishTag = tag + cost;
+            if ( waiting.isEmpty() && take( cost, System.nanoTime() ) ) {
+                virtualTime = tag;
+                return true;
+            }
+
+            Waiter w = new Waiter( tag, seq++ );
+            waiting.add( w );
+            queued = waiting.size();
+            try {
+                while ( true ) {
+                    long now = System.nanoTime();
+                    boolean head = waiting.peek() == w;
+                    if ( head && take( cost, now ) ) {
+                        virtualTime = tag;
+                        return true;
+                    }
+                    long left = deadline - now;
+                    if ( left <= 0L ) {
+                        client.finishTag = Math.max( virtualTime,
+                            client.finishTag - cost );
+                        return false;
+                    }
+                    long rate = serverBytesPerSecond;
+                    long pause = head ? Math.min( left, Math.max( 1L,
+                        server.delay( rate, burstSeconds * rate, now ) ) )
+                        : left;
+                    served.awaitNanos( pause );
+                }
+            } finally {
+                waiting.remove( w );
+                queued = waiting.size();
+                served.signalAll();
+            }
+        } catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes bytes from the server bucket if it is out of debt.  Called
+     * holding {@link #lock}.
+     */
+    private boolean take( final long cost, final long now )
+    {
+        long rate = serverBytesPerSecond;
+        return server.reserve( cost, rate, burstSeconds * rate, now, 0L )
+            == 0L;
+    }
+
+    /**
+     * Counts a refusal and builds its exception.
+     *
+     * @param call the call refused.
+     * @param client the client charged.
+     * @param over the principal whose limit was hit, <code>null</code> for
+     * the server's.
+     */
+    private DfsServiceIOException refuse( final DfsCall call,
+        final Principal client, final Principal over )
+    {
+        rejected.increment();
+        client.rejected.incrementAndGet();
+        return new DfsServiceIOException( ( over == null
+            ? Constants.OVERLOADED : Constants.THROTTLED )
+            + call.getOp().getRpcName() + " refused, "
+            + ( over == null ? "server bandwidth" : over.name + " limit" )
+            + " would delay it over " + maxWaitMillis + " ms" );
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * @return whether calls of an operation are charged.
+     */
+    private static boolean isCharged( final DfsOp op )
+    {
+        return op.getKind() == DfsOp.Kind.DATA
+            || op.getKind() == DfsOp.Kind.BULK
+            || op.getKind() == DfsOp.Kind.WAIT;
+    }
+
+    /**
+     * @return the bytes charged before a call runs: the length asked for
+     * by a read or write, nothing for a copy.
+     */
+    private static long upfront( final DfsCall call )
+    {
+        return call.getOp().getKind() == DfsOp.Kind.DATA
+            ? call.getRequestedBytes() : 0L;
+    }
+
+    /**
+     * @return a usage line per principal.
+     */
+    private static String[] usage( final Iterable<Principal> principals )
+    {
+        List<String> lines = new ArrayList<String>();
+        for ( Principal p : principals ) {
+            lines.add( p.usage() );
+        }
+        return lines.toArray( new String[lines.size()] );
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+/**
+ * JMX view of a {@link QosLimiter}.  The rates are in bytes or requests
+ * per second, 0 meaning no limit, and take effect on the next call.
+ */
+public interface QosLimiterMBean
+{
+    /** @return the bandwidth of each client handle. */
+    long getClientBytesPerSecond();
+
+    /** @param rate the bandwidth of each client handle. */
+    void setClientBytesPerSecond( long rate );
+
+    /** @return the request rate of each client handle. */
+    long getClientRequestsPerSecond();
+
+    /** @param rate the request rate of each client handle. */
+    void setClientRequestsPerSecond( long rate );
+
+    /** @return the bandwidth of each user without an override. */
+    long getUserBytesPerSecond();
+
+    /** @param rate the bandwidth of each user without an override. */
+    void setUserBytesPerSecond( long rate );
+
+    /** @return the request rate of each user without an override. */
+    long getUserRequestsPerSecond();
+
+    /** @param rate the request rate of each user without an override. */
+    void setUserRequestsPerSecond( long rate );
+
+    /** @return the bandwidth of the whole server. */
+    long getServerBytesPerSecond();
+
+    /** @param rate the bandwidth of the whole server. */
+    void setServerBytesPerSecond( long rate );
+
+    /** @return the longest a call is delayed before it is refused, in ms. */
+    long getMaxWaitMillis();
+
+    /** @param millis the longest a call is delayed before it is refused. */
+    void setMaxWaitMillis( long millis );
+
+    /**
+     * Gives one user limits of its own.
+     *
+     * @param user the user name passed to <code>login</code>.
+     * @param bytesPerSecond the user's bandwidth, 0 for no limit.
+     * @param requestsPerSecond the user's request rate, 0 for no limit.
+     */
+    void setUserLimit( String user, long bytesPerSecond,
+        long requestsPerSecond );
+
+    /**
+     * Puts a user back on the default user limits.
+     *
+     * @param user the user name.
+     */
+    void removeUserLimit( String user );
+
+    /** @return the users with limits of their own, one per line. */
+    String[] getUserLimits();
+
+    /** @return calls delayed to keep within a limit since start. */
+    long getDelayedCount();
+
+    /** @return calls refused for going over a limit since start. */
+    long getRejectedCount();
+
+    /** @return calls waiting for their share of the server bandwidth. */
+    int getQueued();
+
+    /** @return bytes, requests, delays and refusals of each client. */
+    String[] getClientUsage();
+
+    /** @return bytes, requests, delays and refusals of each user. */
+    String[] getUserUsage();
+}
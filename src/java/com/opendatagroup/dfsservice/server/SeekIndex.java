@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Seek points into the uncompressed content of one compressed file, so a
+ * read at an offset can start decompressing from the closest point before
+ * it instead of from the start of the file.  Points are added by
+ * {@link DeflateDecoder} as it passes them, at most one per span of
+ * output, so the index grows as the file is read and is shared by every
+ * handle open on the same version of the file.
+ */
+final class SeekIndex
+{
+    // ** Package Static Inner Classes **
+
+    /**
+     * A place where decompression can start.
+     */
+    static final class Point
+    {
+        /** Offset in bits in the compressed file of the block start. */
+        final long bitOffset;
+
+        /** Offset in the uncompressed content. */
+        final long offset;
+
+        /** Uncompressed bytes before {@link #offset}, up to 32 KB. */
+        final byte[] window;
+
+        /**
+         * @param bitOffset offset in bits in the compressed file.
+         * @param offset offset in the uncompressed content.
+         * @param window the output just before <code>offset</code>.
+         */
+        Point( final long bitOffset, final long offset, final byte[] window )
+        {
+            this.bitOffset = bitOffset;
+            this.offset = offset;
+            this.window = window;
+        }
+    }
+
+    // ** Private Data **
+
+    /** Length of the compressed file the points are for. */
+    private final long length;
+
+    /** Modification time of the compressed file the points are for. */
+    private final long modificationTime;
+
+    /** Uncompressed bytes between points. */
+    private final long span;
+
+    /** Bytes of windows the index may hold. */
+    private final long maxBytes;
+
+    /** Points by offset.  Guarded by <code>this</code>. */
+    private final List<Point> points = new ArrayList<Point>();
+
+    /** Bytes of windows held.  Guarded by <code>this</code>. */
+    private long bytes;
+
+
+    // ** Constructors **
+
+    /**
+     * @param length the compressed file's length.
+     * @param modificationTime the compressed file's modification time.
+     * @param span the uncompressed bytes between points.
+     * @param maxBytes the bytes of windows the index may hold.
+     */
+    SeekIndex( final long length, final long modificationTime,
+        final long span, final long maxBytes )
+    {
+        this.length = length;
+        this.modificationTime = modificationTime;
+        this.span = Math.max( 1L, span );
+        this.maxBytes = maxBytes;
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * @return whether the index is for this version of the file.
+     */
+    boolean matches( final long fileLength, final long fileModificationTime )
+    {
+        return length == fileLength
+            && modificationTime == fileModificationTime;
+    }
+
+    /**
+     * @param offset an uncompressed offset at the start of a block.
+     *
+     * @return whether a point at <code>offset</code> would be added.
+     */
+    synchronized boolean wants( final long offset )
+    {
+        long last = points.isEmpty() ? 0L
+            : points.get( points.size() - 1 ).offset;
+        return offset >= last + span && bytes < maxBytes;
+    }
+
+    /**
+     * Adds a point if it is a span past the last one.  Points before that
+     * come from a decoder going over ground already indexed, and are
+     * dropped.
+     *
+     * @param point the point.
+     */
+    synchronized void add( final Point point )
+    {
+        if ( wants( point.offset ) ) {
+            points.add( point );
+            bytes += point.window.length;
+        }
+    }
+
+    /**
+     * @param offset an uncompressed offset.
+     *
+     * @return the last point at or before <code>offset</code>, or
+     * <code>null</code> if there is none and decompression has to start at
+     * the beginning.
+     */
+    synchronized Point floor( final long offset )
+    {
+        int lo = 0;
+        int hi = points.size() - 1;
+        Point found = null;
+        while ( lo <= hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            Point p = points.get( mid );
+            if ( p.offset <= offset ) {
+                found = p;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the number of points.
+     */
+    synchronized int size()
+    {
+        return points.size();
+    }
+
+    /**
+     * @return the bytes of windows held.
+     */
+    synchronized long getBytes()
+    {
+        return bytes;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the {@link SeekIndex} of each compressed file read decompressed,
+ * so the seek points found by one handle are used by the handles opened
+ * later.  An index is dropped when the file's length or modification time
+ * changes, and indexes are evicted least recently used first once their
+ * windows take more than the memory budget.
+ */
+final class SeekIndexCache
+{
+    // ** Private Data **
+
+    /** Uncompressed bytes between seek points. */
+    private final long span;
+
+    /** Bytes of windows all indexes may hold. */
+    private final long capacity;
+
+    /**
+     * Indexes keyed on the qualified path, in access order so that the
+     * first is the least recently used.  Guarded by itself.
+     */
+    private final LinkedHashMap<String, SeekIndex> entries =
+        new LinkedHashMap<String, SeekIndex>( 16, 0.75f, true );
+
+
+    // ** Constructors **
+
+    /**
+     * @param span the uncompressed bytes between seek points.
+     * @param capacity the bytes of windows all indexes may hold.
+     */
+    SeekIndexCache( final long span, final long capacity )
+    {
+        this.span = span;
+        this.capacity = capacity;
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * Returns the index of a file, creating an empty one for a file not
+     * seen before or changed since.
+     *
+     * @param path the qualified path of the file.
+     * @param length the file's length.
+     * @param modificationTime the file's modification time.
+     *
+     * @return the index.
+     */
+    SeekIndex get( final String path, final long length,
+        final long modificationTime )
+    {
+        synchronized ( entries ) {
+            SeekIndex index = entries.get( path );
+            if ( index == null || !index.matches( length, modificationTime ) ) {
+                index = new SeekIndex( length, modificationTime, span,
+                    capacity );
+                entries.put( path, index );
+            }
+            trim( index );
+            return index;
+        }
+    }
+
+    /**
+     * @return the bytes of windows held by all indexes.
+     */
+    long getBytes()
+    {
+        synchronized ( entries ) {
+            long total = 0L;
+            for ( SeekIndex index : entries.values() ) {
+                total += index.getBytes();
+            }
+            return total;
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Evicts the least recently used indexes other than <code>keep</code>
+     * while the total is over capacity.  Indexes grow after they are handed
+     * out, so this is done on every lookup.  Must be called holding the
+     * lock on {@link #entries}.
+     */
+    private void trim( final SeekIndex keep )
+    {
+        long total = 0L;
+        for ( SeekIndex index : entries.values() ) {
+            total += index.getBytes();
+        }
+        Iterator<Map.Entry<String, SeekIndex>> it =
+            entries.entrySet().iterator();
+        while ( total > capacity && it.hasNext() ) {
+            SeekIndex index = it.next().getValue();
+            if ( index != keep ) {
+                total -= index.getBytes();
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.SharedRing;
+// end thrift-generated files
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The memory-mapped files behind <code>readShared</code>.  Each client may
+ * have one: a file in a directory the server and its local clients share,
+ * usually the tmpfs at <code>/dev/shm</code>, mapped by both.  A read copies
+ * the file's bytes straight into the mapping at the offset the client
+ * chose, and only the count goes back over the connection, so the data is
+ * never encoded by Thrift or copied through the loopback socket.
+ * <p>
+ * The file is made readable by the server's user only, so the client must
+ * run as the same user, and is deleted when the client closes.  Java has
+ * no way to unmap a buffer, so the memory of a closed ring is returned once
+ * the buffer is garbage collected.
+ */
+final class SharedRings
+{
+    // ** Package Static Final Data **
+
+    /** Bytes before the data area, holding the token. */
+    static final int HEADER = 8;
+
+    // ** Private Static Final Data **
+
+    /** Bytes copied from the file into the ring at a time. */
+    private static final int COPY_CHUNK = 64 * 1024;
+
+    // ** Inner Classes **
+
+    /**
+     * The ring of one client.
+     */
+    private static final class Ring
+    {
+        /** The file. */
+        private final File file;
+
+        /** The file mapped read-write, header included. */
+        private final MappedByteBuffer buffer;
+
+        /** What the client is told about it. */
+        private final SharedRing info;
+
+        /**
+         * @param file the file.
+         * @param buffer the mapping.
+         * @param info the description sent to the client.
+         */
+        private Ring( final File file, final MappedByteBuffer buffer,
+            final SharedRing info )
+        {
+            this.file = file;
+            this.buffer = buffer;
+            this.info = info;
+        }
+    }
+
+    // ** Private Data **
+
+    /** Directory the files are created in. */
+    private final File dir;
+
+    /** Largest ring a client may have, 0 for none. */
+    private final long maxBytes;
+
+    /** Bytes all rings together may take. */
+    private final long totalBytes;
+
+    /** Rings keyed on the client handle id. */
+    private final ConcurrentHashMap<Long, Ring> rings =
+        new ConcurrentHashMap<Long, Ring>();
+
+    /** Bytes taken by {@link #rings}.  Guarded by <code>this</code>. */
+    private long used;
+
+    /** Chooses the tokens. */
+    private final SecureRandom random = new SecureRandom();
+
+    /** Buffer each thread copies through. */
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue()
+        {
+            return new byte[COPY_CHUNK];
+        }
+    };
+
+
+    // ** Constructors **
+
+    /**
+     * @param dir the directory to create the files in, <code>null</code>
+     * for <code>/dev/shm</code> if it exists or else the temporary
+     * directory.
+     * @param maxBytes the largest ring a client may have, 0 to refuse all.
+     * @param totalBytes the bytes all rings together may take.
+     */
+    SharedRings( final String dir, final long maxBytes, final long totalBytes )
+    {
+        File shm = new File( "/dev/shm" );
+        this.dir = dir != null ? new File( dir ) : shm.isDirectory() ? shm
+            : new File( System.getProperty( "java.io.tmpdir" ) );
+        this.maxBytes = maxBytes;
+        this.totalBytes = totalBytes;
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * Creates the ring of a client, or returns the one it has.
+     *
+     * @param clientId the client handle id.
+     * @param size the bytes of data wanted.
+     *
+     * @return the description of the ring.
+     *
+     * @throws IOException if the size is refused or the file cannot be
+     * created and mapped.
+     */
+    synchronized SharedRing open( final long clientId, final long size )
+        throws IOException
+    {
+        Ring ring = rings.get( clientId );
+        if ( ring != null ) {
+            return ring.info;
+        }
+        if ( size <= 0 || size > maxBytes
+            || size > Integer.MAX_VALUE - HEADER ) {
+            throw new IOException( "shared ring of " + size
+                + " bytes refused, the limit is " + maxBytes );
+        }
+        if ( used + size > totalBytes ) {
+            throw new IOException( "shared ring of " + size
+                + " bytes refused, " + ( totalBytes - used )
+                + " bytes left for rings" );
+        }
+
+        File file = File.createTempFile( "thriftstore-ring-", ".shm", dir );
+        file.deleteOnExit();
+        RandomAccessFile raf = null;
+        try {
+            // owner only, before anything is written to it
+            file.setReadable( false, false );
+            file.setWritable( false, false );
+            file.setReadable( true, true );
+            file.setWritable( true, true );
+            raf = new RandomAccessFile( file, "rw" );
+            raf.setLength( HEADER + size );
+            MappedByteBuffer buffer = raf.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0L, HEADER + size );
+            long token = random.nextLong();
+            buffer.putLong( 0, token );
+            ring = new Ring( file, buffer,
+                new SharedRing( file.getAbsolutePath(), size, token ) );
+        } catch ( IOException ioe ) {
+            file.delete();
+            throw ioe;
+        } finally {
+            if ( raf != null ) {
+                // the mapping stays valid after the channel is closed
+                raf.close();
+            }
+        }
+        rings.put( clientId, ring );
+        used += size;
+        return ring.info;
+    }
+
+    /**
+     * Reads from a file into the ring of a client.
+     *
+     * @param clientId the client handle id.
+     * @param in the file.
+     * @param offset the file offset to read from.
+     * @param len the most bytes to read.
+     * @param ringOffset where in the data area to put them.
+     *
+     * @return the bytes read, fewer than <code>len</code> only at the end
+     * of the file.
+     *
+     * @throws IOException if the client has no ring, the range does not fit
+     * in it, or the file cannot be read.
+     */
+    int read( final long clientId, final FSDataInputStream in,
+        final long offset, final int len, final long ringOffset )
+        throws IOException
+    {
+        Ring ring = rings.get( clientId );
+        if ( ring == null ) {
+            throw new IOException( "no shared ring for client.id="
+                + clientId );
+        }
+        if ( len < 0 || ringOffset < 0
+            || ringOffset + len > ring.info.size ) {
+            throw new IOException( "range at " + ringOffset + " of length "
+                + len + " is outside the shared ring of " + ring.info.size
+                + " bytes" );
+        }
+
+        byte[] buf = scratch.get();
+        ByteBuffer dst = ring.buffer.duplicate();
+        dst.position( HEADER + ( int )ringOffset );
+        int total = 0;
+        while ( total < len ) {
+            int n = in.read( offset + total, buf, 0,
+                Math.min( buf.length, len - total ) );
+            if ( n <= 0 ) {
+                break;
+            }
+            dst.put( buf, 0, n );
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Deletes the ring of a client, if it has one.
+     *
+     * @param clientId the client handle id.
+     */
+    synchronized void close( final long clientId )
+    {
+        Ring ring = rings.remove( clientId );
+        if ( ring != null ) {
+            used -= ring.info.size;
+            ring.file.delete();
+        }
+    }
+}
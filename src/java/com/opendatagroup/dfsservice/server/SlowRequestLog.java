@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Writes one line for every call that took longer than a threshold, from
+ * the moment its request was read to the moment its response was flushed.
+ * The line names the call, its request and trace ids, the path or handle
+ * it worked on and the bytes it moved, and splits the time into four
+ * phases:
+ * <ul>
+ * <li><code>decode</code> - reading the arguments off the connection</li>
+ * <li><code>queue</code> - waiting to be let through by the interceptors,
+ * e.g. for admission</li>
+ * <li><code>backend</code> - the handler, i.e. the Hadoop client</li>
+ * <li><code>serialize</code> - writing and flushing the response</li>
+ * </ul>
+ * Lines go to a file of their own if one is given, and otherwise to the
+ * commons-logging category of this class at WARN, so they can still be
+ * routed to a separate appender.  Calls under the threshold cost one
+ * comparison.  Long polls such as <code>follow</code> are slow by design
+ * and never written.
+ */
+public class SlowRequestLog
+{
+    // ** Public Static Final Data **
+
+    /** Logger used when no file is given. */
+    public static final Log LOG =
+        LogFactory.getLog( SlowRequestLog.class.getName() );
+
+    // ** Private Data **
+
+    /** Calls at least this long are written; negative writes none. */
+    private final long thresholdNanos;
+
+    /** File the lines are appended to, <code>null</code> to use LOG. */
+    private final Writer out;
+
+    /** Formats the time stamp of the lines, guarded by this. */
+    private final SimpleDateFormat format =
+        new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss,SSS" );
+
+
+    // ** Constructors **
+
+    /**
+     * @param thresholdMillis calls taking at least this long are written;
+     * a negative value turns the log off.
+     * @param file the file lines are appended to, <code>null</code> to
+     * write them to {@link #LOG}.
+     *
+     * @throws IOException if the file cannot be opened.
+     */
+    public SlowRequestLog( final long thresholdMillis, final String file )
+        throws IOException
+    {
+        this.thresholdNanos = thresholdMillis < 0L ? -1L
+            : thresholdMillis * 1000000L;
+        this.out = file == null ? null : new FileWriter( file, true );
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * Writes the call if it was slow.
+     *
+     * @param call the call, after its response was sent.
+     * @param sentNanos {@link System#nanoTime} when the response was
+     * flushed.
+     */
+    public void record( final DfsCall call, final long sentNanos )
+    {
+        long total = sentNanos - call.getReceivedNanos();
+        if ( thresholdNanos < 0L || total < thresholdNanos
+            || call.getOp().getKind() == DfsOp.Kind.WAIT ) {
+            return;
+        }
+
+        StringBuilder line = new StringBuilder( 256 );
+        line.append( "rpc=" ).append( call.getOp().getRpcName() );
+        line.append( " req=" ).append( Long.toHexString(
+            call.getRequestId() ) );
+        if ( call.getTraceId() != null ) {
+            line.append( " trace=" ).append( call.getTraceId() );
+        }
+        if ( call.getClientHandle() != null ) {
+            line.append( " client=" ).append( call.getClientHandle().id );
+        }
+        if ( call.getPath() != null ) {
+            line.append( " path=" ).append( call.getPath() );
+        }
+        if ( call.getDfsHandle() != null ) {
+            line.append( " handle=" ).append( call.getDfsHandle().id );
+        }
+        line.append( call.isSucceeded() ? " ok" : " failed" );
+        line.append( " read=" ).append( call.getBytesRead() );
+        line.append( " written=" ).append( call.getBytesWritten() );
+        millis( line, " total_ms=", total );
+        millis( line, " decode_ms=",
+            call.getStartNanos() - call.getReceivedNanos() );
+        millis( line, " queue_ms=",
+            call.getAdmittedNanos() - call.getStartNanos() );
+        millis( line, " backend_ms=",
+            call.getEndNanos() - call.getAdmittedNanos() );
+        millis( line, " serialize_ms=", sentNanos - call.getEndNanos() );
+
+        if ( out == null ) {
+            LOG.warn( line );
+            return;
+        }
+        synchronized ( this ) {
+            try {
+                out.write( format.format( new Date() ) );
+                out.write( ' ' );
+                out.write( line.toString() );
+                out.write( '\n' );
+                out.flush();
+            } catch ( IOException ioe ) {
+                LOG.warn( "SlowRequestLog: cannot write " + line, ioe );
+            }
+        }
+    }
+
+    /**
+     * Closes the file, if any.
+     */
+    public synchronized void close()
+    {
+        if ( out != null ) {
+            try {
+                out.close();
+            } catch ( IOException ioe ) {
+                LOG.warn( "SlowRequestLog: close failed", ioe );
+            }
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Appends a duration in milliseconds with microsecond precision.
+     */
+    private static void millis( final StringBuilder line, final String label,
+        final long nanos )
+    {
+        line.append( label ).append( nanos / 1000000L ).append( '.' );
+        String micros = Long.toString( Math.abs( nanos ) / 1000L % 1000L );
+        for ( int i = micros.length(); i < 3; i++ ) {
+            line.append( '0' );
+        }
+        line.append( micros );
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+// start thrift-generated files
+import com.opendatagroup.dfsservice.SplitResult;
+// end thrift-generated files
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts a stream into delimited records for <code>readSplit</code>.  A
+ * split owns the records that start inside it: the first record read is
+ * dropped unless the split starts the file, and records are returned until
+ * one starts at or after the end of the split.  To know whether a record
+ * starts right at the split's offset, the stream is started one delimiter
+ * length early.
+ * <p>
+ * An instance holds a buffer, so it is used by one thread at a time.
+ */
+final class SplitReader
+{
+    // ** Private Static Final Data **
+
+    /** Size the buffer starts at. */
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    // ** Private Data **
+
+    /** Bytes that end a record. */
+    private final byte[] delimiter;
+
+    /** Whether a carriage return before a newline delimiter is dropped. */
+    private final boolean stripReturn;
+
+    /** Longest record, delimiter included, that may be returned. */
+    private final int maxRecord;
+
+    /** Bytes read from the stream. */
+    private byte[] buf = new byte[INITIAL_BUFFER];
+
+
+    // ** Constructors **
+
+    /**
+     * @param delimiter the bytes that end a record, empty for a newline.
+     * @param maxRecord the longest record that may be returned.
+     */
+    SplitReader( final byte[] delimiter, final int maxRecord )
+    {
+        this.stripReturn = delimiter.length == 0;
+        this.delimiter = stripReturn ? new byte[] { '\n' } : delimiter;
+        this.maxRecord = Math.max( maxRecord, this.delimiter.length );
+    }
+
+
+    // ** Package Methods **
+
+    /**
+     * @param start the offset of the split.
+     *
+     * @return where the stream passed to {@link #scan} must start.
+     */
+    long seekOffset( final long start )
+    {
+        return Math.max( 0L, start - delimiter.length );
+    }
+
+    /**
+     * Reads one page of the records owned by a split.
+     *
+     * @param in the file, positioned at {@link #seekOffset}.
+     * @param start the offset of the split.
+     * @param end the offset of the end of the split.
+     * @param maxPage the bytes after which the page ends with the record
+     * that crosses it.
+     *
+     * @return the page.
+     *
+     * @throws IOException if the file cannot be read or a record is longer
+     * than the limit.
+     */
+    SplitResult scan( final InputStream in, final long start, final long end,
+        final long maxPage )
+        throws IOException
+    {
+        List<byte[]> records = new ArrayList<byte[]>();
+        long bufStart = seekOffset( start );
+        int head = 0;
+        int tail = 0;
+        int from = 0;
+        long page = 0L;
+        // the first record read starts before the split unless it is at 0
+        boolean skip = start > 0L;
+        boolean eof = false;
+        long nextOffset = -1L;
+
+        while ( true ) {
+            int found = indexOf( from, tail );
+            if ( found < 0 && !eof ) {
+                if ( head > 0 ) {
+                    System.arraycopy( buf, head, buf, 0, tail - head );
+                    bufStart += head;
+                    tail -= head;
+                    head = 0;
+                }
+                if ( tail - head >= maxRecord && !skip ) {
+                    throw new IOException( "record at offset " + bufStart
+                        + " is longer than " + maxRecord + " bytes" );
+                }
+                // a delimiter may straddle the bytes about to be read
+                from = Math.max( head, tail - delimiter.length + 1 );
+                if ( tail == buf.length ) {
+                    if ( skip && tail >= maxRecord ) {
+                        // only looking for the end of the first record;
+                        // keep what may be the start of a delimiter
+                        int keep = delimiter.length - 1;
+                        System.arraycopy( buf, tail - keep, buf, 0, keep );
+                        bufStart += tail - keep;
+                        tail = keep;
+                        from = 0;
+                    } else {
+                        byte[] grown = new byte[( int )Math.min( maxRecord,
+                            2L * buf.length )];
+                        System.arraycopy( buf, 0, grown, 0, tail );
+                        buf = grown;
+                    }
+                }
+                int n = in.read( buf, tail, buf.length - tail );
+                if ( n < 0 ) {
+                    eof = true;
+                } else {
+                    tail += n;
+                }
+                continue;
+            }
+
+            int recordEnd = found < 0 ? tail : found;
+            if ( found < 0 && head == recordEnd ) {
+                break;
+            }
+            long recordOffset = bufStart + head;
+            if ( skip ) {
+                skip = false;
+            } else {
+                if ( recordOffset >= end ) {
+                    break;
+                }
+                int len = recordEnd - head;
+                if ( stripReturn && len > 0 && buf[head + len - 1] == '\r' ) {
+                    len--;
+                }
+                byte[] record = new byte[len];
+                System.arraycopy( buf, head, record, 0, len );
+                records.add( record );
+                page += len;
+            }
+            if ( found < 0 ) {
+                break;
+            }
+            head = found + delimiter.length;
+            from = head;
+            long next = bufStart + head;
+            if ( next >= end ) {
+                break;
+            }
+            if ( page >= maxPage ) {
+                nextOffset = next;
+                break;
+            }
+        }
+        return new SplitResult( records, nextOffset );
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * @return the index in {@link #buf} of the first delimiter that starts
+     * at or after <code>from</code> and ends by <code>to</code>, or
+     * <code>-1</code>.
+     */
+    private int indexOf( final int from, final int to )
+    {
+        byte first = delimiter[0];
+        int last = to - delimiter.length;
+        for ( int i = from; i <= last; i++ ) {
+            if ( buf[i] != first ) {
+                continue;
+            }
+            int j = 1;
+            while ( j < delimiter.length && buf[i + j] == delimiter[j] ) {
+                j++;
+            }
+            if ( j == delimiter.length ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
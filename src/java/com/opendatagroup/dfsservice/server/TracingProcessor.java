@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import com.facebook.thrift.TException;
+import com.facebook.thrift.TProcessor;
+import com.facebook.thrift.protocol.TProtocol;
+
+/**
+ * Wraps the generated processor to see each call through to the end, once
+ * its response has been written and flushed, and hands it to the
+ * {@link SlowRequestLog}.  The handler must be wrapped in an
+ * {@link InterceptingHandler} for the calls to be seen at all.
+ */
+public class TracingProcessor implements TProcessor
+{
+    // ** Private Data **
+
+    /** The generated processor. */
+    private final TProcessor delegate;
+
+    /** Where slow calls are written. */
+    private final SlowRequestLog slowLog;
+
+
+    // ** Constructors **
+
+    /**
+     * @param delegate the processor to call.
+     * @param slowLog where slow calls are written.
+     */
+    public TracingProcessor( final TProcessor delegate,
+        final SlowRequestLog slowLog )
+    {
+        this.delegate = delegate;
+        this.slowLog = slowLog;
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public boolean process( final TProtocol in, final TProtocol out )
+        throws TException
+    {
+        boolean result = delegate.process( in, out );
+        long sent = System.nanoTime();
+        DfsCall call = DfsCall.thread();
+        if ( call.getOp() != null ) {
+            slowLog.record( call, sent );
+            call.clear();
+        }
+        return result;
+    }
+}
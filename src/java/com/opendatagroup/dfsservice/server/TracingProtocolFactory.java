@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.server;
+
+import com.facebook.thrift.TException;
+import com.facebook.thrift.protocol.TBinaryProtocol;
+import com.facebook.thrift.protocol.TMessage;
+import com.facebook.thrift.protocol.TProtocol;
+import com.facebook.thrift.protocol.TProtocolFactory;
+import com.facebook.thrift.transport.TTransport;
+
+/**
+ * Binary protocol factory whose protocols note on the serving thread's
+ * {@link DfsCall} when a request header has been read, which is when the
+ * request starts to be served.  Used as the input protocol factory of the
+ * server, it lets the time spent decoding the arguments be told apart from
+ * the time spent in the handler.  It also tells the {@link DfsCall} when
+ * the thread starts on a new connection, which is when the server asks for
+ * the protocol.
+ */
+public class TracingProtocolFactory implements TProtocolFactory
+{
+    // ** Inner Classes **
+
+    /**
+     * Binary protocol that notes the time each message header is read.
+     */
+    private static final class TracingProtocol extends TBinaryProtocol
+    {
+        /**
+         * @param trans the connection.
+         */
+        private TracingProtocol( final TTransport trans )
+        {
+            super( trans );
+        }
+
+        /** {@inheritDoc} */
+        public TMessage readMessageBegin()
+            throws TException
+        {
+            TMessage message = super.readMessageBegin();
+            DfsCall.received( System.nanoTime() );
+            return message;
+        }
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public TProtocol getProtocol( final TTransport trans )
+    {
+        DfsCall.connected();
+        return new TracingProtocol( trans );
+    }
+}
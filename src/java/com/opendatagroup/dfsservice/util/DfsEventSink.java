@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.util;
+
+/**
+ * Receives events about ThriftStore activity for a profiler or recorder,
+ * e.g. Java Flight Recorder.  The code that reports events is compiled for
+ * old JDKs and knows nothing about the recorder; an implementation is
+ * plugged in at start-up through {@link DfsEvents}.
+ * <p>
+ * Methods are called on the thread doing the work, so they must be cheap
+ * and must not throw.  Paths and handles are passed as the DFS sees them.
+ */
+public interface DfsEventSink
+{
+    /**
+     * Called on the serving thread when the handler is entered, before the
+     * matching {@link #rpcEnd}, so a recorder can time the call itself.
+     */
+    void rpcBegin();
+
+    /**
+     * Called on the serving thread when the handler has returned or thrown.
+     *
+     * @param op the method name in the IDL.
+     * @param path the path the call named, <code>null</code> if none.
+     * @param handle the file handle the call named, <code>-1</code> if none.
+     * @param bytesRead file bytes returned to the client.
+     * @param bytesWritten file bytes received from the client.
+     * @param succeeded whether the handler returned normally.
+     */
+    void rpcEnd( String op, String path, long handle, long bytesRead,
+        long bytesWritten, boolean succeeded );
+
+    /**
+     * A file handle was opened on the server.
+     *
+     * @param client the id of the client handle.
+     * @param handle the new file handle.
+     * @param path the file.
+     * @param write <code>true</code> if opened for writing.
+     */
+    void handleOpened( long client, long handle, String path, boolean write );
+
+    /**
+     * A file handle was closed on the server, by <code>close</code> or
+     * because its client was closed.
+     *
+     * @param client the id of the client handle.
+     * @param handle the file handle.
+     * @param write <code>true</code> if it was open for writing.
+     */
+    void handleClosed( long client, long handle, boolean write );
+
+    /**
+     * The server's read cache was asked for a file.
+     *
+     * @param path the file.
+     * @param hit whether a valid local copy was served.
+     * @param length the length of the file.
+     */
+    void cacheLookup( String path, boolean hit, long length );
+
+    /**
+     * A background copy into the server's read cache finished.
+     *
+     * @param path the file.
+     * @param bytes the bytes copied.
+     * @param durationNanos how long the copy took.
+     * @param kept <code>false</code> if the copy failed or was discarded
+     * because the file changed while it was copied.
+     */
+    void cacheFilled( String path, long bytes, long durationNanos,
+        boolean kept );
+
+    /**
+     * A file was evicted from the server's read cache to stay in budget.
+     *
+     * @param path the file.
+     * @param bytes the bytes freed.
+     */
+    void cacheEvicted( String path, long bytes );
+
+    /**
+     * A client stream fetched a chunk ahead of the reader.
+     *
+     * @param handle the file handle read.
+     * @param offset the file offset of the chunk.
+     * @param requested the bytes asked for.
+     * @param received the bytes returned.
+     * @param durationNanos how long the fetch took.
+     */
+    void prefetch( long handle, long offset, int requested, int received,
+        long durationNanos );
+}
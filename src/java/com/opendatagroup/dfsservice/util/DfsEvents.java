@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Holds the {@link DfsEventSink} events are reported to, if any.  The sink
+ * is named by the system property {@link #SINK_PROPERTY}, e.g.
+ * <pre>
+ *     -Dthriftstore.event.sink=com.opendatagroup.dfsservice.jfr.JfrEventSink
+ * </pre>
+ * and is loaded once, when this class is initialized.  {@link #SINK} is a
+ * final field, so when no sink is set the JIT compiler drops the
+ * <code>if ( DfsEvents.SINK != null )</code> test at every call site along
+ * with the code it guards.
+ */
+public final class DfsEvents
+{
+    // ** Public Static Final Data **
+
+    /** System property naming the sink class. */
+    public static final String SINK_PROPERTY = "thriftstore.event.sink";
+
+    /** The sink, <code>null</code> if events are off. */
+    public static final DfsEventSink SINK = load();
+
+
+    // ** Constructors **
+
+    /**
+     * Not instantiated.
+     */
+    private DfsEvents()
+    {
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * Instantiates the class named by {@link #SINK_PROPERTY}.  A sink that
+     * cannot be loaded, e.g. one built for a newer JDK than the one
+     * running, is logged and events stay off.
+     */
+    private static DfsEventSink load()
+    {
+        String name = System.getProperty( SINK_PROPERTY );
+        if ( name == null || name.length() == 0 ) {
+            return null;
+        }
+        Log log = LogFactory.getLog( DfsEvents.class.getName() );
+        try {
+            DfsEventSink sink =
+                ( DfsEventSink )Class.forName( name ).newInstance();
+            log.info( "DfsEvents: reporting events to " + name );
+            return sink;
+        } catch ( Exception e ) {
+            log.warn( "DfsEvents: cannot load event sink " + name
+                + ", events are off", e );
+        } catch ( LinkageError le ) {
+            log.warn( "DfsEvents: cannot load event sink " + name
+                + ", events are off", le );
+        }
+        return null;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with a fixed memory footprint and
+ * about 3% relative error, in the manner of HdrHistogram.  Values below 64
+ * are counted exactly; above that each power of two is split into 32
+ * buckets, so any value up to <code>Long.MAX_VALUE</code> lands in one of
+ * {@link #BUCKETS} counters and percentiles can be read at any time.
+ * <p>
+ * Recording is lock-free and safe from any number of threads.  Reads are
+ * not atomic with respect to concurrent recording, which only matters for
+ * a value or two in flight.
+ */
+public class LatencyHistogram
+{
+    // ** Public Static Final Data **
+
+    /** Number of counters. */
+    public static final int BUCKETS = 64 + 57 * 32;
+
+    // ** Private Static Final Data **
+
+    /** Bits of each power of two resolved by the buckets. */
+    private static final int SUB_BITS = 5;
+
+    /** Buckets per power of two. */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /** Values below this are counted in a bucket of their own. */
+    private static final int EXACT = 2 * SUB_COUNT;
+
+    // ** Private Data **
+
+    /** The counters. */
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+
+    /** Number of values recorded. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** Sum of the values recorded. */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** Largest value recorded. */
+    private final AtomicLong max = new AtomicLong();
+
+
+    // ** Public Methods **
+
+    /**
+     * Records one value.  Negative values are recorded as 0.
+     *
+     * @param nanos the latency.
+     */
+    public void record( final long nanos )
+    {
+        long v = nanos < 0L ? 0L : nanos;
+        counts.incrementAndGet( bucket( v ) );
+        count.incrementAndGet();
+        sum.addAndGet( v );
+        long m;
+        while ( v > ( m = max.get() ) && !max.compareAndSet( m, v ) ) {
+            // retry until the max is at least v
+        }
+    }
+
+    /**
+     * Adds the values of another histogram to this one.
+     *
+     * @param other the histogram to add.
+     */
+    public void add( final LatencyHistogram other )
+    {
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            long c = other.counts.get( i );
+            if ( c != 0L ) {
+                counts.addAndGet( i, c );
+            }
+        }
+        count.addAndGet( other.count.get() );
+        sum.addAndGet( other.sum.get() );
+        long v = other.max.get();
+        long m;
+        while ( v > ( m = max.get() ) && !max.compareAndSet( m, v ) ) {
+            // retry until the max is at least v
+        }
+    }
+
+    /**
+     * Clears all values.
+     */
+    public void reset()
+    {
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            counts.set( i, 0L );
+        }
+        count.set( 0L );
+        sum.set( 0L );
+        max.set( 0L );
+    }
+
+    /** @return the number of values recorded. */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /** @return the sum of the values recorded, in nanoseconds. */
+    public long getSum()
+    {
+        return sum.get();
+    }
+
+    /** @return the largest value recorded, in nanoseconds. */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /** @return the mean of the values recorded, 0 if there are none. */
+    public double getMean()
+    {
+        long n = count.get();
+        return n == 0L ? 0.0 : ( double )sum.get() / n;
+    }
+
+    /**
+     * Returns the value at a percentile: the upper end of the bucket that
+     * holds it, capped at the largest value recorded.
+     *
+     * @param percentile between 0 and 100, e.g. 99.9.
+     *
+     * @return the latency in nanoseconds, 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile( final double percentile )
+    {
+        long total = 0L;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            total += counts.get( i );
+        }
+        if ( total == 0L ) {
+            return 0L;
+        }
+        double p = Math.max( 0.0, Math.min( 100.0, percentile ) );
+        long rank = Math.max( 1L, ( long )Math.ceil( p / 100.0 * total ) );
+        long seen = 0L;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            seen += counts.get( i );
+            if ( seen >= rank ) {
+                return Math.min( upperBound( i ), max.get() );
+            }
+        }
+        return max.get();
+    }
+
+
+    // ** Package Static Methods **
+
+    /**
+     * @return the bucket holding a non-negative value.
+     */
+    static int bucket( final long v )
+    {
+        if ( v < EXACT ) {
+            return ( int )v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( v );
+        int shift = exponent - SUB_BITS;
+        int mantissa = ( int )( v >>> shift ) - SUB_COUNT;
+        return EXACT + ( exponent - SUB_BITS - 1 ) * SUB_COUNT + mantissa;
+    }
+
+    /**
+     * @return the largest value that falls into a bucket.
+     */
+    static long upperBound( final int bucket )
+    {
+        if ( bucket < EXACT ) {
+            return bucket;
+        }
+        int k = bucket - EXACT;
+        int shift = k / SUB_COUNT + 1;
+        long mantissa = k % SUB_COUNT + SUB_COUNT;
+        long upper = ( ( mantissa + 1 ) << shift ) - 1;
+        // the last bucket runs to the end of the range
+        return upper < 0L ? Long.MAX_VALUE : upper;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can update without contending on one memory
+ * location.  Each thread adds to one of several cells, chosen by its id,
+ * and the cells are spaced a cache line apart so that threads on different
+ * cores do not invalidate each other's lines.  Reading sums the cells, so
+ * {@link #get} is slower than {@link #add} and is meant for the occasional
+ * scrape rather than the hot path.
+ */
+public class StripedCounter
+{
+    // ** Private Static Final Data **
+
+    /** Longs per cell: 64 bytes, a cache line on common hardware. */
+    private static final int PAD = 8;
+
+    // ** Private Data **
+
+    /** The cells, one value every {@link #PAD} slots. */
+    private final AtomicLongArray cells;
+
+    /** Number of cells minus one; the count is a power of two. */
+    private final int mask;
+
+
+    // ** Constructors **
+
+    /**
+     * Creates a counter with one cell per processor, rounded up to a power
+     * of two.
+     */
+    public StripedCounter()
+    {
+        int n = Integer.highestOneBit(
+            Math.max( 1, Runtime.getRuntime().availableProcessors() ) * 2 - 1 );
+        mask = n - 1;
+        cells = new AtomicLongArray( n * PAD );
+    }
+
+
+    // ** Public Methods **
+
+    /**
+     * Adds to the counter.
+     *
+     * @param delta the amount to add; may be negative.
+     */
+    public void add( final long delta )
+    {
+        int cell = ( int )Thread.currentThread().getId() & mask;
+        cells.addAndGet( cell * PAD, delta );
+    }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment()
+    {
+        add( 1L );
+    }
+
+    /**
+     * @return the sum of all cells.
+     */
+    public long get()
+    {
+        long sum = 0L;
+        for ( int i = 0; i <= mask; i++ ) {
+            sum += cells.get( i * PAD );
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,34 @@
+#!/bin/sh
+
+# runLoad.sh
+# Shell script to run the load generator (DfsLoad) against a Thrift server.
+# All arguments are passed to DfsLoad; run without arguments for the list of
+# options.  For example, to load a server started in process over the local
+# file system:
+#
+#   ./runLoad.sh -local /tmp/dfsload -clients 16 -rate 2000 -duration 60
+
+
+# Java class whose main will be invoked.
+LOAD=com.opendatagroup.dfsservice.client.DfsLoad
+
+
+# Update this value to be the installation directory of Hadoop.  Hadoop is only
+# needed for the in-process server started with -local.
+HADOOP_VER=0.18.3
+HADOOP_INSTALL=/opt/hadoop
+
+
+# Build up the classpath
+LIB_DIR=../../lib
+LIB_JARS=.
+for J in `ls ${LIB_DIR}/*.jar`; do
+    LIB_JARS=${LIB_JARS}:${J};
+done;
+
+# Add Hadoop Core Jar
+LIB_JARS=${LIB_JARS}:${HADOOP_INSTALL}/hadoop-${HADOOP_VER}/hadoop-${HADOOP_VER}-core.jar
+
+
+# Call to run the load generator
+java -classpath ${LIB_JARS} ${LOAD} "$@"
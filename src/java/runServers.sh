@@ -0,0 +1,57 @@
+#!/bin/sh
+
+# runServers.sh
+# Shell script to start several Thrift servers on one machine, for trying out
+# the client-side balancer (DfsBalancer) against more than one server.  The
+# first argument is the number of servers to start; the second, optional
+# argument is the port of the first server, the others use the ports after it.
+# All servers read the same Hadoop configuration and so front the same DFS.
+# Stopping the script with Ctrl-C stops all of the servers.
+
+
+# Java class whose main will be invoked.
+SERVER=com.opendatagroup.dfsservice.server.DfsServer
+
+
+# Update this value to be the installation directory of Hadoop that the Thrift
+# servers will use.
+HADOOP_VER=0.18.3
+HADOOP_INSTALL=/opt/hadoop
+
+
+# Number of servers to start.
+COUNT=${1:-3}
+
+# Port of the first server.
+BASE_PORT=${2:-9090}
+
+
+# Build up the classpath
+LIB_DIR=../../lib
+LIB_JARS=.
+for J in `ls ${LIB_DIR}/*.jar`; do
+    LIB_JARS=${LIB_JARS}:${J};
+done;
+
+# Add Hadoop Core Jar
+LIB_JARS=${LIB_JARS}:${HADOOP_INSTALL}/hadoop-${HADOOP_VER}/hadoop-${HADOOP_VER}-core.jar
+
+
+# Start the servers in the background and stop them all on exit
+PIDS=
+trap 'kill ${PIDS} 2>/dev/null' INT TERM EXIT
+
+I=0
+SERVERS=
+while [ ${I} -lt ${COUNT} ]; do
+    PORT=`expr ${BASE_PORT} + ${I}`
+    java -classpath ${LIB_JARS} ${SERVER} \
+        ${HADOOP_INSTALL}/hadoop-${HADOOP_VER} ${PORT} > server-${PORT}.log 2>&1 &
+    PIDS="${PIDS} $!"
+    SERVERS="${SERVERS}${SERVERS:+,}localhost:${PORT}"
+    I=`expr ${I} + 1`
+done
+
+echo "Started ${COUNT} servers, logs in server-<port>.log"
+echo "Balancer server list: ${SERVERS}"
+wait
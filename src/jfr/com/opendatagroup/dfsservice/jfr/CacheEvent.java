@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Activity of the server's local read cache: a lookup that hit or missed,
+ * a background fill finishing, or an eviction.
+ */
+@Name( "com.opendatagroup.dfsservice.Cache" )
+@Label( "ThriftStore Read Cache" )
+@Description( "Lookups, fills and evictions of the server's read cache" )
+@Category( { "ThriftStore", "Server" } )
+class CacheEvent extends jdk.jfr.Event
+{
+    /** "hit", "miss", "fill", "discard" or "evict". */
+    @Label( "Action" )
+    String action;
+
+    /** The file. */
+    @Label( "Path" )
+    String path;
+
+    /** The length of the file. */
+    @Label( "Bytes" )
+    @DataAmount
+    long bytes;
+
+    /** How long a fill took, 0 for the other actions. */
+    @Label( "Copy Time" )
+    @Timespan( Timespan.NANOSECONDS )
+    long copyTime;
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A file handle being opened or closed on the server.
+ */
+@Name( "com.opendatagroup.dfsservice.FileHandle" )
+@Label( "ThriftStore File Handle" )
+@Description( "A file handle opened or closed on the server" )
+@Category( { "ThriftStore", "Server" } )
+class HandleEvent extends jdk.jfr.Event
+{
+    /** "open" or "close". */
+    @Label( "Action" )
+    String action;
+
+    /** The id of the client handle. */
+    @Label( "Client" )
+    long client;
+
+    /** The file handle. */
+    @Label( "Handle" )
+    long handle;
+
+    /** The file, only known when it is opened. */
+    @Label( "Path" )
+    String path;
+
+    /** Whether the handle is for writing. */
+    @Label( "Write" )
+    boolean write;
+}
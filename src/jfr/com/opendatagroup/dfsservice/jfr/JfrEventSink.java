@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.jfr;
+
+import com.opendatagroup.dfsservice.util.DfsEventSink;
+
+/**
+ * Reports ThriftStore events to Java Flight Recorder.  Enable it with
+ * <pre>
+ *     -Dthriftstore.event.sink=com.opendatagroup.dfsservice.jfr.JfrEventSink
+ * </pre>
+ * and put the jar built by the <code>jfr</code> target on the class path.
+ * It needs JDK 11 or later.  While no recording has the events enabled
+ * each method returns after one check, without allocating.
+ */
+public class JfrEventSink implements DfsEventSink
+{
+    // ** Inner Classes **
+
+    /**
+     * The RPC event of a thread between {@link #rpcBegin} and
+     * {@link #rpcEnd}.
+     */
+    private static final class Current
+    {
+        /** The event, <code>null</code> if not recording. */
+        private RpcEvent event;
+    }
+
+    // ** Private Static Final Data **
+
+    /** Used to ask whether RPC events are enabled, never committed. */
+    private static final RpcEvent RPC = new RpcEvent();
+
+    /** Used to ask whether handle events are enabled. */
+    private static final HandleEvent HANDLE = new HandleEvent();
+
+    /** Used to ask whether cache events are enabled. */
+    private static final CacheEvent CACHE = new CacheEvent();
+
+    /** Used to ask whether prefetch events are enabled. */
+    private static final PrefetchEvent PREFETCH = new PrefetchEvent();
+
+    // ** Private Data **
+
+    /** The RPC in progress on each thread. */
+    private final ThreadLocal<Current> current = new ThreadLocal<Current>() {
+        protected Current initialValue()
+        {
+            return new Current();
+        }
+    };
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public void rpcBegin()
+    {
+        Current c = current.get();
+        if ( RPC.isEnabled() ) {
+            c.event = new RpcEvent();
+            c.event.begin();
+        } else {
+            c.event = null;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void rpcEnd( final String op, final String path, final long handle,
+        final long bytesRead, final long bytesWritten,
+        final boolean succeeded )
+    {
+        Current c = current.get();
+        RpcEvent e = c.event;
+        if ( e == null ) {
+            return;
+        }
+        c.event = null;
+        e.end();
+        if ( e.shouldCommit() ) {
+            e.operation = op;
+            e.path = path;
+            e.handle = handle;
+            e.bytesRead = bytesRead;
+            e.bytesWritten = bytesWritten;
+            e.succeeded = succeeded;
+            e.commit();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void handleOpened( final long client, final long handle,
+        final String path, final boolean write )
+    {
+        handle( "open", client, handle, path, write );
+    }
+
+    /** {@inheritDoc} */
+    public void handleClosed( final long client, final long handle,
+        final boolean write )
+    {
+        handle( "close", client, handle, null, write );
+    }
+
+    /** {@inheritDoc} */
+    public void cacheLookup( final String path, final boolean hit,
+        final long length )
+    {
+        cache( hit ? "hit" : "miss", path, length, 0L );
+    }
+
+    /** {@inheritDoc} */
+    public void cacheFilled( final String path, final long bytes,
+        final long durationNanos, final boolean kept )
+    {
+        cache( kept ? "fill" : "discard", path, bytes, durationNanos );
+    }
+
+    /** {@inheritDoc} */
+    public void cacheEvicted( final String path, final long bytes )
+    {
+        cache( "evict", path, bytes, 0L );
+    }
+
+    /** {@inheritDoc} */
+    public void prefetch( final long handle, final long offset,
+        final int requested, final int received, final long durationNanos )
+    {
+        if ( !PREFETCH.isEnabled() ) {
+            return;
+        }
+        PrefetchEvent e = new PrefetchEvent();
+        e.handle = handle;
+        e.offset = offset;
+        e.requested = requested;
+        e.received = received;
+        e.fetchTime = durationNanos;
+        e.commit();
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Commits a handle event.
+     */
+    private static void handle( final String action, final long client,
+        final long handle, final String path, final boolean write )
+    {
+        if ( !HANDLE.isEnabled() ) {
+            return;
+        }
+        HandleEvent e = new HandleEvent();
+        e.action = action;
+        e.client = client;
+        e.handle = handle;
+        e.path = path;
+        e.write = write;
+        e.commit();
+    }
+
+    /**
+     * Commits a cache event.
+     */
+    private static void cache( final String action, final String path,
+        final long bytes, final long copyTime )
+    {
+        if ( !CACHE.isEnabled() ) {
+            return;
+        }
+        CacheEvent e = new CacheEvent();
+        e.action = action;
+        e.path = path;
+        e.bytes = bytes;
+        e.copyTime = copyTime;
+        e.commit();
+    }
+}
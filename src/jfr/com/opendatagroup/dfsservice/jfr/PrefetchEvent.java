@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A chunk fetched ahead of the reader by a client input stream.
+ */
+@Name( "com.opendatagroup.dfsservice.Prefetch" )
+@Label( "ThriftStore Prefetch" )
+@Description( "A chunk fetched ahead of the reader by DfsInputStream" )
+@Category( { "ThriftStore", "Client" } )
+class PrefetchEvent extends jdk.jfr.Event
+{
+    /** The file handle read. */
+    @Label( "Handle" )
+    long handle;
+
+    /** File offset of the chunk. */
+    @Label( "Offset" )
+    long offset;
+
+    /** Bytes asked for. */
+    @Label( "Requested" )
+    @DataAmount
+    long requested;
+
+    /** Bytes returned. */
+    @Label( "Received" )
+    @DataAmount
+    long received;
+
+    /** How long the fetch took. */
+    @Label( "Fetch Time" )
+    @Timespan( Timespan.NANOSECONDS )
+    long fetchTime;
+}
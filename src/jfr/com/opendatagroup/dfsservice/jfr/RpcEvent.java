@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One DfsService call, lasting from the handler being entered until it
+ * returned, i.e. the time spent in the backend.
+ */
+@Name( "com.opendatagroup.dfsservice.Rpc" )
+@Label( "ThriftStore RPC" )
+@Description( "A DfsService call served by the handler" )
+@Category( { "ThriftStore", "Server" } )
+class RpcEvent extends jdk.jfr.Event
+{
+    /** The method name in the IDL. */
+    @Label( "Operation" )
+    String operation;
+
+    /** The path named by the call. */
+    @Label( "Path" )
+    String path;
+
+    /** The file handle named by the call, -1 if none. */
+    @Label( "Handle" )
+    long handle;
+
+    /** File bytes returned to the client. */
+    @Label( "Bytes Read" )
+    @DataAmount
+    long bytesRead;
+
+    /** File bytes received from the client. */
+    @Label( "Bytes Written" )
+    @DataAmount
+    long bytesWritten;
+
+    /** Whether the handler returned normally. */
+    @Label( "Succeeded" )
+    boolean succeeded;
+}
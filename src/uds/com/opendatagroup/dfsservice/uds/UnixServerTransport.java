@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.uds;
+
+import com.facebook.thrift.transport.TServerTransport;
+import com.facebook.thrift.transport.TTransport;
+import com.facebook.thrift.transport.TTransportException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Listens on a Unix domain socket, for clients on the server's host.  The
+ * calls are the same as over TCP but skip the loopback network stack.  The
+ * socket file is created by {@link #listen}, replacing a stale one left by
+ * a server that did not shut down, and only the user the server runs as
+ * may connect.  It is deleted by {@link #close}.
+ *
+ * <p>
+ * Needs JDK 16 or later; it is built by the <code>uds</code> target into its
+ * own jar, and the server loads it by name when
+ * <code>thriftstore.uds.path</code> is set.
+ */
+public class UnixServerTransport extends TServerTransport
+{
+    // ** Private Data **
+
+    /** The socket file. */
+    private final File file;
+
+    /** The listening channel, <code>null</code> until {@link #listen}. */
+    private volatile ServerSocketChannel channel;
+
+
+    // ** Constructors **
+
+    /**
+     * @param path the socket file to create.
+     */
+    public UnixServerTransport( final String path )
+    {
+        this.file = new File( path );
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public void listen()
+        throws TTransportException
+    {
+        if ( channel != null ) {
+            return;
+        }
+        if ( file.exists() && !file.delete() ) {
+            throw new TTransportException( "cannot remove stale socket "
+                + file );
+        }
+        ServerSocketChannel listening = null;
+        try {
+            listening = ServerSocketChannel.open( StandardProtocolFamily.UNIX );
+            listening.bind( UnixDomainSocketAddress.of( file.getPath() ) );
+        } catch ( IOException ioe ) {
+            closeQuietly( listening );
+            throw new TTransportException( "cannot listen on " + file + ": "
+                + ioe.getMessage() );
+        }
+        file.setReadable( false, false );
+        file.setWritable( false, false );
+        file.setReadable( true, true );
+        file.setWritable( true, true );
+        channel = listening;
+    }
+
+    /** {@inheritDoc} */
+    public void close()
+    {
+        ServerSocketChannel listening = channel;
+        if ( listening != null ) {
+            channel = null;
+            closeQuietly( listening );
+            file.delete();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void interrupt()
+    {
+        close();
+    }
+
+
+    // ** Protected Methods **
+
+    /** {@inheritDoc} */
+    protected TTransport acceptImpl()
+        throws TTransportException
+    {
+        ServerSocketChannel listening = channel;
+        if ( listening == null ) {
+            throw new TTransportException( TTransportException.NOT_OPEN,
+                "not listening on " + file );
+        }
+        try {
+            return new UnixTransport( listening.accept() );
+        } catch ( ClosedChannelException cce ) {
+            throw new TTransportException( TTransportException.NOT_OPEN,
+                "stopped listening on " + file );
+        } catch ( IOException ioe ) {
+            throw new TTransportException( "cannot accept on " + file + ": "
+                + ioe.getMessage() );
+        }
+    }
+
+
+    // ** Private Static Methods **
+
+    /**
+     * Closes a channel, ignoring errors.
+     *
+     * @param closing the channel, may be <code>null</code>.
+     */
+    private static void closeQuietly( final ServerSocketChannel closing )
+    {
+        if ( closing == null ) {
+            return;
+        }
+        try {
+            closing.close();
+        } catch ( IOException ignored ) {
+            // nothing more to do
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2008-2009  Open Data ("Open Data" refers to
+ * one or more of the following companies: Open Data Partners LLC,
+ * Open Data Research LLC, or Open Data Capital LLC.)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendatagroup.dfsservice.uds;
+
+import com.facebook.thrift.transport.TIOStreamTransport;
+import com.facebook.thrift.transport.TTransportException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection over a Unix domain socket: either one accepted by
+ * {@link UnixServerTransport}, or a client's, opened by {@link #open}.
+ * Like <code>TSocket</code>, it buffers the channel's streams.
+ */
+public class UnixTransport extends TIOStreamTransport
+{
+    // ** Private Static Final Data **
+
+    /** Size of the read and write buffers. */
+    private static final int BUFFER_SIZE = 8192;
+
+    // ** Private Data **
+
+    /** The socket file to connect to, <code>null</code> if accepted. */
+    private final String path;
+
+    /** The connection, <code>null</code> while not open. */
+    private SocketChannel channel;
+
+
+    // ** Constructors **
+
+    /**
+     * Creates a client transport, not yet connected.
+     *
+     * @param path the socket file the server listens on.
+     */
+    public UnixTransport( final String path )
+    {
+        this.path = path;
+    }
+
+    /**
+     * Wraps an accepted connection.
+     *
+     * @param channel the connection.
+     */
+    UnixTransport( final SocketChannel channel )
+    {
+        this.path = null;
+        attach( channel );
+    }
+
+
+    // ** Public Methods **
+
+    /** {@inheritDoc} */
+    public boolean isOpen()
+    {
+        return channel != null && channel.isOpen();
+    }
+
+    /** {@inheritDoc} */
+    public void open()
+        throws TTransportException
+    {
+        if ( isOpen() ) {
+            throw new TTransportException( TTransportException.ALREADY_OPEN,
+                "already connected to " + path );
+        }
+        if ( path == null ) {
+            throw new TTransportException( TTransportException.NOT_OPEN,
+                "cannot reopen an accepted connection" );
+        }
+        SocketChannel connecting = null;
+        try {
+            connecting = SocketChannel.open( StandardProtocolFamily.UNIX );
+            connecting.connect( UnixDomainSocketAddress.of( path ) );
+        } catch ( IOException ioe ) {
+            if ( connecting != null ) {
+                try {
+                    connecting.close();
+                } catch ( IOException ignored ) {
+                    // nothing more to do
+                }
+            }
+            throw new TTransportException( TTransportException.NOT_OPEN,
+                "cannot connect to " + path + ": " + ioe.getMessage() );
+        }
+        attach( connecting );
+    }
+
+    /**
+     * Closes the connection.  The channel is closed directly: closing either
+     * stream would close it under the other.
+     */
+    public void close()
+    {
+        inputStream_ = null;
+        outputStream_ = null;
+        if ( channel != null ) {
+            try {
+                channel.close();
+            } catch ( IOException ignored ) {
+                // nothing more to do
+            }
+            channel = null;
+        }
+    }
+
+
+    // ** Private Methods **
+
+    /**
+     * Starts using a connected channel.
+     *
+     * @param connected the channel.
+     */
+    private void attach( final SocketChannel connected )
+    {
+        channel = connected;
+        inputStream_ = new BufferedInputStream(
+            Channels.newInputStream( connected ), BUFFER_SIZE );
+        outputStream_ = new BufferedOutputStream(
+            Channels.newOutputStream( connected ), BUFFER_SIZE );
+    }
+}